@@ -0,0 +1,350 @@
+package com.gallagher.nzcovidpass.loadtest;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gallagher.nzcovidpass.PassVerifier;
+import com.gallagher.nzcovidpass.WellKnownIssuerNames;
+
+import org.HdrHistogram.Histogram;
+import org.json.JSONObject;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives one shared PassVerifier from many threads and reports throughput, latency percentiles and GC activity.
+//
+//   gradle loadTest -PloadTestArgs="--threads=32 --rate=20000 --duration=60 --mix=valid=80,not_a_pass=20 --output=run.json"
+//
+// Options (all optional):
+//   --threads=N       worker threads (default: number of processors)
+//   --rate=N          target verifications per second across all threads; 0 runs flat out (default 0)
+//   --duration=S      measured seconds (default 30)
+//   --warmup=S        unmeasured seconds first, after PassVerifier.warmUp (default 5)
+//   --mix=SPEC        payload kinds and weights, see PayloadMix (default valid=70,bad_signature=10,expired=10,not_a_pass=10)
+//   --seed=N          for the payload sequence (default 1)
+//   --label=TEXT      copied into the output, e.g. the library version under test
+//   --output=FILE     also write the JSON report here
+//   --format=json     print the JSON report instead of the text summary
+//
+// Latency: with a target rate each thread works to a fixed schedule, and latency is measured from when a
+// request was due to start, not when it actually started. If the verifier stalls (GC, lock contention) the
+// requests queued up behind the stall are charged for the wait, as a real scanner would see it; otherwise the
+// stall only shows up once, which is the coordinated omission problem. Service time (actual start to finish)
+// is reported alongside. Flat out there's no schedule to fall behind, so only service time is reported.
+public final class LoadTest {
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private LoadTest() { }
+
+    static final class Config {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long rate = 0;
+        int durationSeconds = 30;
+        int warmUpSeconds = 5;
+        @NonNull String mix = "valid=70,bad_signature=10,expired=10,not_a_pass=10";
+        long seed = 1;
+        @NonNull String label = "";
+        @Nullable String output;
+        boolean json;
+
+        @NonNull
+        static Config parse(@NonNull String[] args) {
+            Config config = new Config();
+            for(String arg : args) {
+                int eq = arg.indexOf('=');
+                if(!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("expected --name=value, got " + arg);
+                }
+                String name = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                switch(name) {
+                    case "threads": config.threads = Integer.parseInt(value); break;
+                    case "rate": config.rate = Long.parseLong(value); break;
+                    case "duration": config.durationSeconds = Integer.parseInt(value); break;
+                    case "warmup": config.warmUpSeconds = Integer.parseInt(value); break;
+                    case "mix": config.mix = value; break;
+                    case "seed": config.seed = Long.parseLong(value); break;
+                    case "label": config.label = value; break;
+                    case "output": config.output = value; break;
+                    case "format": config.json = value.equals("json"); break;
+                    default: throw new IllegalArgumentException("unknown option --" + name);
+                }
+            }
+            if(config.threads < 1 || config.rate < 0 || config.durationSeconds < 1 || config.warmUpSeconds < 0) {
+                throw new IllegalArgumentException("threads and duration must be positive; rate and warmup must not be negative");
+            }
+            return config;
+        }
+    }
+
+    // what one worker thread saw during the measured phase
+    static final class WorkerResult {
+        @NonNull final Histogram service = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+        @NonNull final Histogram response = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+        @NonNull final EnumMap<PayloadMix.Kind, long[]> counts = new EnumMap<>(PayloadMix.Kind.class); // {ok, rejected}
+        long unexpected; // a valid pass rejected, or an invalid one accepted
+        long operations;
+    }
+
+    public static void main(@NonNull String[] args) throws Exception {
+        Config config = Config.parse(args);
+        PayloadMix mix = PayloadMix.parse(config.mix);
+
+        List<String> issuers = Arrays.asList(WellKnownIssuerNames.NZCP, WellKnownIssuerNames.NZCP_TEST);
+        PassVerifier verifier = new PassVerifier(new PassVerifier.Options(issuers));
+        long warmUpMillis = verifier.warmUp();
+
+        if(config.warmUpSeconds > 0) {
+            run(config, mix, verifier, config.warmUpSeconds);
+        }
+
+        GcSnapshot gcBefore = GcSnapshot.take();
+        long startNanos = System.nanoTime();
+        WorkerResult[] results = run(config, mix, verifier, config.durationSeconds);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        GcSnapshot gcAfter = GcSnapshot.take();
+
+        JSONObject report = report(config, warmUpMillis, results, elapsedNanos, gcBefore, gcAfter);
+        if(config.output != null) {
+            try(Writer writer = new OutputStreamWriter(new FileOutputStream(config.output), StandardCharsets.UTF_8)) {
+                writer.write(report.toString(2));
+                writer.write('\n');
+            }
+        }
+        System.out.println(config.json ? report.toString(2) : summary(report));
+
+        long unexpected = 0;
+        for(WorkerResult r : results) {
+            unexpected += r.unexpected;
+        }
+        if(unexpected > 0) {
+            System.exit(1); // the verifier gave a wrong answer under load; the timings don't matter
+        }
+    }
+
+    @NonNull
+    private static WorkerResult[] run(@NonNull final Config config, @NonNull final PayloadMix mix, @NonNull final PassVerifier verifier, int seconds) throws InterruptedException {
+        final WorkerResult[] results = new WorkerResult[config.threads];
+        final CountDownLatch ready = new CountDownLatch(config.threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final long[] phaseStart = new long[1];
+        final long durationNanos = TimeUnit.SECONDS.toNanos(seconds);
+        // each thread takes an equal share of the rate
+        final long intervalNanos = config.rate == 0 ? 0 : Math.max(1, TimeUnit.SECONDS.toNanos(1) * config.threads / config.rate);
+
+        Thread[] threads = new Thread[config.threads];
+        for(int t = 0; t < config.threads; t++) {
+            final int index = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    WorkerResult result = new WorkerResult();
+                    // in a finally so a worker that dies still reports what it did, rather than leaving a null
+                    try {
+                        Random random = new Random(config.seed * 31 + index);
+                        Date referenceTime = new Date(PayloadMix.REFERENCE_TIME);
+                        ready.countDown();
+                        try {
+                            go.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        // stagger the threads' schedules so they don't all fire at once
+                        long start = phaseStart[0] + (intervalNanos * index) / config.threads;
+                        long end = phaseStart[0] + durationNanos;
+                        for(long n = 0; ; n++) {
+                            long intended = intervalNanos == 0 ? System.nanoTime() : start + n * intervalNanos;
+                            if(intended >= end) {
+                                break;
+                            }
+                            long now;
+                            while((now = System.nanoTime()) < intended) {
+                                LockSupport.parkNanos(intended - now);
+                            }
+
+                            PayloadMix.Kind kind = mix.next(random);
+                            boolean ok;
+                            long before = System.nanoTime();
+                            try {
+                                verifier.verify(kind.payload, referenceTime);
+                                ok = true;
+                            } catch (Exception e) {
+                                ok = false;
+                            }
+                            long after = System.nanoTime();
+
+                            result.service.recordValue(Math.min(after - before, HIGHEST_TRACKABLE_NANOS));
+                            result.response.recordValue(Math.min(after - intended, HIGHEST_TRACKABLE_NANOS));
+                            long[] counts = result.counts.get(kind);
+                            if(counts == null) {
+                                counts = new long[2];
+                                result.counts.put(kind, counts);
+                            }
+                            counts[ok ? 0 : 1]++;
+                            if(ok != (kind == PayloadMix.Kind.VALID)) {
+                                result.unexpected++;
+                            }
+                            result.operations++;
+                        }
+                    } finally {
+                        results[index] = result;
+                    }
+                }
+            }, "loadtest-" + t);
+            threads[t].start();
+        }
+
+        ready.await();
+        phaseStart[0] = System.nanoTime(); // published to the workers by the latch
+        go.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        return results;
+    }
+
+    static final class GcSnapshot {
+        long collections;
+        long timeMillis;
+        @NonNull final Map<String, long[]> perCollector = new HashMap<>(); // {collections, time}
+
+        @NonNull
+        static GcSnapshot take() {
+            GcSnapshot snapshot = new GcSnapshot();
+            for(GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                long count = Math.max(0, bean.getCollectionCount()); // -1 if unknown
+                long time = Math.max(0, bean.getCollectionTime());
+                snapshot.collections += count;
+                snapshot.timeMillis += time;
+                snapshot.perCollector.put(bean.getName(), new long[]{ count, time });
+            }
+            return snapshot;
+        }
+    }
+
+    @NonNull
+    private static JSONObject report(@NonNull Config config, long warmUpMillis, @NonNull WorkerResult[] results, long elapsedNanos, @NonNull GcSnapshot gcBefore, @NonNull GcSnapshot gcAfter) {
+        Histogram service = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+        Histogram response = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+        EnumMap<PayloadMix.Kind, long[]> counts = new EnumMap<>(PayloadMix.Kind.class);
+        long operations = 0;
+        long unexpected = 0;
+        for(WorkerResult r : results) {
+            service.add(r.service);
+            response.add(r.response);
+            operations += r.operations;
+            unexpected += r.unexpected;
+            for(Map.Entry<PayloadMix.Kind, long[]> e : r.counts.entrySet()) {
+                long[] total = counts.get(e.getKey());
+                if(total == null) {
+                    total = new long[2];
+                    counts.put(e.getKey(), total);
+                }
+                total[0] += e.getValue()[0];
+                total[1] += e.getValue()[1];
+            }
+        }
+
+        JSONObject configJson = new JSONObject();
+        configJson.put("threads", config.threads);
+        configJson.put("targetRate", config.rate);
+        configJson.put("durationSeconds", config.durationSeconds);
+        configJson.put("warmUpSeconds", config.warmUpSeconds);
+        configJson.put("mix", config.mix);
+        configJson.put("seed", config.seed);
+
+        JSONObject environment = new JSONObject();
+        environment.put("javaVersion", System.getProperty("java.version"));
+        environment.put("javaVm", System.getProperty("java.vm.name"));
+        environment.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        environment.put("processors", Runtime.getRuntime().availableProcessors());
+        environment.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+
+        JSONObject outcomes = new JSONObject();
+        for(Map.Entry<PayloadMix.Kind, long[]> e : counts.entrySet()) {
+            JSONObject o = new JSONObject();
+            o.put("accepted", e.getValue()[0]);
+            o.put("rejected", e.getValue()[1]);
+            outcomes.put(e.getKey().name().toLowerCase(), o);
+        }
+
+        JSONObject gc = new JSONObject();
+        gc.put("collections", gcAfter.collections - gcBefore.collections);
+        gc.put("timeMillis", gcAfter.timeMillis - gcBefore.timeMillis);
+        JSONObject collectors = new JSONObject();
+        for(Map.Entry<String, long[]> e : gcAfter.perCollector.entrySet()) {
+            long[] after = e.getValue();
+            long[] before = gcBefore.perCollector.containsKey(e.getKey()) ? gcBefore.perCollector.get(e.getKey()) : new long[2];
+            JSONObject c = new JSONObject();
+            c.put("collections", after[0] - before[0]);
+            c.put("timeMillis", after[1] - before[1]);
+            collectors.put(e.getKey(), c);
+        }
+        gc.put("collectors", collectors);
+
+        JSONObject report = new JSONObject();
+        report.put("label", config.label);
+        report.put("config", configJson);
+        report.put("environment", environment);
+        report.put("warmUpMillis", warmUpMillis);
+        report.put("operations", operations);
+        report.put("unexpectedOutcomes", unexpected);
+        report.put("elapsedSeconds", elapsedNanos / 1e9);
+        report.put("throughputPerSecond", operations / (elapsedNanos / 1e9));
+        report.put("serviceTimeMicros", percentiles(service));
+        if(config.rate > 0) {
+            report.put("responseTimeMicros", percentiles(response)); // coordinated-omission corrected
+        }
+        report.put("outcomes", outcomes);
+        report.put("gc", gc);
+        return report;
+    }
+
+    @NonNull
+    private static JSONObject percentiles(@NonNull Histogram histogram) {
+        JSONObject result = new JSONObject();
+        result.put("p50", histogram.getValueAtPercentile(50) / 1000.0);
+        result.put("p99", histogram.getValueAtPercentile(99) / 1000.0);
+        result.put("p999", histogram.getValueAtPercentile(99.9) / 1000.0);
+        result.put("max", histogram.getMaxValue() / 1000.0);
+        result.put("mean", histogram.getMean() / 1000.0);
+        return result;
+    }
+
+    @NonNull
+    private static String summary(@NonNull JSONObject report) {
+        StringBuilder sb = new StringBuilder();
+        JSONObject config = report.getJSONObject("config");
+        sb.append(String.format("%s threads, target rate %s, %ss measured%n",
+                config.get("threads"), config.getLong("targetRate") == 0 ? "flat out" : config.get("targetRate") + "/s", config.get("durationSeconds")));
+        sb.append(String.format("throughput: %.0f verifications/s (%d total, %d unexpected outcomes)%n",
+                report.getDouble("throughputPerSecond"), report.getLong("operations"), report.getLong("unexpectedOutcomes")));
+        appendPercentiles(sb, "service time", report.getJSONObject("serviceTimeMicros"));
+        if(report.has("responseTimeMicros")) {
+            appendPercentiles(sb, "response time", report.getJSONObject("responseTimeMicros"));
+        }
+        JSONObject gc = report.getJSONObject("gc");
+        sb.append(String.format("gc: %d collections, %d ms%n", gc.getLong("collections"), gc.getLong("timeMillis")));
+        return sb.toString();
+    }
+
+    private static void appendPercentiles(@NonNull StringBuilder sb, @NonNull String name, @NonNull JSONObject p) {
+        sb.append(String.format("%s (us): p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+                name, p.getDouble("p50"), p.getDouble("p99"), p.getDouble("p999"), p.getDouble("max")));
+    }
+}
@@ -0,0 +1,90 @@
+package com.gallagher.nzcovidpass.loadtest;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// The kinds of payload the load test throws at the verifier, and how often each one comes up.
+// Each kind fails (or doesn't) at a different stage, so the mix decides how much of the run is spent on
+// cheap rejects versus full signature checks.
+final class PayloadMix {
+    enum Kind {
+        // the worked example from the spec, signed with the NZCP test key; valid at REFERENCE_TIME
+        VALID("NZCP:/1/2KCEVIQEIVVWK6JNGEASNICZAEP2KALYDZSGSZB2O5SWEOTOPJRXALTDN53GSZBRHEXGQZLBNR2GQLTOPICRUYMBTIFAIGTUKBAAUYTWMOSGQQDDN5XHIZLYOSBHQJTIOR2HA4Z2F4XXO53XFZ3TGLTPOJTS6MRQGE4C6Y3SMVSGK3TUNFQWY4ZPOYYXQKTIOR2HA4Z2F4XW46TDOAXGG33WNFSDCOJONBSWC3DUNAXG46RPMNXW45DFPB2HGL3WGFTXMZLSONUW63TFGEXDALRQMR2HS4DFQJ2FMZLSNFTGSYLCNRSUG4TFMRSW45DJMFWG6UDVMJWGSY2DN53GSZCQMFZXG4LDOJSWIZLOORUWC3CTOVRGUZLDOSRWSZ3JOZSW4TTBNVSWISTBMNVWUZTBNVUWY6KOMFWWKZ2TOBQXE4TPO5RWI33CNIYTSNRQFUYDILJRGYDVAYFE6VGU4MCDGK7DHLLYWHVPUS2YIDJOA6Y524TD3AZRM263WTY2BE4DPKIF27WKF3UDNNVSVWRDYIYVJ65IRJJJ6Z25M2DO4YZLBHWFQGVQR5ZLIWEQJOZTS3IQ7JTNCFDX"),
+        // reaches signature verification and fails it
+        BAD_SIGNATURE("NZCP:/1/2KCEVIQEIVVWK6JNGEASNICZAEP2KALYDZSGSZB2O5SWEOTOPJRXALTDN53GSZBRHEXGQZLBNR2GQLTOPICRUYMBTIFAIGTUKBAAUYTWMOSGQQDDN5XHIZLYOSBHQJTIOR2HA4Z2F4XXO53XFZ3TGLTPOJTS6MRQGE4C6Y3SMVSGK3TUNFQWY4ZPOYYXQKTIOR2HA4Z2F4XW46TDOAXGG33WNFSDCOJONBSWC3DUNAXG46RPMNXW45DFPB2HGL3WGFTXMZLSONUW63TFGEXDALRQMR2HS4DFQJ2FMZLSNFTGSYLCNRSUG4TFMRSW45DJMFWG6UDVMJWGSY2DN53GSZCQMFZXG4LDOJSWIZLOORUWC3CTOVRGUZLDOSRWSZ3JOZSW4TTBNVSWISTBMNVWUZTBNVUWY6KOMFWWKZ2TOBQXE4TPO5RWI33CNIYTSNRQFUYDILJRGYDVAYFE6VGU4MCDGK7DHLLYWHVPUS2YIAAAAAAAAAAAAAAAAC63WTY2BE4DPKIF27WKF3UDNNVSVWRDYIYVJ65IRJJJ6Z25M2DO4YZLBHWFQGVQR5ZLIWEQJOZTS3IQ7JTNCFDX"),
+        // parses, then fails the validity period check before any crypto
+        EXPIRED("NZCP:/1/2KCEVIQEIVVWK6JNGEASNICZAEP2KALYDZSGSZB2O5SWEOTOPJRXALTDN53GSZBRHEXGQZLBNR2GQLTOPICRUX5AM2FQIGTBPBPYWYTWMOSGQQDDN5XHIZLYOSBHQJTIOR2HA4Z2F4XXO53XFZ3TGLTPOJTS6MRQGE4C6Y3SMVSGK3TUNFQWY4ZPOYYXQKTIOR2HA4Z2F4XW46TDOAXGG33WNFSDCOJONBSWC3DUNAXG46RPMNXW45DFPB2HGL3WGFTXMZLSONUW63TFGEXDALRQMR2HS4DFQJ2FMZLSNFTGSYLCNRSUG4TFMRSW45DJMFWG6UDVMJWGSY2DN53GSZCQMFZXG4LDOJSWIZLOORUWC3CTOVRGUZLDOSRWSZ3JOZSW4TTBNVSWISTBMNVWUZTBNVUWY6KOMFWWKZ2TOBQXE4TPO5RWI33CNIYTSNRQFUYDILJRGYDVA56TNJCCUN2NVK5NGAYOZ6VIWACYIBM3QXW7SLCMD2WTJ3GSEI5JH7RXAEURGATOHAHXC2O6BEJKBSVI25ICTBR5SFYUDSVLB2F6SJ63LWJ6Z3FWNHOXF6A2QLJNUFRQNTRU"),
+        // signed with a key id nobody publishes
+        UNKNOWN_KEY("NZCP:/1/2KCEVIQEIVVWK6JNGIASNICZAEP2KALYDZSGSZB2O5SWEOTOPJRXALTDN53GSZBRHEXGQZLBNR2GQLTOPICRUYMBTIFAIGTUKBAAUYTWMOSGQQDDN5XHIZLYOSBHQJTIOR2HA4Z2F4XXO53XFZ3TGLTPOJTS6MRQGE4C6Y3SMVSGK3TUNFQWY4ZPOYYXQKTIOR2HA4Z2F4XW46TDOAXGG33WNFSDCOJONBSWC3DUNAXG46RPMNXW45DFPB2HGL3WGFTXMZLSONUW63TFGEXDALRQMR2HS4DFQJ2FMZLSNFTGSYLCNRSUG4TFMRSW45DJMFWG6UDVMJWGSY2DN53GSZCQMFZXG4LDOJSWIZLOORUWC3CTOVRGUZLDOSRWSZ3JOZSW4TTBNVSWISTBMNVWUZTBNVUWY6KOMFWWKZ2TOBQXE4TPO5RWI33CNIYTSNRQFUYDILJRGYDVBMP3LEDMB4CLBS2I7IOYJZW46U2YIBCSOFZMQADVQGM3JKJBLCY7ATASDTUYWIP4RX3SH3IFBJ3QWPQ7FJE6RNT5MU3JHCCGKJISOLIMY3OWH5H5JFUEZKBF27OMB37H5AHF"),
+        // some other QR code; rejected on the prefix
+        NOT_A_PASS("https://example.com/menu");
+
+        @NonNull
+        final String payload;
+
+        Kind(@NonNull String payload) {
+            this.payload = payload;
+        }
+    }
+
+    // inside the example pass's validity period, so VALID really is valid
+    static final long REFERENCE_TIME = 1639345844000L;
+
+    // the kinds with a non-zero weight, and the running total of the weights up to and including each one.
+    // There are only a handful, so next() scans rather than binary searches
+    @NonNull
+    private final Kind[] _kinds;
+    @NonNull
+    private final int[] _cumulative;
+
+    private PayloadMix(@NonNull Kind[] kinds, @NonNull int[] cumulative) {
+        _kinds = kinds;
+        _cumulative = cumulative;
+    }
+
+    // e.g. "valid=70,bad_signature=10,expired=10,not_a_pass=10". Weights are relative; they needn't sum to 100
+    @NonNull
+    static PayloadMix parse(@NonNull String spec) {
+        List<Kind> kinds = new ArrayList<>();
+        List<Integer> totals = new ArrayList<>(); // the running total after each kind
+        int total = 0;
+        for(String part : spec.split(",")) {
+            String[] kv = part.trim().split("=");
+            if(kv.length != 2) {
+                throw new IllegalArgumentException("expected kind=weight, got " + part);
+            }
+            int weight = Integer.parseInt(kv[1].trim());
+            if(weight < 0) {
+                throw new IllegalArgumentException("negative weight in " + part);
+            }
+            Kind kind = Kind.valueOf(kv[0].trim().toUpperCase());
+            if(weight > 0) {
+                total = Math.addExact(total, weight);
+                kinds.add(kind);
+                totals.add(total);
+            }
+        }
+        if(total == 0) {
+            throw new IllegalArgumentException("mix has no weight: " + spec);
+        }
+
+        int[] cumulative = new int[totals.size()];
+        for(int i = 0; i < cumulative.length; i++) {
+            cumulative[i] = totals.get(i);
+        }
+        return new PayloadMix(kinds.toArray(new Kind[0]), cumulative);
+    }
+
+    @NonNull
+    Kind next(@NonNull Random random) {
+        int r = random.nextInt(_cumulative[_cumulative.length - 1]);
+        int i = 0;
+        while(r >= _cumulative[i]) {
+            i++;
+        }
+        return _kinds[i];
+    }
+}
@@ -0,0 +1,190 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Limits how much signature checking a PassVerifier will take on, so that a surge of scans (a stadium opening)
+// is shed rather than queued until every caller's latency collapses.
+//
+// Give one to the PassVerifier constructor. Everything cheap (prefix, version, structure, issuer, key lookup,
+// validity period) is still checked for every scan. Only the ECDSA check is gated, by
+// - a cap on how many signature checks may run at once across all callers, and
+// - optionally, a token bucket per caller (e.g. per gate or scanner), for verify calls that pass a caller id,
+//   so one busy or misbehaving device can't take the whole capacity.
+// A scan that doesn't get in fails with CwtSecurityTokenValidationError.Overloaded, which says nothing about
+// the pass; the caller should ask for it to be scanned again
+public class AdmissionControl {
+    // The most callers with a bucket of their own. At the cap, callers whose buckets are full (which is the same as
+    // not tracking them) are dropped, at most once per refill time so a flood of new ids can't make every scan sweep
+    // the map. New callers that still don't fit share one overflow bucket until there's room
+    static final int MAX_TRACKED_CALLERS = 10000;
+
+    private final int _maxInFlight;
+    private final double _tokensPerNano;
+    private final double _burst;
+
+    @NonNull
+    private final AtomicInteger _inFlight = new AtomicInteger();
+    @NonNull
+    private final AtomicLong _shed = new AtomicLong();
+    @NonNull
+    private final ConcurrentHashMap<String, Bucket> _buckets = new ConcurrentHashMap<>();
+    // _buckets.size() can't be reserved against, so the cap is enforced with this
+    @NonNull
+    private final AtomicInteger _trackedCallers = new AtomicInteger();
+    @NonNull
+    private final AtomicLong _lastSweepNanos = new AtomicLong(NEVER);
+    @NonNull
+    private final Bucket _overflow;
+
+    private static final long NEVER = Long.MIN_VALUE;
+
+    // only caps concurrent signature checks
+    public AdmissionControl(int maxInFlight) {
+        this(maxInFlight, 0, 0);
+    }
+
+    // ratePerSecond of 0 turns the per-caller buckets off. burst is how many scans a caller can make in a row
+    // after being idle
+    public AdmissionControl(int maxInFlight, double ratePerSecond, int burst) {
+        if(maxInFlight < 1 || ratePerSecond < 0 || (ratePerSecond > 0 && burst < 1)) {
+            throw new IllegalArgumentException("maxInFlight " + maxInFlight + ", ratePerSecond " + ratePerSecond + ", burst " + burst);
+        }
+        _maxInFlight = maxInFlight;
+        _tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        _burst = burst;
+        _overflow = new Bucket(burst, System.nanoTime());
+    }
+
+    public int getMaxInFlight() {
+        return _maxInFlight;
+    }
+
+    // signature checks running right now
+    public int getInFlight() {
+        return _inFlight.get();
+    }
+
+    // how many scans have been turned away since this was created
+    public long getShedCount() {
+        return _shed.get();
+    }
+
+    // Takes a slot (and a token from the caller's bucket, if there's a caller and buckets are on).
+    // Returns false if the scan should be shed. Call release() after the signature check if it returns true
+    boolean tryAcquire(@Nullable String callerId) {
+        return tryAcquire(callerId, System.nanoTime());
+    }
+
+    boolean tryAcquire(@Nullable String callerId, long nowNanos) {
+        int inFlight;
+        do {
+            inFlight = _inFlight.get();
+            if(inFlight >= _maxInFlight) {
+                _shed.incrementAndGet();
+                return false;
+            }
+        } while(!_inFlight.compareAndSet(inFlight, inFlight + 1));
+
+        if(callerId != null && _tokensPerNano > 0 && !bucket(callerId, nowNanos).tryTake(nowNanos, _tokensPerNano, _burst)) {
+            _inFlight.decrementAndGet();
+            _shed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void release() {
+        _inFlight.decrementAndGet();
+    }
+
+    @NonNull
+    private Bucket bucket(@NonNull String callerId, long nowNanos) {
+        Bucket bucket = _buckets.get(callerId);
+        if(bucket != null) {
+            return bucket;
+        }
+        if(!reserveCaller() && (!forgetIdleCallers(nowNanos) || !reserveCaller())) {
+            return _overflow;
+        }
+        bucket = new Bucket(_burst, nowNanos);
+        Bucket existing = _buckets.putIfAbsent(callerId, bucket);
+        if(existing != null) {
+            _trackedCallers.decrementAndGet();
+            return existing;
+        }
+        return bucket;
+    }
+
+    private boolean reserveCaller() {
+        int tracked;
+        do {
+            tracked = _trackedCallers.get();
+            if(tracked >= MAX_TRACKED_CALLERS) {
+                return false;
+            }
+        } while(!_trackedCallers.compareAndSet(tracked, tracked + 1));
+        return true;
+    }
+
+    // Returns false without sweeping if another thread is, or a bucket couldn't have refilled since the last sweep
+    private boolean forgetIdleCallers(long nowNanos) {
+        long last = _lastSweepNanos.get();
+        if(last != NEVER && nowNanos - last < _burst / _tokensPerNano) {
+            return false;
+        }
+        if(!_lastSweepNanos.compareAndSet(last, nowNanos)) {
+            return false;
+        }
+        for(Iterator<Bucket> it = _buckets.values().iterator(); it.hasNext(); ) {
+            if(it.next().isFull(nowNanos, _tokensPerNano, _burst)) {
+                it.remove();
+                _trackedCallers.decrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    int getTrackedCallerCount() {
+        return _buckets.size();
+    }
+
+    // a classic token bucket, refilled lazily when it is next used
+    private static final class Bucket {
+        private double _tokens;
+        private long _lastNanos;
+
+        Bucket(double tokens, long nowNanos) {
+            _tokens = tokens;
+            _lastNanos = nowNanos;
+        }
+
+        synchronized boolean tryTake(long nowNanos, double tokensPerNano, double burst) {
+            refill(nowNanos, tokensPerNano, burst);
+            if(_tokens < 1) {
+                return false;
+            }
+            _tokens -= 1;
+            return true;
+        }
+
+        synchronized boolean isFull(long nowNanos, double tokensPerNano, double burst) {
+            refill(nowNanos, tokensPerNano, burst);
+            return _tokens >= burst;
+        }
+
+        private void refill(long nowNanos, double tokensPerNano, double burst) {
+            long elapsed = nowNanos - _lastNanos;
+            if(elapsed > 0) {
+                _tokens = Math.min(burst, _tokens + elapsed * tokensPerNano);
+                _lastNanos = nowNanos;
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+
+// Keeps track of the passes admitted to a long-running event and drops them as they expire, so you always know
+// how many admissions are still valid without rescanning everything you've admitted.
+//
+// Passes are filed by expiry in a hierarchical timer wheel with one second ticks: 11 levels of 64 slots,
+// where level n holds passes expiring within 64^(n+1) seconds. As time advances, a slot at a higher level is
+// cascaded down into the finer levels when time reaches it, and level 0 slots expire their passes. Each pass is
+// moved at most once per level, so adding, removing and expiring are all O(1) amortised, and advancing over
+// stretches where nothing expires is skipped using a bitmap of occupied slots per level.
+//
+// Time only moves when you call advance (the no-arg overload uses the system clock); getValidCount is as of
+// the last advance. Thread-safe. Passes with no expiry are counted but never expire
+public class AdmissionIndex {
+    // called from advance, on the advancing thread, once for each pass as it expires
+    public interface Listener {
+        void expired(@NonNull VerifiedPass pass);
+    }
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 11; // 66 bits of seconds, so every expiry fits without an overflow list
+
+    private static final class Entry {
+        @NonNull
+        final VerifiedPass pass;
+        // the tick (second) at which the pass is no longer valid
+        final long deadline;
+        @Nullable
+        Entry prev;
+        @Nullable
+        Entry next;
+        // where it is filed, or -1 if it never expires
+        int index = -1;
+
+        Entry(@NonNull VerifiedPass pass, long deadline) {
+            this.pass = pass;
+            this.deadline = deadline;
+        }
+    }
+
+    @Nullable
+    private final Listener _listener;
+
+    @NonNull
+    private final HashMap<VerifiedPass, Entry> _entries = new HashMap<>();
+
+    // LEVELS * SLOTS doubly linked lists, and a bitmap per level of which of them are non-empty
+    @NonNull
+    private final Entry[] _slots = new Entry[LEVELS * SLOTS];
+    @NonNull
+    private final long[] _occupied = new long[LEVELS];
+
+    // the last tick processed, in seconds since the epoch
+    private long _now;
+
+    // written under the lock, but read without it
+    private volatile int _validCount;
+
+    public AdmissionIndex() {
+        this(System.currentTimeMillis(), null);
+    }
+
+    public AdmissionIndex(long nowMillis, @Nullable Listener listener) {
+        _now = toSeconds(nowMillis);
+        _listener = listener;
+    }
+
+    // Returns false if the pass is already in the index, or has already expired (as of the last advance)
+    public synchronized boolean add(@NonNull VerifiedPass pass) {
+        if(_entries.containsKey(pass)) {
+            return false;
+        }
+        long expiry = pass.getExpirySeconds();
+        // VerifiedPass.isValidAt treats the expiry second itself as valid
+        long deadline = expiry == VerifiedPass.NO_TIME ? Long.MAX_VALUE : expiry + 1;
+        if(deadline <= _now) {
+            return false;
+        }
+        Entry entry = new Entry(pass, deadline);
+        _entries.put(pass, entry);
+        if(expiry != VerifiedPass.NO_TIME) {
+            file(entry);
+        }
+        _validCount++;
+        return true;
+    }
+
+    // Returns false if the pass isn't in the index (or has expired out of it). The listener is not called
+    public synchronized boolean remove(@NonNull VerifiedPass pass) {
+        Entry entry = _entries.remove(pass);
+        if(entry == null) {
+            return false;
+        }
+        if(entry.index >= 0) {
+            unlink(entry);
+        }
+        _validCount--;
+        return true;
+    }
+
+    public synchronized boolean contains(@NonNull VerifiedPass pass) {
+        return _entries.containsKey(pass);
+    }
+
+    // how many admitted passes were still valid as of the last advance. Constant time and doesn't take the lock
+    public int getValidCount() {
+        return _validCount;
+    }
+
+    public int advance() {
+        return advance(System.currentTimeMillis());
+    }
+
+    // Moves time forward to nowMillis, expiring every pass whose expiry has passed and calling the listener for
+    // each. Returns how many passes expired. Moving time backwards does nothing
+    public synchronized int advance(long nowMillis) {
+        long target = toSeconds(nowMillis);
+        int expired = 0;
+        while(_now < target) {
+            long next = nextEventTick();
+            if(next > target) {
+                _now = target;
+                break;
+            }
+            _now = next;
+            expired += processTick(next);
+        }
+        return expired;
+    }
+
+    // the earliest tick after _now at which a non-empty slot is reached, or Long.MAX_VALUE.
+    // Everything filed at level n is in a slot after _now's own slot at that level, within the same level n+1 slot
+    private long nextEventTick() {
+        long next = Long.MAX_VALUE;
+        for(int level = 0; level < LEVELS; level++) {
+            long occupied = _occupied[level];
+            if(occupied == 0) {
+                continue;
+            }
+            int shift = level * SLOT_BITS;
+            int current = (int)((_now >>> shift) & SLOT_MASK);
+            long later = current == SLOT_MASK ? 0 : occupied & (-1L << (current + 1));
+            if(later == 0) {
+                continue;
+            }
+            long slot = Long.numberOfTrailingZeros(later);
+            long base = shift + SLOT_BITS >= 64 ? 0 : (_now >>> (shift + SLOT_BITS)) << (shift + SLOT_BITS);
+            next = Math.min(next, base | (slot << shift));
+        }
+        return next;
+    }
+
+    private int processTick(long tick) {
+        // cascade from the top, so entries moving down a level are picked up by the level below at this same tick
+        for(int level = LEVELS - 1; level > 0; level--) {
+            int shift = level * SLOT_BITS;
+            if((tick & ((1L << shift) - 1)) != 0) {
+                continue;
+            }
+            Entry head = detach(level, (int)((tick >>> shift) & SLOT_MASK));
+            while(head != null) {
+                Entry following = head.next;
+                head.prev = head.next = null;
+                file(head);
+                head = following;
+            }
+        }
+
+        int expired = 0;
+        Entry head = detach(0, (int)(tick & SLOT_MASK));
+        while(head != null) {
+            Entry following = head.next;
+            head.prev = head.next = null;
+            head.index = -1;
+            _entries.remove(head.pass);
+            _validCount--;
+            expired++;
+            if(_listener != null) {
+                _listener.expired(head.pass);
+            }
+            head = following;
+        }
+        return expired;
+    }
+
+    // Files the entry at the level of the highest 6 bit group in which its deadline differs from now.
+    // Only ever called with deadline >= _now; an entry due now goes into the level 0 slot that is about to be processed
+    private void file(@NonNull Entry entry) {
+        long diff = entry.deadline ^ _now;
+        int level = diff == 0 ? 0 : (63 - Long.numberOfLeadingZeros(diff)) / SLOT_BITS;
+        int slot = (int)((entry.deadline >>> (level * SLOT_BITS)) & SLOT_MASK);
+        int index = level * SLOTS + slot;
+        Entry head = _slots[index];
+        entry.next = head;
+        entry.prev = null;
+        if(head != null) {
+            head.prev = entry;
+        }
+        _slots[index] = entry;
+        entry.index = index;
+        _occupied[level] |= 1L << slot;
+    }
+
+    private void unlink(@NonNull Entry entry) {
+        int index = entry.index;
+        if(entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            _slots[index] = entry.next;
+            if(entry.next == null) {
+                _occupied[index / SLOTS] &= ~(1L << (index % SLOTS));
+            }
+        }
+        if(entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = entry.next = null;
+        entry.index = -1;
+    }
+
+    @Nullable
+    private Entry detach(int level, int slot) {
+        int index = level * SLOTS + slot;
+        Entry head = _slots[index];
+        _slots[index] = null;
+        _occupied[level] &= ~(1L << slot);
+        return head;
+    }
+
+    private static long toSeconds(long millis) {
+        return millis >= 0 ? millis / 1000 : (millis - 999) / 1000; // round down (Math.floorDiv needs API 24)
+    }
+}
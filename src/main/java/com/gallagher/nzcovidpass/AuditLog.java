@@ -0,0 +1,490 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// An AuditSink that keeps verification decisions in a memory-mapped ring file, for when every decision has to
+// be kept but writing each one out as it happens would hold up the scanning threads.
+//
+// The file is a small header followed by a fixed number of segments, each holding a fixed number of 128 byte
+// records. Each segment is mapped separately. A writer claims the next slot with a single atomic increment and
+// fills it in place; there are no locks and nothing is allocated. Once the ring is full, new records overwrite
+// the oldest segment, so size it to cover however long you need to keep records for (or export them before
+// they are overwritten).
+//
+// Records reach the OS page cache as soon as they are written, so they survive the process dying. A daemon
+// thread calls force() on the segments written since the last flush every forceIntervalMillis, so that they
+// also survive the device losing power; anything written since the last flush may be lost in that case.
+//
+// Reopening an existing file carries on after the newest record in it. Use AuditLog.Reader to replay or export
+// the records
+public class AuditLog implements AuditSink, Closeable {
+    public static final int DEFAULT_SEGMENT_COUNT = 8;
+    public static final int DEFAULT_SLOTS_PER_SEGMENT = 8192; // 1MB segments
+    public static final long DEFAULT_FORCE_INTERVAL_MILLIS = 1000;
+
+    // longer issuers are truncated. DIDs are ASCII; anything else is stored as '?'
+    public static final int MAX_ISSUER_LENGTH = 78;
+
+    @NonNull
+    private static final Outcome[] OUTCOMES = Outcome.values();
+
+    static final int RECORD_SIZE = 128;
+    static final int HEADER_SIZE = 64;
+    private static final long MAGIC = 0x4e5a435041554449L; // "NZCPAUDI"
+    private static final int FORMAT_VERSION = 1;
+
+    // record layout
+    private static final int SEQUENCE_OFFSET = 0; // 1-based; 0 means the slot has never been written. Written last
+    private static final int TIME_OFFSET = 8;
+    private static final int CTI_HIGH_OFFSET = 16;
+    private static final int CTI_LOW_OFFSET = 24;
+    private static final int EXPIRY_OFFSET = 32;
+    private static final int OUTCOME_OFFSET = 40;
+    private static final int ISSUER_LENGTH_OFFSET = 41;
+    private static final int ISSUER_OFFSET = 42;
+    private static final int CHECKSUM_OFFSET = 120; // over the sequence and bytes 8-119, so torn or stale records can be spotted
+
+    @NonNull
+    private final RandomAccessFile _file;
+    @NonNull
+    private final MappedByteBuffer[] _segments;
+    private final int _slotsPerSegment;
+    private final long _slotCount;
+
+    // sequence number of the last claimed record
+    @NonNull
+    private final AtomicLong _sequence;
+    // sequence number up to which records have been flushed; only touched by flush, which is synchronized
+    private long _flushed;
+
+    @Nullable
+    private final Thread _flusher;
+    private volatile boolean _closed;
+
+    public AuditLog(@NonNull File file) throws IOException {
+        this(file, DEFAULT_SEGMENT_COUNT, DEFAULT_SLOTS_PER_SEGMENT, DEFAULT_FORCE_INTERVAL_MILLIS);
+    }
+
+    // forceIntervalMillis of 0 disables the background flush; call flush() yourself.
+    // Throws IOException if the file exists but was created with a different layout
+    public AuditLog(@NonNull File file, int segmentCount, int slotsPerSegment, long forceIntervalMillis) throws IOException {
+        if(segmentCount < 1 || slotsPerSegment < 1 || (long)slotsPerSegment * RECORD_SIZE > Integer.MAX_VALUE || forceIntervalMillis < 0) {
+            throw new IllegalArgumentException("segmentCount " + segmentCount + ", slotsPerSegment " + slotsPerSegment + ", forceIntervalMillis " + forceIntervalMillis);
+        }
+        _slotsPerSegment = slotsPerSegment;
+        _slotCount = (long)segmentCount * slotsPerSegment;
+
+        boolean exists = file.length() > 0;
+        _file = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = _file.getChannel();
+            long segmentSize = (long)slotsPerSegment * RECORD_SIZE;
+            if(exists) {
+                Header header = Header.read(channel);
+                if(header.segmentCount != segmentCount || header.slotsPerSegment != slotsPerSegment) {
+                    throw new IOException("audit log " + file + " has " + header.segmentCount + " segments of " + header.slotsPerSegment + " slots");
+                }
+            } else {
+                _file.setLength(HEADER_SIZE + segmentCount * segmentSize);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putLong(MAGIC).putInt(FORMAT_VERSION).putInt(RECORD_SIZE).putInt(segmentCount).putInt(slotsPerSegment);
+                header.clear();
+                channel.write(header, 0);
+                channel.force(true);
+            }
+
+            _segments = new MappedByteBuffer[segmentCount];
+            long newest = 0;
+            for(int i = 0; i < segmentCount; i++) {
+                _segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + i * segmentSize, segmentSize);
+                if(exists) {
+                    for(int slot = 0; slot < slotsPerSegment; slot++) {
+                        newest = Math.max(newest, validSequence(_segments[i], slot * RECORD_SIZE));
+                    }
+                }
+            }
+            _sequence = new AtomicLong(newest);
+            _flushed = newest;
+        } catch (IOException | RuntimeException e) {
+            _file.close();
+            throw e;
+        }
+
+        if(forceIntervalMillis > 0) {
+            final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(forceIntervalMillis);
+            _flusher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while(!_closed) {
+                        LockSupport.parkNanos(this, intervalNanos);
+                        flush();
+                    }
+                }
+            }, "nzcovidpass-audit-flush");
+            _flusher.setDaemon(true);
+            _flusher.start();
+        } else {
+            _flusher = null;
+        }
+    }
+
+    @Override
+    public void record(long timeMillis, @NonNull Outcome outcome, long ctiHigh, long ctiLow, long expirySeconds, @Nullable String issuer) {
+        if(_closed) {
+            return;
+        }
+        long sequence = _sequence.incrementAndGet();
+        long slot = (sequence - 1) % _slotCount;
+        MappedByteBuffer segment = _segments[(int)(slot / _slotsPerSegment)];
+        int offset = (int)(slot % _slotsPerSegment) * RECORD_SIZE;
+
+        // absolute puts only, so writers sharing a segment don't disturb each other
+        segment.putLong(offset + TIME_OFFSET, timeMillis);
+        segment.putLong(offset + CTI_HIGH_OFFSET, ctiHigh);
+        segment.putLong(offset + CTI_LOW_OFFSET, ctiLow);
+        segment.putLong(offset + EXPIRY_OFFSET, expirySeconds);
+        segment.put(offset + OUTCOME_OFFSET, (byte)outcome.ordinal());
+        int length = issuer != null ? Math.min(issuer.length(), MAX_ISSUER_LENGTH) : 0;
+        segment.put(offset + ISSUER_LENGTH_OFFSET, (byte)length);
+        for(int i = 0; i < MAX_ISSUER_LENGTH; i++) {
+            char c = i < length ? issuer.charAt(i) : 0;
+            segment.put(offset + ISSUER_OFFSET + i, c < 0x80 ? (byte)c : (byte)'?');
+        }
+        segment.putLong(offset + CHECKSUM_OFFSET, checksum(segment, offset, sequence));
+        segment.putLong(offset + SEQUENCE_OFFSET, sequence);
+    }
+
+    // Forces every segment written to since the last flush out to storage. Called periodically by the flush
+    // thread; call it yourself if you need a particular record to be durable now
+    public synchronized void flush() {
+        long latest = _sequence.get();
+        if(latest == _flushed) {
+            return;
+        }
+        // start from the segment the last flush ended in, since a writer may still have been filling in a slot there
+        long from = Math.max(_flushed - 1, 0);
+        if(latest - from >= _slotCount) {
+            for(MappedByteBuffer segment : _segments) {
+                segment.force();
+            }
+        } else {
+            int first = (int)((from % _slotCount) / _slotsPerSegment);
+            int last = (int)(((latest - 1) % _slotCount) / _slotsPerSegment);
+            for(int i = first; ; i = (i + 1) % _segments.length) {
+                _segments[i].force();
+                if(i == last) {
+                    break;
+                }
+            }
+        }
+        _flushed = latest;
+    }
+
+    // the sequence number of the most recent record, or 0 if nothing has been recorded
+    public long getLastSequence() {
+        return _sequence.get();
+    }
+
+    // Flushes and closes the file. Records after this are dropped
+    @Override
+    public void close() throws IOException {
+        if(_closed) {
+            return;
+        }
+        _closed = true;
+        if(_flusher != null) {
+            LockSupport.unpark(_flusher);
+            try {
+                _flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        _file.close();
+    }
+
+    static long checksum(@NonNull ByteBuffer segment, int offset, long sequence) {
+        long h = 0x9e3779b97f4a7c15L ^ sequence;
+        for(int i = TIME_OFFSET; i < CHECKSUM_OFFSET; i += 8) {
+            h = (h ^ segment.getLong(offset + i)) * 0xbf58476d1ce4e5b9L;
+            h ^= h >>> 31;
+        }
+        return h;
+    }
+
+    // the record's sequence number, or 0 if the slot is empty, torn or corrupt
+    static long validSequence(@NonNull ByteBuffer segment, int offset) {
+        long sequence = segment.getLong(offset + SEQUENCE_OFFSET);
+        if(sequence <= 0 || segment.getLong(offset + CHECKSUM_OFFSET) != checksum(segment, offset, sequence)) {
+            return 0;
+        }
+        int outcome = segment.get(offset + OUTCOME_OFFSET) & 0xff;
+        int issuerLength = segment.get(offset + ISSUER_LENGTH_OFFSET) & 0xff;
+        if(outcome >= OUTCOMES.length || issuerLength > MAX_ISSUER_LENGTH) {
+            return 0;
+        }
+        return sequence;
+    }
+
+    static class Header {
+        final int segmentCount;
+        final int slotsPerSegment;
+
+        Header(int segmentCount, int slotsPerSegment) {
+            this.segmentCount = segmentCount;
+            this.slotsPerSegment = slotsPerSegment;
+        }
+
+        @NonNull
+        static Header read(@NonNull FileChannel channel) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while(header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+                // keep reading
+            }
+            header.flip();
+            if(header.remaining() < HEADER_SIZE || header.getLong() != MAGIC) {
+                throw new IOException("not an audit log");
+            }
+            int version = header.getInt();
+            int recordSize = header.getInt();
+            if(version != FORMAT_VERSION || recordSize != RECORD_SIZE) {
+                throw new IOException("unsupported audit log version " + version);
+            }
+            int segmentCount = header.getInt();
+            int slotsPerSegment = header.getInt();
+            if(segmentCount < 1 || slotsPerSegment < 1 || (long)slotsPerSegment * RECORD_SIZE > Integer.MAX_VALUE
+                    || channel.size() < HEADER_SIZE + (long)segmentCount * slotsPerSegment * RECORD_SIZE) {
+                throw new IOException("audit log is truncated or corrupt");
+            }
+            return new Header(segmentCount, slotsPerSegment);
+        }
+    }
+
+    // One decision, as read back by a Reader
+    public static final class Record {
+        private final long _sequence;
+        private final long _timeMillis;
+        @NonNull
+        private final Outcome _outcome;
+        private final long _ctiHigh;
+        private final long _ctiLow;
+        private final long _expirySeconds;
+        @Nullable
+        private final String _issuer;
+
+        Record(long sequence, long timeMillis, @NonNull Outcome outcome, long ctiHigh, long ctiLow, long expirySeconds, @Nullable String issuer) {
+            _sequence = sequence;
+            _timeMillis = timeMillis;
+            _outcome = outcome;
+            _ctiHigh = ctiHigh;
+            _ctiLow = ctiLow;
+            _expirySeconds = expirySeconds;
+            _issuer = issuer;
+        }
+
+        @NonNull
+        static Record read(@NonNull ByteBuffer segment, int offset, long sequence) {
+            int issuerLength = segment.get(offset + ISSUER_LENGTH_OFFSET) & 0xff;
+            String issuer = null;
+            if(issuerLength > 0) {
+                char[] chars = new char[issuerLength];
+                for(int i = 0; i < issuerLength; i++) {
+                    chars[i] = (char)segment.get(offset + ISSUER_OFFSET + i);
+                }
+                issuer = new String(chars);
+            }
+            return new Record(
+                    sequence,
+                    segment.getLong(offset + TIME_OFFSET),
+                    OUTCOMES[segment.get(offset + OUTCOME_OFFSET) & 0xff],
+                    segment.getLong(offset + CTI_HIGH_OFFSET),
+                    segment.getLong(offset + CTI_LOW_OFFSET),
+                    segment.getLong(offset + EXPIRY_OFFSET),
+                    issuer);
+        }
+
+        // 1-based and increasing in the order slots were claimed
+        public long getSequence() {
+            return _sequence;
+        }
+
+        public long getTimeMillis() {
+            return _timeMillis;
+        }
+
+        @NonNull
+        public Outcome getOutcome() {
+            return _outcome;
+        }
+
+        // zero if the pass was rejected before the cti could be read
+        public long getCtiMostSignificantBits() {
+            return _ctiHigh;
+        }
+
+        public long getCtiLeastSignificantBits() {
+            return _ctiLow;
+        }
+
+        // seconds since the epoch, or VerifiedPass.NO_TIME
+        public long getExpirySeconds() {
+            return _expirySeconds;
+        }
+
+        @Nullable
+        public String getIssuer() {
+            return _issuer;
+        }
+    }
+
+    // Reads the records back out of a log file, e.g. to ship them off the device. It can be used while an
+    // AuditLog is writing to the same file; records that are only partly written at that moment are skipped
+    public static class Reader implements Closeable {
+        public interface Visitor {
+            void visit(@NonNull Record record) throws IOException;
+        }
+
+        @NonNull
+        private final RandomAccessFile _file;
+        @NonNull
+        private final MappedByteBuffer[] _segments;
+        private final int _slotsPerSegment;
+
+        public Reader(@NonNull File file) throws IOException {
+            _file = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = _file.getChannel();
+                Header header = Header.read(channel);
+                _slotsPerSegment = header.slotsPerSegment;
+                long segmentSize = (long)header.slotsPerSegment * RECORD_SIZE;
+                _segments = new MappedByteBuffer[header.segmentCount];
+                for(int i = 0; i < header.segmentCount; i++) {
+                    _segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + i * segmentSize, segmentSize);
+                }
+            } catch (IOException | RuntimeException e) {
+                _file.close();
+                throw e;
+            }
+        }
+
+        public int getSegmentCount() {
+            return _segments.length;
+        }
+
+        // the valid records in one segment, oldest first
+        @NonNull
+        public List<Record> readSegment(int segment) {
+            ArrayList<Record> records = new ArrayList<>();
+            MappedByteBuffer buffer = _segments[segment];
+            for(int slot = 0; slot < _slotsPerSegment; slot++) {
+                int offset = slot * RECORD_SIZE;
+                long sequence = validSequence(buffer, offset);
+                if(sequence != 0) {
+                    records.add(Record.read(buffer, offset, sequence));
+                }
+            }
+            // a segment that is being overwritten holds the start of the current lap followed by the end of the previous one
+            Collections.sort(records, BY_SEQUENCE);
+            return records;
+        }
+
+        // every valid record in the file, oldest first
+        @NonNull
+        public List<Record> readAll() {
+            ArrayList<Record> records = new ArrayList<>();
+            for(int i = 0; i < _segments.length; i++) {
+                records.addAll(readSegment(i));
+            }
+            Collections.sort(records, BY_SEQUENCE);
+            return records;
+        }
+
+        public void replay(@NonNull Visitor visitor) throws IOException {
+            for(Record record : readAll()) {
+                visitor.visit(record);
+            }
+        }
+
+        public void replaySegment(int segment, @NonNull Visitor visitor) throws IOException {
+            for(Record record : readSegment(segment)) {
+                visitor.visit(record);
+            }
+        }
+
+        // Writes the records as CSV, oldest first, with a header line:
+        // sequence,time,outcome,cti,exp,issuer
+        // time is epoch milliseconds, exp is epoch seconds (empty if unknown), cti is a urn:uuid (empty if unknown)
+        public void exportCsv(@NonNull final Appendable out) throws IOException {
+            out.append(CSV_HEADER);
+            replay(new CsvVisitor(out));
+        }
+
+        public void exportSegmentCsv(int segment, @NonNull final Appendable out) throws IOException {
+            out.append(CSV_HEADER);
+            replaySegment(segment, new CsvVisitor(out));
+        }
+
+        @Override
+        public void close() throws IOException {
+            _file.close();
+        }
+
+        @NonNull
+        private static final String CSV_HEADER = "sequence,time,outcome,cti,exp,issuer\n";
+
+        @NonNull
+        private static final Comparator<Record> BY_SEQUENCE = new Comparator<Record>() {
+            @Override
+            public int compare(Record a, Record b) {
+                return a._sequence < b._sequence ? -1 : (a._sequence == b._sequence ? 0 : 1);
+            }
+        };
+
+        private static class CsvVisitor implements Visitor {
+            @NonNull
+            private final Appendable _out;
+
+            CsvVisitor(@NonNull Appendable out) {
+                _out = out;
+            }
+
+            @Override
+            public void visit(@NonNull Record record) throws IOException {
+                _out.append(Long.toString(record._sequence)).append(',')
+                        .append(Long.toString(record._timeMillis)).append(',')
+                        .append(record._outcome.name()).append(',');
+                if(record._ctiHigh != 0 || record._ctiLow != 0) {
+                    _out.append("urn:uuid:").append(new UUID(record._ctiHigh, record._ctiLow).toString());
+                }
+                _out.append(',');
+                if(record._expirySeconds != VerifiedPass.NO_TIME) {
+                    _out.append(Long.toString(record._expirySeconds));
+                }
+                _out.append(',');
+                if(record._issuer != null) {
+                    // DIDs don't contain commas or quotes, but an arbitrary rejected pass's issuer might
+                    _out.append('"').append(record._issuer.replace("\"", "\"\"")).append('"');
+                }
+                _out.append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+// Receives one call per verification decision made by a PassVerifier it has been given to.
+//
+// record is called on the scanning thread, inline with verify, so implementations must be fast and must not
+// block; buffer the record and do any I/O elsewhere. AuditLog is a memory-mapped implementation.
+// The arguments are primitives so that recording a decision doesn't allocate
+public interface AuditSink {
+    // what the verifier decided. Stored by ordinal, so only ever append to this
+    enum Outcome {
+        VALID,
+        // not an NZ Covid Pass at all: wrong prefix/version, bad Base32 etc (PassVerificationError)
+        INVALID_PASS,
+        // not a parseable COSE/CWT structure (CwtSecurityTokenError)
+        INVALID_TOKEN,
+        INVALID_SIGNATURE,
+        UNTRUSTED_ISSUER,
+        NOT_YET_VALID,
+        EXPIRED,
+        // any other claim or credential check failed
+        INVALID_CLAIMS,
+        // the signature check was shed by AdmissionControl; nothing is known about the pass
+        OVERLOADED;
+
+        @NonNull
+        public static Outcome of(@NonNull Exception error) {
+            if(error instanceof PassVerificationError) {
+                return INVALID_PASS;
+            } else if(error instanceof CwtSecurityTokenError) {
+                return INVALID_TOKEN;
+            } else if(error instanceof CwtSecurityTokenValidationError.InvalidSignature) {
+                return INVALID_SIGNATURE;
+            } else if(error instanceof CwtSecurityTokenValidationError.InvalidIssuer) {
+                return UNTRUSTED_ISSUER;
+            } else if(error instanceof CwtSecurityTokenValidationError.NotYetValid) {
+                return NOT_YET_VALID;
+            } else if(error instanceof CwtSecurityTokenValidationError.Expired) {
+                return EXPIRED;
+            } else if(error instanceof CwtSecurityTokenValidationError.Overloaded) {
+                return OVERLOADED;
+            }
+            return INVALID_CLAIMS;
+        }
+    }
+
+    // timeMillis is the wall-clock time of the decision.
+    // The cti is zero, expirySeconds is VerifiedPass.NO_TIME and issuer is null when the pass was rejected before
+    // they could be read (or didn't contain them)
+    void record(long timeMillis, @NonNull Outcome outcome, long ctiHigh, long ctiLow, long expirySeconds, @Nullable String issuer);
+}
@@ -2,27 +2,29 @@ package com.gallagher.nzcovidpass;
 
 import androidx.annotation.NonNull;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 public class Base32 {
     @NonNull
     public static byte[] decode(@NonNull String str) {
+        return decode(str, 0, str.length());
+    }
+
+    // decodes the characters in [start, end) directly from the source, so callers holding a larger
+    // buffer (such as a full NZCP:/1/... QR payload) don't have to substring it first
+    @NonNull
+    public static byte[] decode(@NonNull CharSequence str, int start, int end) {
         // https://stackoverflow.com/a/7135008
         // stackoverflow thinks this is the best algorithm, so let's port it to java.
-        if(str.equals("")) {
-            return new byte[0];
-        }
 
-        // remove paddingCharacters
-        int trimToLength = str.length();
-        if(str.charAt(trimToLength-3) == '=') {
-            trimToLength -= 3;
-        } else if(str.charAt(trimToLength-2) == '=') {
-            trimToLength -=2;
-        } else if(str.charAt(trimToLength-1) == '=') {
-            trimToLength -=1;
+        // remove paddingCharacters (up to 3 of them; we don't care about the exact padding rules)
+        int trimTo = trimPadding(str, start, end);
+        if(trimTo == start) {
+            return new byte[0];
         }
-        String input = str.substring(0, trimToLength);
 
-        int byteCount = input.length() * 5 / 8; //this must be TRUNCATED
+        int byteCount = (trimTo - start) * 5 / 8; //this must be TRUNCATED
         byte[] result = new byte[byteCount]; // fills with zeroes
 
         byte curByte = 0;
@@ -30,9 +32,9 @@ public class Base32 {
         int mask = 0;
         int arrayIndex = 0;
 
-        for(int ix = 0; ix < input.length(); ix++) {
+        for(int ix = start; ix < trimTo; ix++) {
             // throws IllegalArgumentException if the char isn't valid base32
-            byte cValue = charToValue(input.charAt(ix));
+            byte cValue = charToValue(str.charAt(ix));
 
             if (bitsRemaining > 5) {
                 mask = cValue << (bitsRemaining - 5);
@@ -56,6 +58,210 @@ public class Base32 {
         return result;
     }
 
+    // The number of bytes decode would return for [start, end)
+    public static int decodedLength(@NonNull CharSequence str, int start, int end) {
+        return (trimPadding(str, start, end) - start) * 5 / 8;
+    }
+
+    // The bulk decoders below give exactly what decode gives, written into dest at destOffset (which can be reused
+    // from one payload to the next), and return the number of bytes written. Rather than converting and shifting in
+    // one character at a time, they take 8 characters (which are exactly 5 bytes) per step and check them all at
+    // once. Invalid characters throw IllegalArgumentException, like decode; dest may be partly written by then
+
+    // for text; each character is converted through a table, and the block of 8 is checked with a single test
+    public static int decodeInto(@NonNull CharSequence str, int start, int end, @NonNull byte[] dest, int destOffset) {
+        int trimTo = trimPadding(str, start, end);
+        int byteCount = checkDest(trimTo - start, dest, destOffset);
+
+        int pos = destOffset;
+        int ix = start;
+        for(; ix + 8 <= trimTo; ix += 8) {
+            long block = 0;
+            int invalid = 0;
+            for(int i = 0; i < 8; i++) {
+                char c = str.charAt(ix + i);
+                int value = c < 128 ? DECODE_TABLE[c] : -1;
+                invalid |= value;
+                block = (block << 5) | (value & 0x1f);
+            }
+            if(invalid < 0) {
+                throw invalidCharacter();
+            }
+            pos = writeBlock(block, dest, pos);
+        }
+        decodeTail(str, ix, trimTo, dest, pos);
+        return byteCount;
+    }
+
+    // For ASCII bytes, such as payloads read straight out of an upload. Each block of 8 is a single 64 bit load,
+    // then is checked, translated and packed with a handful of arithmetic operations on all 8 characters at once
+    public static int decodeInto(@NonNull byte[] ascii, int start, int end, @NonNull byte[] dest, int destOffset) {
+        if(start < 0 || end > ascii.length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + ascii.length);
+        }
+        int trimTo = end;
+        for(int i = 0; i < 3 && trimTo > start && ascii[trimTo - 1] == '='; i++) {
+            trimTo -= 1;
+        }
+        int byteCount = checkDest(trimTo - start, dest, destOffset);
+
+        int pos = destOffset;
+        int ix = start;
+        for(; ix + 8 <= trimTo; ix += 8) {
+            long raw = Intrinsics.readInt64(ascii, ix); // first character in the top byte
+            long chars = raw & ~HIGH_BITS; // anything with the top bit set is invalid anyway; checked below
+            long upper = inRange(chars, 'A', 'Z');
+            long lower = inRange(chars, 'a', 'z');
+            long digit = inRange(chars, '2', '7');
+            if((raw & HIGH_BITS) != 0 || (upper | lower | digit) != HIGH_BITS) {
+                throw invalidCharacter();
+            }
+            // move each flag down to the bottom of its byte, and subtract from every character at once whichever of
+            // 'A', 'a' or ('2' - 26) applies to it. No byte goes below zero, so there are no borrows between them
+            long values = chars - (((upper >>> 7) * 'A') | ((lower >>> 7) * 'a') | ((digit >>> 7) * ('2' - 26)));
+
+            // pack the 5 bit values together: pairs into 10 bits, then fours into 20, then all eight into 40
+            long pairs = ((values >>> 3) & 0x03e003e003e003e0L) | (values & 0x001f001f001f001fL);
+            long quads = ((pairs >>> 6) & 0x000ffc00000ffc00L) | (pairs & 0x000003ff000003ffL);
+            pos = writeBlock(((quads >>> 12) & 0xfffff00000L) | (quads & 0xfffffL), dest, pos);
+        }
+        // fewer than 8 left; go through a CharSequence view rather than repeating the bit handling
+        decodeTail(new String(ascii, ix, trimTo - ix, StandardCharsets.ISO_8859_1), 0, trimTo - ix, dest, pos);
+        return byteCount;
+    }
+
+    // each ASCII character's 5 bit value, or -1 if it isn't Base32
+    private static final byte[] DECODE_TABLE = new byte[128];
+    static {
+        Arrays.fill(DECODE_TABLE, (byte)-1);
+        for(char c = 0; c < 128; c++) {
+            if((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '2' && c <= '7')) {
+                DECODE_TABLE[c] = charToValue(c);
+            }
+        }
+    }
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    // For each byte of x, which must all be 0x7f or below: 0x80 if it is between lo and hi inclusive, otherwise 0.
+    // Adding (0x80 - lo) sets a byte's top bit when it is >= lo, and adding (0x7f - hi) when it is > hi; neither
+    // can carry into the next byte
+    private static long inRange(long x, char lo, char hi) {
+        return (x + ONES * (0x80 - lo)) & ~(x + ONES * (0x7f - hi)) & HIGH_BITS;
+    }
+
+    // checks dest has room for what charCount characters decode to, and returns that
+    private static int checkDest(int charCount, @NonNull byte[] dest, int destOffset) {
+        int byteCount = charCount * 5 / 8;
+        if(destOffset < 0 || byteCount > dest.length - destOffset) {
+            throw new IndexOutOfBoundsException("destOffset " + destOffset + ", needed " + byteCount + ", length " + dest.length);
+        }
+        return byteCount;
+    }
+
+    // writes the low 40 bits of block as 5 bytes
+    private static int writeBlock(long block, @NonNull byte[] dest, int pos) {
+        dest[pos] = (byte)(block >>> 32);
+        dest[pos + 1] = (byte)(block >>> 24);
+        dest[pos + 2] = (byte)(block >>> 16);
+        dest[pos + 3] = (byte)(block >>> 8);
+        dest[pos + 4] = (byte)block;
+        return pos + 5;
+    }
+
+    // the last few characters, which start on a byte boundary since a block of 8 is exactly 5 bytes
+    private static void decodeTail(@NonNull CharSequence str, int ix, int end, @NonNull byte[] dest, int pos) {
+        int bits = 0; // undelivered bits, right aligned
+        int bitCount = 0;
+        for(; ix < end; ix++) {
+            bits = ((bits << 5) | charToValue(str.charAt(ix))) & 0xfff;
+            bitCount += 5;
+            if(bitCount >= 8) {
+                bitCount -= 8;
+                dest[pos++] = (byte)(bits >>> bitCount);
+            }
+        }
+    }
+
+    // Checks every character is valid Base32 without decoding anything, and returns the decoded length.
+    // Throws IllegalArgumentException like decode does
+    public static int validate(@NonNull CharSequence str, int start, int end) {
+        int trimTo = trimPadding(str, start, end);
+        for(int ix = start; ix < trimTo; ix++) {
+            charToValue(str.charAt(ix));
+        }
+        return (trimTo - start) * 5 / 8;
+    }
+
+    private static int trimPadding(@NonNull CharSequence str, int start, int end) {
+        if(start < 0 || end > str.length() || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + str.length());
+        }
+        int trimTo = end;
+        for(int i = 0; i < 3 && trimTo > start && str.charAt(trimTo-1) == '='; i++) {
+            trimTo -= 1;
+        }
+        return trimTo;
+    }
+
+    // Decodes Base32 text on demand as a CBOR reader pulls bytes from it, so the decoded form of the whole
+    // input never has to exist in memory at once. Characters are only checked as they are reached, so call
+    // validate first if an invalid character needs to be reported as such rather than as a Cbor.ReadError
+    public static class DecodingSource extends Cbor.Source {
+        @NonNull private final CharSequence _str;
+        private final int _end; // after padding is trimmed
+        private final int _byteCount;
+        private int _charPos;
+        private int _bytesRead;
+        private int _bits; // undelivered bits, right aligned
+        private int _bitCount;
+
+        public DecodingSource(@NonNull CharSequence str, int start, int end) {
+            _str = str;
+            _charPos = start;
+            _end = trimPadding(str, start, end);
+            _byteCount = (_end - start) * 5 / 8;
+        }
+
+        @Override
+        public int remaining() {
+            return _byteCount - _bytesRead;
+        }
+
+        @Override
+        public int peekByte() throws Cbor.ReadError {
+            fill();
+            return (_bits >>> (_bitCount - 8)) & 0xff;
+        }
+
+        @Override
+        public int readByte() throws Cbor.ReadError {
+            fill();
+            _bitCount -= 8;
+            _bytesRead++;
+            return (_bits >>> _bitCount) & 0xff;
+        }
+
+        // makes sure at least 8 bits are buffered
+        private void fill() throws Cbor.ReadError {
+            if(_bytesRead >= _byteCount) {
+                throw new Cbor.ReadError.InputTooShort();
+            }
+            while(_bitCount < 8) {
+                int value;
+                try {
+                    value = charToValue(_str.charAt(_charPos++));
+                } catch (IllegalArgumentException e) {
+                    throw new Cbor.ReadError.MalformedInput();
+                }
+                // we never hold more than 12 bits, so drop the ones already delivered to keep the int from overflowing
+                _bits = ((_bits << 5) | value) & 0xfff;
+                _bitCount += 5;
+            }
+        }
+    }
+
     private static byte charToValue(char value) {
         //65-90 == uppercase letters
         if (value < 91 && value > 64) {
@@ -70,6 +276,11 @@ public class Base32 {
             return (byte)(value - 97);
         }
         // else Character is not a Base32 character
-        throw new IllegalArgumentException("input string contains invalid Base32 character");
+        throw invalidCharacter();
+    }
+
+    @NonNull
+    private static IllegalArgumentException invalidCharacter() {
+        return new IllegalArgumentException("input string contains invalid Base32 character");
     }
 }
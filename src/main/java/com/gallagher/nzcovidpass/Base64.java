@@ -15,6 +15,13 @@ public class Base64 {
 
     @NonNull
     public static byte[] decode(@NonNull String str) {
+        // on Java 11+ servers this is java.util.Base64; on Android and Java 8 it's always null
+        byte[] result = Intrinsics.decodeBase64(str);
+        return result != null ? result : decodeBaseline(str);
+    }
+
+    @NonNull
+    static byte[] decodeBaseline(@NonNull String str) {
         if(str.equals("")) {
             return new byte[0];
         }
@@ -9,7 +9,11 @@ package com.gallagher.nzcovidpass;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -363,155 +367,1015 @@ public class Cbor {
         public static class MalformedInput extends ReadError {}
         public static class InputTooShort extends ReadError {}
         public static class InvalidUtf8String extends ReadError {}
+        // major type 7 (floats, true/false/null) isn't needed for covid passes so we don't decode it
+        public static class UnsupportedType extends ReadError {}
+        // an integer, length or tag that doesn't fit in a java int
+        public static class IntegerOutOfRange extends ReadError {}
+        // one of the Limits was exceeded
+        public static class LimitExceeded extends ReadError {}
     }
 
-    public static class Reader {
+    // Bounds the resources a Reader can consume, so hostile input (e.g. a crafted QR code) can't
+    // exhaust the stack or heap. The defaults are far larger than anything a covid pass needs
+    public static class Limits {
+        public static final Limits DEFAULT = new Limits(16, 4096, 64 * 1024);
+
+        private final int _maxDepth;
+        private final int _maxItems;
+        private final int _maxBytes;
+
+        public Limits(int maxDepth, int maxItems, int maxBytes) {
+            _maxDepth = maxDepth;
+            _maxItems = maxItems;
+            _maxBytes = maxBytes;
+        }
+
+        // how many arrays, maps and tags may be nested inside each other
+        public int getMaxDepth() {
+            return _maxDepth;
+        }
+        // how many values (including each nested value, map key and tag) a single read() may produce
+        public int getMaxItems() {
+            return _maxItems;
+        }
+        // the largest input the reader will accept
+        public int getMaxBytes() {
+            return _maxBytes;
+        }
+    }
+
+    // Where a Reader gets its bytes from. Lets us decode CBOR straight out of some other encoding (such as the
+    // Base32 text in a QR code) without first materialising the whole thing as a byte array
+    public static abstract class Source {
+        // the exact number of bytes left
+        public abstract int remaining();
+
+        // the next byte (0-255), without consuming it. Throws InputTooShort if there is nothing left
+        public abstract int peekByte() throws ReadError;
+
+        // the next byte (0-255). Throws InputTooShort if there is nothing left
+        public abstract int readByte() throws ReadError;
+
+        public void read(@NonNull byte[] dest, int offset, int length) throws ReadError {
+            for(int i = 0; i < length; i++) {
+                dest[offset + i] = (byte)readByte();
+            }
+        }
+
+        public void skip(int length) throws ReadError {
+            for(int i = 0; i < length; i++) {
+                readByte();
+            }
+        }
+
+        // a big-endian unsigned integer of 1, 2, 4 or 8 bytes (the last may come back negative)
+        long readBigEndian(int byteCount) throws ReadError {
+            if(byteCount > remaining()) {
+                throw new ReadError.InputTooShort();
+            }
+            long value = 0;
+            for(int i = 0; i < byteCount; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        @NonNull
+        String readUtf8(int length) throws ReadError {
+            byte[] bytes = new byte[length];
+            read(bytes, 0, length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    public static class ByteArraySource extends Source {
         @NonNull private final byte[] _data;
-        private int pos;
+        private final int _end;
+        private int _pos;
+
+        public ByteArraySource(@NonNull byte[] data) {
+            this(data, 0, data.length);
+        }
+
+        // reads data[offset] up to (but not including) data[end]
+        public ByteArraySource(@NonNull byte[] data, int offset, int end) {
+            if(offset < 0 || end > data.length || offset > end) {
+                throw new IndexOutOfBoundsException("offset " + offset + ", end " + end + ", length " + data.length);
+            }
+            _data = data;
+            _pos = offset;
+            _end = end;
+        }
+
+        @Override
+        public int remaining() {
+            return _end - _pos;
+        }
+
+        @Override
+        public int peekByte() throws ReadError {
+            if(_pos >= _end) {
+                throw new ReadError.InputTooShort();
+            }
+            return _data[_pos] & 0xff;
+        }
+
+        @Override
+        public int readByte() throws ReadError {
+            if(_pos >= _end) {
+                throw new ReadError.InputTooShort();
+            }
+            return _data[_pos++] & 0xff;
+        }
+
+        @Override
+        public void read(@NonNull byte[] dest, int offset, int length) throws ReadError {
+            if(length > _end - _pos) {
+                throw new ReadError.InputTooShort();
+            }
+            System.arraycopy(_data, _pos, dest, offset, length);
+            _pos += length;
+        }
+
+        @Override
+        public void skip(int length) throws ReadError {
+            if(length > _end - _pos) {
+                throw new ReadError.InputTooShort();
+            }
+            _pos += length;
+        }
+
+        @Override
+        long readBigEndian(int byteCount) throws ReadError {
+            if(byteCount > _end - _pos) {
+                throw new ReadError.InputTooShort();
+            }
+            long value;
+            switch(byteCount) {
+                case 1: value = _data[_pos] & 0xff; break;
+                case 2: value = Intrinsics.readUint16(_data, _pos); break;
+                case 4: value = Intrinsics.readUint32(_data, _pos); break;
+                case 8: value = Intrinsics.readInt64(_data, _pos); break;
+                default: return super.readBigEndian(byteCount);
+            }
+            _pos += byteCount;
+            return value;
+        }
+
+        @NonNull
+        @Override
+        String readUtf8(int length) throws ReadError {
+            if(length > _end - _pos) {
+                throw new ReadError.InputTooShort();
+            }
+            String result = new String(_data, _pos, length, StandardCharsets.UTF_8);
+            _pos += length;
+            return result;
+        }
+    }
+
+    public static class Reader {
+        @NonNull private final Source _source;
+        @NonNull private final Limits _limits;
+        private int _items;
 
         public Reader(@NonNull byte[] data) {
             this(data, 0);
         }
         public Reader(@NonNull byte[] data, int offset) {
-            _data = data;
-            pos = offset;
+            this(data, offset, Limits.DEFAULT);
+        }
+        public Reader(@NonNull byte[] data, int offset, @NonNull Limits limits) {
+            this(new ByteArraySource(data, offset, data.length), limits);
+        }
+        public Reader(@NonNull Source source) {
+            this(source, Limits.DEFAULT);
+        }
+        public Reader(@NonNull Source source, @NonNull Limits limits) {
+            _source = source;
+            _limits = limits;
+        }
+
+        // a container that we're part way through reading. Kept on an explicit stack rather than the
+        // java call stack, so nesting depth is limited by Limits.maxDepth and not by StackOverflowError
+        private static class Frame {
+            @Nullable final Frame parent;
+            @NonNull final MajorType type;
+            final int tag;
+            int remaining; // number of child values still to come (map keys and values count separately)
+            @Nullable ArrayList<Value> list;
+            @Nullable HashMap<Value, Value> map;
+            @Nullable Value pendingKey;
+
+            Frame(@Nullable Frame parent, @NonNull MajorType type, int tag, int remaining) {
+                this.parent = parent;
+                this.type = type;
+                this.tag = tag;
+                this.remaining = remaining;
+            }
+
+            void add(@NonNull Value child) {
+                remaining--;
+                switch(type) {
+                    case ARRAY:
+                        list.add(child);
+                        break;
+                    case MAP:
+                        if(pendingKey == null) {
+                            pendingKey = child;
+                        } else {
+                            map.put(pendingKey, child);
+                            pendingKey = null;
+                        }
+                        break;
+                    default: // SEMANTIC_TAG, which has a single child
+                        list = new ArrayList<>(1);
+                        list.add(child);
+                        break;
+                }
+            }
+
+            @NonNull
+            Value build() {
+                switch(type) {
+                    case ARRAY: return value(list);
+                    case MAP: return value(map);
+                    default: return value(tag, list.get(0));
+                }
+            }
         }
 
         public Cbor.Value read() throws ReadError {
-            switch (MajorType.identify(_data[pos])) {
-                case POSITIVE_INT: return value(readPositiveInt());
-                case NEGATIVE_INT: return value(readNegativeInt());
-                case BYTE_STRING: return value(readByteString());
-                case TEXT_STRING: return value(readTextString());
-                case ARRAY: return value(readArray());
-                case MAP: return value(readMap());
-                case SEMANTIC_TAG:
-                    TagAndValue r = readTagged();
-                    return value(r.Tag, r.Value);
-                case SPECIAL: throw new java.lang.IllegalArgumentException("CBOR float/special type is not implemented yet");
-                default: throw new RuntimeException("wat");
+            checkInputSize();
+            _items = 0;
+
+            @Nullable Frame top = null;
+            int depth = 0;
+            while(true) {
+                countItem();
+
+                int initial = _source.readByte();
+                MajorType type = MajorType.identify((byte)initial);
+                Value value;
+                switch (type) {
+                    case POSITIVE_INT:
+                        value = value(readCount(initial));
+                        break;
+                    case NEGATIVE_INT:
+                        value = value((readCount(initial) + 1) * -1);
+                        break;
+                    case BYTE_STRING: {
+                        byte[] bytes = new byte[checkLength(readCount(initial))];
+                        _source.read(bytes, 0, bytes.length);
+                        value = value(bytes);
+                        break;
+                    }
+                    case TEXT_STRING:
+                        value = value(_source.readUtf8(checkLength(readCount(initial))));
+                        break;
+                    case ARRAY:
+                    case MAP:
+                    case SEMANTIC_TAG: {
+                        int count = readCount(initial); // the tag number, or the number of elements
+                        int children = checkLength(childCount(type, count));
+                        if(children == 0) { // empty containers are complete straight away
+                            value = type == MajorType.ARRAY ? value(new ArrayList<Value>(0)) : value(new HashMap<Value, Value>(0));
+                            break;
+                        }
+                        if(++depth > _limits.getMaxDepth()) {
+                            throw new ReadError.LimitExceeded();
+                        }
+                        top = new Frame(top, type, count, children);
+                        if(type == MajorType.ARRAY) {
+                            top.list = new ArrayList<>(children);
+                        } else if(type == MajorType.MAP) {
+                            top.map = new HashMap<>(count);
+                        }
+                        continue;
+                    }
+                    default:
+                        throw new ReadError.UnsupportedType();
+                }
+
+                // hand the value up to its container, and keep going as long as that completes the container
+                while(true) {
+                    if(top == null) {
+                        return value;
+                    }
+                    top.add(value);
+                    if(top.remaining > 0) {
+                        break;
+                    }
+                    value = top.build();
+                    top = top.parent;
+                    depth--;
+                }
+            }
+        }
+
+        // reads a value which must be a map
+        @NonNull
+        java.util.Map<Value, Value> readMap() throws ReadError {
+            java.util.Map<Value, Value> result = read().asMap();
+            if(result == null) {
+                throw new ReadError.MalformedInput();
+            }
+            return result;
+        }
+
+        // The methods below let callers walk a structure item by item rather than building the whole Value tree.
+
+        // the type of the next item, without consuming anything
+        @NonNull
+        public MajorType peekType() throws ReadError {
+            checkInputSize();
+            return MajorType.identify((byte)_source.peekByte());
+        }
+
+        // Consumes the header of the next item, which must be of the expected type, and returns its count:
+        // the value of an integer, the length of a string, the number of elements in an array or map, or the tag number.
+        // The contents of strings and containers are left for the caller to read
+        public int readHeader(@NonNull MajorType expected) throws ReadError {
+            if(peekType() != expected || expected == MajorType.SPECIAL) {
+                throw new ReadError.MalformedInput();
+            }
+            countItem();
+            return readCount(_source.readByte());
+        }
+
+        // Reads a byte string straight into dest at offset, and returns its length
+        public int readByteString(@NonNull byte[] dest, int offset) throws ReadError {
+            int length = checkLength(readHeader(MajorType.BYTE_STRING));
+            if(length > dest.length - offset) {
+                throw new ReadError.LimitExceeded();
+            }
+            _source.read(dest, offset, length);
+            return length;
+        }
+
+        // Moves past the next complete item (including anything nested in it) without decoding it
+        public void skip() throws ReadError {
+            checkInputSize();
+            int pending = 1;
+            while(pending > 0) {
+                pending--;
+                countItem();
+                int initial = _source.readByte();
+                MajorType type = MajorType.identify((byte)initial);
+                switch(type) {
+                    case POSITIVE_INT:
+                    case NEGATIVE_INT:
+                        readCount(initial);
+                        break;
+                    case BYTE_STRING:
+                    case TEXT_STRING:
+                        _source.skip(checkLength(readCount(initial)));
+                        break;
+                    case ARRAY:
+                    case MAP:
+                    case SEMANTIC_TAG:
+                        // pending can't overflow; it never exceeds the number of bytes left
+                        pending += checkLength(childCount(type, readCount(initial)));
+                        break;
+                    default:
+                        throw new ReadError.UnsupportedType();
+                }
             }
         }
 
+        // Reads an integer of either sign
+        public int readInteger() throws ReadError {
+            if(peekType() == MajorType.NEGATIVE_INT) {
+                return (readHeader(MajorType.NEGATIVE_INT) + 1) * -1;
+            }
+            return readHeader(MajorType.POSITIVE_INT);
+        }
+
+        @NonNull
+        public String readTextString() throws ReadError {
+            return _source.readUtf8(checkLength(readHeader(MajorType.TEXT_STRING)));
+        }
+
+        @NonNull
+        public byte[] readByteString() throws ReadError {
+            byte[] bytes = new byte[checkLength(readHeader(MajorType.BYTE_STRING))];
+            _source.read(bytes, 0, bytes.length);
+            return bytes;
+        }
+
+        // Reads the raw UTF-8 of a text string into dest and returns its length, or consumes it and returns -1 if it doesn't fit
+        int readTextString(@NonNull byte[] dest) throws ReadError {
+            int length = checkLength(readHeader(MajorType.TEXT_STRING));
+            if(length > dest.length) {
+                _source.skip(length);
+                return -1;
+            }
+            _source.read(dest, 0, length);
+            return length;
+        }
+
+        // starts a new top-level value in item-by-item mode, with fresh limits as read() has
+        void begin() throws ReadError {
+            checkInputSize();
+            _items = 0;
+        }
+
+        @NonNull
+        Limits getLimits() {
+            return _limits;
+        }
+
+        private void checkInputSize() throws ReadError {
+            if(_source.remaining() > _limits.getMaxBytes()) {
+                throw new ReadError.LimitExceeded();
+            }
+        }
+
+        private void countItem() throws ReadError {
+            if(++_items > _limits.getMaxItems()) {
+                throw new ReadError.LimitExceeded();
+            }
+        }
+
+        // every byte of string content, and every child item, takes at least one byte, so don't believe
+        // (or allocate for) lengths that the remaining input can't satisfy
+        private int checkLength(int length) throws ReadError {
+            if(length > _source.remaining()) {
+                throw new ReadError.InputTooShort();
+            }
+            return length;
+        }
+
+        private static int childCount(@NonNull MajorType type, int count) throws ReadError {
+            if(type == MajorType.SEMANTIC_TAG) {
+                return 1;
+            }
+            if(type == MajorType.ARRAY) {
+                return count;
+            }
+            if(count > java.lang.Integer.MAX_VALUE / 2) {
+                throw new ReadError.IntegerOutOfRange();
+            }
+            return count * 2;
+        }
+
         // https://en.wikipedia.org/wiki/CBOR#Specification_of_the_CBOR_encoding
-        int readPositiveInt() throws ReadError {
+        // decodes the count that goes with an initial byte we have already consumed
+        private int readCount(int initial) throws ReadError {
             // strip off the major type bits
-            int shortCount = _data[pos] & 0x1F;
+            int shortCount = initial & 0x1F;
 
-            if(shortCount < 23) { // directly encoded in the single byte
-                pos += 1;
+            if(shortCount < 24) { // directly encoded in the single byte
                 return shortCount;
             } else if(shortCount == 24) { // the count is in a following 8-bit extended count field
-                if(pos + 1 > _data.length) {
-                    throw new ReadError.InputTooShort();
-                }
-                int value = _data[pos + 1] & 0xff;
-                pos += 2;
-                return value;
+                return (int)_source.readBigEndian(1);
             } else if(shortCount == 25) { // the count is in a following 16-bit extended count field
-                if(pos + 2 > _data.length) {
-                    throw new ReadError.InputTooShort();
-                }
-                int value = (_data[pos + 1] & 0xff) << 8 | (_data[pos + 2] & 0xff);
-                pos += 3;
-                return value;
+                return (int)_source.readBigEndian(2);
             } else if(shortCount == 26) { // the count is in a following 32-bit extended count field
-                if(pos + 4 > _data.length) {
-                    throw new ReadError.InputTooShort();
-                }
-                int value = (_data[pos + 1] & 0xff) << 24 | (_data[pos + 2] & 0xff) << 16 | (_data[pos + 3] & 0xff) << 8 | (_data[pos + 4] & 0xff);
-                pos += 5;
-                return value;
-
+                return checkedInt(_source.readBigEndian(4));
             } else if(shortCount == 27) { // the count is in a following 64-bit extended count field
-                throw new RuntimeException("64 bit integers aren't supported yet");
+                return checkedInt(_source.readBigEndian(8));
             } else {
                 throw new ReadError.MalformedInput(); // "Wikipedia: Values 28–30 are not assigned and must not be used."
             }
         }
 
-        int readNegativeInt() throws ReadError {
-            return (readPositiveInt() + 1) * -1;
+        private static int checkedInt(long value) throws ReadError {
+            // a 64-bit count with the top bit set comes back negative here, which is also out of range
+            if(value < 0 || value > java.lang.Integer.MAX_VALUE) {
+                throw new ReadError.IntegerOutOfRange();
+            }
+            return (int)value;
         }
+    }
 
-        @NonNull
-        byte[] readByteString() throws ReadError {
-            int len = readPositiveInt();
-            if(pos+len > _data.length) {
-                throw new ReadError.InputTooShort();
+    // Decodes CBOR that arrives in pieces (from a BLE or serial scanner, or a large bundle coming off the network)
+    // without needing all of it up front. Push bytes in with feed() as they arrive; all the parse state is kept
+    // between calls, and the Handler hears about each value as soon as its last byte has been fed.
+    //
+    // Containers nested less than emitDepth deep are not built up. They are reported with onStart and onEnd, and
+    // their children are delivered one at a time in between. So with an emitDepth of 1, a bundle that is one huge
+    // array of entries delivers each entry as it completes, and memory use is bounded by the largest entry rather
+    // than by the whole stream. maxDepth applies to the whole nesting; the other Limits apply to each delivered
+    // value (and each onStart) on its own, as they do to each Reader.read().
+    //
+    // Once feed() has thrown (whether for bad input or because the Handler threw) the decoder can't be used again.
+    // Not thread safe
+    public static final class Decoder {
+        public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+        public static abstract class Handler {
+            // A container less than emitDepth deep has started: count is the number of elements in an array, the
+            // number of entries in a map, or the tag number. Its children follow (a map's keys and values alternate)
+            public void onStart(@NonNull MajorType type, int count) throws ReadError {}
+
+            // a complete value
+            public abstract void onValue(@NonNull Value value) throws ReadError;
+
+            // the most recently started container is complete
+            public void onEnd() throws ReadError {}
+        }
+
+        private static final int STATE_HEADER = 0; // waiting for the initial byte of an item
+        private static final int STATE_COUNT = 1; // part way through the extended count that follows it
+        private static final int STATE_CONTENT = 2; // part way through the bytes of a string
+
+        @NonNull private final Handler _handler;
+        private final int _emitDepth;
+        @NonNull private final Limits _limits;
+
+        private int _state = STATE_HEADER;
+        private int _initial;
+        private int _countBytesLeft;
+        private long _count;
+        @Nullable private byte[] _content;
+        private int _contentPos;
+
+        // containers we're inside; those at depth emitDepth and above are only counted down, not built
+        @Nullable private Reader.Frame _top;
+        private int _depth;
+        // what the value currently being delivered has used against the Limits
+        private int _items;
+        private int _bytes;
+        private boolean _failed;
+
+        public Decoder(@NonNull Handler handler) {
+            this(handler, 0, Limits.DEFAULT);
+        }
+
+        public Decoder(@NonNull Handler handler, int emitDepth, @NonNull Limits limits) {
+            if(emitDepth < 0) {
+                throw new IllegalArgumentException("emitDepth must not be negative: " + emitDepth);
             }
-            byte[] result = Arrays.copyOfRange(_data, pos, pos+len);
-            pos += len;
-            return result;
+            _handler = handler;
+            _emitDepth = emitDepth;
+            _limits = limits;
         }
 
-        @NonNull
-        String readTextString() throws ReadError {
-            int len = readPositiveInt();
-            if(pos+len > _data.length) {
-                throw new ReadError.InputTooShort();
+        // true between top-level values, i.e. where the input may legitimately end
+        public boolean isIdle() {
+            return _state == STATE_HEADER && _top == null;
+        }
+
+        // Decodes all the remaining bytes of chunk, calling the Handler for whatever they complete
+        public void feed(@NonNull ByteBuffer chunk) throws ReadError {
+            if(_failed) {
+                throw new IllegalStateException("the decoder has already failed");
             }
-            String result = new String(_data, pos, len, StandardCharsets.UTF_8);
-            pos += len;
-            return result;
+            _failed = true; // unless we get to the end
+            while(chunk.hasRemaining()) {
+                switch(_state) {
+                    case STATE_HEADER:
+                        readInitial(chunk.get() & 0xff);
+                        break;
+                    case STATE_COUNT:
+                        _count = (_count << 8) | (chunk.get() & 0xff);
+                        if(--_countBytesLeft == 0) {
+                            _state = STATE_HEADER;
+                            onHeader();
+                        }
+                        break;
+                    default: { // STATE_CONTENT
+                        int length = Math.min(chunk.remaining(), _content.length - _contentPos);
+                        chunk.get(_content, _contentPos, length);
+                        _contentPos += length;
+                        if(_contentPos == _content.length) {
+                            _state = STATE_HEADER;
+                            onContent();
+                        }
+                        break;
+                    }
+                }
+            }
+            _failed = false;
         }
 
-        @NonNull
-        ArrayList<Value> readArray() throws ReadError {
-            int len = readPositiveInt();
-            if(pos+len > _data.length) {
+        // Call at the end of the input. Throws InputTooShort if it ended part way through a value
+        public void finish() throws ReadError {
+            if(_failed) {
+                throw new IllegalStateException("the decoder has already failed");
+            }
+            if(!isIdle()) {
+                _failed = true;
                 throw new ReadError.InputTooShort();
             }
-            ArrayList<Value> result = new ArrayList<>(/*capacity:*/ len);
-            for(int i = 0; i < len; i++) {
-                result.add(read());
+        }
+
+        // Feeds everything from in, DEFAULT_BUFFER_SIZE bytes at a time, then calls finish. Doesn't close in
+        public void readFrom(@NonNull InputStream in) throws IOException, ReadError {
+            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+            int read;
+            while((read = in.read(buffer)) >= 0) {
+                feed(ByteBuffer.wrap(buffer, 0, read));
             }
-            return result;
+            finish();
+        }
+
+        // As readFrom(InputStream), for a blocking channel. With a non-blocking one, call feed as data arrives instead
+        public void readFrom(@NonNull ReadableByteChannel channel) throws IOException, ReadError {
+            ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+            while(channel.read(buffer) >= 0) {
+                buffer.flip();
+                feed(buffer);
+                buffer.clear();
+            }
+            finish();
+        }
+
+        private void readInitial(int initial) throws ReadError {
+            if(_depth <= _emitDepth) { // this item starts a new delivered value (or onStart)
+                _items = 0;
+                _bytes = 0;
+            }
+            if(++_items > _limits.getMaxItems() || ++_bytes > _limits.getMaxBytes()) {
+                throw new ReadError.LimitExceeded();
+            }
+            if(MajorType.identify((byte)initial) == MajorType.SPECIAL) {
+                throw new ReadError.UnsupportedType();
+            }
+            _initial = initial;
+            int shortCount = initial & 0x1F;
+            if(shortCount < 24) { // directly encoded in the single byte
+                _count = shortCount;
+                onHeader();
+            } else if(shortCount <= 27) { // the count is in the following 1, 2, 4 or 8 bytes
+                if((_bytes += 1 << (shortCount - 24)) > _limits.getMaxBytes()) {
+                    throw new ReadError.LimitExceeded();
+                }
+                _count = 0;
+                _countBytesLeft = 1 << (shortCount - 24);
+                _state = STATE_COUNT;
+            } else {
+                throw new ReadError.MalformedInput();
+            }
+        }
+
+        private void onHeader() throws ReadError {
+            // a 64-bit count with the top bit set is negative here, which is also out of range
+            if(_count < 0 || _count > java.lang.Integer.MAX_VALUE) {
+                throw new ReadError.IntegerOutOfRange();
+            }
+            int count = (int)_count;
+            MajorType type = MajorType.identify((byte)_initial);
+            switch(type) {
+                case POSITIVE_INT:
+                    complete(value(count));
+                    break;
+                case NEGATIVE_INT:
+                    complete(value((count + 1) * -1));
+                    break;
+                case BYTE_STRING:
+                case TEXT_STRING:
+                    // checked before allocating, so a hostile length can't exhaust the heap
+                    if(count > _limits.getMaxBytes() - _bytes) {
+                        throw new ReadError.LimitExceeded();
+                    }
+                    _bytes += count;
+                    _content = new byte[count];
+                    _contentPos = 0;
+                    if(count == 0) {
+                        onContent();
+                    } else {
+                        _state = STATE_CONTENT;
+                    }
+                    break;
+                default: { // ARRAY, MAP or SEMANTIC_TAG
+                    int children = Reader.childCount(type, count);
+                    boolean streamed = _depth < _emitDepth;
+                    if(streamed) {
+                        _handler.onStart(type, count);
+                        if(children == 0) {
+                            _handler.onEnd();
+                            delivered();
+                            break;
+                        }
+                    } else if(children == 0) {
+                        complete(type == MajorType.ARRAY ? value(new ArrayList<Value>(0)) : value(new HashMap<Value, Value>(0)));
+                        break;
+                    } else if(children > _limits.getMaxItems() - _items) {
+                        // every child is at least one more item, so don't believe (or allocate for) more than that
+                        throw new ReadError.LimitExceeded();
+                    }
+                    if(++_depth > _limits.getMaxDepth()) {
+                        throw new ReadError.LimitExceeded();
+                    }
+                    _top = new Reader.Frame(_top, type, count, children);
+                    if(!streamed && type == MajorType.ARRAY) {
+                        _top.list = new ArrayList<>(children);
+                    } else if(!streamed && type == MajorType.MAP) {
+                        _top.map = new HashMap<>(count);
+                    }
+                    break;
+                }
+            }
+        }
+
+        private void onContent() throws ReadError {
+            byte[] content = _content;
+            _content = null;
+            complete(MajorType.identify((byte)_initial) == MajorType.BYTE_STRING ? value(content) : value(new String(content, StandardCharsets.UTF_8)));
+        }
+
+        // hands a finished value up to its container, and keeps going as long as that completes the container
+        private void complete(@NonNull Value value) throws ReadError {
+            while(_depth > _emitDepth) {
+                _top.add(value);
+                if(_top.remaining > 0) {
+                    return;
+                }
+                value = _top.build();
+                _top = _top.parent;
+                _depth--;
+            }
+            _handler.onValue(value);
+            delivered();
+        }
+
+        // counts a delivered value (or finished streamed container) against its streamed parent, ending any that completes
+        private void delivered() throws ReadError {
+            while(_top != null) {
+                if(--_top.remaining > 0) {
+                    return;
+                }
+                _top = _top.parent;
+                _depth--;
+                _handler.onEnd();
+            }
+        }
+    }
+
+    // Decodes a map straight into an object of type T, in one pass and without building Values.
+    //
+    // A schema lists the keys it knows (integers or text strings, given as the same Cbor.Values you would look them
+    // up with) and what to do with each value: hand a string, integer or byte string to a setter, collect an array of
+    // strings, or bind a nested map with another schema. Values under any other key are skipped without being decoded.
+    // A value of the wrong type is skipped too, and its setter gets null (or NO_INTEGER), which is what a lookup in
+    // the decoded map followed by asString() etc would give. As with a HashMap, the last of duplicate keys wins.
+    //
+    // Build schemas once, up front; they are then safe to share between threads
+    public static final class Schema<T> {
+        // what an integer setter is given when the value is not an integer
+        public static final long NO_INTEGER = Long.MIN_VALUE;
+
+        public interface Setter<T, V> {
+            void set(@NonNull T target, @Nullable V value);
+        }
+
+        public interface IntegerSetter<T> {
+            void set(@NonNull T target, long value);
+        }
+
+        public interface Factory<T> {
+            @NonNull
+            T create();
+        }
+
+        private static abstract class Field<T> {
+            final int intKey;
+            @Nullable final byte[] textKey; // null for an integer key
+
+            Field(@NonNull Value key) {
+                if(key instanceof Value.TextString) {
+                    textKey = key.asString().getBytes(StandardCharsets.UTF_8);
+                    intKey = 0;
+                } else if(key instanceof Value.Integer) {
+                    textKey = null;
+                    intKey = key.asInteger();
+                } else {
+                    throw new IllegalArgumentException("schema keys must be integers or text strings: " + key);
+                }
+            }
+
+            // reads the value, which the reader is positioned at
+            abstract void read(@NonNull Reader reader, @NonNull T target, int depth) throws ReadError;
         }
 
         @NonNull
-        HashMap<Value, Value> readMap() throws ReadError {
-            int len = readPositiveInt();
-            if(pos+len > _data.length) {
-                throw new ReadError.InputTooShort();
+        private final ArrayList<Field<T>> _fields = new ArrayList<>();
+        private int _maxKeyLength;
+
+        @NonNull
+        public Schema<T> text(@NonNull Value key, @NonNull final Setter<T, String> setter) {
+            return add(new Field<T>(key) {
+                @Override
+                void read(@NonNull Reader reader, @NonNull T target, int depth) throws ReadError {
+                    setter.set(target, reader.peekType() == MajorType.TEXT_STRING ? reader.readTextString() : Schema.<String>skip(reader));
+                }
+            });
+        }
+
+        @NonNull
+        public Schema<T> bytes(@NonNull Value key, @NonNull final Setter<T, byte[]> setter) {
+            return add(new Field<T>(key) {
+                @Override
+                void read(@NonNull Reader reader, @NonNull T target, int depth) throws ReadError {
+                    setter.set(target, reader.peekType() == MajorType.BYTE_STRING ? reader.readByteString() : Schema.<byte[]>skip(reader));
+                }
+            });
+        }
+
+        @NonNull
+        public Schema<T> integer(@NonNull Value key, @NonNull final IntegerSetter<T> setter) {
+            return add(new Field<T>(key) {
+                @Override
+                void read(@NonNull Reader reader, @NonNull T target, int depth) throws ReadError {
+                    MajorType type = reader.peekType();
+                    if(type == MajorType.POSITIVE_INT || type == MajorType.NEGATIVE_INT) {
+                        setter.set(target, reader.readInteger());
+                    } else {
+                        reader.skip();
+                        setter.set(target, NO_INTEGER);
+                    }
+                }
+            });
+        }
+
+        // an array whose text string elements are collected into a list; other elements are skipped
+        @NonNull
+        public Schema<T> textArray(@NonNull Value key, @NonNull final Setter<T, List<String>> setter) {
+            return add(new Field<T>(key) {
+                @Override
+                void read(@NonNull Reader reader, @NonNull T target, int depth) throws ReadError {
+                    if(reader.peekType() != MajorType.ARRAY) {
+                        setter.set(target, Schema.<List<String>>skip(reader));
+                        return;
+                    }
+                    checkDepth(reader, depth + 1);
+                    int count = reader.readHeader(MajorType.ARRAY);
+                    ArrayList<String> list = new ArrayList<>(Math.min(count, reader._source.remaining()));
+                    for(int i = 0; i < count; i++) {
+                        if(reader.peekType() == MajorType.TEXT_STRING) {
+                            list.add(reader.readTextString());
+                        } else {
+                            reader.skip();
+                        }
+                    }
+                    setter.set(target, list);
+                }
+            });
+        }
+
+        // a nested map, bound into a new object from factory with schema, which is then handed to setter
+        @NonNull
+        public <U> Schema<T> map(@NonNull Value key, @NonNull final Schema<U> schema, @NonNull final Factory<U> factory, @NonNull final Setter<T, U> setter) {
+            return add(new Field<T>(key) {
+                @Override
+                void read(@NonNull Reader reader, @NonNull T target, int depth) throws ReadError {
+                    if(reader.peekType() != MajorType.MAP) {
+                        setter.set(target, Schema.<U>skip(reader));
+                        return;
+                    }
+                    U nested = factory.create();
+                    schema.bindMap(reader, nested, depth + 1);
+                    setter.set(target, nested);
+                }
+            });
+        }
+
+        @NonNull
+        private Schema<T> add(@NonNull Field<T> field) {
+            _fields.add(field);
+            if(field.textKey != null) {
+                _maxKeyLength = Math.max(_maxKeyLength, field.textKey.length);
             }
-            HashMap<Value, Value> result = new HashMap<>(/*capacity:*/ len);
-            for(int i = 0; i < len; i++) {
-                Value key = read();
-                Value value = read();
-                result.put(key, value);
+            return this;
+        }
+
+        // Reads the next value, which must be a map, into target. Throws MalformedInput if it is something else,
+        // and the same errors, within the same Limits, as reading it with read()
+        public void bind(@NonNull Reader reader, @NonNull T target) throws ReadError {
+            reader.begin();
+            bindMap(reader, target, 1);
+        }
+
+        private void bindMap(@NonNull Reader reader, @NonNull T target, int depth) throws ReadError {
+            checkDepth(reader, depth);
+            int count = reader.readHeader(MajorType.MAP);
+            byte[] keyBuffer = _maxKeyLength > 0 ? new byte[_maxKeyLength] : null;
+            for(int i = 0; i < count; i++) {
+                Field<T> field = readKey(reader, keyBuffer);
+                if(field != null) {
+                    field.read(reader, target, depth);
+                } else {
+                    reader.skip();
+                }
             }
-            return result;
         }
 
-        private static class TagAndValue {
-            public final int Tag;
-            @NonNull public final Cbor.Value Value;
-            public TagAndValue(int tag, @NonNull Cbor.Value value) {
-                Tag = tag;
-                Value = value;
+        // the field for the key the reader is positioned at, or null if we don't know it. Consumes the key either way
+        @Nullable
+        private Field<T> readKey(@NonNull Reader reader, @Nullable byte[] keyBuffer) throws ReadError {
+            MajorType type = reader.peekType();
+            if(type == MajorType.POSITIVE_INT || type == MajorType.NEGATIVE_INT) {
+                int key = reader.readInteger();
+                for(Field<T> field : _fields) {
+                    if(field.textKey == null && field.intKey == key) {
+                        return field;
+                    }
+                }
+                return null;
             }
+            if(type == MajorType.TEXT_STRING && keyBuffer != null) {
+                int length = reader.readTextString(keyBuffer);
+                for(Field<T> field : _fields) {
+                    if(field.textKey != null && field.textKey.length == length && matches(field.textKey, keyBuffer)) {
+                        return field;
+                    }
+                }
+                return null;
+            }
+            reader.skip();
+            return null;
         }
 
-        TagAndValue readTagged() throws ReadError {
-            int tag = readPositiveInt();
-            Cbor.Value following = read();
-            return new TagAndValue(tag, following);
+        private static boolean matches(@NonNull byte[] key, @NonNull byte[] buffer) {
+            for(int i = 0; i < key.length; i++) {
+                if(key[i] != buffer[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static void checkDepth(@NonNull Reader reader, int depth) throws ReadError {
+            if(depth > reader.getLimits().getMaxDepth()) {
+                throw new ReadError.LimitExceeded();
+            }
+        }
+
+        // skips a value of the wrong type; returns null for the setter
+        @Nullable
+        private static <V> V skip(@NonNull Reader reader) throws ReadError {
+            reader.skip();
+            return null;
         }
     }
 
     public static class Writer {
         // this gets appended to as we write more and more data.
         // call getBuffer to get the current stuff written so far
-        private byte[] _buffer = new byte[0];
+        private byte[] _buffer;
         private int _bufferPos;
 
+        public Writer() {
+            this(0);
+        }
+
+        // presizing the buffer avoids regrowing it when the caller knows roughly how much will be written
+        public Writer(int initialCapacity) {
+            _buffer = new byte[initialCapacity];
+        }
+
         @NonNull
         public byte[] getBuffer() {
             // trim the underlying buffer which may have excess capacity. If not we still want a defensive copy
             return Arrays.copyOf(_buffer, _bufferPos);
         }
 
+        // the number of bytes written so far
+        public int size() {
+            return _bufferPos;
+        }
+
+        // the live buffer, valid from 0 to size(). No copy, so only for use inside the library
+        @NonNull
+        byte[] getRawBuffer() {
+            return _buffer;
+        }
+
+        // starts writing again from the beginning, keeping the buffer, so one Writer can be reused
+        void reset() {
+            _bufferPos = 0;
+        }
+
+        // Writes just the header for an array of count elements; the caller must write the elements after it.
+        // Together with writeByteString this lets us write structures that refer to existing buffers without
+        // wrapping everything in Values first
+        public void writeArrayHeader(int count) {
+            writeHeader(MajorType.ARRAY, count);
+        }
+
+        // as writeArrayHeader; the caller must write count keys and values, alternately, after it
+        public void writeMapHeader(int count) {
+            writeHeader(MajorType.MAP, count);
+        }
+
+        // any integer that fits in 32 bits of count (so from -2^32 to 2^32 - 1), such as seconds since the epoch
+        public void writeInteger(long value) {
+            if(value >= 0) {
+                writeHeader(MajorType.POSITIVE_INT, value);
+            } else {
+                writeHeader(MajorType.NEGATIVE_INT, -1 - value);
+            }
+        }
+
+        public void writeByteString(@NonNull byte[] value, int offset, int length) {
+            writeHeader(MajorType.BYTE_STRING, length);
+            ensureBufferCapacity(length);
+            System.arraycopy(value, offset, _buffer, _bufferPos, length);
+            _bufferPos += length;
+        }
+
         @SuppressWarnings("ConstantConditions")
         public void write(Cbor.Value value) {
             switch(value.getType()) {
@@ -544,7 +1408,7 @@ public class Cbor {
             writeHeader(MajorType.NEGATIVE_INT, countValue);
         }
 
-        private void writeTextString(@NonNull String value) {
+        public void writeTextString(@NonNull String value) {
             // java getBytes just returns garbage if it encounters something that isn't utf-8 encodable,
             // there's no reliable way to detect it :-(
             byte[] utf8Bytes = value.getBytes(StandardCharsets.UTF_8);
@@ -556,10 +1420,7 @@ public class Cbor {
         }
 
         private void writeByteString(@NonNull byte[] value) {
-            writeHeader(MajorType.BYTE_STRING, value.length);
-            ensureBufferCapacity(value.length);
-            System.arraycopy(value, 0, _buffer, _bufferPos, value.length);
-            _bufferPos += value.length;
+            writeByteString(value, 0, value.length);
         }
 
         private void writeArray(@NonNull List<Cbor.Value> value) {
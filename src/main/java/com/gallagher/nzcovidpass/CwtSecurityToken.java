@@ -4,7 +4,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -16,49 +16,70 @@ public class CwtSecurityToken {
     Header _header;
     private @NonNull
     Payload _payload;
+
+    // The protected header, payload and signature, back to back. These are the only parts of the COSE structure
+    // we need after parsing (to check the signature), so they are the only parts we copy out of the input
     private @NonNull
-    byte[] _signature;
+    byte[] _buffer;
+    private int _signatureOffset;
+    private int _signatureLength;
 
     public CwtSecurityToken(@NonNull byte[] data) throws CwtSecurityTokenError {
+        this(new Cbor.ByteArraySource(data));
+    }
+
+    public CwtSecurityToken(@NonNull Cbor.Source source) throws CwtSecurityTokenError {
+        this(source, null);
+    }
+
+    // Parses into scratch if it's big enough, rather than allocating a buffer. The token then shares scratch,
+    // so this is only for callers that are finished with the token before they reuse scratch
+    CwtSecurityToken(@NonNull Cbor.Source source, @Nullable byte[] scratch) throws CwtSecurityTokenError {
         try {
-            Cbor.Reader reader = new Cbor.Reader(data);
-            Cbor.Value outer = reader.read();
-            if (!(outer instanceof Cbor.Value.Tagged)) {
-                throw new CwtSecurityTokenError.NotCoseSingleSignerObject();
-            }
-            Cbor.Value.Tagged tagged = (Cbor.Value.Tagged) outer;
-            if (tagged.getTag() != 18) {
+            Cbor.Reader reader = new Cbor.Reader(source);
+            if (reader.peekType() != Cbor.MajorType.SEMANTIC_TAG || reader.readHeader(Cbor.MajorType.SEMANTIC_TAG) != 18) {
                 throw new CwtSecurityTokenError.NotCoseSingleSignerObject();
             }
 
-            List<Cbor.Value> coseStructure = tagged.getValue().asList();
-            if (coseStructure == null || coseStructure.size() != 4) {
-                throw new CwtSecurityTokenError.CoseSingleSignerObjectInvalidPayload();
-            }
-
-            // pick up actual contents
-            byte[] headerBytes = coseStructure.get(0).asBytes();
-            byte[] payloadBytes = coseStructure.get(2).asBytes();
-            byte[] signatureBytes = coseStructure.get(3).asBytes();
-            if (headerBytes == null || payloadBytes == null || signatureBytes == null) {
+            if (reader.peekType() != Cbor.MajorType.ARRAY || reader.readHeader(Cbor.MajorType.ARRAY) != 4) {
                 throw new CwtSecurityTokenError.CoseSingleSignerObjectInvalidPayload();
             }
 
-            // A CBOR Map is binary encoded, then written into a byte-string in a CBOR wrapper. COSE and CWT are ridiculous
-            Cbor.Reader headerReader = new Cbor.Reader(headerBytes);
-            Map<Cbor.Value, Cbor.Value> headerMap = headerReader.readMap();
+            // the spans can't add up to more than the input, so this is the only allocation we need for them
+            byte[] buffer = scratch != null && scratch.length >= source.remaining() ? scratch : new byte[source.remaining()];
 
-            Cbor.Reader payloadReader = new Cbor.Reader(payloadBytes);
-            Map<Cbor.Value, Cbor.Value> payloadMap = payloadReader.readMap();
-
-            _header = new Header(headerMap, headerBytes);
-            _payload = new Payload(payloadMap, payloadBytes);
-            _signature = signatureBytes;
+            // pick up actual contents
+            int headerLength = readByteString(reader, buffer, 0);
+            reader.skip(); // the unprotected header, which NZCP doesn't use
+            int payloadLength = readByteString(reader, buffer, headerLength);
+            int signatureOffset = headerLength + payloadLength;
+            int signatureLength = readByteString(reader, buffer, signatureOffset);
+
+            // A CBOR Map is binary encoded, then written into a byte-string in a CBOR wrapper. COSE and CWT are ridiculous.
+            // Both are bound straight into their wrappers, so we never build a tree of Cbor.Values for them
+            Header header = new Header(buffer, 0, headerLength);
+            Header.SCHEMA.bind(new Cbor.Reader(new Cbor.ByteArraySource(buffer, 0, headerLength)), header);
+
+            Payload payload = new Payload(buffer, headerLength, payloadLength);
+            Payload.SCHEMA.bind(new Cbor.Reader(new Cbor.ByteArraySource(buffer, headerLength, signatureOffset)), payload);
+
+            _header = header;
+            _payload = payload;
+            _buffer = buffer;
+            _signatureOffset = signatureOffset;
+            _signatureLength = signatureLength;
         } catch (Cbor.ReadError e) {
             throw new CwtSecurityTokenError.InvalidTokenFormat();
         }
     }
 
+    private static int readByteString(@NonNull Cbor.Reader reader, @NonNull byte[] buffer, int offset) throws Cbor.ReadError, CwtSecurityTokenError {
+        if (reader.peekType() != Cbor.MajorType.BYTE_STRING) {
+            throw new CwtSecurityTokenError.CoseSingleSignerObjectInvalidPayload();
+        }
+        return reader.readByteString(buffer, offset);
+    }
+
     @NonNull
     public Header getHeader() {
         return _header;
@@ -69,67 +90,156 @@ public class CwtSecurityToken {
         return _payload;
     }
 
+    // returns a copy
     @NonNull
     public byte[] getSignature() {
-        return _signature;
+        return Arrays.copyOfRange(_buffer, _signatureOffset, _signatureOffset + _signatureLength);
+    }
+
+    // the shared buffer holding header, payload and signature; for use inside the library without copying
+    @NonNull
+    byte[] getBuffer() {
+        return _buffer;
+    }
+
+    int getSignatureOffset() {
+        return _signatureOffset;
+    }
+
+    int getSignatureLength() {
+        return _signatureLength;
     }
 
     // wrapper which helps us unpack the CBOR Cwt Header structure
-    // we don't pre-parse anything though for some reason (copied from .NET impl)
     public static class Header {
         @NonNull
-        private final Map<Cbor.Value, Cbor.Value> _claims;
+        static final Cbor.Schema<Header> SCHEMA = new Cbor.Schema<Header>()
+                .bytes(ClaimIds.Header.KEY_ID_KEY, new Cbor.Schema.Setter<Header, byte[]>() {
+                    @Override
+                    public void set(@NonNull Header target, @Nullable byte[] value) {
+                        target._keyId = value != null ? new String(value, StandardCharsets.UTF_8) : null;
+                    }
+                })
+                .integer(ClaimIds.Header.ALGORITHM_KEY, new Cbor.Schema.IntegerSetter<Header>() {
+                    @Override
+                    public void set(@NonNull Header target, long value) {
+                        target._algorithm = value != Cbor.Schema.NO_INTEGER ? ClaimIds.Header.algorithmMap.get((int)value) : null;
+                    }
+                });
 
-        // preserve the original data so we can verify the signature exactly
-        @NonNull
-        private final byte[] _data;
+        @Nullable
+        private String _keyId;
+        @Nullable
+        private String _algorithm;
 
-        Header(@NonNull Map<Cbor.Value, Cbor.Value> claims, @NonNull byte[] data) {
-            _claims = claims;
-            _data = data;
+        // preserve the original data so we can verify the signature exactly.
+        // This is a span of the token's shared buffer
+        @NonNull
+        private final byte[] _buffer;
+        private final int _dataOffset;
+        private final int _dataLength;
+
+        Header(@NonNull byte[] buffer, int dataOffset, int dataLength) {
+            _buffer = buffer;
+            _dataOffset = dataOffset;
+            _dataLength = dataLength;
         }
 
+        // returns a copy
         @NonNull
         public byte[] getData() {
-            return _data;
+            return Arrays.copyOfRange(_buffer, _dataOffset, _dataOffset + _dataLength);
+        }
+
+        int getDataOffset() {
+            return _dataOffset;
+        }
+
+        int getDataLength() {
+            return _dataLength;
         }
 
         @Nullable
         String getKeyId() {
-            @Nullable Cbor.Value claim = _claims.get(Cbor.value(ClaimIds.Header.KEY_ID));
-            if(!(claim instanceof Cbor.Value.ByteString)) {
-                return null;
-            }
-            return new String(claim.asBytes(), StandardCharsets.UTF_8);
+            return _keyId;
         }
 
         @Nullable
         String getAlgorithm() {
-            @Nullable Cbor.Value claim = _claims.get(Cbor.value(ClaimIds.Header.ALGORITHM));
-            if(!(claim instanceof Cbor.Value.Integer)) {
-                return null;
-            }
-            return ClaimIds.Header.algorithmMap.get(claim.asInteger());
+            return _algorithm;
         }
     }
 
     // wrapper which helps us unpack the CBOR Cwt Header structure
     public static class Payload {
         @NonNull
-        private final Map<Cbor.Value, Cbor.Value> _claims;
+        static final Cbor.Schema<Payload> SCHEMA = new Cbor.Schema<Payload>()
+                .text(ClaimIds.Payload.ISS_KEY, new Cbor.Schema.Setter<Payload, String>() {
+                    @Override
+                    public void set(@NonNull Payload target, @Nullable String value) {
+                        target._issuer = value;
+                    }
+                })
+                // NO_INTEGER is NO_TIME, so these need no translating
+                .integer(ClaimIds.Payload.EXP_KEY, new Cbor.Schema.IntegerSetter<Payload>() {
+                    @Override
+                    public void set(@NonNull Payload target, long value) {
+                        target._expiry = value;
+                    }
+                })
+                .integer(ClaimIds.Payload.NBF_KEY, new Cbor.Schema.IntegerSetter<Payload>() {
+                    @Override
+                    public void set(@NonNull Payload target, long value) {
+                        target._notBefore = value;
+                    }
+                })
+                .bytes(ClaimIds.Payload.CTI_KEY, new Cbor.Schema.Setter<Payload, byte[]>() {
+                    @Override
+                    public void set(@NonNull Payload target, @Nullable byte[] value) {
+                        target._cti = value;
+                    }
+                })
+                .map(ClaimIds.Payload.VC_KEY, CredentialClaims.SCHEMA, CredentialClaims.FACTORY, new Cbor.Schema.Setter<Payload, CredentialClaims>() {
+                    @Override
+                    public void set(@NonNull Payload target, @Nullable CredentialClaims value) {
+                        target._credential = value != null ? value.toCredential() : null;
+                    }
+                });
 
-        // preserve the original data so we can verify the signature exactly
-        @NonNull
-        private final byte[] _data;
+        @Nullable
+        private String _issuer;
+        private long _expiry = VerifiedPass.NO_TIME;
+        private long _notBefore = VerifiedPass.NO_TIME;
+        @Nullable
+        private byte[] _cti;
+        @Nullable
+        private VerifiableCredential _credential;
 
-        Payload(@NonNull Map<Cbor.Value, Cbor.Value> claims, @NonNull byte[] data) {
-            _claims = claims;
-            _data = data;
+        // preserve the original data so we can verify the signature exactly.
+        // This is a span of the token's shared buffer
+        @NonNull
+        private final byte[] _buffer;
+        private final int _dataOffset;
+        private final int _dataLength;
+
+        Payload(@NonNull byte[] buffer, int dataOffset, int dataLength) {
+            _buffer = buffer;
+            _dataOffset = dataOffset;
+            _dataLength = dataLength;
         }
 
+        // returns a copy
         @NonNull
         public byte[] getData() {
-            return _data;
+            return Arrays.copyOfRange(_buffer, _dataOffset, _dataOffset + _dataLength);
+        }
+
+        int getDataOffset() {
+            return _dataOffset;
+        }
+
+        int getDataLength() {
+            return _dataLength;
         }
 
         @Nullable
@@ -143,9 +253,8 @@ public class CwtSecurityToken {
 
         @Nullable
         public UUID getCti() {
-            @Nullable Cbor.Value claim = _claims.get(Cbor.value(ClaimIds.Payload.CTI));
-            byte[] bytes = claim != null ? claim.asBytes() : null;
-            if(bytes == null || bytes.length != 16) {
+            byte[] bytes = getCtiBytes();
+            if(bytes == null) {
                 return null;
             }
 
@@ -157,86 +266,140 @@ public class CwtSecurityToken {
 
         @Nullable
         public String getIssuer() {
-            @Nullable Cbor.Value claim = _claims.get(Cbor.value(ClaimIds.Payload.ISS));
-            return claim != null ? claim.asString() : null;
+            return _issuer;
         }
 
         @Nullable
         public Date getExpiry() {
-            @Nullable Cbor.Value claim = _claims.get(Cbor.value(ClaimIds.Payload.EXP));
-            Integer i = claim != null ? claim.asInteger() : null;
-            if(i == null) {
-                return null;
-            }
-            return new Date((long)i * 1000);
+            return _expiry != VerifiedPass.NO_TIME ? new Date(_expiry * 1000) : null;
         }
 
         @Nullable
         public Date getNotBefore() {
-            @Nullable Cbor.Value claim = _claims.get(Cbor.value(ClaimIds.Payload.NBF));
-            Integer i = claim != null ? claim.asInteger() : null;
-            if(i == null) {
-                return null;
-            }
-            return new Date((long)i * 1000);
+            return _notBefore != VerifiedPass.NO_TIME ? new Date(_notBefore * 1000) : null;
+        }
+
+        // as getNotBefore/getExpiry in seconds, without the Date; VerifiedPass.NO_TIME if the claim is missing
+        long getNotBeforeSeconds() {
+            return _notBefore;
+        }
+
+        long getExpirySeconds() {
+            return _expiry;
+        }
+
+        boolean hasCti() {
+            return getCtiBytes() != null;
         }
 
+        // the 16 bytes of the cti without building a UUID, or null. Not a copy, so don't modify it
         @Nullable
-        public VerifiableCredential getCredential() {
-            @Nullable Cbor.Value claim = _claims.get(Cbor.value(ClaimIds.Payload.VC));
-            Map<Cbor.Value, Cbor.Value> map = claim != null ? claim.asMap() : null;
-            if(map == null) {
-                return null;
-            }
-            // the C# one converts the CBOR into JSON and then uses Newtonsoft to parse the JSON back out again. I don't know why it does this
-            Cbor.Value versionCbor = map.get(Cbor.value("version"));
-            String version = versionCbor != null ? versionCbor.asString() : null;
+        byte[] getCtiBytes() {
+            return _cti != null && _cti.length == 16 ? _cti : null;
+        }
 
-            Cbor.Value contextsCbor = map.get(Cbor.value("@context"));
-            List<Cbor.Value> contexts = contextsCbor != null ? contextsCbor.asList() : null;
+        // null unless the vc claim has a version, @context, type and a credentialSubject with at least givenName and dob
+        @Nullable
+        public VerifiableCredential getCredential() {
+            return _credential;
+        }
+    }
 
-            Cbor.Value typesCbor = map.get(Cbor.value("type"));
-            List<Cbor.Value> types = typesCbor != null ? typesCbor.asList() : null;
+    // the vc claim as it's bound, before we know whether it's complete.
+    // The C# one converts the CBOR into JSON and then uses Newtonsoft to parse the JSON back out again. I don't know why it does this
+    private static final class CredentialClaims {
+        @NonNull
+        static final Cbor.Schema.Factory<CredentialClaims> FACTORY = new Cbor.Schema.Factory<CredentialClaims>() {
+            @NonNull
+            @Override
+            public CredentialClaims create() {
+                return new CredentialClaims();
+            }
+        };
 
-            Cbor.Value subjectCbor = map.get(Cbor.value("credentialSubject"));
-            Map<Cbor.Value, Cbor.Value> subject = subjectCbor != null ? subjectCbor.asMap() : null;
+        @NonNull
+        static final Cbor.Schema<CredentialClaims> SCHEMA = new Cbor.Schema<CredentialClaims>()
+                .text(ClaimIds.Credential.VERSION_KEY, new Cbor.Schema.Setter<CredentialClaims, String>() {
+                    @Override
+                    public void set(@NonNull CredentialClaims target, @Nullable String value) {
+                        target.version = value;
+                    }
+                })
+                .textArray(ClaimIds.Credential.CONTEXT_KEY, new Cbor.Schema.Setter<CredentialClaims, List<String>>() {
+                    @Override
+                    public void set(@NonNull CredentialClaims target, @Nullable List<String> value) {
+                        target.context = value;
+                    }
+                })
+                .textArray(ClaimIds.Credential.TYPE_KEY, new Cbor.Schema.Setter<CredentialClaims, List<String>>() {
+                    @Override
+                    public void set(@NonNull CredentialClaims target, @Nullable List<String> value) {
+                        target.type = value;
+                    }
+                })
+                .map(ClaimIds.Credential.CREDENTIAL_SUBJECT_KEY, SubjectClaims.SCHEMA, SubjectClaims.FACTORY, new Cbor.Schema.Setter<CredentialClaims, SubjectClaims>() {
+                    @Override
+                    public void set(@NonNull CredentialClaims target, @Nullable SubjectClaims value) {
+                        target.subject = value != null ? value.toPublicCovidPass() : null;
+                    }
+                });
+
+        @Nullable String version;
+        @Nullable List<String> context;
+        @Nullable List<String> type;
+        @Nullable PublicCovidPass subject;
 
-            if(version == null || contexts == null || types == null || subject == null) {
+        @Nullable
+        VerifiableCredential toCredential() {
+            if(version == null || context == null || type == null || subject == null) {
                 return null;
             }
+            return new VerifiableCredential(version, context, type, subject);
+        }
+    }
 
-            // unpack the context and type arrays
-            ArrayList<String> contextValues = new ArrayList<>();
-            for(Cbor.Value v : contexts) {
-                String s = v.asString();
-                if(s != null) {
-                    contextValues.add(s);
-                }
-            }
-            ArrayList<String> typeValues = new ArrayList<>();
-            for(Cbor.Value v : types) {
-                String s = v.asString();
-                if(s != null) {
-                    typeValues.add(s);
-                }
+    // the nested PublicCovidPass
+    private static final class SubjectClaims {
+        @NonNull
+        static final Cbor.Schema.Factory<SubjectClaims> FACTORY = new Cbor.Schema.Factory<SubjectClaims>() {
+            @NonNull
+            @Override
+            public SubjectClaims create() {
+                return new SubjectClaims();
             }
+        };
 
-            // now the nested PublicCovidPass
-            Cbor.Value givenNameCbor = subject.get(Cbor.value("givenName"));
-            String givenName = givenNameCbor != null ? givenNameCbor.asString() : null;
-
-            Cbor.Value familyNameCbor = subject.get(Cbor.value("familyName"));
-            String familyName = familyNameCbor != null ? familyNameCbor.asString() : null;
-
-            Cbor.Value dobCbor = subject.get(Cbor.value("dob"));
-            String dob = dobCbor != null ? dobCbor.asString() : null;
+        @NonNull
+        static final Cbor.Schema<SubjectClaims> SCHEMA = new Cbor.Schema<SubjectClaims>()
+                .text(ClaimIds.Credential.GIVEN_NAME_KEY, new Cbor.Schema.Setter<SubjectClaims, String>() {
+                    @Override
+                    public void set(@NonNull SubjectClaims target, @Nullable String value) {
+                        target.givenName = value;
+                    }
+                })
+                .text(ClaimIds.Credential.FAMILY_NAME_KEY, new Cbor.Schema.Setter<SubjectClaims, String>() {
+                    @Override
+                    public void set(@NonNull SubjectClaims target, @Nullable String value) {
+                        target.familyName = value;
+                    }
+                })
+                .text(ClaimIds.Credential.DOB_KEY, new Cbor.Schema.Setter<SubjectClaims, String>() {
+                    @Override
+                    public void set(@NonNull SubjectClaims target, @Nullable String value) {
+                        target.dob = value;
+                    }
+                });
+
+        @Nullable String givenName;
+        @Nullable String familyName;
+        @Nullable String dob;
 
+        @Nullable
+        PublicCovidPass toPublicCovidPass() {
             if(givenName == null || dob == null) {
                 return null;
             }
-
-            PublicCovidPass pass = new PublicCovidPass(givenName, familyName, dob);
-            return new VerifiableCredential(version, contextValues, typeValues, pass);
+            return new PublicCovidPass(givenName, familyName, dob);
         }
     }
 
@@ -245,6 +408,10 @@ public class CwtSecurityToken {
             public static final int ALGORITHM = 1;
             public static final int KEY_ID = 4;
 
+            // map keys are built once rather than on every lookup
+            @NonNull static final Cbor.Value ALGORITHM_KEY = Cbor.value(ALGORITHM);
+            @NonNull static final Cbor.Value KEY_ID_KEY = Cbor.value(KEY_ID);
+
             // https://github.com/AzureAD/azure-activedirectory-identitymodel-extensions-for-dotnet/blob/dev/src/Microsoft.IdentityModel.Tokens/SecurityAlgorithms.cs
             @NonNull
             public static final Map<Integer, String> algorithmMap;
@@ -263,6 +430,22 @@ public class CwtSecurityToken {
             public static final int NBF = 5;
             public static final int CTI = 7;
             public static final String VC = "vc";
+
+            @NonNull static final Cbor.Value ISS_KEY = Cbor.value(ISS);
+            @NonNull static final Cbor.Value EXP_KEY = Cbor.value(EXP);
+            @NonNull static final Cbor.Value NBF_KEY = Cbor.value(NBF);
+            @NonNull static final Cbor.Value CTI_KEY = Cbor.value(CTI);
+            @NonNull static final Cbor.Value VC_KEY = Cbor.value(VC);
+        }
+
+        static class Credential {
+            @NonNull static final Cbor.Value VERSION_KEY = Cbor.value("version");
+            @NonNull static final Cbor.Value CONTEXT_KEY = Cbor.value("@context");
+            @NonNull static final Cbor.Value TYPE_KEY = Cbor.value("type");
+            @NonNull static final Cbor.Value CREDENTIAL_SUBJECT_KEY = Cbor.value("credentialSubject");
+            @NonNull static final Cbor.Value GIVEN_NAME_KEY = Cbor.value("givenName");
+            @NonNull static final Cbor.Value FAMILY_NAME_KEY = Cbor.value("familyName");
+            @NonNull static final Cbor.Value DOB_KEY = Cbor.value("dob");
         }
     }
 }
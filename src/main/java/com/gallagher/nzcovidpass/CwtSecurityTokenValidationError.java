@@ -39,4 +39,7 @@ public abstract class CwtSecurityTokenValidationError extends Exception {
 
     /// The signature was not verifiable; either the data has been tampered with or it was signed with a different key
     public static class InvalidSignature extends CwtSecurityTokenValidationError { }
+
+    /// The verifier's AdmissionControl shed the signature check because it is overloaded. This says nothing about the pass; scan it again
+    public static class Overloaded extends CwtSecurityTokenValidationError { }
 }
@@ -3,31 +3,50 @@ package com.gallagher.nzcovidpass;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import org.json.JSONException;
-
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
 import java.security.PublicKey;
 import java.security.Signature;
-import java.security.SignatureException;
 import java.security.interfaces.ECPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
 public class CwtSecurityTokenValidator {
-    @NonNull PassVerifier.Options _options;
+    @NonNull final PassVerifier.Options _options;
+
+    // gates the signature check, if set
+    @Nullable
+    private final AdmissionControl _admissionControl;
 
     public CwtSecurityTokenValidator(@NonNull PassVerifier.Options options) {
+        this(options, null);
+    }
+
+    CwtSecurityTokenValidator(@NonNull PassVerifier.Options options, @Nullable AdmissionControl admissionControl) {
         _options = options;
+        _admissionControl = admissionControl;
     }
 
     // throws if the token isn't valid. Returns if it is
     public void validateToken(@NonNull CwtSecurityToken token, @Nullable Date referenceTime) throws CwtSecurityTokenValidationError {
+        validate(token, referenceTime);
+    }
+
+    // as validateToken, but hands back the credential it had to decode along the way so callers needn't decode it again
+    @NonNull
+    VerifiableCredential validate(@NonNull CwtSecurityToken token, @Nullable Date referenceTime) throws CwtSecurityTokenValidationError {
+        return validate(token, referenceTime, null);
+    }
+
+    // callerId picks the admission control bucket, if there is one
+    @NonNull
+    VerifiableCredential validate(@NonNull CwtSecurityToken token, @Nullable Date referenceTime, @Nullable String callerId) throws CwtSecurityTokenValidationError {
         // validate the header
         String keyId = token.getHeader().getKeyId();
         if(keyId == null || keyId.length() == 0) {
@@ -39,9 +58,8 @@ public class CwtSecurityTokenValidator {
             throw new CwtSecurityTokenValidationError.UnsupportedAlgorithm();
         }
 
-        // validate the payload
-        String jti = token.getPayload().getJti();
-        if(jti == null || jti.length() == 0) {
+        // validate the payload. The jti is "urn:uuid:" + the cti, so we only need to know the cti is there
+        if(!token.getPayload().hasCti()) {
             throw new CwtSecurityTokenValidationError.InvalidTokenId();
         }
 
@@ -50,25 +68,22 @@ public class CwtSecurityTokenValidator {
             throw new CwtSecurityTokenValidationError.InvalidIssuer();
         }
 
-        Date nbf = token.getPayload().getNotBefore();
-        if(nbf == null) {
-            nbf = new Date(0); // 1st of jan 1970
-        }
-        Date exp = token.getPayload().getExpiry();
-        if(exp == null) {
-            exp = new Date(4133933999L); // 11:59pm on 31st Dec 2100
-        }
+        // compared as milliseconds rather than Dates, to save allocating them on every verify
+        long nbf = token.getPayload().getNotBeforeSeconds();
+        nbf = nbf == VerifiedPass.NO_TIME ? 0 : nbf * 1000; // 1st of jan 1970
+        long exp = token.getPayload().getExpirySeconds();
+        exp = exp == VerifiedPass.NO_TIME ? 4133933999L : exp * 1000; // 11:59pm on 31st Dec 2100
 
-        Date now = referenceTime == null ? new Date() : referenceTime;
-        if(nbf.after(now)) {
+        long now = referenceTime == null ? System.currentTimeMillis() : referenceTime.getTime();
+        if(nbf > now) {
             throw new CwtSecurityTokenValidationError.NotYetValid();
         }
-        if(exp.before(now)) {
+        if(exp < now) {
             throw new CwtSecurityTokenValidationError.Expired();
         }
 
         // validate the signature
-        validateSignature(token, alg);
+        validateSignature(token, alg, callerId);
 
         // validate the credential
         VerifiableCredential cred = token.getPayload().getCredential();
@@ -84,12 +99,13 @@ public class CwtSecurityTokenValidator {
                 !cred.getType().contains(cred.getCredentialSubject().getType())) {
             throw new CwtSecurityTokenValidationError.InvalidCredentialType();
         }
+        return cred;
     }
 
-    private void validateSignature(@NonNull CwtSecurityToken token, @NonNull String algorithm) throws CwtSecurityTokenValidationError {
+    private void validateSignature(@NonNull CwtSecurityToken token, @NonNull String algorithm, @Nullable String callerId) throws CwtSecurityTokenValidationError {
         // future extension: fetch the DID from the internet and cache it rather than hardcoding
         // Note: before we get here we have already checked the token issuer against
-        // options.validIssuers, so it isn't a security problem if "WellKnownIssuers" contains test keys
+        // options.validIssuers, so it isn't a security problem if the trust store contains test keys
         String issuer = token.getPayload().getIssuer();
         if(issuer == null) { issuer = ""; }
         String keyId = token.getHeader().getKeyId();
@@ -98,130 +114,348 @@ public class CwtSecurityTokenValidator {
             throw new CwtSecurityTokenValidationError.InvalidKeyParameters();
         }
 
-        @Nullable DID.Document did;
+        TrustStore.TrustedKey trustedKey = _options.getTrustStore().getSnapshot().find(issuer, keyId);
+        if(trustedKey == null) {
+            throw new CwtSecurityTokenValidationError.InvalidIssuer();
+        }
+        if(!trustedKey.isSupportedKeyType()) {
+            throw new CwtSecurityTokenValidationError.UnsupportedVerificationKeyType();
+        }
+        PublicKey publicKey = trustedKey.getPublicKey();
+        if(publicKey == null) {
+            throw new CwtSecurityTokenValidationError.InvalidKeyParameters();
+        }
+
+        // the signature is generated not directly over the input, but over this derived structure
+        // https://datatracker.ietf.org/doc/html/rfc8152#section-4.4
+        // Note this process assumes a COSE_Sign1 structure, which NZ Covid passes should be.
+        // The header and payload are written straight out of the token's buffer rather than via Cbor.Values
+        Scratch scratch = Scratch.get();
+        Cbor.Writer cborWriter = scratch.sigStructure;
+        writeSigStructure(token, cborWriter);
+
+        // everything up to here is cheap; the ECDSA check is what gets shed under load
+        AdmissionControl admissionControl = _admissionControl;
+        if(admissionControl != null && !admissionControl.tryAcquire(callerId)) {
+            throw new CwtSecurityTokenValidationError.Overloaded();
+        }
+        boolean valid;
         try {
-            did = WellKnownIssuers.find(issuer, keyId);
-        } catch (JSONException e) { // somehow an unparseable DID document
-            did = null;
+            valid = verifyECDSASignature(
+                    token.getBuffer(), token.getSignatureOffset(), token.getSignatureLength(),
+                    cborWriter.getRawBuffer(), 0, cborWriter.size(),
+                    publicKey, _signatureVerifier);
+        } finally {
+            if(admissionControl != null) {
+                admissionControl.release();
+            }
         }
-        if(did == null) {
-            throw new CwtSecurityTokenValidationError.InvalidIssuer();
+        scratch.trim();
+        if (!valid) {
+            throw new CwtSecurityTokenValidationError.InvalidSignature();
+        }
+    }
+
+    // Replaces the writer's contents with the Sig_structure for the token.
+    // The header and payload are written straight out of the token's buffer rather than via Cbor.Values
+    static void writeSigStructure(@NonNull CwtSecurityToken token, @NonNull Cbor.Writer cborWriter) {
+        CwtSecurityToken.Header header = token.getHeader();
+        CwtSecurityToken.Payload payload = token.getPayload();
+        byte[] tokenBuffer = token.getBuffer();
+        cborWriter.reset();
+        cborWriter.writeArrayHeader(4);
+        cborWriter.write(SIGNATURE1_CONTEXT); // context
+        cborWriter.writeByteString(tokenBuffer, header.getDataOffset(), header.getDataLength()); // body_protected
+        cborWriter.writeByteString(tokenBuffer, 0, 0); // external_aad
+        cborWriter.writeByteString(tokenBuffer, payload.getDataOffset(), payload.getDataLength()); // payload
+    }
+
+    // Something that can check an ES256 signature. The default uses whichever JCA provider Java picks; see
+    // SignatureVerifierCalibration for choosing the fastest of those installed, or supply your own (e.g. one
+    // backed by native code or an HSM) with setSignatureVerifier
+    public interface SignatureVerifier {
+        // for logging, e.g. "SunEC/SHA256withECDSAinP1363Format"
+        @NonNull
+        String getName();
+
+        // signature is the 64 byte COSE r||s signature at signatureOffset, already checked to be in range for P-256.
+        // Called concurrently from every verifying thread. Throws only if the implementation itself has failed
+        boolean verify(@NonNull byte[] signature, int signatureOffset, @NonNull byte[] data, int dataOffset, int dataLength, @NonNull PublicKey publicKey) throws GeneralSecurityException;
+    }
+
+    // A SignatureVerifier over a JCA Signature, from a particular provider or the default one
+    public static final class JcaSignatureVerifier implements SignatureVerifier {
+        @Nullable
+        private final Provider _provider;
+        private final boolean _p1363;
+        @NonNull
+        private final String _name;
+
+        // Signature.getInstance does a provider lookup every time; an instance can be re-initialised with initVerify instead
+        @NonNull
+        private final ThreadLocal<Signature> _signatures = new ThreadLocal<>();
+
+        // provider null means the default. p1363 takes the raw COSE signature as is; otherwise it is re-encoded
+        // as DER, which every provider supports. Throws if the provider doesn't have the algorithm
+        public JcaSignatureVerifier(@Nullable Provider provider, boolean p1363) throws NoSuchAlgorithmException {
+            _provider = provider;
+            _p1363 = p1363;
+            newSignature(); // fail now rather than on the first verify
+            _name = (provider != null ? provider.getName() : "default") + "/" + (p1363 ? P1363_ALGORITHM : DER_ALGORITHM);
+        }
+
+        @NonNull
+        private Signature newSignature() throws NoSuchAlgorithmException {
+            String algorithm = _p1363 ? P1363_ALGORITHM : DER_ALGORITHM;
+            return _provider != null ? Signature.getInstance(algorithm, _provider) : Signature.getInstance(algorithm);
         }
 
-        String targetId = issuer + "#" + keyId;
-        @Nullable DID.VerificationMethod verificationMethod = null;
-        for(DID.VerificationMethod vf : did.getVerificationMethods()) {
-            if(vf.getId().equals(targetId) && "P-256".equals(vf.getPublicKeyJwk().getCrv()) && "EC".equals(vf.getPublicKeyJwk().getKty())) {
-                verificationMethod = vf;
-                break;
+        @NonNull
+        @Override
+        public String getName() {
+            return _name;
+        }
+
+        @Override
+        public boolean verify(@NonNull byte[] signature, int signatureOffset, @NonNull byte[] data, int dataOffset, int dataLength, @NonNull PublicKey publicKey) throws GeneralSecurityException {
+            Signature instance = _signatures.get();
+            if(instance == null) {
+                instance = newSignature();
+                _signatures.set(instance);
             }
+            instance.initVerify(publicKey);
+            instance.update(data, dataOffset, dataLength);
+            if(_p1363) {
+                return instance.verify(signature, signatureOffset, 64);
+            }
+            // iOS wants EC signatures in ASN1 encoded format, not raw. So does java prior to 9
+            byte[] der = Scratch.get().derSignature;
+            int derLength = encodeDerSignature(signature, signatureOffset, der);
+            return instance.verify(der, 0, derLength);
         }
-        if(verificationMethod == null) {
-            throw new CwtSecurityTokenValidationError.UnsupportedVerificationKeyType();
+
+        @NonNull
+        @Override
+        public String toString() {
+            return _name;
         }
+    }
 
-        DID.JsonWebKey jwk = verificationMethod.getPublicKeyJwk();
-        String xStr = jwk.getX();
-        String yStr = jwk.getY();
-        byte[] x;
-        byte[] y;
-        try {
-            x = Base64.decode(xStr == null ? "" : xStr);
-            y = Base64.decode(yStr == null ? "" : yStr);
-        } catch (IllegalArgumentException e) {
-            throw new CwtSecurityTokenValidationError.InvalidKeyParameters();
+    // the default provider in either form, shared so each thread keeps its Signature instances between calls
+    @NonNull
+    static SignatureVerifier defaultSignatureVerifier(boolean useP1363) {
+        SignatureVerifier verifier = useP1363 ? DEFAULT_P1363_VERIFIER : DEFAULT_DER_VERIFIER;
+        if(verifier == null) {
+            throw new IllegalStateException(P1363_ALGORITHM + " is not supported by this runtime");
         }
+        return verifier;
+    }
 
-        PublicKey publicKey;
+    @NonNull
+    private static SignatureVerifier newDefaultSignatureVerifier(boolean useP1363) {
         try {
-            publicKey = loadP256PublicKey(x, y);
-        } catch (InvalidKeySpecException e) {
-            throw new CwtSecurityTokenValidationError.InvalidKeyParameters();
+            return new JcaSignatureVerifier(null, useP1363);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("ES256 is not supported by this runtime", e); // Android supports SHA256withECDSA back to API 11
         }
+    }
 
-        // the signature is generated not directly over the input, but over this derived structure
-        // https://datatracker.ietf.org/doc/html/rfc8152#section-4.4
-        // Note this process assumes a COSE_Sign1 structure, which NZ Covid passes should be.
-        Cbor.Writer cborWriter = new Cbor.Writer();
-        cborWriter.write(Cbor.value(Arrays.asList(
-                // context
-                Cbor.value("Signature1"),
+    @NonNull
+    public static SignatureVerifier getSignatureVerifier() {
+        return _signatureVerifier;
+    }
 
-                // body_protected
-                Cbor.value(token.getHeader().getData()),
+    // Changes the implementation every validator uses from now on. Safe to call while verifying
+    public static void setSignatureVerifier(@NonNull SignatureVerifier verifier) {
+        _signatureVerifier = verifier;
+    }
 
-                // external_aad
-                Cbor.value(new byte[0]),
+    // Per-thread buffers and Signature instances, reused across verify calls so that in steady state the only
+    // garbage from checking a signature is whatever the crypto provider makes internally.
+    // Nothing in here may escape a verify call
+    static final class Scratch {
+        // anything bigger than this is released after use rather than kept for the life of the thread
+        static final int MAX_RETAINED_BYTES = 4096;
+
+        // big enough for a typical NZCP pass (around 300 bytes) without growing
+        @NonNull
+        Cbor.Writer sigStructure = new Cbor.Writer(512);
+        // for tokens that don't outlive the call (see PassVerifier.verifyPass); a bigger token gets its own buffer
+        @NonNull
+        final byte[] tokenBuffer = new byte[512];
+        @NonNull
+        final byte[] derSignature = new byte[MAX_DER_SIGNATURE_LENGTH];
+        // for hashing pass payloads (see PassVerifier's result store lookups) without copying them out first
+        @NonNull
+        final byte[] digestChunk = new byte[256];
+        @Nullable
+        private MessageDigest _sha256;
+
+        @NonNull
+        private static final ThreadLocal<Scratch> THREAD_SCRATCH = new ThreadLocal<Scratch>() { // withInitial needs API 26
+            @Override
+            protected Scratch initialValue() {
+                return new Scratch();
+            }
+        };
 
-                // payload
-                Cbor.value(token.getPayload().getData())
-        )));
+        @NonNull
+        static Scratch get() {
+            return THREAD_SCRATCH.get();
+        }
 
-        if (!verifyECDSASignature(token.getSignature(), cborWriter.getBuffer(), publicKey)) {
-            throw new CwtSecurityTokenValidationError.InvalidSignature();
+        @NonNull
+        MessageDigest sha256() {
+            if(_sha256 == null) {
+                try {
+                    _sha256 = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException("SHA-256 is not supported by this runtime", e); // every Java and Android runtime has it
+                }
+            }
+            return _sha256;
+        }
+
+        // a hostile oversized pass shouldn't leave a big buffer attached to the thread
+        void trim() {
+            if(sigStructure.getRawBuffer().length > MAX_RETAINED_BYTES) {
+                sigStructure = new Cbor.Writer(512);
+            }
         }
     }
 
-    private static boolean verifyECDSASignature(@NonNull byte[] signatureBuffer, @NonNull byte[] dataBuffer, @NonNull PublicKey publicKey) {
-        // iOS wants EC signatures in ASN1 encoded format, not raw.
-        byte[] asnSignatureBuffer = convertRawSignatureIntoAsn1(signatureBuffer);
+    @NonNull
+    private static final Cbor.Value SIGNATURE1_CONTEXT = Cbor.value("Signature1");
+
+    // Java 9+ (and BouncyCastle) can verify raw r||s signatures, which is the format COSE uses. Android can't,
+    // so there we still have to re-encode the signature as ASN.1 DER for the provider to parse again.
+    @NonNull
+    private static final String P1363_ALGORITHM = "SHA256withECDSAinP1363Format";
+    @NonNull
+    private static final String DER_ALGORITHM = "SHA256withECDSA";
+    static final boolean P1363_SUPPORTED = isAlgorithmSupported(P1363_ALGORITHM);
+    @Nullable
+    private static final SignatureVerifier DEFAULT_P1363_VERIFIER = P1363_SUPPORTED ? newDefaultSignatureVerifier(true) : null;
+    @NonNull
+    private static final SignatureVerifier DEFAULT_DER_VERIFIER = newDefaultSignatureVerifier(false);
 
+    // used by every validator. Starts as the default provider, in P1363 form where the runtime supports it.
+    // Declared after the default verifiers so that they're initialised first
+    @NonNull
+    private static volatile SignatureVerifier _signatureVerifier = defaultSignatureVerifier(P1363_SUPPORTED);
+
+    private static boolean isAlgorithmSupported(@NonNull String algorithm) {
         try {
-            Signature signature = Signature.getInstance("SHA256withECDSA");
-            signature.initVerify(publicKey);
-            signature.update(dataBuffer);
-            return signature.verify(asnSignatureBuffer);
-        } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) { // in practice this should never happen, Android supports SHA256withECDSA back to API 11 which is Android 3.0
+            Signature.getInstance(algorithm);
+            return true;
+        } catch (NoSuchAlgorithmException e) {
             return false;
         }
     }
 
-    private static String toHexString(byte[] bytes) {
-        StringBuilder sb = new StringBuilder(bytes.length * 2);
-        for(byte b: bytes)
-            sb.append(String.format("%02x", b));
-        return sb.toString();
+    static boolean verifyECDSASignature(@NonNull byte[] signatureBuffer, @NonNull byte[] dataBuffer, @NonNull PublicKey publicKey, boolean useP1363) {
+        return verifyECDSASignature(signatureBuffer, 0, signatureBuffer.length, dataBuffer, 0, dataBuffer.length, publicKey, defaultSignatureVerifier(useP1363));
     }
 
-    @NonNull
-    private static byte[] convertRawSignatureIntoAsn1(@NonNull byte[] data) {
-        if(data.length != 64) {
-            return new byte[0];
-        }
-        byte[] sigR = encodeIntegerToAsn1(data, 0, 32);
-        byte[] sigS = encodeIntegerToAsn1(data, 32, 32);
-
-        byte[] result = new byte[2 + sigR.length + sigS.length];
-        result[0] = 0x30;
-        result[1] = (byte)(sigR.length + sigS.length);
-        System.arraycopy(sigR, 0, result, 2, sigR.length);
-        System.arraycopy(sigS, 0, result, 2+sigR.length, sigS.length);
-        return result;
+    static boolean verifyECDSASignature(
+            @NonNull byte[] signatureBuffer, int signatureOffset, int signatureLength,
+            @NonNull byte[] dataBuffer, int dataOffset, int dataLength,
+            @NonNull PublicKey publicKey, @NonNull SignatureVerifier verifier) {
+        // an out of range r or s can never verify, so don't bother the crypto provider with it
+        if(signatureLength != 64 || !isValidP256Signature(signatureBuffer, signatureOffset)) {
+            return false;
+        }
+
+        try {
+            return verifier.verify(signatureBuffer, signatureOffset, dataBuffer, dataOffset, dataLength, publicKey);
+        } catch (GeneralSecurityException e) { // in practice this should never happen with a working provider
+            return false;
+        }
     }
 
+    // the order of the P-256 curve; r and s must both be in the range [1, n-1]
     @NonNull
-    private static byte[] encodeIntegerToAsn1(@NonNull byte[] data, int offset, int count) {
-        if(data.length < offset + count) {
-            return new byte[0];
-        }
-        byte firstByte = data[offset];
-        if (firstByte == 0x00) { // has an artificial leading zero, trim it
-            return encodeIntegerToAsn1(data, offset+1, count-1);
-        }
-        byte[] result;
-        if((firstByte & 0x80) == 0x80) { // high bit is set which asn1 interprets as negative, so we need a leading 0 pad
-            result = new byte[3 + count];
-            result[0] = 0x02;
-            result[1] = (byte)(count + 1);
-            result[2] = 0x00;
-            System.arraycopy(data, offset, result, 3, count);
-        } else { // ordinary data that requires no fiddling
-            result = new byte[2 + count];
-            result[0] = 0x02;
-            result[1] = (byte)count;
-            System.arraycopy(data, offset, result, 2, count);
-        }
-        return result;
+    private static final byte[] P256_ORDER = {
+            (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, 0x00, 0x00, 0x00, 0x00,
+            (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff,
+            (byte)0xbc, (byte)0xe6, (byte)0xfa, (byte)0xad, (byte)0xa7, 0x17, (byte)0x9e, (byte)0x84,
+            (byte)0xf3, (byte)0xb9, (byte)0xca, (byte)0xc2, (byte)0xfc, 0x63, 0x25, 0x51
+    };
+
+    static boolean isValidP256Signature(@NonNull byte[] signature) {
+        return signature.length == 64 && isValidP256Signature(signature, 0);
+    }
+
+    // checks the 64 byte r||s signature at offset
+    private static boolean isValidP256Signature(@NonNull byte[] signature, int offset) {
+        return isInP256Range(signature, offset) && isInP256Range(signature, offset + 32);
+    }
+
+    // 1 <= value < n, where value is the 32 byte unsigned big-endian integer at offset
+    private static boolean isInP256Range(@NonNull byte[] data, int offset) {
+        boolean nonZero = false;
+        int compare = 0; // sign of (value - n), decided by the first byte that differs
+        for(int i = 0; i < 32; i++) {
+            int v = data[offset + i] & 0xff;
+            nonZero |= v != 0;
+            if(compare == 0) {
+                compare = v - (P256_ORDER[i] & 0xff);
+            }
+        }
+        return nonZero && compare < 0;
+    }
+
+    // SEQUENCE { INTEGER r, INTEGER s }, each integer being at most 32 bytes plus a leading zero pad
+    static final int MAX_DER_SIGNATURE_LENGTH = 2 + 2 * (2 + 33);
+
+    // Converts a raw 64 byte r||s signature to ASN.1 DER in a single pass into out, which must be at least
+    // MAX_DER_SIGNATURE_LENGTH long, so callers can reuse a buffer. Returns the number of bytes written
+    static int encodeDerSignature(@NonNull byte[] raw, @NonNull byte[] out) {
+        return encodeDerSignature(raw, 0, out);
+    }
+
+    static int encodeDerSignature(@NonNull byte[] raw, int offset, @NonNull byte[] out) {
+        int rLength = derIntegerLength(raw, offset);
+        int sLength = derIntegerLength(raw, offset + 32);
+        out[0] = 0x30;
+        out[1] = (byte)(2 + rLength + 2 + sLength); // never more than 70, so always the short length form
+        int pos = writeDerInteger(raw, offset, rLength, out, 2);
+        return writeDerInteger(raw, offset + 32, sLength, out, pos);
+    }
+
+    // number of content bytes needed to DER encode the 32 byte unsigned integer at offset
+    private static int derIntegerLength(@NonNull byte[] raw, int offset) {
+        int start = firstSignificantByte(raw, offset);
+        int length = offset + 32 - start;
+        return (raw[start] & 0x80) != 0 ? length + 1 : length; // high bit set means negative to asn1, so it needs a 0 pad
+    }
+
+    private static int writeDerInteger(@NonNull byte[] raw, int offset, int length, @NonNull byte[] out, int pos) {
+        int start = firstSignificantByte(raw, offset);
+        int significant = offset + 32 - start;
+        out[pos++] = 0x02;
+        out[pos++] = (byte)length;
+        if(length > significant) {
+            out[pos++] = 0x00;
+        }
+        System.arraycopy(raw, start, out, pos, significant);
+        return pos + significant;
+    }
+
+    // strip leading zeros, but always keep one byte
+    private static int firstSignificantByte(@NonNull byte[] raw, int offset) {
+        int start = offset;
+        while(start < offset + 31 && raw[start] == 0) {
+            start++;
+        }
+        return start;
+    }
+
+    private static String toHexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b: bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
     }
 
     private static final byte[] P256_HEAD = Base64.decode("MFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAE");
@@ -235,6 +469,12 @@ public class CwtSecurityTokenValidator {
         System.arraycopy(P256_HEAD, 0, encodedKey, 0, P256_HEAD.length);
         System.arraycopy(x, 0, encodedKey, P256_HEAD.length, x.length);
         System.arraycopy(y, 0, encodedKey, P256_HEAD.length + x.length, y.length);
+        return loadX509PublicKey(encodedKey);
+    }
+
+    // an EC key already in X.509 SubjectPublicKeyInfo form, such as TrustAnchors.X509
+    @NonNull
+    static ECPublicKey loadX509PublicKey(@NonNull byte[] encodedKey) throws InvalidKeySpecException {
         KeyFactory eckf;
         try {
             eckf = KeyFactory.getInstance("EC");
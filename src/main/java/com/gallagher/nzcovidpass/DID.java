@@ -9,9 +9,19 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 // container-as-namespace
 public class DID {
@@ -178,85 +188,393 @@ public class DID {
         public List<String> getAssertionMethods() {
             return _assertionMethods;
         }
+
+        // Reads a document straight from JSON text in one pass, without building a JSONObject for it first, for
+        // issuers that publish many (rotated or otherwise unused) keys. Only the verification methods a TrustStore
+        // can use are kept: EC P-256 keys that are referenced from assertionMethod. Everything else is skipped
+        // without being decoded, so memory stays flat however large the document is.
+        // Throws JSONException for anything the JSONObject constructor rejects (other than duplicate keys, where the
+        // last one wins), and for a verification method missing its id, controller, type or publicKeyJwk even if
+        // it would be dropped. publicKeyJwk members that aren't strings are treated as missing
+        @NonNull
+        public static Document parse(@NonNull java.io.Reader reader) throws IOException, JSONException {
+            return parse(new JsonStream(reader));
+        }
+
+        // as parse(Reader), from UTF-8 between the buffer's position and limit. Consumes the buffer
+        @NonNull
+        public static Document parse(@NonNull ByteBuffer utf8) throws JSONException {
+            try {
+                return parse(new JsonStream(utf8));
+            } catch (IOException e) { // only a Reader can throw these
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @NonNull
+        private static Document parse(@NonNull JsonStream json) throws IOException, JSONException {
+            String id = null;
+            List<String> contexts = null;
+            List<VerificationMethod> candidates = null;
+            List<String> assertionMethods = null;
+            // the same ids, for looking methods up in without a scan of the list for each one
+            HashSet<String> assertionIds = null;
+
+            json.expect('{');
+            if(!json.tryConsume('}')) {
+                do {
+                    String name = json.readString();
+                    json.expect(':');
+                    switch(name) {
+                        case "id":
+                            id = json.readString();
+                            break;
+                        case "@context":
+                            contexts = json.peek() == '[' ? json.readStringArray() : Collections.singletonList(json.readString());
+                            break;
+                        case "verificationMethod":
+                            candidates = readVerificationMethods(json, assertionIds);
+                            break;
+                        case "assertionMethod":
+                            assertionMethods = json.readStringArray();
+                            assertionIds = new HashSet<>(assertionMethods);
+                            break;
+                        default:
+                            json.skipValue();
+                            break;
+                    }
+                } while(json.tryConsume(','));
+                json.expect('}');
+            }
+            json.expectEnd();
+
+            if(id == null || contexts == null || candidates == null || assertionMethods == null || assertionIds == null) {
+                throw new JSONException("DID document is missing id, @context, verificationMethod or assertionMethod");
+            }
+            // assertionMethod may have come after verificationMethod, in which case we kept every P-256 key
+            ArrayList<VerificationMethod> verificationMethods = new ArrayList<>();
+            for(VerificationMethod method : candidates) {
+                if(assertionIds.contains(method.getId())) {
+                    verificationMethods.add(method);
+                }
+            }
+            return new Document(id, contexts, verificationMethods, assertionMethods);
+        }
+
+        // the EC P-256 keys in a verificationMethod array, and only those in assertionIds if we already have it
+        @NonNull
+        private static List<VerificationMethod> readVerificationMethods(@NonNull JsonStream json, @Nullable Set<String> assertionIds) throws IOException, JSONException {
+            ArrayList<VerificationMethod> methods = new ArrayList<>();
+            json.expect('[');
+            if(json.tryConsume(']')) {
+                return methods;
+            }
+            do {
+                String id = null, controller = null, type = null;
+                String kty = null, crv = null, x = null, y = null;
+                boolean hasJwk = false;
+                json.expect('{');
+                if(!json.tryConsume('}')) {
+                    do {
+                        String name = json.readString();
+                        json.expect(':');
+                        switch(name) {
+                            case "id":
+                                id = json.readString();
+                                break;
+                            case "controller":
+                                controller = json.readString();
+                                break;
+                            case "type":
+                                type = json.readString();
+                                break;
+                            case "publicKeyJwk":
+                                hasJwk = true;
+                                json.expect('{');
+                                if(json.tryConsume('}')) {
+                                    break;
+                                }
+                                do {
+                                    String member = json.readString();
+                                    json.expect(':');
+                                    switch(member) {
+                                        case "kty": kty = json.readStringOrSkip(); break;
+                                        case "crv": crv = json.readStringOrSkip(); break;
+                                        case "x": x = json.readStringOrSkip(); break;
+                                        case "y": y = json.readStringOrSkip(); break;
+                                        default: json.skipValue(); break;
+                                    }
+                                } while(json.tryConsume(','));
+                                json.expect('}');
+                                break;
+                            default:
+                                json.skipValue();
+                                break;
+                        }
+                    } while(json.tryConsume(','));
+                    json.expect('}');
+                }
+                if(id == null || controller == null || type == null || !hasJwk) {
+                    throw new JSONException("verificationMethod is missing id, controller, type or publicKeyJwk");
+                }
+                if("EC".equals(kty) && "P-256".equals(crv) && (assertionIds == null || assertionIds.contains(id))) {
+                    methods.add(new VerificationMethod(id, controller, type, new JsonWebKey(kty, crv, x, y)));
+                }
+            } while(json.tryConsume(','));
+            json.expect(']');
+            return methods;
+        }
+    }
+
+    // A pull parser over JSON text, with just what Document.parse needs. It reads through a fixed-size buffer, so
+    // memory doesn't grow with the input, and skips unwanted values without building them (checking only that
+    // their brackets and strings are well formed)
+    static final class JsonStream {
+        @Nullable
+        private final java.io.Reader _reader; // null when decoding _bytes
+        @Nullable
+        private final ByteBuffer _bytes;
+        @Nullable
+        private final CharsetDecoder _decoder;
+        @NonNull
+        private final CharBuffer _chars = CharBuffer.allocate(4096);
+        private boolean _endOfInput;
+        private int _offset; // characters consumed so far, for error messages
+        @NonNull
+        private final StringBuilder _string = new StringBuilder();
+        @NonNull
+        private final StringBuilder _open = new StringBuilder(); // the containers skipValue is inside, '{' or '['
+
+        JsonStream(@NonNull java.io.Reader reader) {
+            _reader = reader;
+            _bytes = null;
+            _decoder = null;
+            _chars.limit(0);
+        }
+
+        JsonStream(@NonNull ByteBuffer utf8) {
+            _reader = null;
+            _bytes = utf8;
+            _decoder = StandardCharsets.UTF_8.newDecoder(); // reports malformed input rather than replacing it
+            _chars.limit(0);
+        }
+
+        // the next character without consuming it, or -1 at the end of the input. Doesn't skip whitespace
+        private int peekChar() throws IOException, JSONException {
+            if(!_chars.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return _chars.get(_chars.position());
+        }
+
+        private int readChar() throws IOException, JSONException {
+            if(!_chars.hasRemaining() && !fill()) {
+                return -1;
+            }
+            _offset++;
+            return _chars.get();
+        }
+
+        private boolean fill() throws IOException, JSONException {
+            if(_endOfInput) {
+                return false;
+            }
+            _chars.clear();
+            if(_reader != null) {
+                int read = _reader.read(_chars);
+                if(read < 0) {
+                    _endOfInput = true;
+                }
+            } else {
+                CoderResult result = _decoder.decode(_bytes, _chars, true);
+                if(result.isError()) {
+                    throw syntaxError("malformed UTF-8");
+                }
+                if(result.isUnderflow()) { // the bytes have all been decoded
+                    _decoder.flush(_chars);
+                    _endOfInput = true;
+                }
+            }
+            _chars.flip();
+            return _chars.hasRemaining() || fill();
+        }
+
+        // the next character after any whitespace, without consuming it, or -1 at the end of the input
+        int peek() throws IOException, JSONException {
+            while(true) {
+                int c = peekChar();
+                if(c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    return c;
+                }
+                readChar();
+            }
+        }
+
+        boolean tryConsume(char expected) throws IOException, JSONException {
+            if(peek() != expected) {
+                return false;
+            }
+            readChar();
+            return true;
+        }
+
+        void expect(char expected) throws IOException, JSONException {
+            if(!tryConsume(expected)) {
+                throw syntaxError("expected '" + expected + "'");
+            }
+        }
+
+        void expectEnd() throws IOException, JSONException {
+            if(peek() != -1) {
+                throw syntaxError("unexpected content after the document");
+            }
+        }
+
+        @NonNull
+        String readString() throws IOException, JSONException {
+            _string.setLength(0);
+            readString(_string);
+            return _string.toString();
+        }
+
+        // a string, or null (having skipped it) if the value is something else
+        @Nullable
+        String readStringOrSkip() throws IOException, JSONException {
+            if(peek() != '"') {
+                skipValue();
+                return null;
+            }
+            return readString();
+        }
+
+        @NonNull
+        List<String> readStringArray() throws IOException, JSONException {
+            ArrayList<String> result = new ArrayList<>();
+            expect('[');
+            if(!tryConsume(']')) {
+                do {
+                    result.add(readString());
+                } while(tryConsume(','));
+                expect(']');
+            }
+            return result;
+        }
+
+        // reads a string into into, or skips it if into is null
+        private void readString(@Nullable StringBuilder into) throws IOException, JSONException {
+            expect('"');
+            while(true) {
+                int c = readChar();
+                if(c == '"') {
+                    return;
+                }
+                if(c < 0x20) { // including -1, the end of the input
+                    throw syntaxError("unterminated string");
+                }
+                if(c == '\\') {
+                    c = readChar();
+                    switch(c) {
+                        case '"': case '\\': case '/': break;
+                        case 'b': c = '\b'; break;
+                        case 'f': c = '\f'; break;
+                        case 'n': c = '\n'; break;
+                        case 'r': c = '\r'; break;
+                        case 't': c = '\t'; break;
+                        case 'u': {
+                            int value = 0;
+                            for(int i = 0; i < 4; i++) {
+                                int digit = Character.digit(readChar(), 16);
+                                if(digit < 0) {
+                                    throw syntaxError("bad \\u escape");
+                                }
+                                value = value << 4 | digit;
+                            }
+                            c = value;
+                            break;
+                        }
+                        default:
+                            throw syntaxError("bad escape");
+                    }
+                }
+                if(into != null) {
+                    into.append((char)c);
+                }
+            }
+        }
+
+        // Moves past the next value of any kind, however deeply nested
+        void skipValue() throws IOException, JSONException {
+            _open.setLength(0);
+            while(true) {
+                // at the start of a value
+                int c = peek();
+                if(c == '{' || c == '[') {
+                    readChar();
+                    if(!tryConsume(c == '{' ? '}' : ']')) {
+                        _open.append((char)c);
+                        if(c == '{') {
+                            readString(null);
+                            expect(':');
+                        }
+                        continue; // on to its first member or element
+                    }
+                } else if(c == '"') {
+                    readString(null);
+                } else { // a number, true, false or null
+                    int length = 0;
+                    while((c = peekChar()) >= 0 && (c == '-' || c == '+' || c == '.' || Character.isLetterOrDigit(c))) {
+                        readChar();
+                        length++;
+                    }
+                    if(length == 0) {
+                        throw syntaxError("expected a value");
+                    }
+                }
+
+                // that value is complete; close whatever containers it completes, then go on to the next value
+                while(true) {
+                    int depth = _open.length();
+                    if(depth == 0) {
+                        return;
+                    }
+                    char container = _open.charAt(depth - 1);
+                    if(tryConsume(',')) {
+                        if(container == '{') {
+                            readString(null);
+                            expect(':');
+                        }
+                        break;
+                    }
+                    expect(container == '{' ? '}' : ']');
+                    _open.setLength(depth - 1);
+                }
+            }
+        }
+
+        @NonNull
+        private JSONException syntaxError(@NonNull String message) {
+            return new JSONException(message + " at character " + _offset);
+        }
     }
 }
 
 // normally we would resolve DID web keys by going to https://<base>/.well-known/did.json
 // however we don't need to do that until the ministry of health rotates their keys, so we
-// can build the defaults in for now
+// can build the defaults in for now. The documents are in src/main/trust-anchors: the NZCP test key,
+// and z12Kf7UQ, a real key used to validate real covid passes. The build turns them into TrustAnchors,
+// so there's no JSON to parse here
 class WellKnownIssuers {
-    // test keys
+    // The keys, ready for a TrustStore. Callers should go through TrustStore.getDefault() which only does this once
     @NonNull
-    private static final String nzcpCovid19HealthNzKey1_raw =
-"{" +
-"  \"@context\": \"https://w3.org/ns/did/v1\"," +
-"  \"id\": \"did:web:nzcp.covid19.health.nz\"," +
-"  \"verificationMethod\": [" +
-"    {" +
-"      \"id\": \"did:web:nzcp.covid19.health.nz#key-1\"," +
-"      \"controller\": \"did:web:nzcp.covid19.health.nz\"," +
-"      \"type\": \"JsonWebKey2020\"," +
-"      \"publicKeyJwk\": {" +
-"        \"kty\": \"EC\"," +
-"        \"crv\": \"P-256\"," +
-"        \"x\": \"zRR-XGsCp12Vvbgui4DD6O6cqmhfPuXMhi1OxPl8760\"," +
-"        \"y\": \"Iv5SU6FuW-TRYh5_GOrJlcV_gpF_GpFQhCOD8LSk3T0\"" +
-"      }" +
-"    }" +
-"  ]," +
-"  \"assertionMethod\": [" +
-"    \"did:web:nzcp.covid19.health.nz#key-1\"" +
-"  ]" +
-"}";
-
-    // This is a real key used to validate real covid passes
-    @NonNull
-    private static final String nzcpIdentityHealthNzKey_z12Kf_raw =
-"{" +
-"  \"@context\": [" +
-"    \"https://w3.org/ns/did/v1\"," +
-"    \"https://w3id.org/security/suites/jws-2020/v1\"" +
-"  ]," +
-"  \"id\": \"did:web:nzcp.identity.health.nz\"," +
-"  \"verificationMethod\": [" +
-"    {" +
-"      \"id\": \"did:web:nzcp.identity.health.nz#z12Kf7UQ\"," +
-"      \"controller\": \"did:web:nzcp.identity.health.nz\"," +
-"      \"type\": \"JsonWebKey2020\"," +
-"      \"publicKeyJwk\": {" +
-"        \"kty\": \"EC\"," +
-"        \"crv\": \"P-256\"," +
-"        \"x\": \"DQCKJusqMsT0u7CjpmhjVGkHln3A3fS-ayeH4Nu52tc\"," +
-"        \"y\": \"lxgWzsLtVI8fqZmTPPo9nZ-kzGs7w7XO8-rUU68OxmI\"" +
-"      }" +
-"    }" +
-"  ]," +
-"  \"assertionMethod\": [" +
-"    \"did:web:nzcp.identity.health.nz#z12Kf7UQ\"" +
-"  ]" +
-"}";
-
-    @Nullable private static List<DID.Document> _issuers;
-
-    @Nullable
-    public static DID.Document find(@NonNull String issuer, @NonNull String keyId) throws JSONException {
-        // load issuers if need be.
+    static TrustStore.Snapshot getSnapshot() throws InvalidKeySpecException {
         // TODO this is where we would go off to the internet and fetch the issuer, should we need to
-        if(_issuers == null) {
-            _issuers = new ArrayList<>();
-            _issuers.add(new DID.Document(new JSONObject(nzcpCovid19HealthNzKey1_raw)));
-            _issuers.add(new DID.Document(new JSONObject(nzcpIdentityHealthNzKey_z12Kf_raw)));
+        HashMap<String, TrustStore.TrustedKey> keys = new HashMap<>();
+        for(int i = 0; i < TrustAnchors.IDS.length; i++) {
+            String id = TrustAnchors.IDS[i];
+            keys.put(id, new TrustStore.TrustedKey(id, CwtSecurityTokenValidator.loadX509PublicKey(TrustAnchors.X509[i]), true));
         }
-
-        String assertionMethod = issuer + "#" + keyId;
-        for(DID.Document did : _issuers) {
-            if(did.getId().equals(issuer) && did.getAssertionMethods().contains(assertionMethod)) {
-                return did;
-            }
-        }
-        return null;
+        return new TrustStore.Snapshot(Collections.unmodifiableMap(keys));
     }
-
 }
 
 class Util {
@@ -0,0 +1,135 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// A VerificationResultStore in this process's memory. Useful on its own when the same passes are scanned
+// repeatedly (re-entry, several gates sharing a verifier), and as the backing store of a
+// VerificationResultStoreServer.
+//
+// Bounded in both size and age: once it holds maxEntries results, expired ones are purged, and if it's still
+// full new results aren't stored until some expire. Results are kept for at most maxTtlMillis even if the pass
+// is valid for longer, which limits how long a result outlives a key being removed from another node's trust store
+public class InMemoryVerificationResultStore implements VerificationResultStore {
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+    public static final long DEFAULT_MAX_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final int _maxEntries;
+    private final long _maxTtlMillis;
+
+    @NonNull
+    private final ConcurrentHashMap<Key, Entry> _entries = new ConcurrentHashMap<>();
+
+    public InMemoryVerificationResultStore() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_TTL_MILLIS);
+    }
+
+    public InMemoryVerificationResultStore(int maxEntries, long maxTtlMillis) {
+        if(maxEntries < 1 || maxTtlMillis < 1) {
+            throw new IllegalArgumentException("maxEntries " + maxEntries + ", maxTtlMillis " + maxTtlMillis);
+        }
+        _maxEntries = maxEntries;
+        _maxTtlMillis = maxTtlMillis;
+    }
+
+    @Nullable
+    @Override
+    public VerifiedPass get(@NonNull byte[] digest) {
+        return get(digest, System.currentTimeMillis());
+    }
+
+    @Nullable
+    VerifiedPass get(@NonNull byte[] digest, long nowMillis) {
+        Key key = Key.of(digest);
+        Entry entry = key != null ? _entries.get(key) : null;
+        if(entry == null) {
+            return null;
+        }
+        if(nowMillis >= entry.expiresAt) {
+            _entries.remove(key, entry);
+            return null;
+        }
+        return entry.pass;
+    }
+
+    @Override
+    public void put(@NonNull byte[] digest, @NonNull VerifiedPass pass, long expiresAtMillis) {
+        put(digest, pass, expiresAtMillis, System.currentTimeMillis());
+    }
+
+    void put(@NonNull byte[] digest, @NonNull VerifiedPass pass, long expiresAtMillis, long nowMillis) {
+        Key key = Key.of(digest);
+        long expiresAt = Math.min(expiresAtMillis, nowMillis + _maxTtlMillis);
+        if(key == null || expiresAt <= nowMillis) {
+            return;
+        }
+        if(_entries.size() >= _maxEntries) {
+            purgeExpired(nowMillis);
+            if(_entries.size() >= _maxEntries) {
+                return;
+            }
+        }
+        _entries.put(key, new Entry(pass, expiresAt));
+    }
+
+    public int size() {
+        return _entries.size();
+    }
+
+    private void purgeExpired(long nowMillis) {
+        for(Iterator<Entry> it = _entries.values().iterator(); it.hasNext(); ) {
+            if(nowMillis >= it.next().expiresAt) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+        @NonNull
+        final VerifiedPass pass;
+        final long expiresAt;
+
+        Entry(@NonNull VerifiedPass pass, long expiresAt) {
+            this.pass = pass;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // a SHA-256 digest as four longs, so the map doesn't hold on to (or compare) the caller's arrays
+    private static final class Key {
+        private final long _a, _b, _c, _d;
+
+        private Key(long a, long b, long c, long d) {
+            _a = a;
+            _b = b;
+            _c = c;
+            _d = d;
+        }
+
+        @Nullable
+        static Key of(@NonNull byte[] digest) {
+            if(digest.length != DIGEST_LENGTH) {
+                return null;
+            }
+            return new Key(Intrinsics.readInt64(digest, 0), Intrinsics.readInt64(digest, 8), Intrinsics.readInt64(digest, 16), Intrinsics.readInt64(digest, 24));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return _a == key._a && _b == key._b && _c == key._c && _d == key._d;
+        }
+
+        @Override
+        public int hashCode() {
+            // already uniformly distributed
+            return (int)_a;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+
+// Hooks for seeing what the library decided and why, e.g. to forward to your own logging or metrics.
+// Override the methods you're interested in; they all do nothing by default, so new ones can be added
+// without breaking existing subclasses. Called on whichever thread did the work
+public abstract class Instrumentation {
+    @NonNull
+    public static final Instrumentation NONE = new Instrumentation() { };
+
+    // SignatureVerifierCalibration measured one candidate. agrees is false if it gave the wrong answer for the
+    // known-good pass or a tampered copy of it (or threw), in which case microsPerVerify is NaN and it is never selected
+    public void signatureVerifierBenchmarked(@NonNull String name, double microsPerVerify, boolean agrees) { }
+
+    // SignatureVerifierCalibration installed this verifier for all validators to use
+    public void signatureVerifierSelected(@NonNull String name, double microsPerVerify) { }
+}
@@ -0,0 +1,43 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+// The few hot spots where newer JDKs have something faster built in.
+//
+// This is the Java 8 / Android version, and it's what Android and Java 8 always get. The jar is multi-release:
+// src/main/java11 holds another copy of this class (and only this class) which is packaged under
+// META-INF/versions/11, so Java 11+ servers pick it up automatically. The two must keep the same members
+// and give the same answers; Base64Tests and CborTests run against both (see testBaseline in build.gradle).
+final class Intrinsics {
+    private Intrinsics() { }
+
+    // true if this is the META-INF/versions overlay rather than the baseline (a method, so it isn't inlined into callers)
+    static boolean isOverlay() {
+        return false;
+    }
+
+    // Decodes with the platform's base64 where there is one. Returns null if there isn't, or if it
+    // rejects the input, in which case the caller uses our own decoder (which accepts a few things the
+    // JDK doesn't, such as mixed standard/url alphabets)
+    @Nullable
+    static byte[] decodeBase64(@NonNull String str) {
+        return null;
+    }
+
+    // big-endian reads; the caller has checked the bounds
+    static int readUint16(@NonNull byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    static long readUint32(@NonNull byte[] data, int offset) {
+        return ((long)(data[offset] & 0xff) << 24)
+                | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    static long readInt64(@NonNull byte[] data, int offset) {
+        return (readUint32(data, offset) << 32) | readUint32(data, offset + 4);
+    }
+}
@@ -3,10 +3,20 @@ package com.gallagher.nzcovidpass;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 public class PassVerifier {
     public static class Options {
@@ -17,6 +27,8 @@ public class PassVerifier {
         private final List<String> _validIssuers;
         @NonNull
         private final List<String> _validAlgorithms;
+        @NonNull
+        private final TrustStore _trustStore;
         // todo securityKeyCacheTime?
 
         public Options() {
@@ -29,10 +41,15 @@ public class PassVerifier {
         }
 
         public Options(@NonNull String prefix, int version, @NonNull List<String> validIssuers, @NonNull List<String> validAlgorithms) {
+            this(prefix, version, validIssuers, validAlgorithms, TrustStore.getDefault());
+        }
+
+        public Options(@NonNull String prefix, int version, @NonNull List<String> validIssuers, @NonNull List<String> validAlgorithms, @NonNull TrustStore trustStore) {
             _prefix = prefix;
             _version = version;
             _validIssuers = validIssuers;
             _validAlgorithms = validAlgorithms;
+            _trustStore = trustStore;
         }
 
         @NonNull
@@ -50,6 +67,28 @@ public class PassVerifier {
         public List<String> getValidAlgorithms() {
             return _validAlgorithms;
         }
+        @NonNull
+        public TrustStore getTrustStore() {
+            return _trustStore;
+        }
+
+        // trust stores are mutable, so they compare by identity; everything else by value
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Options options = (Options) o;
+            return _version == options._version &&
+                    _prefix.equals(options._prefix) &&
+                    _validIssuers.equals(options._validIssuers) &&
+                    _validAlgorithms.equals(options._validAlgorithms) &&
+                    _trustStore == options._trustStore;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(_prefix, _version, _validIssuers, _validAlgorithms, System.identityHashCode(_trustStore));
+        }
     }
 
     @NonNull
@@ -60,15 +99,63 @@ public class PassVerifier {
     @NonNull
     public static final List<String> DEFAULT_VALID_ALGORITHMS = Collections.singletonList(SecurityAlgorithms.ECDSA_SHA_256);
 
+    public static final int DEFAULT_WARM_UP_ITERATIONS = 200;
+
+    // the example pass from https://nzcp.covid19.health.nz/#valid-worked-example, signed with the NZCP test key.
+    // Used for warm-up and signature verifier calibration; it is only ever verified with the test issuer explicitly allowed, and a time inside its validity period
+    @NonNull
+    static final String WARM_UP_PASS = "NZCP:/1/2KCEVIQEIVVWK6JNGEASNICZAEP2KALYDZSGSZB2O5SWEOTOPJRXALTDN53GSZBRHEXGQZLBNR2GQLTOPICRUYMBTIFAIGTUKBAAUYTWMOSGQQDDN5XHIZLYOSBHQJTIOR2HA4Z2F4XXO53XFZ3TGLTPOJTS6MRQGE4C6Y3SMVSGK3TUNFQWY4ZPOYYXQKTIOR2HA4Z2F4XW46TDOAXGG33WNFSDCOJONBSWC3DUNAXG46RPMNXW45DFPB2HGL3WGFTXMZLSONUW63TFGEXDALRQMR2HS4DFQJ2FMZLSNFTGSYLCNRSUG4TFMRSW45DJMFWG6UDVMJWGSY2DN53GSZCQMFZXG4LDOJSWIZLOORUWC3CTOVRGUZLDOSRWSZ3JOZSW4TTBNVSWISTBMNVWUZTBNVUWY6KOMFWWKZ2TOBQXE4TPO5RWI33CNIYTSNRQFUYDILJRGYDVAYFE6VGU4MCDGK7DHLLYWHVPUS2YIDJOA6Y524TD3AZRM263WTY2BE4DPKIF27WKF3UDNNVSVWRDYIYVJ65IRJJJ6Z25M2DO4YZLBHWFQGVQR5ZLIWEQJOZTS3IQ7JTNCFDX";
+    static final long WARM_UP_PASS_REFERENCE_TIME = 1639345844000L; // 2021-12-12
+
     @NonNull
     final Options _options;
 
+    // cached so we can check the version in place without formatting it on every verify
+    @NonNull
+    private final String _versionString;
+
+    // stateless apart from the options, so one instance can be shared by every verify call
+    @NonNull
+    private final CwtSecurityTokenValidator _validator;
+
+    // where every decision is recorded, if anywhere
+    @Nullable
+    private final AuditSink _auditSink;
+
+    @Nullable
+    private final AdmissionControl _admissionControl;
+
+    // results of verifyPass shared with other verifiers, if any
+    @Nullable
+    private final VerificationResultStore _resultStore;
+
     public PassVerifier(@NonNull Options options) {
+        this(options, null);
+    }
+
+    // every verify and verifyPass call, valid or not, is recorded to auditSink on the calling thread
+    public PassVerifier(@NonNull Options options, @Nullable AuditSink auditSink) {
+        this(options, auditSink, null);
+    }
+
+    // signature checks are shed with CwtSecurityTokenValidationError.Overloaded when admissionControl says so.
+    // Share one AdmissionControl between verifiers that share a CPU
+    public PassVerifier(@NonNull Options options, @Nullable AuditSink auditSink, @Nullable AdmissionControl admissionControl) {
+        this(options, auditSink, admissionControl, null);
+    }
+
+    // verifyPass looks passes up in resultStore before verifying them, and stores what it verifies there
+    public PassVerifier(@NonNull Options options, @Nullable AuditSink auditSink, @Nullable AdmissionControl admissionControl, @Nullable VerificationResultStore resultStore) {
         _options = options;
+        _versionString = Integer.toString(options.getVersion());
+        _validator = new CwtSecurityTokenValidator(options, admissionControl);
+        _auditSink = auditSink;
+        _admissionControl = admissionControl;
+        _resultStore = resultStore;
     }
 
     public PassVerifier(@NonNull List<String> validIssuers) {
-        _options = new Options(validIssuers);
+        this(new Options(validIssuers));
     }
 
     // throws CwtSecurityTokenError on failure to parse, TokenValidationError on failure to validate, PassVerificationError on generic error
@@ -79,24 +166,323 @@ public class PassVerifier {
 
     @NonNull
     public CwtSecurityToken verify(@NonNull String passPayload, @Nullable Date referenceTime) throws PassVerificationError, CwtSecurityTokenError, CwtSecurityTokenValidationError {
-        String[] passComponents = passPayload.split("/");
-        validatePassComponents(passComponents);
+        return verify((CharSequence)passPayload, referenceTime);
+    }
+
+    @NonNull
+    public CwtSecurityToken verify(@NonNull CharSequence passPayload) throws PassVerificationError, CwtSecurityTokenError, CwtSecurityTokenValidationError {
+        return verify(passPayload, new Date());
+    }
+
+    // Scanners generally hand us the raw bytes of the QR code. NZCP payloads are always ASCII
+    // (QR alphanumeric mode) so we can read them in place rather than decoding into a String first
+    @NonNull
+    public CwtSecurityToken verify(@NonNull byte[] qrBytes, int off, int len) throws PassVerificationError, CwtSecurityTokenError, CwtSecurityTokenValidationError {
+        return verify(qrBytes, off, len, new Date());
+    }
+
+    @NonNull
+    public CwtSecurityToken verify(@NonNull byte[] qrBytes, int off, int len, @Nullable Date referenceTime) throws PassVerificationError, CwtSecurityTokenError, CwtSecurityTokenValidationError {
+        if(off < 0 || len < 0 || len > qrBytes.length - off) { // not off + len, which can overflow
+            throw new IndexOutOfBoundsException("off " + off + ", len " + len + ", length " + qrBytes.length);
+        }
+        return verify(new AsciiCharSequence(qrBytes, off, len), referenceTime);
+    }
+
+    @NonNull
+    public CwtSecurityToken verify(@NonNull CharSequence passPayload, @Nullable Date referenceTime) throws PassVerificationError, CwtSecurityTokenError, CwtSecurityTokenValidationError {
+        return verify(passPayload, referenceTime, null);
+    }
+
+    // callerId identifies the gate or device the scan came from, for the per-caller limits in AdmissionControl.
+    // It is ignored if this verifier has no admission control
+    @NonNull
+    public CwtSecurityToken verify(@NonNull CharSequence passPayload, @Nullable Date referenceTime, @Nullable String callerId) throws PassVerificationError, CwtSecurityTokenError, CwtSecurityTokenValidationError {
+        CwtSecurityToken token = null;
+        try {
+            token = parse(passPayload);
+
+            // Validate token claims and signature
+            _validator.validate(token, referenceTime, callerId);
+        } catch (PassVerificationError | CwtSecurityTokenError | CwtSecurityTokenValidationError e) {
+            audit(e, token);
+            throw e;
+        }
+        audit(null, token);
+        return token;
+    }
+
+    // Same checks as verify, but returns just the facts about the pass in a small flat object, and lets the
+    // token (with its CBOR maps and buffers) be collected straight away. Use this if you hold on to results
+    @NonNull
+    public VerifiedPass verifyPass(@NonNull CharSequence passPayload) throws PassVerificationError, CwtSecurityTokenError, CwtSecurityTokenValidationError {
+        return verifyPass(passPayload, new Date());
+    }
+
+    @NonNull
+    public VerifiedPass verifyPass(@NonNull CharSequence passPayload, @Nullable Date referenceTime) throws PassVerificationError, CwtSecurityTokenError, CwtSecurityTokenValidationError {
+        return verifyPass(passPayload, referenceTime, null);
+    }
+
+    // The token never leaves this method, so unlike verify it can be parsed into a per-thread scratch buffer
+    @NonNull
+    public VerifiedPass verifyPass(@NonNull CharSequence passPayload, @Nullable Date referenceTime, @Nullable String callerId) throws PassVerificationError, CwtSecurityTokenError, CwtSecurityTokenValidationError {
+        CwtSecurityTokenValidator.Scratch scratch = CwtSecurityTokenValidator.Scratch.get();
+
+        // another node (or an earlier scan) may have done the work already
+        VerificationResultStore resultStore = _resultStore;
+        byte[] digest = null;
+        if(resultStore != null && (digest = digest(passPayload, scratch)) != null) {
+            VerifiedPass stored = resultStore.get(digest);
+            if(stored != null && isAcceptable(stored, passPayload, referenceTime)) {
+                audit(AuditSink.Outcome.VALID, stored.getCtiMostSignificantBits(), stored.getCtiLeastSignificantBits(), stored.getExpirySeconds(), stored.getIssuer());
+                return stored;
+            }
+        }
 
-        byte[] payload;
+        CwtSecurityToken token = null;
+        VerifiableCredential credential;
         try {
-            payload = Base32.decode(passComponents[2]);
+            token = parse(passPayload, scratch.tokenBuffer);
+            credential = _validator.validate(token, referenceTime, callerId);
+        } catch (PassVerificationError | CwtSecurityTokenError | CwtSecurityTokenValidationError e) {
+            audit(e, token);
+            throw e;
+        }
+        audit(null, token);
+        VerifiedPass pass = VerifiedPass.from(token, credential);
+        // the validator accepts a pass up to and including the millisecond its exp second starts
+        long exp = pass.getExpirySeconds();
+        if(digest != null && exp != VerifiedPass.NO_TIME) {
+            resultStore.put(digest, pass, exp * 1000 + 1);
+        }
+        return pass;
+    }
+
+    // The SHA-256 of the payload's ASCII, or null if it has any other character. A valid payload is always ASCII,
+    // and hashing just the low byte of each char would let a corrupted payload share a valid one's digest
+    @Nullable
+    private static byte[] digest(@NonNull CharSequence passPayload, @NonNull CwtSecurityTokenValidator.Scratch scratch) {
+        MessageDigest sha256 = scratch.sha256();
+        byte[] chunk = scratch.digestChunk;
+        int length = passPayload.length();
+        for(int start = 0; start < length; start += chunk.length) {
+            int n = Math.min(chunk.length, length - start);
+            for(int i = 0; i < n; i++) {
+                char c = passPayload.charAt(start + i);
+                if(c > 0x7f) {
+                    sha256.reset();
+                    return null;
+                }
+                chunk[i] = (byte)c;
+            }
+            sha256.update(chunk, 0, n);
+        }
+        return sha256.digest();
+    }
+
+    // Whether a result from the store can stand in for verifying the pass here and now. The store only vouches
+    // for the signature; the verifier that stored it may have had different options, and time has moved on
+    private boolean isAcceptable(@NonNull VerifiedPass stored, @NonNull CharSequence passPayload, @Nullable Date referenceTime) {
+        String prefix = _options.getPrefix();
+        int versionStart = prefix.length() + 1;
+        int versionEnd = versionStart + _versionString.length();
+        if(passPayload.length() <= versionEnd
+                || !regionEquals(passPayload, 0, prefix.length(), prefix) || passPayload.charAt(prefix.length()) != '/'
+                || !regionEquals(passPayload, versionStart, versionEnd, _versionString) || passPayload.charAt(versionEnd) != '/') {
+            return false;
+        }
+        if(!_options.getValidIssuers().contains(stored.getIssuer())
+                || _options.getTrustStore().getSnapshot().find(stored.getIssuer(), stored.getKeyId()) == null) {
+            return false;
+        }
+        // the same comparisons as the validator makes. Passes without an exp are left to it
+        long now = referenceTime == null ? System.currentTimeMillis() : referenceTime.getTime();
+        long nbf = stored.getNotBeforeSeconds();
+        long exp = stored.getExpirySeconds();
+        return exp != VerifiedPass.NO_TIME && (nbf == VerifiedPass.NO_TIME || nbf * 1000 <= now) && now <= exp * 1000;
+    }
+
+    // token is whatever we managed to parse before deciding, if anything
+    private void audit(@Nullable Exception error, @Nullable CwtSecurityToken token) {
+        if(_auditSink == null) {
+            return;
+        }
+        long ctiHigh = 0, ctiLow = 0;
+        long expiry = VerifiedPass.NO_TIME;
+        String issuer = null;
+        if(token != null) {
+            CwtSecurityToken.Payload payload = token.getPayload();
+            byte[] cti = payload.getCtiBytes();
+            if(cti != null) {
+                ctiHigh = Intrinsics.readInt64(cti, 0);
+                ctiLow = Intrinsics.readInt64(cti, 8);
+            }
+            expiry = payload.getExpirySeconds();
+            issuer = payload.getIssuer();
+        }
+        audit(error != null ? AuditSink.Outcome.of(error) : AuditSink.Outcome.VALID, ctiHigh, ctiLow, expiry, issuer);
+    }
+
+    private void audit(@NonNull AuditSink.Outcome outcome, long ctiHigh, long ctiLow, long expiry, @Nullable String issuer) {
+        AuditSink sink = _auditSink;
+        if(sink != null) {
+            sink.record(System.currentTimeMillis(), outcome, ctiHigh, ctiLow, expiry, issuer);
+        }
+    }
+
+    @NonNull
+    private CwtSecurityToken parse(@NonNull CharSequence passPayload) throws PassVerificationError, CwtSecurityTokenError {
+        return parse(passPayload, null);
+    }
+
+    @NonNull
+    private CwtSecurityToken parse(@NonNull CharSequence passPayload, @Nullable byte[] scratch) throws PassVerificationError, CwtSecurityTokenError {
+        // <prefix>/<version>/<payload>. We don't split the string, we just find where the components are.
+        // Trailing slashes are ignored, as String.split did: "NZCP:/1/ABC/" has a payload, "NZCP:/1/" is two components
+        int end = passPayload.length();
+        while(end > 0 && passPayload.charAt(end - 1) == '/') {
+            end--;
+        }
+        int firstSlash = indexOf(passPayload, '/', 0, end);
+        int secondSlash = firstSlash < 0 ? -1 : indexOf(passPayload, '/', firstSlash + 1, end);
+        if(secondSlash < 0 || indexOf(passPayload, '/', secondSlash + 1, end) >= 0) {
+            throw new PassVerificationError.InvalidPassComponents();
+        }
+
+        if(!regionEquals(passPayload, 0, firstSlash, _options.getPrefix())) {
+            throw new PassVerificationError.InvalidPrefix();
+        }
+
+        if(!regionEquals(passPayload, firstSlash + 1, secondSlash, _versionString)) { // don't need to parse the string, we're just checking it
+            throw new PassVerificationError.InvalidVersion();
+        }
+
+        int payloadStart = secondSlash + 1;
+        if(payloadStart == end) {
+            throw new PassVerificationError.MissingPayload();
+        }
+
+        // check the encoding up front so a bad character is reported as such, rather than as a malformed token
+        try {
+            Base32.validate(passPayload, payloadStart, end);
         } catch (IllegalArgumentException e) {
             throw new PassVerificationError.InvalidPayloadEncoding();
         }
 
-        // Decode the payload and read the CWT contained
-        CwtSecurityToken token = new CwtSecurityToken(payload);
+        // Decode the payload and read the CWT contained. The CBOR reader pulls bytes straight out of the
+        // Base32 text, so the decoded payload as a whole is never materialised
+        return new CwtSecurityToken(new Base32.DecodingSource(passPayload, payloadStart, end), scratch);
+    }
 
-        // Validate token claims and signature
-        CwtSecurityTokenValidator validator = new CwtSecurityTokenValidator(_options);
-        validator.validateToken(token, referenceTime);
+    private static int indexOf(@NonNull CharSequence str, char c, int from, int end) {
+        for(int i = from; i < end; i++) {
+            if(str.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-        return token;
+    private static boolean regionEquals(@NonNull CharSequence str, int start, int end, @NonNull String expected) {
+        if(end - start != expected.length()) {
+            return false;
+        }
+        for(int i = 0; i < expected.length(); i++) {
+            if(str.charAt(start + i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The first verify after startup is slow: classes have to load, the JCA providers initialise, the built-in
+    // trust anchors are imported as public keys and nothing has been JIT compiled yet. Call this at startup (or use warmUpInBackground)
+    // so the first real scan doesn't pay for all of that.
+    // Returns how long the warm-up took, in milliseconds.
+    // Throws IllegalStateException if the runtime can't verify the example pass, e.g. because it lacks an EC provider
+    public long warmUp(int iterations) {
+        long start = System.nanoTime();
+
+        try {
+            KeyFactory.getInstance("EC");
+            Signature.getInstance("SHA256withECDSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("ES256 is not supported by this runtime", e);
+        }
+
+        // our own options may not allow the test issuer (and our trust store may not contain its key), but the code
+        // that runs is the same, so the JIT benefits regardless. The built-in keys are imported the first time this
+        // runs; they're in a store of our own, since the user may have rotated the default store to other keys
+        PassVerifier synthetic = new PassVerifier(new Options(
+                _options.getPrefix(),
+                _options.getVersion(),
+                Collections.singletonList(WellKnownIssuerNames.NZCP_TEST),
+                DEFAULT_VALID_ALGORITHMS,
+                new TrustStore(TrustStore.getBuiltIn())));
+        String payload = _options.getPrefix() + "/" + _versionString + WARM_UP_PASS.substring(WARM_UP_PASS.indexOf('/', DEFAULT_PREFIX.length() + 1));
+        Date referenceTime = new Date(WARM_UP_PASS_REFERENCE_TIME);
+        for(int i = 0; i < iterations; i++) {
+            try {
+                synthetic.verify(payload, referenceTime);
+            } catch (PassVerificationError | CwtSecurityTokenError | CwtSecurityTokenValidationError e) {
+                throw new IllegalStateException("warm-up verification failed", e);
+            }
+        }
+
+        // and once through our own options, so the rejection path for this verifier has run too. Not through this
+        // verifier itself: that would put a made-up scan in its audit log and take admission control capacity
+        try {
+            new PassVerifier(_options).verify(payload, referenceTime);
+        } catch (PassVerificationError | CwtSecurityTokenError | CwtSecurityTokenValidationError ignored) {
+            // expected unless this verifier allows the test issuer
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    public long warmUp() {
+        return warmUp(DEFAULT_WARM_UP_ITERATIONS);
+    }
+
+    // Runs warmUp on a new daemon thread. The future yields the warm-up time in milliseconds
+    @NonNull
+    public Future<Long> warmUpInBackground(final int iterations) {
+        FutureTask<Long> task = new FutureTask<>(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return warmUp(iterations);
+            }
+        });
+        Thread thread = new Thread(task, "nzcovidpass-warmup");
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
+    @NonNull
+    public Future<Long> warmUpInBackground() {
+        return warmUpInBackground(DEFAULT_WARM_UP_ITERATIONS);
+    }
+
+    @NonNull
+    public Options getOptions() {
+        return _options;
+    }
+
+    @Nullable
+    public AuditSink getAuditSink() {
+        return _auditSink;
+    }
+
+    @Nullable
+    public AdmissionControl getAdmissionControl() {
+        return _admissionControl;
+    }
+
+    @Nullable
+    public VerificationResultStore getResultStore() {
+        return _resultStore;
     }
 
     public void validatePassComponents(@NonNull String[] components) throws PassVerificationError {
@@ -112,7 +498,7 @@ public class PassVerifier {
             throw new PassVerificationError.InvalidPrefix();
         }
 
-        if(!version.equals(Integer.toString(_options.getVersion()))) { // don't need to parse the string, we're just checking it
+        if(!version.equals(_versionString)) { // don't need to parse the string, we're just checking it
             throw new PassVerificationError.InvalidVersion();
         }
 
@@ -122,3 +508,45 @@ public class PassVerifier {
     }
 }
 
+// read-only view over raw QR code bytes, so verify(byte[]) can share the CharSequence path without copying.
+// Bytes are treated as ISO-8859-1, which is a superset of the ASCII we expect in a pass payload
+class AsciiCharSequence implements CharSequence {
+    @NonNull
+    private final byte[] _data;
+    private final int _offset;
+    private final int _length;
+
+    AsciiCharSequence(@NonNull byte[] data, int offset, int length) {
+        _data = data;
+        _offset = offset;
+        _length = length;
+    }
+
+    @Override
+    public int length() {
+        return _length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if(index < 0 || index >= _length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + _length);
+        }
+        return (char)(_data[_offset + index] & 0xff);
+    }
+
+    @NonNull
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if(start < 0 || end > _length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + _length);
+        }
+        return new AsciiCharSequence(_data, _offset + start, end - start);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return new String(_data, _offset, _length, StandardCharsets.ISO_8859_1);
+    }
+}
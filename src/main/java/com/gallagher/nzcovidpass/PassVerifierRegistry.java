@@ -0,0 +1,167 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hands out PassVerifiers for many tenants (sites, kiosks, pilots...) that each have their own Options,
+// while sharing everything expensive between them:
+// - every verifier uses the registry's TrustStore, so issuer keys are parsed and imported once
+// - tenants with identical options share a single PassVerifier instance
+// - async verification for every tenant runs on one thread pool
+public class PassVerifierRegistry {
+    @NonNull
+    private final TrustStore _trustStore;
+    @NonNull
+    private final ExecutorService _executor;
+    private final boolean _ownsExecutor;
+
+    @NonNull
+    private final ConcurrentHashMap<String, PassVerifier> _tenants = new ConcurrentHashMap<>();
+    // guarded by itself. Registering is rare, so it takes a lock; get and verifyAsync only read _tenants
+    @NonNull
+    private final HashMap<PassVerifier.Options, Profile> _profiles = new HashMap<>();
+
+    // a shared verifier and how many tenants use it, so it can be dropped when the last one goes
+    private static final class Profile {
+        @NonNull
+        final PassVerifier verifier;
+        int tenants;
+
+        Profile(@NonNull PassVerifier verifier) {
+            this.verifier = verifier;
+        }
+    }
+
+    // uses the default trust store and a pool with one daemon thread per processor, which shutdown() will stop
+    public PassVerifierRegistry() {
+        this(TrustStore.getDefault(), Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory()), true);
+    }
+
+    // the caller owns the executor and is responsible for shutting it down
+    public PassVerifierRegistry(@NonNull TrustStore trustStore, @NonNull ExecutorService executor) {
+        this(trustStore, executor, false);
+    }
+
+    private PassVerifierRegistry(@NonNull TrustStore trustStore, @NonNull ExecutorService executor, boolean ownsExecutor) {
+        _trustStore = trustStore;
+        _executor = executor;
+        _ownsExecutor = ownsExecutor;
+    }
+
+    @NonNull
+    public TrustStore getTrustStore() {
+        return _trustStore;
+    }
+
+    @NonNull
+    public ExecutorService getExecutor() {
+        return _executor;
+    }
+
+    // Adds or replaces a tenant. Any trust store in the options is ignored in favour of the registry's one
+    @NonNull
+    public PassVerifier register(@NonNull String tenantId, @NonNull PassVerifier.Options options) {
+        PassVerifier.Options shared = new PassVerifier.Options(
+                options.getPrefix(),
+                options.getVersion(),
+                options.getValidIssuers(),
+                options.getValidAlgorithms(),
+                _trustStore);
+
+        synchronized(_profiles) {
+            Profile profile = _profiles.get(shared);
+            if(profile == null) {
+                profile = new Profile(new PassVerifier(shared));
+                _profiles.put(shared, profile);
+            }
+            profile.tenants++;
+            PassVerifier previous = _tenants.put(tenantId, profile.verifier);
+            if(previous != null) {
+                release(previous);
+            }
+            return profile.verifier;
+        }
+    }
+
+    public void unregister(@NonNull String tenantId) {
+        synchronized(_profiles) {
+            PassVerifier removed = _tenants.remove(tenantId);
+            if(removed != null) {
+                release(removed);
+            }
+        }
+    }
+
+    // call holding the _profiles lock
+    private void release(@NonNull PassVerifier verifier) {
+        Profile profile = _profiles.get(verifier.getOptions());
+        if(--profile.tenants == 0) {
+            _profiles.remove(verifier.getOptions());
+        }
+    }
+
+    @Nullable
+    public PassVerifier get(@NonNull String tenantId) {
+        return _tenants.get(tenantId);
+    }
+
+    public int getTenantCount() {
+        return _tenants.size();
+    }
+
+    // the number of distinct PassVerifier instances backing the tenants
+    public int getProfileCount() {
+        synchronized(_profiles) {
+            return _profiles.size();
+        }
+    }
+
+    // Verifies on the shared pool. The future fails with the same errors PassVerifier.verify throws
+    @NonNull
+    public Future<CwtSecurityToken> verifyAsync(@NonNull String tenantId, @NonNull final CharSequence passPayload, @Nullable final Date referenceTime) {
+        final PassVerifier verifier = _tenants.get(tenantId);
+        if(verifier == null) {
+            throw new IllegalArgumentException("unknown tenant " + tenantId);
+        }
+        return _executor.submit(new Callable<CwtSecurityToken>() {
+            @Override
+            public CwtSecurityToken call() throws Exception {
+                return verifier.verify(passPayload, referenceTime); // the validator treats a null time as now
+            }
+        });
+    }
+
+    @NonNull
+    public Future<CwtSecurityToken> verifyAsync(@NonNull String tenantId, @NonNull CharSequence passPayload) {
+        return verifyAsync(tenantId, passPayload, null);
+    }
+
+    // stops the thread pool if the registry created it; otherwise does nothing
+    public void shutdown() {
+        if(_ownsExecutor) {
+            _executor.shutdown();
+        }
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+        @NonNull
+        private final AtomicInteger _count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread t = new Thread(r, "nzcovidpass-verifier-" + _count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
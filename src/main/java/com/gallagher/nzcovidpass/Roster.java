@@ -0,0 +1,507 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+// An index of registered attendees, for checking whether the person on a verified pass is on the list for an
+// event. Built once from a Builder or a CSV file and then immutable, so it can be shared between gates.
+//
+// Names are compared after normalize: diacritics stripped, case folded and punctuation dropped, so "Zoë O'Brien"
+// on the roster matches "ZOE OBRIEN" on a pass. That's done once per row at load time. A lookup normalizes the
+// pass's names and then is a single hash table probe; match also falls back to the closest name with the same date
+// of birth, within a small edit distance, for typos in registration.
+//
+// Rows are packed into a handful of arrays (all the normalized names share one char array) rather than an object
+// per row, so a roster of several hundred thousand names stays at a few tens of bytes per row plus its ids
+public final class Roster {
+    public static final int DEFAULT_MAX_DISTANCE = 2;
+    // a match looks at no more than this many rows with the same date of birth, however many there are
+    static final int MAX_FUZZY_CANDIDATES = 512;
+
+    // between the given and family names in a key, so "Mary Ann" "Smith" and "Mary" "Ann Smith" differ.
+    // normalize never produces it
+    static final char SEPARATOR = '\u0000';
+
+    // the normalized given and family names of row i are _names[_nameOffsets[i]] to _names[_nameOffsets[i + 1]]
+    @NonNull
+    private final char[] _names;
+    @NonNull
+    private final int[] _nameOffsets;
+    @NonNull
+    private final int[] _hashes;
+    @NonNull
+    private final int[] _dobs; // as yyyymmdd
+    @NonNull
+    private final String[] _ids;
+
+    // open addressing, holding row + 1 (so 0 is empty). At most half full
+    @NonNull
+    private final int[] _table;
+    // every row's (dob << 32 | row), sorted, to find the rows sharing a date of birth
+    @NonNull
+    private final long[] _byDob;
+
+    private Roster(@NonNull char[] names, @NonNull int[] nameOffsets, @NonNull int[] hashes, @NonNull int[] dobs, @NonNull String[] ids) {
+        _names = names;
+        _nameOffsets = nameOffsets;
+        _hashes = hashes;
+        _dobs = dobs;
+        _ids = ids;
+
+        int rows = ids.length;
+        _table = new int[Integer.highestOneBit(Math.max(rows, 1) * 2 - 1) << 1];
+        int mask = _table.length - 1;
+        for(int row = 0; row < rows; row++) {
+            int slot = hashes[row] & mask;
+            while(_table[slot] != 0) { // a duplicate name and dob goes after the first, which is the one find returns
+                slot = (slot + 1) & mask;
+            }
+            _table[slot] = row + 1;
+        }
+
+        _byDob = new long[rows];
+        for(int row = 0; row < rows; row++) {
+            _byDob[row] = (long)dobs[row] << 32 | row;
+        }
+        Arrays.sort(_byDob);
+    }
+
+    public int size() {
+        return _ids.length;
+    }
+
+    // the id the row was added with
+    @NonNull
+    public String getId(int row) {
+        return _ids[row];
+    }
+
+    // The first row with exactly these names (after normalizing) and date of birth, or -1
+    public int find(@NonNull String givenName, @Nullable String familyName, @NonNull String dateOfBirth) {
+        int dob = parseDateOfBirth(dateOfBirth);
+        if(dob < 0) {
+            return -1;
+        }
+        return find(key(givenName, familyName), dob);
+    }
+
+    public int find(@NonNull PublicCovidPass pass) {
+        return find(pass.getGivenName(), pass.getFamilyName(), pass.getDateOfBirth());
+    }
+
+    public int find(@NonNull VerifiedPass pass) {
+        return find(pass.getGivenName(), pass.getFamilyName(), pass.getDateOfBirth());
+    }
+
+    private int find(@NonNull String key, int dob) {
+        int hash = hash(key, dob);
+        int mask = _table.length - 1;
+        for(int slot = hash & mask; _table[slot] != 0; slot = (slot + 1) & mask) {
+            int row = _table[slot] - 1;
+            if(_hashes[row] == hash && _dobs[row] == dob && nameEquals(row, key)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    // An exact match if there is one (with a distance of 0), otherwise the row with the same date of birth whose
+    // names are the fewest edits (insertions, deletions, substitutions or swaps of adjacent characters) away,
+    // as long as that's no more than maxDistance. Null if there's neither
+    @Nullable
+    public Match match(@NonNull String givenName, @Nullable String familyName, @NonNull String dateOfBirth, int maxDistance) {
+        int dob = parseDateOfBirth(dateOfBirth);
+        if(dob < 0) {
+            return null;
+        }
+        String key = key(givenName, familyName);
+        int exact = find(key, dob);
+        if(exact >= 0) {
+            return new Match(this, exact, 0);
+        }
+        if(maxDistance < 1) {
+            return null;
+        }
+
+        int bestRow = -1;
+        int bestDistance = maxDistance + 1;
+        int[][] rows = new int[3][key.length() + 1];
+        int end = Math.min(firstWithDob(dob) + MAX_FUZZY_CANDIDATES, _byDob.length);
+        for(int i = firstWithDob(dob); i < end && (int)(_byDob[i] >>> 32) == dob; i++) {
+            int row = (int)_byDob[i];
+            int distance = distance(key, _nameOffsets[row], _nameOffsets[row + 1], bestDistance - 1, rows);
+            if(distance < bestDistance) {
+                bestRow = row;
+                bestDistance = distance;
+            }
+        }
+        return bestRow >= 0 ? new Match(this, bestRow, bestDistance) : null;
+    }
+
+    @Nullable
+    public Match match(@NonNull VerifiedPass pass) {
+        return match(pass.getGivenName(), pass.getFamilyName(), pass.getDateOfBirth(), DEFAULT_MAX_DISTANCE);
+    }
+
+    @Nullable
+    public Match match(@NonNull PublicCovidPass pass) {
+        return match(pass.getGivenName(), pass.getFamilyName(), pass.getDateOfBirth(), DEFAULT_MAX_DISTANCE);
+    }
+
+    public static final class Match {
+        @NonNull
+        private final Roster _roster;
+        private final int _row;
+        private final int _distance;
+
+        Match(@NonNull Roster roster, int row, int distance) {
+            _roster = roster;
+            _row = row;
+            _distance = distance;
+        }
+
+        public int getRow() {
+            return _row;
+        }
+
+        @NonNull
+        public String getId() {
+            return _roster.getId(_row);
+        }
+
+        // 0 for an exact match
+        public int getDistance() {
+            return _distance;
+        }
+    }
+
+    // the index in _byDob of the first row born on or after dob
+    private int firstWithDob(int dob) {
+        long target = (long)dob << 32;
+        int low = 0;
+        int high = _byDob.length;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(_byDob[mid] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private boolean nameEquals(int row, @NonNull String key) {
+        int offset = _nameOffsets[row];
+        if(_nameOffsets[row + 1] - offset != key.length()) {
+            return false;
+        }
+        for(int i = 0; i < key.length(); i++) {
+            if(_names[offset + i] != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The optimal string alignment distance between key and the roster name _names[from..to), or something more
+    // than limit once it's clear it will exceed limit. rows is scratch of three rows of key.length() + 1
+    private int distance(@NonNull String key, int from, int to, int limit, @NonNull int[][] rows) {
+        int n = key.length();
+        int m = to - from;
+        if(Math.abs(n - m) > limit) {
+            return limit + 1;
+        }
+        int[] twoBack = rows[0];
+        int[] previous = rows[1];
+        int[] current = rows[2];
+        for(int j = 0; j <= n; j++) {
+            previous[j] = j;
+        }
+        for(int i = 1; i <= m; i++) {
+            char a = _names[from + i - 1];
+            current[0] = i;
+            int rowMin = i;
+            for(int j = 1; j <= n; j++) {
+                char b = key.charAt(j - 1);
+                int cost = a == b ? 0 : 1;
+                int d = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if(i > 1 && j > 1 && a == key.charAt(j - 2) && _names[from + i - 2] == b) {
+                    d = Math.min(d, twoBack[j - 2] + 1);
+                }
+                current[j] = d;
+                rowMin = Math.min(rowMin, d);
+            }
+            if(rowMin > limit) {
+                return limit + 1;
+            }
+            int[] recycled = twoBack;
+            twoBack = previous;
+            previous = current;
+            current = recycled;
+        }
+        return previous[n];
+    }
+
+    @NonNull
+    static String key(@NonNull String givenName, @Nullable String familyName) {
+        String given = normalize(givenName);
+        return familyName != null ? given + SEPARATOR + normalize(familyName) : given + SEPARATOR;
+    }
+
+    static int hash(@NonNull CharSequence key, int dob) {
+        int h = dob;
+        for(int i = 0; i < key.length(); i++) {
+            h = 31 * h + key.charAt(i);
+        }
+        // spread the bits, as we only use the bottom few to pick a slot
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    // Strips diacritics ("é" is "e"), folds case ("ß" is "ss"), turns runs of spaces and hyphens into a single space,
+    // drops any other punctuation, and trims. Letters without a decomposition, like "ø" and "ł", are kept as they are
+    @NonNull
+    public static String normalize(@NonNull String name) {
+        String folded;
+        if(isAscii(name)) { // the common case, which needs none of the unicode tables
+            folded = name;
+        } else {
+            // decompose so that accents become separate combining marks, and fold case on that
+            folded = Normalizer.normalize(name, Normalizer.Form.NFD).toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+            folded = Normalizer.normalize(folded, Normalizer.Form.NFD);
+        }
+
+        StringBuilder result = new StringBuilder(folded.length());
+        boolean pendingSpace = false;
+        for(int i = 0; i < folded.length(); i++) {
+            char c = folded.charAt(i);
+            if(c < 0x80) {
+                if(c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                } else if(c == ' ' || c == '-' || c == '\t') {
+                    pendingSpace = result.length() > 0;
+                    continue;
+                } else if(!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9')) {
+                    continue;
+                }
+            } else {
+                int type = Character.getType(c);
+                if(type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK || type == Character.COMBINING_SPACING_MARK) {
+                    continue;
+                }
+                if(Character.isWhitespace(c) || Character.isSpaceChar(c) || type == Character.DASH_PUNCTUATION) {
+                    pendingSpace = result.length() > 0;
+                    continue;
+                }
+                if(!Character.isLetterOrDigit(c) && !Character.isSurrogate(c)) {
+                    continue;
+                }
+            }
+            if(pendingSpace) {
+                result.append(' ');
+                pendingSpace = false;
+            }
+            result.append(c);
+        }
+        String normalized = result.toString();
+        return isAscii(normalized) ? normalized : Normalizer.normalize(normalized, Normalizer.Form.NFC);
+    }
+
+    private static boolean isAscii(@NonNull String s) {
+        for(int i = 0; i < s.length(); i++) {
+            if(s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // "yyyy-mm-dd", as in a pass, to yyyymmdd, or -1 if it isn't one
+    static int parseDateOfBirth(@NonNull CharSequence dob) {
+        if(dob.length() != 10 || dob.charAt(4) != '-' || dob.charAt(7) != '-') {
+            return -1;
+        }
+        int value = 0;
+        for(int i = 0; i < 10; i++) {
+            if(i == 4 || i == 7) {
+                continue;
+            }
+            char c = dob.charAt(i);
+            if(c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        int month = value / 100 % 100;
+        int day = value % 100;
+        return month >= 1 && month <= 12 && day >= 1 && day <= 31 ? value : -1;
+    }
+
+    // Reads rows of id,givenName,familyName,dateOfBirth (RFC 4180: fields may be quoted, with "" for a quote).
+    // familyName may be empty; dateOfBirth is yyyy-mm-dd. If hasHeader, the first line is skipped
+    @NonNull
+    public static Roster readCsv(@NonNull java.io.Reader reader, boolean hasHeader) throws IOException {
+        Builder builder = new Builder();
+        CsvReader csv = new CsvReader(reader);
+        String[] fields = new String[4];
+        int line = 0;
+        int count;
+        while((count = csv.readRecord(fields)) >= 0) {
+            line++;
+            if(line == 1 && hasHeader) {
+                continue;
+            }
+            if(count == 1 && fields[0].isEmpty()) { // a blank line
+                continue;
+            }
+            if(count != 4) {
+                throw new IOException("line " + line + ": expected 4 fields, found " + count);
+            }
+            if(fields[1].isEmpty() || parseDateOfBirth(fields[3]) < 0) {
+                throw new IOException("line " + line + ": missing givenName or bad dateOfBirth");
+            }
+            builder.add(fields[0], fields[1], fields[2].isEmpty() ? null : fields[2], fields[3]);
+        }
+        return builder.build();
+    }
+
+    // reads CSV a buffer at a time, without splitting lines into Strings first
+    private static final class CsvReader {
+        @NonNull
+        private final java.io.Reader _reader;
+        @NonNull
+        private final char[] _buffer = new char[64 * 1024];
+        private int _pos;
+        private int _limit;
+        @NonNull
+        private final StringBuilder _field = new StringBuilder();
+
+        CsvReader(@NonNull java.io.Reader reader) {
+            _reader = reader;
+        }
+
+        // -1 at the end of input, or a character
+        private int next() throws IOException {
+            if(_pos == _limit) {
+                _limit = _reader.read(_buffer, 0, _buffer.length);
+                _pos = 0;
+                if(_limit <= 0) {
+                    _limit = 0;
+                    return -1;
+                }
+            }
+            return _buffer[_pos++];
+        }
+
+        // Fills fields with the next record and returns how many fields it had (those beyond fields.length are
+        // counted but dropped), or -1 at the end of input
+        int readRecord(@NonNull String[] fields) throws IOException {
+            int c = next();
+            if(c < 0) {
+                return -1;
+            }
+            int count = 0;
+            while(true) {
+                _field.setLength(0);
+                if(c == '"') {
+                    while(true) {
+                        c = next();
+                        if(c < 0) {
+                            throw new IOException("unterminated quoted field");
+                        }
+                        if(c == '"') {
+                            c = next();
+                            if(c != '"') {
+                                break;
+                            }
+                        }
+                        _field.append((char)c);
+                    }
+                } else {
+                    while(c >= 0 && c != ',' && c != '\n' && c != '\r') {
+                        _field.append((char)c);
+                        c = next();
+                    }
+                }
+                if(count < fields.length) {
+                    fields[count] = _field.toString();
+                }
+                count++;
+                if(c == ',') {
+                    c = next();
+                    continue;
+                }
+                if(c == '\r') {
+                    c = next();
+                    if(c != '\n' && c >= 0) {
+                        _pos--; // a lone \r ends the line; keep what follows for the next record
+                    }
+                } else if(c >= 0 && c != '\n') {
+                    throw new IOException("unexpected character after quoted field");
+                }
+                return count;
+            }
+        }
+    }
+
+    public static final class Builder {
+        @NonNull
+        private char[] _names = new char[1024];
+        private int _namesLength;
+        @NonNull
+        private int[] _nameOffsets = new int[257];
+        @NonNull
+        private int[] _hashes = new int[256];
+        @NonNull
+        private int[] _dobs = new int[256];
+        @NonNull
+        private final ArrayList<String> _ids = new ArrayList<>();
+
+        // Adds a row. Throws IllegalArgumentException if dateOfBirth isn't yyyy-mm-dd
+        @NonNull
+        public Builder add(@NonNull String id, @NonNull String givenName, @Nullable String familyName, @NonNull String dateOfBirth) {
+            int dob = parseDateOfBirth(dateOfBirth);
+            if(dob < 0) {
+                throw new IllegalArgumentException("dateOfBirth must be yyyy-mm-dd: " + dateOfBirth);
+            }
+            String key = key(givenName, familyName);
+            int row = _ids.size();
+            if(row == _dobs.length) {
+                int capacity = row * 2;
+                _nameOffsets = Arrays.copyOf(_nameOffsets, capacity + 1);
+                _hashes = Arrays.copyOf(_hashes, capacity);
+                _dobs = Arrays.copyOf(_dobs, capacity);
+            }
+            if(_namesLength + key.length() > _names.length) {
+                _names = Arrays.copyOf(_names, Math.max(_names.length * 2, _namesLength + key.length()));
+            }
+            key.getChars(0, key.length(), _names, _namesLength);
+            _namesLength += key.length();
+            _nameOffsets[row + 1] = _namesLength;
+            _hashes[row] = hash(key, dob);
+            _dobs[row] = dob;
+            _ids.add(id);
+            return this;
+        }
+
+        @NonNull
+        public Roster build() {
+            int rows = _ids.size();
+            return new Roster(
+                    Arrays.copyOf(_names, _namesLength),
+                    Arrays.copyOf(_nameOffsets, rows + 1),
+                    Arrays.copyOf(_hashes, rows),
+                    Arrays.copyOf(_dobs, rows),
+                    _ids.toArray(new String[rows]));
+        }
+    }
+}
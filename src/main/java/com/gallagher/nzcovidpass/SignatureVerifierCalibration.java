@@ -0,0 +1,187 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Picks the fastest ES256 implementation available, since installed JCA providers can differ several-fold in
+// how quickly they verify. Call calibrate once at startup (it takes a fraction of a second per candidate, so
+// off the main thread on Android, e.g. alongside PassVerifier.warmUpInBackground).
+//
+// Every installed provider offering ES256 is a candidate, in both signature forms it supports, along with any
+// SignatureVerifiers you pass in. Each is first checked against the known-good example pass and a tampered copy
+// of it; one that doesn't accept the first and reject the second is discarded. The rest are timed and the
+// fastest is installed with CwtSecurityTokenValidator.setSignatureVerifier. The numbers and the choice go to
+// the Instrumentation you supply
+public final class SignatureVerifierCalibration {
+    // time spent measuring each candidate, after the same again warming it up
+    public static final long DEFAULT_BUDGET_MILLIS = 100;
+    // however quick the budget, every candidate gets at least this many verifies in each phase
+    static final int MIN_ITERATIONS = 10;
+
+    private SignatureVerifierCalibration() { }
+
+    public static final class Result {
+        @NonNull
+        private final CwtSecurityTokenValidator.SignatureVerifier _verifier;
+        private final double _microsPerVerify;
+        private final boolean _agrees;
+
+        Result(@NonNull CwtSecurityTokenValidator.SignatureVerifier verifier, double microsPerVerify, boolean agrees) {
+            _verifier = verifier;
+            _microsPerVerify = microsPerVerify;
+            _agrees = agrees;
+        }
+
+        @NonNull
+        public CwtSecurityTokenValidator.SignatureVerifier getVerifier() {
+            return _verifier;
+        }
+
+        // NaN if it doesn't agree
+        public double getMicrosPerVerify() {
+            return _microsPerVerify;
+        }
+
+        public boolean agrees() {
+            return _agrees;
+        }
+    }
+
+    // the known-good signed data, a tampered copy, and the key to check them with
+    static final class Sample {
+        @NonNull
+        final byte[] signature;
+        @NonNull
+        final byte[] data;
+        @NonNull
+        final byte[] tampered;
+        @NonNull
+        final PublicKey publicKey;
+
+        private Sample(@NonNull byte[] signature, @NonNull byte[] data, @NonNull byte[] tampered, @NonNull PublicKey publicKey) {
+            this.signature = signature;
+            this.data = data;
+            this.tampered = tampered;
+            this.publicKey = publicKey;
+        }
+
+        @NonNull
+        static Sample create() {
+            String pass = PassVerifier.WARM_UP_PASS;
+            CwtSecurityToken token;
+            try {
+                token = new CwtSecurityToken(Base32.decode(pass, pass.lastIndexOf('/') + 1, pass.length()));
+            } catch (CwtSecurityTokenError e) {
+                throw new IllegalStateException("example pass doesn't parse", e);
+            }
+            Cbor.Writer writer = new Cbor.Writer(512);
+            CwtSecurityTokenValidator.writeSigStructure(token, writer);
+            byte[] data = Arrays.copyOf(writer.getRawBuffer(), writer.size());
+            byte[] tampered = data.clone();
+            tampered[tampered.length - 1] ^= 1;
+
+            TrustStore.TrustedKey key = TrustStore.getBuiltIn().find(WellKnownIssuerNames.NZCP_TEST, token.getHeader().getKeyId());
+            PublicKey publicKey = key != null ? key.getPublicKey() : null;
+            if(publicKey == null) {
+                throw new IllegalStateException("the NZCP test key is unavailable");
+            }
+            return new Sample(token.getSignature(), data, tampered, publicKey);
+        }
+    }
+
+    // JCA verifiers for every installed provider that has ES256, in each signature form it supports
+    @NonNull
+    public static List<CwtSecurityTokenValidator.SignatureVerifier> installedProviders() {
+        ArrayList<CwtSecurityTokenValidator.SignatureVerifier> verifiers = new ArrayList<>();
+        for(Provider provider : Security.getProviders()) {
+            for(boolean p1363 : new boolean[] { true, false }) {
+                try {
+                    verifiers.add(new CwtSecurityTokenValidator.JcaSignatureVerifier(provider, p1363));
+                } catch (NoSuchAlgorithmException ignored) {
+                    // this provider doesn't do it
+                }
+            }
+        }
+        return verifiers;
+    }
+
+    // Checks and times each candidate, returning results in the same order
+    @NonNull
+    public static List<Result> benchmark(@NonNull List<? extends CwtSecurityTokenValidator.SignatureVerifier> candidates, long budgetMillis) {
+        Sample sample = Sample.create();
+        long budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        ArrayList<Result> results = new ArrayList<>();
+        for(CwtSecurityTokenValidator.SignatureVerifier candidate : candidates) {
+            results.add(benchmark(candidate, sample, budgetNanos));
+        }
+        return results;
+    }
+
+    @NonNull
+    private static Result benchmark(@NonNull CwtSecurityTokenValidator.SignatureVerifier candidate, @NonNull Sample sample, long budgetNanos) {
+        try {
+            if(!candidate.verify(sample.signature, 0, sample.data, 0, sample.data.length, sample.publicKey)
+                    || candidate.verify(sample.signature, 0, sample.tampered, 0, sample.tampered.length, sample.publicKey)) {
+                return new Result(candidate, Double.NaN, false);
+            }
+            run(candidate, sample, budgetNanos); // warm-up, so we time the JIT-compiled code
+            long[] measured = run(candidate, sample, budgetNanos);
+            return new Result(candidate, measured[0] / 1000.0 / measured[1], true);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return new Result(candidate, Double.NaN, false);
+        }
+    }
+
+    // returns { elapsed nanos, iterations }
+    @NonNull
+    private static long[] run(@NonNull CwtSecurityTokenValidator.SignatureVerifier candidate, @NonNull Sample sample, long budgetNanos) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        long elapsed;
+        int iterations = 0;
+        do {
+            // check every answer, so that the work can't be optimised away and a flaky implementation is caught
+            if(!candidate.verify(sample.signature, 0, sample.data, 0, sample.data.length, sample.publicKey)) {
+                throw new GeneralSecurityException(candidate.getName() + " rejected the example pass");
+            }
+            iterations++;
+            elapsed = System.nanoTime() - start;
+        } while(iterations < MIN_ITERATIONS || elapsed < budgetNanos);
+        return new long[] { elapsed, iterations };
+    }
+
+    @NonNull
+    public static Result calibrate(@NonNull Instrumentation instrumentation, @NonNull CwtSecurityTokenValidator.SignatureVerifier... extraCandidates) {
+        return calibrate(instrumentation, DEFAULT_BUDGET_MILLIS, Arrays.asList(extraCandidates));
+    }
+
+    // Benchmarks the installed providers and extraCandidates, installs the fastest that agrees, and returns its result.
+    // Throws IllegalStateException, leaving the current verifier in place, if none of them agree
+    @NonNull
+    public static Result calibrate(@NonNull Instrumentation instrumentation, long budgetMillis, @NonNull List<? extends CwtSecurityTokenValidator.SignatureVerifier> extraCandidates) {
+        ArrayList<CwtSecurityTokenValidator.SignatureVerifier> candidates = new ArrayList<>(installedProviders());
+        candidates.addAll(extraCandidates);
+
+        Result best = null;
+        for(Result result : benchmark(candidates, budgetMillis)) {
+            instrumentation.signatureVerifierBenchmarked(result.getVerifier().getName(), result.getMicrosPerVerify(), result.agrees());
+            if(result.agrees() && (best == null || result.getMicrosPerVerify() < best.getMicrosPerVerify())) {
+                best = result;
+            }
+        }
+        if(best == null) {
+            throw new IllegalStateException("no ES256 implementation verified the example pass correctly; tried " + candidates);
+        }
+        CwtSecurityTokenValidator.setSignatureVerifier(best.getVerifier());
+        instrumentation.signatureVerifierSelected(best.getVerifier().getName(), best.getMicrosPerVerify());
+        return best;
+    }
+}
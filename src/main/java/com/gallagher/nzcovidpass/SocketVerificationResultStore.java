@@ -0,0 +1,161 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A VerificationResultStore shared between nodes through a VerificationResultStoreServer.
+//
+// Each call borrows a connection from a small pool (opening one if none are idle), so concurrent verifies don't
+// queue behind each other. The store is only ever an optimisation, so failures are never reported: a call that
+// can't reach the server within the timeout is a miss (or a dropped put), and after a failure the server
+// isn't tried again for retryDelayMillis, so an outage doesn't add a timeout to every scan
+public class SocketVerificationResultStore implements VerificationResultStore, Closeable {
+    public static final int DEFAULT_TIMEOUT_MILLIS = 200;
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = 1000;
+    static final int MAX_IDLE_CONNECTIONS = 8;
+
+    @NonNull
+    private final InetSocketAddress _address;
+    private final int _timeoutMillis;
+    private final long _retryDelayMillis;
+
+    @NonNull
+    private final ConcurrentLinkedQueue<Connection> _idle = new ConcurrentLinkedQueue<>();
+    @NonNull
+    private final AtomicInteger _idleCount = new AtomicInteger();
+
+    // System.currentTimeMillis before which we don't try the server
+    private volatile long _downUntil;
+    private volatile boolean _closed;
+
+    public SocketVerificationResultStore(@NonNull InetSocketAddress address) {
+        this(address, DEFAULT_TIMEOUT_MILLIS, DEFAULT_RETRY_DELAY_MILLIS);
+    }
+
+    public SocketVerificationResultStore(@NonNull InetSocketAddress address, int timeoutMillis, long retryDelayMillis) {
+        _address = address;
+        _timeoutMillis = timeoutMillis;
+        _retryDelayMillis = retryDelayMillis;
+    }
+
+    @Nullable
+    @Override
+    public VerifiedPass get(@NonNull byte[] digest) {
+        if(digest.length != DIGEST_LENGTH) {
+            return null;
+        }
+        Connection connection = borrow();
+        if(connection == null) {
+            return null;
+        }
+        try {
+            connection.out.writeByte(VerificationResultStoreServer.OP_GET);
+            connection.out.write(digest);
+            connection.out.flush();
+            VerifiedPass pass = connection.in.readUnsignedByte() == 1 ? Records.read(connection.in) : null;
+            giveBack(connection);
+            return pass;
+        } catch (IOException e) {
+            failed(connection);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(@NonNull byte[] digest, @NonNull VerifiedPass pass, long expiresAtMillis) {
+        if(digest.length != DIGEST_LENGTH) {
+            return;
+        }
+        Connection connection = borrow();
+        if(connection == null) {
+            return;
+        }
+        try {
+            connection.out.writeByte(VerificationResultStoreServer.OP_PUT);
+            connection.out.write(digest);
+            connection.out.writeLong(expiresAtMillis);
+            Records.write(connection.out, pass);
+            connection.out.flush();
+            connection.in.readUnsignedByte();
+            giveBack(connection);
+        } catch (IOException e) {
+            failed(connection);
+        }
+    }
+
+    @Override
+    public void close() {
+        _closed = true;
+        Connection connection;
+        while((connection = _idle.poll()) != null) {
+            VerificationResultStoreServer.closeQuietly(connection.socket);
+        }
+    }
+
+    @Nullable
+    private Connection borrow() {
+        if(_closed) {
+            return null;
+        }
+        Connection connection = _idle.poll();
+        if(connection != null) {
+            _idleCount.decrementAndGet();
+            return connection;
+        }
+        if(System.currentTimeMillis() < _downUntil) {
+            return null;
+        }
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(_timeoutMillis);
+            socket.connect(_address, _timeoutMillis);
+            return new Connection(socket);
+        } catch (IOException e) {
+            VerificationResultStoreServer.closeQuietly(socket);
+            _downUntil = System.currentTimeMillis() + _retryDelayMillis;
+            return null;
+        }
+    }
+
+    private void giveBack(@NonNull Connection connection) {
+        if(!_closed && _idleCount.incrementAndGet() <= MAX_IDLE_CONNECTIONS) {
+            _idle.offer(connection);
+        } else {
+            _idleCount.decrementAndGet();
+            VerificationResultStoreServer.closeQuietly(connection.socket);
+        }
+    }
+
+    // the connection may be half way through a response, so it can't be reused
+    private void failed(@NonNull Connection connection) {
+        VerificationResultStoreServer.closeQuietly(connection.socket);
+        _downUntil = System.currentTimeMillis() + _retryDelayMillis;
+    }
+
+    private static final class Connection {
+        @NonNull
+        final Socket socket;
+        @NonNull
+        final DataInputStream in;
+        @NonNull
+        final DataOutputStream out;
+
+        Connection(@NonNull Socket socket) throws IOException {
+            this.socket = socket;
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+    }
+}
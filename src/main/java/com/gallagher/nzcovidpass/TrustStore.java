@@ -0,0 +1,189 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Holds the public keys we trust to sign passes, indexed by "<issuer>#<keyId>" (which is the DID assertionMethod id).
+// The keys live in an immutable Snapshot which is swapped atomically, so keys can be rotated at runtime while other
+// threads are verifying; a verify call sees either the old set of keys or the new one, never a mix, and never blocks.
+public class TrustStore {
+    // A resolved assertion method from a DID document
+    public static class TrustedKey {
+        @NonNull
+        private final String _id;
+        @Nullable
+        private final PublicKey _publicKey;
+        private final boolean _supportedKeyType;
+
+        TrustedKey(@NonNull String id, @Nullable PublicKey publicKey, boolean supportedKeyType) {
+            _id = id;
+            _publicKey = publicKey;
+            _supportedKeyType = supportedKeyType;
+        }
+
+        @NonNull
+        public String getId() {
+            return _id;
+        }
+
+        // null if the key type isn't supported, or the key parameters were malformed
+        @Nullable
+        public PublicKey getPublicKey() {
+            return _publicKey;
+        }
+
+        // false if the DID document asserts this key, but it isn't an EC P-256 key
+        public boolean isSupportedKeyType() {
+            return _supportedKeyType;
+        }
+    }
+
+    public static class Snapshot {
+        @NonNull
+        private final Map<String, TrustedKey> _keys;
+
+        // the same keys split by issuer then key id, so find doesn't have to build an "issuer#keyId" string per lookup
+        @NonNull
+        private final Map<String, Map<String, TrustedKey>> _keysByIssuer;
+
+        Snapshot(@NonNull Map<String, TrustedKey> keys) {
+            _keys = keys;
+            _keysByIssuer = new HashMap<>();
+            for(Map.Entry<String, TrustedKey> entry : keys.entrySet()) {
+                String id = entry.getKey();
+                int hash = id.indexOf('#'); // a DID can't contain '#', so the first one ends the issuer
+                if(hash < 0) {
+                    continue;
+                }
+                String issuer = id.substring(0, hash);
+                Map<String, TrustedKey> issuerKeys = _keysByIssuer.get(issuer);
+                if(issuerKeys == null) {
+                    issuerKeys = new HashMap<>();
+                    _keysByIssuer.put(issuer, issuerKeys);
+                }
+                issuerKeys.put(id.substring(hash + 1), entry.getValue());
+            }
+        }
+
+        // returns null if the issuer has not asserted the key
+        @Nullable
+        public TrustedKey find(@NonNull String issuer, @NonNull String keyId) {
+            Map<String, TrustedKey> issuerKeys = _keysByIssuer.get(issuer);
+            return issuerKeys != null ? issuerKeys.get(keyId) : null;
+        }
+
+        public int size() {
+            return _keys.size();
+        }
+
+        @NonNull
+        public Map<String, TrustedKey> getKeys() {
+            return _keys;
+        }
+    }
+
+    @NonNull
+    private final AtomicReference<Snapshot> _snapshot;
+
+    public TrustStore(@NonNull Snapshot snapshot) {
+        _snapshot = new AtomicReference<>(snapshot);
+    }
+
+    public TrustStore(@NonNull List<DID.Document> documents) {
+        this(buildSnapshot(documents));
+    }
+
+    @NonNull
+    public Snapshot getSnapshot() {
+        return _snapshot.get();
+    }
+
+    // Replaces the trusted keys. The new snapshot is built on the calling thread before it is published
+    public void update(@NonNull List<DID.Document> documents) {
+        _snapshot.set(buildSnapshot(documents));
+    }
+
+    public void update(@NonNull Snapshot snapshot) {
+        _snapshot.set(snapshot);
+    }
+
+    // Resolves every assertionMethod in the documents into a public key up front, so verification is a single map lookup
+    @NonNull
+    public static Snapshot buildSnapshot(@NonNull List<DID.Document> documents) {
+        HashMap<String, TrustedKey> keys = new HashMap<>();
+        for(DID.Document did : documents) {
+            String idPrefix = did.getId() + "#";
+            for(String assertionMethod : did.getAssertionMethods()) {
+                // the lookup key is issuer#keyId, so an assertion pointing at some other DID can never be found
+                if(!assertionMethod.startsWith(idPrefix) || keys.containsKey(assertionMethod)) {
+                    continue;
+                }
+                keys.put(assertionMethod, resolve(did, assertionMethod));
+            }
+        }
+        return new Snapshot(Collections.unmodifiableMap(keys));
+    }
+
+    @NonNull
+    private static TrustedKey resolve(@NonNull DID.Document did, @NonNull String assertionMethod) {
+        @Nullable DID.VerificationMethod verificationMethod = null;
+        for(DID.VerificationMethod vf : did.getVerificationMethods()) {
+            if(vf.getId().equals(assertionMethod) && "P-256".equals(vf.getPublicKeyJwk().getCrv()) && "EC".equals(vf.getPublicKeyJwk().getKty())) {
+                verificationMethod = vf;
+                break;
+            }
+        }
+        if(verificationMethod == null) {
+            return new TrustedKey(assertionMethod, null, false);
+        }
+
+        DID.JsonWebKey jwk = verificationMethod.getPublicKeyJwk();
+        String xStr = jwk.getX();
+        String yStr = jwk.getY();
+        try {
+            byte[] x = Base64.decode(xStr == null ? "" : xStr);
+            byte[] y = Base64.decode(yStr == null ? "" : yStr);
+            return new TrustedKey(assertionMethod, CwtSecurityTokenValidator.loadP256PublicKey(x, y), true);
+        } catch (IllegalArgumentException | InvalidKeySpecException e) {
+            return new TrustedKey(assertionMethod, null, true);
+        }
+    }
+
+    // The process-wide store used by PassVerifier.Options unless told otherwise, containing the WellKnownIssuers.
+    // Initialised on first use by the JVM class loader, which makes it safe under concurrent first use
+    @NonNull
+    public static TrustStore getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    // The keys built into the library, whatever the default store has since been updated to. For checks the
+    // library runs on itself with the NZCP test key (warm-up and calibration), which must not depend on the user's keys
+    @NonNull
+    static Snapshot getBuiltIn() {
+        return DefaultHolder.BUILT_IN;
+    }
+
+    private static class DefaultHolder {
+        @NonNull
+        static final Snapshot BUILT_IN;
+        @NonNull
+        static final TrustStore INSTANCE;
+
+        static {
+            try {
+                BUILT_IN = WellKnownIssuers.getSnapshot();
+            } catch (InvalidKeySpecException e) { // the build checks every trust anchor, so this is a bug in the library
+                throw new IllegalStateException("embedded trust anchor is invalid", e);
+            }
+            INSTANCE = new TrustStore(BUILT_IN);
+        }
+    }
+}
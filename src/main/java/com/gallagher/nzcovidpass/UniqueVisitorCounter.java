@@ -0,0 +1,318 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts distinct passes (by cti) in constant memory, e.g. unique visitors per gate per day, using a HyperLogLog sketch.
+//
+// Each cti is hashed to 64 bits; the top `precision` bits pick one of 2^precision registers, and the register keeps
+// the longest run of leading zeros seen in the rest. The estimate comes from the histogram of the registers, using
+// Ertl's improved estimator ("New cardinality estimation algorithms for HyperLogLog sketches", 2017), which is
+// accurate from zero upwards without HLL++'s empirical bias tables or a switch to linear counting for small counts.
+// The standard error is about 1.04 / sqrt(2^precision): 1.15% with the default precision of 13, in 6.5KB.
+//
+// Registers are 6 bits, packed 10 to a long, and updated with compare-and-set, so add and merge are lock-free and
+// any number of verifying threads can feed one counter. Counters with the same precision can be merged (taking the
+// union of what they've seen), so each gate can keep its own and send toByteArray() to be merged centrally.
+// The serialised form lists only the non-zero registers while that's smaller, like HLL++'s sparse representation
+public final class UniqueVisitorCounter {
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+    public static final int DEFAULT_PRECISION = 13;
+
+    private static final int REGISTER_BITS = 6;
+    private static final int REGISTERS_PER_WORD = 10;
+    private static final long REGISTER_MASK = (1L << REGISTER_BITS) - 1;
+
+    // the first byte of toByteArray, which says how the registers follow
+    private static final int FORMAT_DENSE = 1; // every register, 6 bits each, most significant bit first
+    private static final int FORMAT_SPARSE = 2; // the number of non-zero registers, then (gap from the previous index, value) for each
+
+    private final int _precision;
+    @NonNull
+    private final AtomicLongArray _words;
+
+    public UniqueVisitorCounter() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public UniqueVisitorCounter(int precision) {
+        if(precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION + ": " + precision);
+        }
+        _precision = precision;
+        _words = new AtomicLongArray((getRegisterCount() + REGISTERS_PER_WORD - 1) / REGISTERS_PER_WORD);
+    }
+
+    public int getPrecision() {
+        return _precision;
+    }
+
+    public int getRegisterCount() {
+        return 1 << _precision;
+    }
+
+    // the relative standard error of estimate()
+    public double getStandardError() {
+        return 1.04 / Math.sqrt(getRegisterCount());
+    }
+
+    public boolean add(@NonNull VerifiedPass pass) {
+        return add(pass.getCtiMostSignificantBits(), pass.getCtiLeastSignificantBits());
+    }
+
+    // Records a cti, given as the two halves of its UUID. Returns true if the sketch changed, which it usually
+    // doesn't for a cti already seen (but also doesn't for many that are new, so don't use it as a membership test)
+    public boolean add(long ctiHigh, long ctiLow) {
+        long hash = mix(ctiHigh ^ mix(ctiLow));
+        int index = (int)(hash >>> (64 - _precision));
+        // leading zeros after the index bits, plus one. The extra bit stops the count running into the index bits
+        int rank = Long.numberOfLeadingZeros((hash << _precision) | (1L << (_precision - 1))) + 1;
+        return raise(index, rank);
+    }
+
+    // Adds everything other has seen into this counter. Lock-free, like add; other may be changing at the same time
+    public void merge(@NonNull UniqueVisitorCounter other) {
+        if(other._precision != _precision) {
+            throw new IllegalArgumentException("can't merge a counter with precision " + other._precision + " into one with " + _precision);
+        }
+        for(int word = 0; word < _words.length(); word++) {
+            long theirs = other._words.get(word);
+            while(true) {
+                long ours = _words.get(word);
+                long merged = maxRegisters(ours, theirs);
+                if(merged == ours || _words.compareAndSet(word, ours, merged)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // the estimated number of distinct ctis added (here or to merged counters)
+    public long estimate() {
+        int m = getRegisterCount();
+        int q = 64 - _precision; // hash bits after the index, so registers hold 0 to q + 1
+        int[] histogram = new int[q + 2];
+        for(int i = 0; i < m; i++) {
+            histogram[get(i)]++;
+        }
+        if(histogram[0] == m) {
+            return 0;
+        }
+        double z = m * tau(1 - (double)histogram[q + 1] / m);
+        for(int k = q; k >= 1; k--) {
+            z = 0.5 * (z + histogram[k]);
+        }
+        z += m * sigma((double)histogram[0] / m);
+        return Math.round(m / (2 * Math.log(2)) * m / z);
+    }
+
+    @NonNull
+    public byte[] toByteArray() {
+        int m = getRegisterCount();
+        int[] registers = new int[m];
+        int nonZero = 0;
+        for(int i = 0; i < m; i++) {
+            registers[i] = get(i);
+            if(registers[i] != 0) {
+                nonZero++;
+            }
+        }
+
+        int denseSize = 2 + (m * REGISTER_BITS + 7) / 8;
+        // a gap takes at most 3 bytes as a varint, and a value 1
+        if(nonZero * 4 + 5 < denseSize) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(nonZero * 4 + 7);
+            out.write(FORMAT_SPARSE);
+            out.write(_precision);
+            writeVarint(out, nonZero);
+            int previous = -1;
+            for(int i = 0; i < m; i++) {
+                if(registers[i] != 0) {
+                    writeVarint(out, i - previous - 1);
+                    out.write(registers[i]);
+                    previous = i;
+                }
+            }
+            if(out.size() < denseSize) {
+                return out.toByteArray();
+            }
+        }
+
+        byte[] result = new byte[denseSize];
+        result[0] = FORMAT_DENSE;
+        result[1] = (byte)_precision;
+        long bits = 0;
+        int bitCount = 0;
+        int pos = 2;
+        for(int i = 0; i < m; i++) {
+            bits = (bits << REGISTER_BITS) | registers[i];
+            bitCount += REGISTER_BITS;
+            if(bitCount >= 8) {
+                bitCount -= 8;
+                result[pos++] = (byte)(bits >>> bitCount);
+            }
+        }
+        if(bitCount > 0) {
+            result[pos] = (byte)(bits << (8 - bitCount));
+        }
+        return result;
+    }
+
+    // Reads what toByteArray wrote. Throws IllegalArgumentException if it's malformed
+    @NonNull
+    public static UniqueVisitorCounter fromByteArray(@NonNull byte[] data) {
+        if(data.length < 2) {
+            throw new IllegalArgumentException("counter data is too short");
+        }
+        int format = data[0];
+        UniqueVisitorCounter counter = new UniqueVisitorCounter(data[1]); // checks the precision
+        int m = counter.getRegisterCount();
+        int maxRegister = 64 - counter._precision + 1;
+        if(format == FORMAT_DENSE) {
+            if(data.length != 2 + (m * REGISTER_BITS + 7) / 8) {
+                throw new IllegalArgumentException("dense counter data is the wrong length");
+            }
+            int bits = 0;
+            int bitCount = 0;
+            int pos = 2;
+            for(int i = 0; i < m; i++) {
+                if(bitCount < REGISTER_BITS) {
+                    bits = (bits << 8) | (data[pos++] & 0xff);
+                    bitCount += 8;
+                }
+                bitCount -= REGISTER_BITS;
+                counter.set(i, checkRegister((bits >>> bitCount) & (int)REGISTER_MASK, maxRegister));
+            }
+        } else if(format == FORMAT_SPARSE) {
+            int[] pos = { 2 };
+            int count = readVarint(data, pos);
+            int index = -1;
+            for(int n = 0; n < count; n++) {
+                index += readVarint(data, pos) + 1;
+                if(index >= m || pos[0] >= data.length) {
+                    throw new IllegalArgumentException("sparse counter data is malformed");
+                }
+                counter.set(index, checkRegister(data[pos[0]++], maxRegister));
+            }
+            if(pos[0] != data.length) {
+                throw new IllegalArgumentException("sparse counter data is the wrong length");
+            }
+        } else {
+            throw new IllegalArgumentException("unknown counter format " + format);
+        }
+        return counter;
+    }
+
+    private int get(int index) {
+        int shift = (index % REGISTERS_PER_WORD) * REGISTER_BITS;
+        return (int)((_words.get(index / REGISTERS_PER_WORD) >>> shift) & REGISTER_MASK);
+    }
+
+    // only while building a counter nothing else can see yet
+    private void set(int index, int value) {
+        int word = index / REGISTERS_PER_WORD;
+        int shift = (index % REGISTERS_PER_WORD) * REGISTER_BITS;
+        _words.set(word, (_words.get(word) & ~(REGISTER_MASK << shift)) | ((long)value << shift));
+    }
+
+    // sets the register to rank if that's higher than what it holds
+    private boolean raise(int index, int rank) {
+        int word = index / REGISTERS_PER_WORD;
+        int shift = (index % REGISTERS_PER_WORD) * REGISTER_BITS;
+        while(true) {
+            long current = _words.get(word);
+            if(((current >>> shift) & REGISTER_MASK) >= rank) {
+                return false;
+            }
+            long updated = (current & ~(REGISTER_MASK << shift)) | ((long)rank << shift);
+            if(_words.compareAndSet(word, current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    private static long maxRegisters(long a, long b) {
+        long result = 0;
+        for(int shift = 0; shift < REGISTERS_PER_WORD * REGISTER_BITS; shift += REGISTER_BITS) {
+            result |= Math.max((a >>> shift) & REGISTER_MASK, (b >>> shift) & REGISTER_MASK) << shift;
+        }
+        return result;
+    }
+
+    private static int checkRegister(int value, int maxRegister) {
+        if(value < 0 || value > maxRegister) {
+            throw new IllegalArgumentException("counter register out of range: " + value);
+        }
+        return value;
+    }
+
+    // MurmurHash3's 64 bit finaliser; every input bit affects every output bit. ctis are meant to be random
+    // UUIDs, but 6 of their bits are fixed and we'd rather not rely on issuers generating them well
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // the series from Ertl's paper, summed until adding another term makes no difference
+    private static double sigma(double x) {
+        if(x == 1) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double y = 1;
+        double z = x;
+        double previous;
+        do {
+            x *= x;
+            previous = z;
+            z += x * y;
+            y += y;
+        } while(z != previous);
+        return z;
+    }
+
+    private static double tau(double x) {
+        if(x == 0 || x == 1) {
+            return 0;
+        }
+        double y = 1;
+        double z = 1 - x;
+        double previous;
+        do {
+            x = Math.sqrt(x);
+            previous = z;
+            y *= 0.5;
+            z -= (1 - x) * (1 - x) * y;
+        } while(z != previous);
+        return z / 3;
+    }
+
+    private static void writeVarint(@NonNull ByteArrayOutputStream out, int value) {
+        while(value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(@NonNull byte[] data, @NonNull int[] pos) {
+        int value = 0;
+        for(int shift = 0; shift < 28; shift += 7) {
+            if(pos[0] >= data.length) {
+                break;
+            }
+            int b = data[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("counter data has a malformed number");
+    }
+}
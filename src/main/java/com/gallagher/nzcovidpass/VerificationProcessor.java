@@ -0,0 +1,329 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+// A Reactive Streams processor which turns a stream of scanned pass payloads into a stream of VerificationResults.
+// Use one per scan feed (e.g. per device), sharing a PassVerifier and an Executor between them.
+//
+// - Backpressure: at most bufferSize payloads are requested from upstream that haven't yet been delivered
+//   downstream, so a burst from one feed can't grow memory without bound; it just waits upstream.
+// - At most parallelism verifications from this feed run on the executor at once, so one busy feed can't
+//   occupy every thread in a shared pool and starve the others.
+// - With ordered output, results are delivered in the order payloads arrived; otherwise as soon as each completes.
+//
+// Invalid passes are delivered as failed results; the stream itself only fails if upstream does.
+// Requires org.reactivestreams:reactive-streams on the classpath; the rest of the library doesn't.
+public class VerificationProcessor implements Processor<String, VerificationResult> {
+    public static final int DEFAULT_BUFFER_SIZE = 64;
+
+    @NonNull
+    private final PassVerifier _verifier;
+    @NonNull
+    private final Executor _executor;
+    private final int _parallelism;
+    private final int _bufferSize;
+    private final boolean _ordered;
+
+    @NonNull
+    private final Object _lock = new Object();
+
+    // everything below is guarded by _lock
+    @Nullable
+    private Subscription _upstream;
+    @Nullable
+    private Subscriber<? super VerificationResult> _downstream;
+    private long _requested; // downstream demand not yet satisfied
+    private int _upstreamRequested; // requested from upstream but not yet received
+    private int _buffered; // received from upstream but not yet delivered downstream
+    private int _running;
+    @NonNull
+    private final ArrayDeque<Pending> _waiting = new ArrayDeque<>(); // received, not yet started
+    @NonNull
+    private final ArrayDeque<Pending> _ready = new ArrayDeque<>(); // ordered: everything in arrival order. unordered: completed only
+    private boolean _upstreamDone;
+    @Nullable
+    private Throwable _upstreamError;
+    private boolean _cancelled;
+    private boolean _terminated;
+    private boolean _emitting;
+    private boolean _missed;
+
+    private static class Pending {
+        @NonNull
+        final String passPayload;
+        @Nullable
+        VerificationResult result; // guarded by _lock
+
+        Pending(@NonNull String passPayload) {
+            this.passPayload = passPayload;
+        }
+    }
+
+    public VerificationProcessor(@NonNull PassVerifier verifier, @NonNull Executor executor, int parallelism, boolean ordered) {
+        this(verifier, executor, parallelism, DEFAULT_BUFFER_SIZE, ordered);
+    }
+
+    public VerificationProcessor(@NonNull PassVerifier verifier, @NonNull Executor executor, int parallelism, int bufferSize, boolean ordered) {
+        if(parallelism < 1 || bufferSize < 1) {
+            throw new IllegalArgumentException("parallelism and bufferSize must be positive");
+        }
+        _verifier = verifier;
+        _executor = executor;
+        _parallelism = parallelism;
+        _bufferSize = bufferSize;
+        _ordered = ordered;
+    }
+
+    // Subscriber side (upstream)
+
+    @Override
+    public void onSubscribe(@NonNull Subscription subscription) {
+        synchronized (_lock) {
+            if(_upstream != null || _cancelled) { // rule 2.5: only one upstream
+                subscription.cancel();
+                return;
+            }
+            _upstream = subscription;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(@NonNull String passPayload) {
+        synchronized (_lock) {
+            if(_cancelled || _upstreamDone) {
+                return;
+            }
+            Pending pending = new Pending(passPayload);
+            _upstreamRequested--;
+            _buffered++;
+            _waiting.add(pending);
+            if(_ordered) {
+                _ready.add(pending);
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(@NonNull Throwable t) {
+        synchronized (_lock) {
+            if(_upstreamDone) {
+                return;
+            }
+            _upstreamDone = true;
+            _upstreamError = t;
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (_lock) {
+            _upstreamDone = true;
+        }
+        drain();
+    }
+
+    // Publisher side (downstream)
+
+    @Override
+    public void subscribe(@NonNull Subscriber<? super VerificationResult> subscriber) {
+        boolean accepted;
+        synchronized (_lock) {
+            accepted = _downstream == null;
+            if(accepted) {
+                _downstream = subscriber;
+            }
+        }
+        if(!accepted) { // rule 1.9: onSubscribe before anything else, even to reject
+            subscriber.onSubscribe(new Subscription() {
+                @Override public void request(long n) { }
+                @Override public void cancel() { }
+            });
+            subscriber.onError(new IllegalStateException("VerificationProcessor only supports a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                Subscription cancel = null;
+                synchronized (_lock) {
+                    if(n <= 0) { // rule 3.9: fail the stream, dropping whatever is buffered
+                        _upstreamDone = true;
+                        _upstreamError = new IllegalArgumentException("request must be positive, was " + n);
+                        _waiting.clear();
+                        _ready.clear();
+                        _buffered = 0;
+                        cancel = _upstream;
+                    } else {
+                        _requested = _requested + n < 0 ? Long.MAX_VALUE : _requested + n; // rule 3.17
+                    }
+                }
+                if(cancel != null) {
+                    cancel.cancel();
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelUpstream();
+            }
+        });
+        drain();
+    }
+
+    private void cancelUpstream() {
+        Subscription upstream;
+        synchronized (_lock) {
+            _cancelled = true;
+            _waiting.clear();
+            _ready.clear();
+            upstream = _upstream;
+        }
+        if(upstream != null) {
+            upstream.cancel();
+        }
+    }
+
+    private void verify(@NonNull final Pending pending) {
+        VerificationResult result;
+        try {
+            result = VerificationResult.success(pending.passPayload, _verifier.verify(pending.passPayload));
+        } catch (Exception e) { // the verify errors, plus anything unexpected; either way it's this pass that failed, not the stream
+            result = VerificationResult.failure(pending.passPayload, e);
+        }
+        finished(pending, result);
+        drain();
+    }
+
+    private void finished(@NonNull Pending pending, @NonNull VerificationResult result) {
+        synchronized (_lock) {
+            pending.result = result;
+            _running--;
+            if(!_ordered && !_cancelled) {
+                _ready.add(pending);
+            }
+        }
+    }
+
+    // All signalling happens here, from one thread at a time, and never while holding _lock.
+    // Whoever finds _emitting set just flags _missed, and the thread already emitting goes round again
+    private void drain() {
+        synchronized (_lock) {
+            if(_emitting) {
+                _missed = true;
+                return;
+            }
+            _emitting = true;
+        }
+
+        // cleared when we give up _emitting under the lock; if a callback throws instead, release it on the way out
+        boolean emitting = true;
+        try {
+            emitting = emit();
+        } finally {
+            if(emitting) {
+                synchronized (_lock) {
+                    _emitting = false;
+                }
+            }
+        }
+    }
+
+    // the body of drain, with _emitting held. Returns false once it has cleared _emitting itself
+    private boolean emit() {
+        while(true) {
+            List<Pending> toStart = null;
+            Subscription upstream;
+            Subscriber<? super VerificationResult> downstream;
+            VerificationResult next = null;
+            Throwable error = null;
+            boolean complete = false;
+            int requestMore = 0;
+
+            synchronized (_lock) {
+                upstream = _upstream;
+                downstream = _downstream;
+                if(_cancelled || _terminated) {
+                    _emitting = false;
+                    return false;
+                }
+
+                while(_running < _parallelism && !_waiting.isEmpty()) {
+                    if(toStart == null) {
+                        toStart = new ArrayList<>();
+                    }
+                    toStart.add(_waiting.poll());
+                    _running++;
+                }
+
+                Pending head = _ready.peek();
+                if(downstream != null && _requested > 0 && head != null && head.result != null) {
+                    _ready.poll();
+                    next = head.result;
+                    _requested--;
+                    _buffered--;
+                }
+
+                if(downstream != null && _upstreamDone && _buffered == 0 && next == null) {
+                    _terminated = true;
+                    error = _upstreamError;
+                    complete = error == null;
+                }
+
+                if(upstream != null && !_upstreamDone) {
+                    requestMore = _bufferSize - _buffered - _upstreamRequested;
+                    _upstreamRequested += requestMore;
+                }
+
+                if(toStart == null && next == null && error == null && !complete && requestMore == 0) {
+                    if(!_missed) {
+                        _emitting = false;
+                        return false;
+                    }
+                    _missed = false;
+                    continue;
+                }
+            }
+
+            if(toStart != null) {
+                for(final Pending pending : toStart) {
+                    try {
+                        _executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                verify(pending);
+                            }
+                        });
+                    } catch (RuntimeException e) { // e.g. RejectedExecutionException from a bounded or shut down executor
+                        // the pass fails rather than the stream, and we go round again to deliver it
+                        finished(pending, VerificationResult.failure(pending.passPayload, e));
+                    }
+                }
+            }
+            if(requestMore > 0) {
+                upstream.request(requestMore);
+            }
+            if(next != null) {
+                downstream.onNext(next);
+            }
+            if(error != null) {
+                downstream.onError(error);
+            } else if(complete) {
+                downstream.onComplete();
+            }
+        }
+    }
+}
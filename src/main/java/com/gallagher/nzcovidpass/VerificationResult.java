@@ -0,0 +1,52 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+// The outcome of verifying one pass payload, for APIs that report failures as values rather than by throwing
+public class VerificationResult {
+    @NonNull
+    private final String _passPayload;
+    @Nullable
+    private final CwtSecurityToken _token;
+    // one of PassVerificationError, CwtSecurityTokenError or CwtSecurityTokenValidationError
+    @Nullable
+    private final Exception _error;
+
+    private VerificationResult(@NonNull String passPayload, @Nullable CwtSecurityToken token, @Nullable Exception error) {
+        _passPayload = passPayload;
+        _token = token;
+        _error = error;
+    }
+
+    @NonNull
+    public static VerificationResult success(@NonNull String passPayload, @NonNull CwtSecurityToken token) {
+        return new VerificationResult(passPayload, token, null);
+    }
+
+    @NonNull
+    public static VerificationResult failure(@NonNull String passPayload, @NonNull Exception error) {
+        return new VerificationResult(passPayload, null, error);
+    }
+
+    @NonNull
+    public String getPassPayload() {
+        return _passPayload;
+    }
+
+    public boolean isValid() {
+        return _token != null;
+    }
+
+    // non-null if the pass is valid
+    @Nullable
+    public CwtSecurityToken getToken() {
+        return _token;
+    }
+
+    // non-null if the pass is not valid
+    @Nullable
+    public Exception getError() {
+        return _error;
+    }
+}
@@ -0,0 +1,77 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// Somewhere to share the results of verifyPass, so that when several verification nodes sit behind a load
+// balancer a pass only has its signature checked by the first node that sees it.
+//
+// Results are keyed by the SHA-256 digest of the whole pass payload, and only successful verifications are
+// stored. A PassVerifier given a store (see its constructor) looks the payload up before doing any work, and
+// on a hit still checks the things that can differ between verifiers or over time: the prefix and version,
+// that the issuer is one it accepts and its key is still in the trust store, and that the pass is valid at
+// the reference time. Anything else falls through to a full verify. A store must be trusted as much as the
+// trust store itself, since whatever it returns is taken as proof of a good signature.
+//
+// Implementations must be thread-safe and should never throw; a store that can't be reached should behave as
+// if it were empty. InMemoryVerificationResultStore keeps results in-process, and
+// SocketVerificationResultStore shares them with other nodes via a VerificationResultStoreServer
+public interface VerificationResultStore {
+    int DIGEST_LENGTH = 32;
+
+    // the result stored for this digest, or null if there isn't one or it has expired
+    @Nullable
+    VerifiedPass get(@NonNull byte[] digest);
+
+    // expiresAtMillis is the end of the pass's validity period; the store must not return the result after
+    // that, and may drop it sooner
+    void put(@NonNull byte[] digest, @NonNull VerifiedPass pass, long expiresAtMillis);
+
+    // The compact binary form of a stored result, as used on the wire and by anything that persists results:
+    // a format byte, the cti, nbf and exp as longs, then the issuer, key id, names and date of birth as
+    // modified UTF-8, with a flag for the optional family name
+    final class Records {
+        static final int FORMAT = 1;
+
+        private Records() { }
+
+        public static void write(@NonNull DataOutput out, @NonNull VerifiedPass pass) throws IOException {
+            out.writeByte(FORMAT);
+            out.writeLong(pass.getCtiMostSignificantBits());
+            out.writeLong(pass.getCtiLeastSignificantBits());
+            out.writeLong(pass.getNotBeforeSeconds());
+            out.writeLong(pass.getExpirySeconds());
+            out.writeUTF(pass.getIssuer());
+            out.writeUTF(pass.getKeyId());
+            out.writeUTF(pass.getGivenName());
+            String familyName = pass.getFamilyName();
+            out.writeBoolean(familyName != null);
+            if(familyName != null) {
+                out.writeUTF(familyName);
+            }
+            out.writeUTF(pass.getDateOfBirth());
+        }
+
+        @NonNull
+        public static VerifiedPass read(@NonNull DataInput in) throws IOException {
+            int format = in.readUnsignedByte();
+            if(format != FORMAT) {
+                throw new IOException("unknown result record format " + format);
+            }
+            long ctiHigh = in.readLong();
+            long ctiLow = in.readLong();
+            long notBefore = in.readLong();
+            long expiry = in.readLong();
+            String issuer = in.readUTF();
+            String keyId = in.readUTF();
+            String givenName = in.readUTF();
+            String familyName = in.readBoolean() ? in.readUTF() : null;
+            String dateOfBirth = in.readUTF();
+            return new VerifiedPass(ctiHigh, ctiLow, notBefore, expiry, issuer, keyId, givenName, familyName, dateOfBirth);
+        }
+    }
+}
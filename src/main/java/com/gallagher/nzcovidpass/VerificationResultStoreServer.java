@@ -0,0 +1,140 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Serves a VerificationResultStore (normally an InMemoryVerificationResultStore) over TCP to
+// SocketVerificationResultStore clients on other verification nodes. This is a reference implementation and
+// a stand-in for local and test setups; there's no authentication or encryption, so only bind it to a
+// trusted network.
+//
+// The protocol is request/response over a long-lived connection, one request at a time:
+//   GET: OP_GET, 32 byte digest                        -> 0 (miss) or 1 followed by a result record
+//   PUT: OP_PUT, 32 byte digest, long expiresAt, record -> 0
+// where a record is as written by VerificationResultStore.Records. Anything else closes the connection
+public class VerificationResultStoreServer implements Closeable {
+    static final int OP_GET = 1;
+    static final int OP_PUT = 2;
+
+    @NonNull
+    private final VerificationResultStore _store;
+    @NonNull
+    private final ServerSocket _serverSocket;
+    @NonNull
+    private final Set<Socket> _connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    @NonNull
+    private final AtomicInteger _connectionCount = new AtomicInteger();
+    private volatile boolean _closed;
+
+    // port 0 picks a free port; see getPort
+    public VerificationResultStoreServer(@NonNull VerificationResultStore store, @NonNull InetSocketAddress address) throws IOException {
+        _store = store;
+        _serverSocket = new ServerSocket();
+        _serverSocket.setReuseAddress(true);
+        _serverSocket.bind(address);
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "nzcovidpass-result-store-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return _serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while(!_closed) {
+            final Socket socket;
+            try {
+                socket = _serverSocket.accept();
+            } catch (IOException e) {
+                if(_closed) {
+                    return;
+                }
+                continue;
+            }
+            _connections.add(socket);
+            Thread handler = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException ignored) {
+                        // the client went away or sent garbage; either way we're done with it
+                    } finally {
+                        _connections.remove(socket);
+                        closeQuietly(socket);
+                    }
+                }
+            }, "nzcovidpass-result-store-" + _connectionCount.incrementAndGet());
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void serve(@NonNull Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] digest = new byte[VerificationResultStore.DIGEST_LENGTH];
+        while(!_closed) {
+            int op = in.read();
+            if(op < 0) {
+                return;
+            }
+            in.readFully(digest);
+            if(op == OP_GET) {
+                VerifiedPass pass = _store.get(digest);
+                if(pass == null) {
+                    out.writeByte(0);
+                } else {
+                    out.writeByte(1);
+                    VerificationResultStore.Records.write(out, pass);
+                }
+            } else if(op == OP_PUT) {
+                long expiresAt = in.readLong();
+                VerifiedPass pass = VerificationResultStore.Records.read(in);
+                _store.put(digest, pass, expiresAt);
+                out.writeByte(0);
+            } else {
+                throw new IOException("unknown op " + op);
+            }
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        _closed = true;
+        _serverSocket.close();
+        for(Socket socket : _connections) {
+            closeQuietly(socket);
+        }
+    }
+
+    static void closeQuietly(@NonNull Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // nothing useful to do
+        }
+    }
+}
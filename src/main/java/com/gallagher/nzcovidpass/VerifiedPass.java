@@ -0,0 +1,171 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Date;
+import java.util.Objects;
+import java.util.UUID;
+
+// A pass that has been verified, reduced to the handful of facts a venue actually keeps.
+// Returned by PassVerifier.verifyPass.
+//
+// A CwtSecurityToken keeps the raw header/payload/signature bytes (a few hundred of them, needed to check the
+// signature) and an object graph of header, payload, credential and subject wrappers with their lists and
+// strings. That's fine for a one-off scan, but adds up if you cache every admitted pass for an event. This holds
+// primitives and a few strings, and is immutable so it can be shared freely.
+public final class VerifiedPass {
+    // there is no nbf/exp claim
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    // the cti UUID
+    private final long _ctiHigh;
+    private final long _ctiLow;
+
+    // seconds since the epoch, or NO_TIME
+    private final long _notBefore;
+    private final long _expiry;
+
+    // interned; every pass from an issuer shares one instance
+    @NonNull
+    private final String _issuer;
+    @NonNull
+    private final String _keyId;
+
+    @NonNull
+    private final String _givenName;
+    @Nullable
+    private final String _familyName;
+    @NonNull
+    private final String _dateOfBirth;
+
+    public VerifiedPass(long ctiHigh, long ctiLow, long notBefore, long expiry, @NonNull String issuer, @NonNull String keyId, @NonNull String givenName, @Nullable String familyName, @NonNull String dateOfBirth) {
+        _ctiHigh = ctiHigh;
+        _ctiLow = ctiLow;
+        _notBefore = notBefore;
+        _expiry = expiry;
+        _issuer = issuer.intern();
+        _keyId = keyId.intern();
+        _givenName = givenName;
+        _familyName = familyName;
+        _dateOfBirth = dateOfBirth;
+    }
+
+    // the token and its credential must already have passed validation, which guarantees the claims used here are present
+    @NonNull
+    static VerifiedPass from(@NonNull CwtSecurityToken token, @NonNull VerifiableCredential credential) {
+        CwtSecurityToken.Payload payload = token.getPayload();
+        UUID cti = payload.getCti();
+        String issuer = payload.getIssuer();
+        String keyId = token.getHeader().getKeyId();
+        if(cti == null || issuer == null || keyId == null) {
+            throw new IllegalStateException("token has not been validated");
+        }
+        Date notBefore = payload.getNotBefore();
+        Date expiry = payload.getExpiry();
+        PublicCovidPass subject = credential.getCredentialSubject();
+
+        return new VerifiedPass(
+                cti.getMostSignificantBits(),
+                cti.getLeastSignificantBits(),
+                notBefore != null ? notBefore.getTime() / 1000 : NO_TIME,
+                expiry != null ? expiry.getTime() / 1000 : NO_TIME,
+                issuer,
+                keyId,
+                subject.getGivenName(),
+                subject.getFamilyName(),
+                subject.getDateOfBirth());
+    }
+
+    public long getCtiMostSignificantBits() {
+        return _ctiHigh;
+    }
+
+    public long getCtiLeastSignificantBits() {
+        return _ctiLow;
+    }
+
+    // allocates; use the two longs for lookups
+    @NonNull
+    public UUID getCti() {
+        return new UUID(_ctiHigh, _ctiLow);
+    }
+
+    @NonNull
+    public String getJti() {
+        return "urn:uuid:" + getCti().toString();
+    }
+
+    // seconds since the epoch, or NO_TIME
+    public long getNotBeforeSeconds() {
+        return _notBefore;
+    }
+
+    public long getExpirySeconds() {
+        return _expiry;
+    }
+
+    @Nullable
+    public Date getNotBefore() {
+        return _notBefore == NO_TIME ? null : new Date(_notBefore * 1000);
+    }
+
+    @Nullable
+    public Date getExpiry() {
+        return _expiry == NO_TIME ? null : new Date(_expiry * 1000);
+    }
+
+    // whether the pass is inside its validity period at the given time, e.g. to re-check cached passes as an event runs on
+    public boolean isValidAt(long timeMillis) {
+        long seconds = timeMillis >= 0 ? timeMillis / 1000 : (timeMillis - 999) / 1000; // round down (Math.floorDiv needs API 24)
+        return (_notBefore == NO_TIME || _notBefore <= seconds) && (_expiry == NO_TIME || seconds <= _expiry);
+    }
+
+    @NonNull
+    public String getIssuer() {
+        return _issuer;
+    }
+
+    @NonNull
+    public String getKeyId() {
+        return _keyId;
+    }
+
+    @NonNull
+    public String getGivenName() {
+        return _givenName;
+    }
+
+    @Nullable
+    public String getFamilyName() {
+        return _familyName;
+    }
+
+    @NonNull
+    public String getDateOfBirth() {
+        return _dateOfBirth;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        VerifiedPass that = (VerifiedPass) o;
+        return _ctiHigh == that._ctiHigh &&
+                _ctiLow == that._ctiLow &&
+                _notBefore == that._notBefore &&
+                _expiry == that._expiry &&
+                _issuer.equals(that._issuer) &&
+                _keyId.equals(that._keyId) &&
+                _givenName.equals(that._givenName) &&
+                Objects.equals(_familyName, that._familyName) &&
+                _dateOfBirth.equals(that._dateOfBirth);
+    }
+
+    @Override
+    public int hashCode() {
+        // the cti is unique per pass, so it's all we need
+        long h = _ctiHigh ^ _ctiLow;
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,47 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+// The Java 11+ version of Intrinsics, packaged under META-INF/versions/11. See the baseline in src/main/java
+final class Intrinsics {
+    private Intrinsics() { }
+
+    static boolean isOverlay() {
+        return true;
+    }
+
+    // byte array views compile down to a single (bounds checked) load plus a byte swap where needed
+    private static final VarHandle SHORT_BE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    @Nullable
+    static byte[] decodeBase64(@NonNull String str) {
+        // the JDK decoders each take one alphabet; DID documents use base64url, so try that first
+        java.util.Base64.Decoder decoder = str.indexOf('+') >= 0 || str.indexOf('/') >= 0
+                ? java.util.Base64.getDecoder()
+                : java.util.Base64.getUrlDecoder();
+        try {
+            return decoder.decode(str);
+        } catch (IllegalArgumentException e) {
+            return null; // let the baseline decoder accept it or produce the error
+        }
+    }
+
+    static int readUint16(@NonNull byte[] data, int offset) {
+        return (short)SHORT_BE.get(data, offset) & 0xffff;
+    }
+
+    static long readUint32(@NonNull byte[] data, int offset) {
+        return (int)INT_BE.get(data, offset) & 0xffffffffL;
+    }
+
+    static long readInt64(@NonNull byte[] data, int offset) {
+        return (long)LONG_BE.get(data, offset);
+    }
+}
@@ -0,0 +1,402 @@
+package com.gallagher.nzcovidpass.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gallagher.nzcovidpass.AuditSink;
+import com.gallagher.nzcovidpass.Cbor;
+import com.gallagher.nzcovidpass.CwtSecurityTokenError;
+import com.gallagher.nzcovidpass.CwtSecurityTokenValidationError;
+import com.gallagher.nzcovidpass.PassVerificationError;
+import com.gallagher.nzcovidpass.PassVerifier;
+import com.gallagher.nzcovidpass.VerifiedPass;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Serves a shared PassVerifier over HTTP, for thin clients (kiosks, gates) that forward scanned payloads to a
+// verification box. Uses only the JDK's built-in com.sun.net.httpserver, so it isn't part of the Android library;
+// it's built separately into the -server jar.
+//
+//   POST /verify        body: one pass payload                 -> one result
+//   POST /verify/batch  body: pass payloads, one per line      -> an array of results, in the same order
+//
+// A result is a map with "outcome" (an AuditSink.Outcome name, e.g. VALID or EXPIRED) and, for a valid pass,
+// "jti", "iss", "nbf" (if present), "exp", "givenName", "familyName" (if present) and "dob". Responses are JSON,
+// or CBOR if the request's Accept header asks for application/cbor. An invalid pass is still a 200; the status
+// is only an error when the request itself is (404, 405, 413), or 503 when a single verify was shed by the
+// verifier's AdmissionControl. The client's address is the caller id for AdmissionControl's per-caller rate
+// limits. Behind a proxy every request comes from the proxy's address, so setTrustCallerIdHeader(true) uses the
+// X-Caller-Id header instead; only do that if the proxy sets it itself, or any client can pick its own rate limit.
+// A body over MAX_BODY_BYTES gets a 413 and the connection is closed without reading the rest.
+//
+// Connections are kept alive between requests. Requests are handled by a fixed pool of threads with a bounded
+// queue; when that's full, the server's own dispatcher thread runs the request, which stops it accepting more
+// until there's room. Give the verifier an AdmissionControl if you'd rather shed load than queue it
+public class VerificationServer implements Closeable {
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final int MAX_BODY_BYTES = 1024 * 1024;
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    static final String JSON = "application/json";
+    static final String CBOR = "application/cbor";
+
+    @NonNull
+    private final PassVerifier _verifier;
+    @NonNull
+    private final HttpServer _server;
+    @NonNull
+    private final ThreadPoolExecutor _workers;
+    private volatile boolean _trustCallerIdHeader;
+
+    public VerificationServer(@NonNull PassVerifier verifier, @NonNull InetSocketAddress address) throws IOException {
+        this(verifier, address, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    // port 0 picks a free port; see getPort. Call start to start serving
+    public VerificationServer(@NonNull PassVerifier verifier, @NonNull InetSocketAddress address, int threads, int queueCapacity) throws IOException {
+        _verifier = verifier;
+        _server = HttpServer.create(address, 0);
+        final AtomicInteger threadCount = new AtomicInteger();
+        _workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "nzcovidpass-http-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        _server.setExecutor(_workers);
+
+        _server.createContext("/verify", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange, false);
+            }
+        });
+        _server.createContext("/verify/batch", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange, true);
+            }
+        });
+    }
+
+    public void start() {
+        _server.start();
+    }
+
+    // Whether the X-Caller-Id header, when present, is the caller id rather than the client's address. Off by default
+    public void setTrustCallerIdHeader(boolean trust) {
+        _trustCallerIdHeader = trust;
+    }
+
+    public int getPort() {
+        return _server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        _server.stop(0);
+        _workers.shutdown();
+    }
+
+    private void serve(@NonNull HttpExchange exchange, boolean batch) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if(!path.equals(batch ? "/verify/batch" : "/verify")) {
+                respond(exchange, 404, null);
+                return;
+            }
+            if(!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                respond(exchange, 405, null);
+                return;
+            }
+            byte[] body = readBody(exchange.getRequestHeaders().getFirst("Content-Length"), exchange.getRequestBody());
+            if(body == null) {
+                // the rest of the body is still on its way; closing is cheaper than reading it to find the next request
+                exchange.getResponseHeaders().set("Connection", "close");
+                respond(exchange, 413, null);
+                return;
+            }
+            String callerId = _trustCallerIdHeader ? exchange.getRequestHeaders().getFirst("X-Caller-Id") : null;
+            if(callerId == null) {
+                callerId = exchange.getRemoteAddress().getAddress().getHostAddress();
+            }
+            boolean cbor = accepts(exchange.getRequestHeaders().getFirst("Accept"), CBOR);
+            Encoder encoder = cbor ? new CborEncoder() : new JsonEncoder();
+
+            int status = 200;
+            if(batch) {
+                List<String> payloads = lines(body);
+                if(payloads.size() > MAX_BATCH_SIZE) {
+                    respond(exchange, 413, null);
+                    return;
+                }
+                encoder.beginArray(payloads.size());
+                for(String payload : payloads) {
+                    verify(payload, callerId, encoder);
+                }
+                encoder.endArray();
+            } else {
+                AuditSink.Outcome outcome = verify(new String(body, StandardCharsets.UTF_8).trim(), callerId, encoder);
+                if(outcome == AuditSink.Outcome.OVERLOADED) {
+                    status = 503;
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                }
+            }
+            exchange.getResponseHeaders().set("Content-Type", cbor ? CBOR : JSON);
+            respond(exchange, status, encoder.toByteArray());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @NonNull
+    private AuditSink.Outcome verify(@NonNull String payload, @NonNull String callerId, @NonNull Encoder encoder) {
+        VerifiedPass pass;
+        try {
+            pass = _verifier.verifyPass(payload, null, callerId);
+        } catch (PassVerificationError | CwtSecurityTokenError | CwtSecurityTokenValidationError e) {
+            AuditSink.Outcome outcome = AuditSink.Outcome.of(e);
+            encoder.beginMap(1);
+            encoder.key("outcome").value(outcome.name());
+            encoder.endMap();
+            return outcome;
+        }
+        boolean hasNotBefore = pass.getNotBeforeSeconds() != VerifiedPass.NO_TIME;
+        boolean hasFamilyName = pass.getFamilyName() != null;
+        encoder.beginMap(6 + (hasNotBefore ? 1 : 0) + (hasFamilyName ? 1 : 0));
+        encoder.key("outcome").value(AuditSink.Outcome.VALID.name());
+        encoder.key("jti").value(pass.getJti());
+        encoder.key("iss").value(pass.getIssuer());
+        if(hasNotBefore) {
+            encoder.key("nbf").value(pass.getNotBeforeSeconds());
+        }
+        encoder.key("exp").value(pass.getExpirySeconds());
+        encoder.key("givenName").value(pass.getGivenName());
+        if(hasFamilyName) {
+            encoder.key("familyName").value(pass.getFamilyName());
+        }
+        encoder.key("dob").value(pass.getDateOfBirth());
+        encoder.endMap();
+        return AuditSink.Outcome.VALID;
+    }
+
+    private static void respond(@NonNull HttpExchange exchange, int status, @Nullable byte[] body) throws IOException {
+        if(body == null) {
+            exchange.sendResponseHeaders(status, -1); // no body
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    // The whole body, or null as soon as it's known to be over MAX_BODY_BYTES, from the Content-Length if there
+    // is one. The rest is left unread, so the connection can't be reused after a null
+    @Nullable
+    static byte[] readBody(@Nullable String contentLength, @NonNull InputStream in) throws IOException {
+        if(contentLength != null) {
+            try {
+                if(Long.parseLong(contentLength.trim()) > MAX_BODY_BYTES) {
+                    return null;
+                }
+            } catch (NumberFormatException e) { // HttpServer rejects these itself, but the chunked size check below still applies
+            }
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = in.read(buffer)) >= 0) {
+            if(body.size() + read > MAX_BODY_BYTES) {
+                return null;
+            }
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    // the non-blank lines, trimmed
+    @NonNull
+    static List<String> lines(@NonNull byte[] body) {
+        ArrayList<String> lines = new ArrayList<>();
+        int start = 0;
+        for(int i = 0; i <= body.length; i++) {
+            if(i == body.length || body[i] == '\n') {
+                String line = new String(body, start, i - start, StandardCharsets.UTF_8).trim();
+                if(!line.isEmpty()) {
+                    lines.add(line);
+                }
+                start = i + 1;
+            }
+        }
+        return lines;
+    }
+
+    static boolean accepts(@Nullable String accept, @NonNull String mediaType) {
+        if(accept == null) {
+            return false;
+        }
+        for(String range : accept.split(",")) {
+            int parameters = range.indexOf(';');
+            if((parameters < 0 ? range : range.substring(0, parameters)).trim().equalsIgnoreCase(mediaType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // writes results as JSON or CBOR. Only what results need: maps with text keys, strings and integers, and one array
+    private static abstract class Encoder {
+        abstract void beginArray(int count);
+        abstract void endArray();
+        abstract void beginMap(int count);
+        abstract void endMap();
+        @NonNull
+        abstract Encoder key(@NonNull String key);
+        abstract void value(@NonNull String value);
+        abstract void value(long value);
+        @NonNull
+        abstract byte[] toByteArray();
+    }
+
+    private static final class JsonEncoder extends Encoder {
+        @NonNull
+        private final StringBuilder _json = new StringBuilder(256);
+        // whether the array or map we're in needs a comma before its next element
+        private boolean _needsComma;
+
+        @Override
+        void beginArray(int count) {
+            _json.append('[');
+            _needsComma = false;
+        }
+
+        @Override
+        void endArray() {
+            _json.append(']');
+        }
+
+        @Override
+        void beginMap(int count) {
+            if(_needsComma) {
+                _json.append(',');
+            }
+            _json.append('{');
+            _needsComma = false;
+        }
+
+        @Override
+        void endMap() {
+            _json.append('}');
+            _needsComma = true;
+        }
+
+        @NonNull
+        @Override
+        Encoder key(@NonNull String key) {
+            if(_needsComma) {
+                _json.append(',');
+            }
+            string(key);
+            _json.append(':');
+            _needsComma = true;
+            return this;
+        }
+
+        @Override
+        void value(@NonNull String value) {
+            string(value);
+        }
+
+        @Override
+        void value(long value) {
+            _json.append(value);
+        }
+
+        private void string(@NonNull String value) {
+            _json.append('"');
+            for(int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if(c == '"' || c == '\\') {
+                    _json.append('\\').append(c);
+                } else if(c < 0x20) {
+                    _json.append(String.format("\\u%04x", (int)c));
+                } else {
+                    _json.append(c);
+                }
+            }
+            _json.append('"');
+        }
+
+        @NonNull
+        @Override
+        byte[] toByteArray() {
+            return _json.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class CborEncoder extends Encoder {
+        @NonNull
+        private final Cbor.Writer _writer = new Cbor.Writer(256);
+
+        @Override
+        void beginArray(int count) {
+            _writer.writeArrayHeader(count);
+        }
+
+        @Override
+        void endArray() {
+        }
+
+        @Override
+        void beginMap(int count) {
+            _writer.writeMapHeader(count);
+        }
+
+        @Override
+        void endMap() {
+        }
+
+        @NonNull
+        @Override
+        Encoder key(@NonNull String key) {
+            _writer.writeTextString(key);
+            return this;
+        }
+
+        @Override
+        void value(@NonNull String value) {
+            _writer.writeTextString(value);
+        }
+
+        @Override
+        void value(long value) {
+            _writer.writeInteger(value);
+        }
+
+        @NonNull
+        @Override
+        byte[] toByteArray() {
+            return _writer.getBuffer();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.gallagher.nzcovidpass;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.function.ThrowingRunnable;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+public class AdmissionControlTests {
+    @NonNull
+    private static final String validPassPayload = PassVerifier.WARM_UP_PASS;
+    @NonNull
+    private final Date referenceTime = new Date(PassVerifier.WARM_UP_PASS_REFERENCE_TIME);
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testShedsSignatureChecksButNotCheapRejects() throws Exception {
+        final AdmissionControl admissionControl = new AdmissionControl(1);
+        final PassVerifier verifier = new PassVerifier(new PassVerifier.Options(Collections.singletonList(WellKnownIssuerNames.NZCP_TEST)), null, admissionControl);
+
+        // occupy the only slot, as a long-running verify on another thread would
+        Assert.assertTrue(admissionControl.tryAcquire(null));
+
+        assertThrows(CwtSecurityTokenValidationError.Overloaded.class, new ThrowingRunnable() {
+            @Override
+            public void run() throws Throwable {
+                verifier.verify(validPassPayload, referenceTime);
+            }
+        });
+        assertThrows(CwtSecurityTokenValidationError.Overloaded.class, new ThrowingRunnable() {
+            @Override
+            public void run() throws Throwable {
+                verifier.verifyPass(validPassPayload, referenceTime, "gate-1");
+            }
+        });
+        // these are decided before the signature check, so still get a real answer
+        assertThrows(CwtSecurityTokenValidationError.Expired.class, new ThrowingRunnable() {
+            @Override
+            public void run() throws Throwable {
+                verifier.verify(validPassPayload, new Date(2200000000000L));
+            }
+        });
+        assertThrows(PassVerificationError.InvalidPrefix.class, new ThrowingRunnable() {
+            @Override
+            public void run() throws Throwable {
+                verifier.verify("NZCV:/1/ABCDEFGH", referenceTime);
+            }
+        });
+        Assert.assertEquals(2, admissionControl.getShedCount());
+
+        admissionControl.release();
+        verifier.verify(validPassPayload, referenceTime);
+        Assert.assertEquals(0, admissionControl.getInFlight());
+    }
+
+    @Test
+    public void testPerCallerBuckets() {
+        AdmissionControl admissionControl = new AdmissionControl(100, 2, 3);
+        long now = 1000 * SECOND;
+
+        for(int i = 0; i < 3; i++) {
+            Assert.assertTrue(admissionControl.tryAcquire("gate-1", now));
+            admissionControl.release();
+        }
+        Assert.assertFalse(admissionControl.tryAcquire("gate-1", now));
+        Assert.assertEquals(0, admissionControl.getInFlight()); // the slot is given back when the bucket says no
+
+        // other callers, and calls without a caller, aren't affected
+        Assert.assertTrue(admissionControl.tryAcquire("gate-2", now));
+        admissionControl.release();
+        Assert.assertTrue(admissionControl.tryAcquire(null, now));
+        admissionControl.release();
+
+        // refills at 2 a second
+        Assert.assertTrue(admissionControl.tryAcquire("gate-1", now + SECOND / 2));
+        admissionControl.release();
+        Assert.assertFalse(admissionControl.tryAcquire("gate-1", now + SECOND / 2));
+        Assert.assertEquals(2, admissionControl.getShedCount());
+    }
+
+    @Test
+    public void testForgetsIdleCallers() {
+        AdmissionControl admissionControl = new AdmissionControl(1, 1, 1);
+        long now = 1000 * SECOND;
+        for(int i = 0; i < AdmissionControl.MAX_TRACKED_CALLERS; i++) {
+            Assert.assertTrue(admissionControl.tryAcquire("gate-" + i, now));
+            admissionControl.release();
+        }
+        Assert.assertEquals(AdmissionControl.MAX_TRACKED_CALLERS, admissionControl.getTrackedCallerCount());
+
+        // once their buckets have refilled they are indistinguishable from new callers, so can be dropped
+        Assert.assertTrue(admissionControl.tryAcquire("newcomer", now + 2 * SECOND));
+        admissionControl.release();
+        Assert.assertEquals(1, admissionControl.getTrackedCallerCount());
+    }
+
+    @Test
+    public void testNewCallersShareABucketWhenNoneAreIdle() {
+        AdmissionControl admissionControl = new AdmissionControl(1, 1, 1);
+        long now = 1000 * SECOND;
+        for(int i = 0; i < AdmissionControl.MAX_TRACKED_CALLERS; i++) {
+            Assert.assertTrue(admissionControl.tryAcquire("gate-" + i, now));
+            admissionControl.release();
+        }
+
+        // nobody's bucket has refilled, so nobody can be dropped; newcomers get one bucket between them
+        Assert.assertTrue(admissionControl.tryAcquire("newcomer-1", now));
+        admissionControl.release();
+        Assert.assertFalse(admissionControl.tryAcquire("newcomer-2", now));
+        Assert.assertEquals(AdmissionControl.MAX_TRACKED_CALLERS, admissionControl.getTrackedCallerCount());
+
+        // a refill time later there's room again
+        Assert.assertTrue(admissionControl.tryAcquire("newcomer-3", now + SECOND));
+        admissionControl.release();
+        Assert.assertEquals(1, admissionControl.getTrackedCallerCount());
+    }
+
+    @Test
+    public void testRejectsBadLimits() {
+        assertThrows(IllegalArgumentException.class, new ThrowingRunnable() {
+            @Override
+            public void run() {
+                new AdmissionControl(0);
+            }
+        });
+        assertThrows(IllegalArgumentException.class, new ThrowingRunnable() {
+            @Override
+            public void run() {
+                new AdmissionControl(1, 10, 0);
+            }
+        });
+    }
+}
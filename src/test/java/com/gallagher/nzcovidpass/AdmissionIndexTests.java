@@ -0,0 +1,133 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class AdmissionIndexTests {
+    private static final long START = 1639345844000L;
+
+    @NonNull
+    private static VerifiedPass pass(long id, long expirySeconds) {
+        return new VerifiedPass(0, id, VerifiedPass.NO_TIME, expirySeconds, WellKnownIssuerNames.NZCP_TEST, "key-1", "Jack", "Sparrow", "1960-04-16");
+    }
+
+    @Test
+    public void testExpiresAfterTheExpirySecond() {
+        final List<VerifiedPass> expired = new ArrayList<>();
+        AdmissionIndex index = new AdmissionIndex(START, new AdmissionIndex.Listener() {
+            @Override
+            public void expired(@NonNull VerifiedPass pass) {
+                expired.add(pass);
+            }
+        });
+        long exp = START / 1000 + 10;
+        VerifiedPass p = pass(1, exp);
+        Assert.assertTrue(index.add(p));
+        Assert.assertEquals(1, index.getValidCount());
+
+        // still valid during its expiry second, as with VerifiedPass.isValidAt
+        Assert.assertEquals(0, index.advance(exp * 1000 + 999));
+        Assert.assertTrue(p.isValidAt(exp * 1000 + 999));
+        Assert.assertEquals(1, index.getValidCount());
+
+        Assert.assertEquals(1, index.advance(exp * 1000 + 1000));
+        Assert.assertFalse(p.isValidAt(exp * 1000 + 1000));
+        Assert.assertEquals(0, index.getValidCount());
+        Assert.assertFalse(index.contains(p));
+        Assert.assertEquals(1, expired.size());
+        Assert.assertSame(p, expired.get(0));
+    }
+
+    @Test
+    public void testAddRemove() {
+        AdmissionIndex index = new AdmissionIndex(START, null);
+        long now = START / 1000;
+        VerifiedPass p = pass(1, now + 100000);
+        VerifiedPass forever = pass(2, VerifiedPass.NO_TIME);
+
+        Assert.assertTrue(index.add(p));
+        Assert.assertFalse(index.add(p)); // already there
+        Assert.assertFalse(index.add(pass(3, now - 1))); // already expired
+        Assert.assertTrue(index.add(forever));
+        Assert.assertEquals(2, index.getValidCount());
+
+        Assert.assertTrue(index.remove(p));
+        Assert.assertFalse(index.remove(p));
+        Assert.assertEquals(1, index.getValidCount());
+
+        // removed passes don't expire, and passes without an expiry never do
+        Assert.assertEquals(0, index.advance(Long.MAX_VALUE / 2));
+        Assert.assertEquals(1, index.getValidCount());
+        Assert.assertTrue(index.contains(forever));
+    }
+
+    @Test
+    public void testAgreesWithBruteForce() {
+        Random random = new Random(42);
+        final List<VerifiedPass> expired = new ArrayList<>();
+        AdmissionIndex index = new AdmissionIndex(START, new AdmissionIndex.Listener() {
+            @Override
+            public void expired(@NonNull VerifiedPass pass) {
+                expired.add(pass);
+            }
+        });
+        Set<VerifiedPass> live = new HashSet<>();
+        long now = START;
+        long id = 0;
+
+        for(int round = 0; round < 200; round++) {
+            // a mix of passes expiring in seconds, hours, months and decades
+            for(int i = 0; i < 50; i++) {
+                long horizon = new long[] { 100, 100000, 10000000, 1000000000 }[random.nextInt(4)];
+                VerifiedPass p = pass(id++, now / 1000 + (long)(random.nextDouble() * horizon));
+                Assert.assertEquals(p.isValidAt(now), index.add(p));
+                if(p.isValidAt(now)) {
+                    live.add(p);
+                }
+            }
+            if(!live.isEmpty() && random.nextInt(4) == 0) {
+                VerifiedPass victim = live.iterator().next();
+                live.remove(victim);
+                Assert.assertTrue(index.remove(victim));
+            }
+
+            now += (long)(random.nextDouble() * new long[] { 2000, 200000, 20000000, 2000000000L }[random.nextInt(4)]);
+            expired.clear();
+            int count = index.advance(now);
+
+            Set<VerifiedPass> expected = new HashSet<>();
+            for(VerifiedPass p : live) {
+                if(!p.isValidAt(now)) {
+                    expected.add(p);
+                }
+            }
+            live.removeAll(expected);
+
+            Assert.assertEquals(expected.size(), count);
+            Assert.assertEquals(expected, new HashSet<>(expired));
+            Assert.assertEquals(live.size(), index.getValidCount());
+            // notified in expiry order
+            for(int i = 1; i < expired.size(); i++) {
+                Assert.assertTrue(expired.get(i - 1).getExpirySeconds() <= expired.get(i).getExpirySeconds());
+            }
+        }
+    }
+
+    @Test
+    public void testAdvanceIsCheapWhenNothingIsDue() {
+        AdmissionIndex index = new AdmissionIndex(0, null);
+        index.add(pass(1, 4000000000L));
+        // a tick at a time this would be billions of iterations; with the bitmaps it's a handful
+        Assert.assertEquals(0, index.advance(3999999999000L));
+        Assert.assertEquals(1, index.getValidCount());
+        Assert.assertEquals(1, index.advance(4000000001000L));
+    }
+}
@@ -0,0 +1,136 @@
+package com.gallagher.nzcovidpass;
+
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Collections;
+import java.util.Date;
+
+// Fails if verification starts producing noticeably more garbage per call than it does today.
+//
+// Bytes are counted with com.sun.management.ThreadMXBean after a warm-up, so this measures steady state
+// with the JIT's allocation elimination in effect. The crypto provider's own allocation (tens of KB per
+// ECDSA verify on OpenJDK) isn't ours to control and varies by JDK, so it is measured separately in the
+// same run and subtracted. If you've deliberately changed how much a verify allocates, re-measure and
+// update the budgets below
+public class AllocationBudgetTests {
+    // bytes per call
+    private static final long PARSE_INTO_SCRATCH_BUDGET = 4 * 1024;
+    private static final long REJECT_BUDGET = 4 * 1024; // mostly the exception's stack trace, which grows with the caller's stack depth
+    // excluding the provider, and with headroom for the provider's allocation wobbling by a KB or two between measurements
+    private static final long VERIFY_PASS_BUDGET = 6 * 1024;
+    private static final long VERIFY_BUDGET = 6 * 1024; // the returned token is included
+    private static final long AUDIT_RECORD_BUDGET = 0;
+
+    private static final int WARM_UP_ITERATIONS = 2000;
+    private static final int MEASURED_ITERATIONS = 500;
+
+    @NonNull
+    private static final String validPassPayload = PassVerifier.WARM_UP_PASS;
+
+    @NonNull
+    private final Date referenceTime = new Date(PassVerifier.WARM_UP_PASS_REFERENCE_TIME);
+
+    @NonNull
+    private final PassVerifier verifier = new PassVerifier(Collections.singletonList(WellKnownIssuerNames.NZCP_TEST));
+
+    private static com.sun.management.ThreadMXBean threadBean;
+
+    private interface Action {
+        void run() throws Exception;
+    }
+
+    @BeforeClass
+    public static void setUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("needs a JVM that counts allocations per thread", bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean)bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private static long bytesPerCall(@NonNull Action action) throws Exception {
+        for(int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            action.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for(int i = 0; i < MEASURED_ITERATIONS; i++) {
+            action.run();
+        }
+        return (threadBean.getThreadAllocatedBytes(threadId) - before) / MEASURED_ITERATIONS;
+    }
+
+    // what the provider allocates for one signature check over data the size of our Sig_structure
+    private static long providerBytesPerVerify() throws Exception {
+        CwtSecurityToken token = new CwtSecurityToken(Base32.decode(validPassPayload.substring(8)));
+        final PublicKey key = TrustStore.getDefault().getSnapshot().find(WellKnownIssuerNames.NZCP_TEST, "key-1").getPublicKey();
+        final Signature signature = Signature.getInstance(CwtSecurityTokenValidator.P1363_SUPPORTED ? "SHA256withECDSAinP1363Format" : "SHA256withECDSA");
+        final byte[] data = new byte[token.getBuffer().length];
+        final byte[] sig = CwtSecurityTokenValidator.P1363_SUPPORTED ? token.getSignature() : new byte[CwtSecurityTokenValidator.MAX_DER_SIGNATURE_LENGTH];
+        final int sigLength = CwtSecurityTokenValidator.P1363_SUPPORTED ? sig.length : CwtSecurityTokenValidator.encodeDerSignature(token.getSignature(), sig);
+        return bytesPerCall(() -> {
+            signature.initVerify(key);
+            signature.update(data);
+            signature.verify(sig, 0, sigLength);
+        });
+    }
+
+    private static void assertWithinBudget(@NonNull String what, long measured, long budget) {
+        assertTrue(what + " allocated " + measured + " bytes per call; the budget is " + budget, measured <= budget);
+    }
+
+    @Test
+    public void testParseIntoScratch() throws Exception {
+        final byte[] scratch = new byte[512];
+        long bytes = bytesPerCall(() -> new CwtSecurityToken(new Base32.DecodingSource(validPassPayload, 8, validPassPayload.length()), scratch));
+        assertWithinBudget("parse", bytes, PARSE_INTO_SCRATCH_BUDGET);
+    }
+
+    @Test
+    public void testCheapReject() throws Exception {
+        long bytes = bytesPerCall(() -> {
+            try {
+                verifier.verify("NZCV:/1/ABCDEFGH", referenceTime);
+            } catch (PassVerificationError.InvalidPrefix expected) {
+                // fine
+            }
+        });
+        assertWithinBudget("reject", bytes, REJECT_BUDGET);
+    }
+
+    @Test
+    public void testVerifyPass() throws Exception {
+        long provider = providerBytesPerVerify();
+        long bytes = bytesPerCall(() -> verifier.verifyPass(validPassPayload, referenceTime));
+        assertWithinBudget("verifyPass (provider used " + provider + ")", bytes - provider, VERIFY_PASS_BUDGET);
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        long provider = providerBytesPerVerify();
+        long bytes = bytesPerCall(() -> verifier.verify(validPassPayload, referenceTime));
+        assertWithinBudget("verify (provider used " + provider + ")", bytes - provider, VERIFY_BUDGET);
+    }
+
+    @Test
+    public void testAuditRecord() throws Exception {
+        File file = File.createTempFile("audit", ".log");
+        file.delete();
+        try(final AuditLog log = new AuditLog(file, 2, 1024, 0)) {
+            long bytes = bytesPerCall(() -> log.record(System.currentTimeMillis(), AuditSink.Outcome.VALID, 1, 2, 3, WellKnownIssuerNames.NZCP));
+            assertWithinBudget("audit record", bytes, AUDIT_RECORD_BUDGET);
+        } finally {
+            file.delete();
+        }
+    }
+}
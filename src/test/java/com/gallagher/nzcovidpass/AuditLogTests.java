@@ -0,0 +1,241 @@
+package com.gallagher.nzcovidpass;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.function.ThrowingRunnable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+public class AuditLogTests {
+    @NonNull
+    private static final String validPassPayload = PassVerifier.WARM_UP_PASS;
+    @NonNull
+    private final Date referenceTime = new Date(PassVerifier.WARM_UP_PASS_REFERENCE_TIME);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsAreReadBack() throws IOException {
+        File file = folder.newFile("audit.log");
+        try(AuditLog log = new AuditLog(file, 4, 16, 0)) {
+            log.record(1000L, AuditSink.Outcome.VALID, 1, 2, 1700000000L, WellKnownIssuerNames.NZCP);
+            log.record(2000L, AuditSink.Outcome.INVALID_PASS, 0, 0, VerifiedPass.NO_TIME, null);
+        }
+
+        try(AuditLog.Reader reader = new AuditLog.Reader(file)) {
+            List<AuditLog.Record> records = reader.readAll();
+            Assert.assertEquals(2, records.size());
+
+            AuditLog.Record first = records.get(0);
+            Assert.assertEquals(1, first.getSequence());
+            Assert.assertEquals(1000L, first.getTimeMillis());
+            Assert.assertEquals(AuditSink.Outcome.VALID, first.getOutcome());
+            Assert.assertEquals(1, first.getCtiMostSignificantBits());
+            Assert.assertEquals(2, first.getCtiLeastSignificantBits());
+            Assert.assertEquals(1700000000L, first.getExpirySeconds());
+            Assert.assertEquals(WellKnownIssuerNames.NZCP, first.getIssuer());
+
+            AuditLog.Record second = records.get(1);
+            Assert.assertEquals(2, second.getSequence());
+            Assert.assertEquals(AuditSink.Outcome.INVALID_PASS, second.getOutcome());
+            Assert.assertEquals(VerifiedPass.NO_TIME, second.getExpirySeconds());
+            Assert.assertNull(second.getIssuer());
+        }
+    }
+
+    @Test
+    public void testRingOverwritesOldest() throws IOException {
+        File file = folder.newFile("audit.log");
+        try(AuditLog log = new AuditLog(file, 4, 8, 0)) {
+            for(int i = 1; i <= 100; i++) {
+                log.record(i, AuditSink.Outcome.VALID, 0, i, 0, null);
+            }
+        }
+
+        try(AuditLog.Reader reader = new AuditLog.Reader(file)) {
+            List<AuditLog.Record> records = reader.readAll();
+            Assert.assertEquals(32, records.size());
+            for(int i = 0; i < records.size(); i++) {
+                Assert.assertEquals(69 + i, records.get(i).getSequence());
+                Assert.assertEquals(69 + i, records.get(i).getCtiLeastSignificantBits());
+            }
+
+            // slot 100 is the fourth in segment 0, so it holds 97-100 followed by the previous lap's 69-72
+            List<AuditLog.Record> segment = reader.readSegment(0);
+            Assert.assertEquals(8, segment.size());
+            Assert.assertEquals(69, segment.get(0).getSequence());
+            Assert.assertEquals(100, segment.get(7).getSequence());
+        }
+    }
+
+    @Test
+    public void testReopenContinuesSequence() throws IOException {
+        File file = folder.newFile("audit.log");
+        try(AuditLog log = new AuditLog(file, 2, 8, 0)) {
+            log.record(1, AuditSink.Outcome.VALID, 0, 0, 0, null);
+            log.record(2, AuditSink.Outcome.VALID, 0, 0, 0, null);
+        }
+        try(AuditLog log = new AuditLog(file, 2, 8, 0)) {
+            Assert.assertEquals(2, log.getLastSequence());
+            log.record(3, AuditSink.Outcome.EXPIRED, 0, 0, 0, null);
+        }
+        try(AuditLog.Reader reader = new AuditLog.Reader(file)) {
+            List<AuditLog.Record> records = reader.readAll();
+            Assert.assertEquals(3, records.size());
+            Assert.assertEquals(AuditSink.Outcome.EXPIRED, records.get(2).getOutcome());
+        }
+
+        // a different layout is refused rather than reinterpreted
+        assertThrows(IOException.class, new ThrowingRunnable() {
+            @Override
+            public void run() throws Throwable {
+                new AuditLog(file, 4, 8, 0).close();
+            }
+        });
+    }
+
+    @Test
+    public void testCorruptRecordIsSkipped() throws IOException {
+        File file = folder.newFile("audit.log");
+        try(AuditLog log = new AuditLog(file, 1, 8, 0)) {
+            log.record(1, AuditSink.Outcome.VALID, 0, 0, 0, "did:web:a");
+            log.record(2, AuditSink.Outcome.VALID, 0, 0, 0, "did:web:b");
+        }
+        // flip a byte of the first record's issuer, as a torn write would
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(AuditLog.HEADER_SIZE + 45);
+            raf.write('x');
+        }
+        try(AuditLog.Reader reader = new AuditLog.Reader(file)) {
+            List<AuditLog.Record> records = reader.readAll();
+            Assert.assertEquals(1, records.size());
+            Assert.assertEquals("did:web:b", records.get(0).getIssuer());
+        }
+    }
+
+    @Test
+    public void testConcurrentWritersClaimDistinctSlots() throws Exception {
+        File file = folder.newFile("audit.log");
+        final int threads = 4;
+        final int perThread = 2000;
+        try(final AuditLog log = new AuditLog(file, 4, 4096, 10)) {
+            List<Thread> workers = new ArrayList<>();
+            for(int t = 0; t < threads; t++) {
+                final int id = t;
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for(int i = 0; i < perThread; i++) {
+                            log.record(i, AuditSink.Outcome.VALID, id, i, 0, WellKnownIssuerNames.NZCP_TEST);
+                        }
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+            for(Thread worker : workers) {
+                worker.join();
+            }
+        }
+
+        try(AuditLog.Reader reader = new AuditLog.Reader(file)) {
+            List<AuditLog.Record> records = reader.readAll();
+            Assert.assertEquals(threads * perThread, records.size());
+            Set<Long> seen = new HashSet<>();
+            for(AuditLog.Record record : records) {
+                Assert.assertTrue(seen.add(record.getCtiMostSignificantBits() * perThread + record.getCtiLeastSignificantBits()));
+            }
+        }
+    }
+
+    @Test
+    public void testVerifierRecordsDecisions() throws Exception {
+        File file = folder.newFile("audit.log");
+        try(AuditLog log = new AuditLog(file, 2, 16, 0)) {
+            PassVerifier verifier = new PassVerifier(new PassVerifier.Options(Collections.singletonList(WellKnownIssuerNames.NZCP_TEST)), log);
+            CwtSecurityToken token = verifier.verify(validPassPayload, referenceTime);
+            verifier.verifyPass(validPassPayload, referenceTime);
+            try {
+                verifier.verify(validPassPayload, new Date(2200000000000L));
+                Assert.fail("expected Expired");
+            } catch (CwtSecurityTokenValidationError.Expired expected) {
+                // recorded
+            }
+            try {
+                verifier.verifyPass("NZCV:/1/ABCDEFGH", referenceTime);
+                Assert.fail("expected InvalidPrefix");
+            } catch (PassVerificationError.InvalidPrefix expected) {
+                // recorded
+            }
+
+            try(AuditLog.Reader reader = new AuditLog.Reader(file)) {
+                List<AuditLog.Record> records = reader.readAll();
+                Assert.assertEquals(4, records.size());
+                UUID cti = token.getPayload().getCti();
+                long expiry = token.getPayload().getExpiry().getTime() / 1000;
+
+                AuditSink.Outcome[] outcomes = { AuditSink.Outcome.VALID, AuditSink.Outcome.VALID, AuditSink.Outcome.EXPIRED };
+                for(int i = 0; i < outcomes.length; i++) {
+                    AuditLog.Record record = records.get(i);
+                    Assert.assertEquals(outcomes[i], record.getOutcome());
+                    Assert.assertEquals(cti, new UUID(record.getCtiMostSignificantBits(), record.getCtiLeastSignificantBits()));
+                    Assert.assertEquals(expiry, record.getExpirySeconds());
+                    Assert.assertEquals(WellKnownIssuerNames.NZCP_TEST, record.getIssuer());
+                }
+
+                AuditLog.Record rejected = records.get(3);
+                Assert.assertEquals(AuditSink.Outcome.INVALID_PASS, rejected.getOutcome());
+                Assert.assertEquals(0, rejected.getCtiMostSignificantBits());
+                Assert.assertEquals(VerifiedPass.NO_TIME, rejected.getExpirySeconds());
+                Assert.assertNull(rejected.getIssuer());
+            }
+        }
+    }
+
+    @Test
+    public void testWarmUpIsNotRecorded() throws Exception {
+        File file = folder.newFile("audit.log");
+        try(AuditLog log = new AuditLog(file, 2, 16, 0)) {
+            // one verifier that rejects the example pass and one that accepts it
+            new PassVerifier(new PassVerifier.Options(), log).warmUp(1);
+            new PassVerifier(new PassVerifier.Options(Collections.singletonList(WellKnownIssuerNames.NZCP_TEST)), log).warmUp(1);
+
+            try(AuditLog.Reader reader = new AuditLog.Reader(file)) {
+                Assert.assertEquals(0, reader.readAll().size());
+            }
+        }
+    }
+
+    @Test
+    public void testExportCsv() throws IOException {
+        File file = folder.newFile("audit.log");
+        UUID cti = UUID.fromString("60a4f54d-4e30-4332-be33-ad78b1eafa4b");
+        try(AuditLog log = new AuditLog(file, 2, 4, 0)) {
+            log.record(1639345844000L, AuditSink.Outcome.VALID, cti.getMostSignificantBits(), cti.getLeastSignificantBits(), 1951382400L, WellKnownIssuerNames.NZCP_TEST);
+            log.record(1639345845000L, AuditSink.Outcome.INVALID_TOKEN, 0, 0, VerifiedPass.NO_TIME, null);
+        }
+        StringBuilder csv = new StringBuilder();
+        try(AuditLog.Reader reader = new AuditLog.Reader(file)) {
+            reader.exportCsv(csv);
+        }
+        Assert.assertEquals("sequence,time,outcome,cti,exp,issuer\n" +
+                "1,1639345844000,VALID,urn:uuid:60a4f54d-4e30-4332-be33-ad78b1eafa4b,1951382400,\"did:web:nzcp.covid19.health.nz\"\n" +
+                "2,1639345845000,INVALID_TOKEN,,,\n", csv.toString());
+    }
+}
@@ -9,6 +9,10 @@ import org.apache.commons.codec.binary.Base16;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
 // ref https://github.com/cbor/test-vectors/blob/master/appendix_a.json
 public class Base32Tests {
     @Test
@@ -32,4 +36,95 @@ public class Base32Tests {
         byte[] d = Base32.decode("RFIE4RYNBINAUAAAAAGUSSCEKIAAAAABAAAAAAIIAYAAAAA7CXCISAAAAAGUSRCBKR4NUY7476P2CHQAA6BAE7Z5ZBEO6AAAAAAESRKOISXEEYEC");
         assertArrayEquals(referenceData, d);
     }
+
+    @Test
+    public void testDecodeRange() {
+        byte[] d = Base32.decode("NZCP:/1/IRXWO===", 8, 16);
+        assertArrayEquals(new byte[]{ (byte)'D', (byte)'o', (byte)'g' }, d);
+
+        assertEquals(0, Base32.decode("NZCP:/1/", 8, 8).length);
+    }
+
+    @Test
+    public void testDecodeShortString() {
+        // used to throw StringIndexOutOfBounds when peeking for padding
+        assertArrayEquals(new byte[0], Base32.decode("I"));
+        assertArrayEquals(new byte[]{ (byte)'D' }, Base32.decode("IQ"));
+    }
+
+    @Test
+    public void testDecodingSourceMatchesDecode() throws Cbor.ReadError {
+        String encoded = "RFIE4RYNBINAUAAAAAGUSSCEKIAAAAABAAAAAAIIAYAAAAA7CXCISAAAAAGUSRCBKR4NUY7476P2CHQAA6BAE7Z5ZBEO6AAAAAAESRKOISXEEYEC";
+        byte[] expected = Base32.decode(encoded);
+
+        Base32.DecodingSource source = new Base32.DecodingSource(encoded, 0, encoded.length());
+        assertEquals(expected.length, source.remaining());
+        assertEquals(expected.length, Base32.validate(encoded, 0, encoded.length()));
+
+        byte[] actual = new byte[expected.length];
+        actual[0] = (byte)source.peekByte();
+        actual[0] = (byte)source.readByte();
+        source.skip(1);
+        actual[1] = expected[1];
+        source.read(actual, 2, actual.length - 2);
+        assertArrayEquals(expected, actual);
+        assertEquals(0, source.remaining());
+    }
+
+    @Test
+    public void testDecodingSourceRejectsInvalidCharacters() {
+        Base32.DecodingSource source = new Base32.DecodingSource("AB!D", 0, 4);
+        Assert.assertThrows(Cbor.ReadError.MalformedInput.class, () -> source.read(new byte[2], 0, 2));
+        Assert.assertThrows(IllegalArgumentException.class, () -> Base32.validate("AB!D", 0, 4));
+    }
+
+    @Test
+    public void testDecodeIntoMatchesDecode() {
+        // every length up to a few blocks, with both cases and padding, at an offset in both the source and the dest
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567abcdefghijklmnopqrstuvwxyz";
+        Random random = new Random(49);
+        byte[] dest = new byte[200];
+        for(int i = 0; i < 5000; i++) {
+            StringBuilder encoded = new StringBuilder("NZCP:/1/");
+            int length = random.nextInt(100);
+            for(int j = 0; j < length; j++) {
+                encoded.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            for(int j = random.nextInt(4); j > 0; j--) {
+                encoded.append('=');
+            }
+            String str = encoded.toString();
+            byte[] expected = Base32.decode(str, 8, str.length());
+            int offset = random.nextInt(10);
+            assertEquals(expected.length, Base32.decodedLength(str, 8, str.length()));
+            assertEquals(expected.length, Base32.decodeInto(str, 8, str.length(), dest, offset));
+            assertArrayEquals(str, expected, Arrays.copyOfRange(dest, offset, offset + expected.length));
+
+            Arrays.fill(dest, (byte)0);
+            byte[] ascii = str.getBytes(StandardCharsets.US_ASCII);
+            assertEquals(expected.length, Base32.decodeInto(ascii, 8, ascii.length, dest, offset));
+            assertArrayEquals(str, expected, Arrays.copyOfRange(dest, offset, offset + expected.length));
+        }
+    }
+
+    @Test
+    public void testDecodeIntoRejectsWhatDecodeRejects() {
+        String valid = "IRXWOIDBNZSCAY3BOQQGC3TEEBWW65LTMU";
+        // just outside each range, and characters whose low 7 bits are valid
+        for(char bad : new char[] { '@', '[', '`', '{', '1', '8', '0', ' ', '\u00c1', '\u00e1', '\u0141', '\uffe1' }) {
+            for(int position = 0; position < valid.length(); position++) {
+                String str = valid.substring(0, position) + bad + valid.substring(position + 1);
+                Assert.assertThrows(str, IllegalArgumentException.class, () -> Base32.decode(str));
+                Assert.assertThrows(str, IllegalArgumentException.class, () -> Base32.decodeInto(str, 0, str.length(), new byte[32], 0));
+                if(bad <= 0xff) {
+                    byte[] bytes = str.getBytes(StandardCharsets.ISO_8859_1);
+                    Assert.assertThrows(str, IllegalArgumentException.class, () -> Base32.decodeInto(bytes, 0, bytes.length, new byte[32], 0));
+                }
+            }
+        }
+        Assert.assertThrows(IndexOutOfBoundsException.class, () -> Base32.decodeInto(valid, 0, valid.length(), new byte[20], 0));
+        Assert.assertThrows(IndexOutOfBoundsException.class, () -> Base32.decodeInto(valid, 0, valid.length(), new byte[21], 1));
+        assertEquals(21, Base32.decodeInto(valid, 0, valid.length(), new byte[21], 0));
+        Assert.assertThrows(IndexOutOfBoundsException.class, () -> Base32.decodeInto(new byte[8], 4, 9, new byte[8], 0));
+    }
 }
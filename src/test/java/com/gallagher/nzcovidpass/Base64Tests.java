@@ -1,6 +1,8 @@
 package com.gallagher.nzcovidpass;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
 
 import org.junit.Test;
 
@@ -37,4 +39,34 @@ public class Base64Tests {
         }
     }
 
+    @Test
+    public void IntrinsicsVariant() {
+        // guards the build wiring: `test` should see the Java 11 overlay and `testBaseline` shouldn't
+        assertEquals(Boolean.getBoolean("nzcovidpass.expectOverlay"), Intrinsics.isOverlay());
+    }
+
+    // whichever Intrinsics is loaded (Java 11 overlay or baseline) must agree with the baseline decoder
+    @Test
+    public void DecodeAgreesWithBaseline() {
+        Random random = new Random(1234);
+        for(int i = 0; i < 200; i++) {
+            byte[] input = new byte[random.nextInt(48)];
+            random.nextBytes(input);
+            String standard = org.apache.commons.codec.binary.Base64.encodeBase64String(input);
+            String url = org.apache.commons.codec.binary.Base64.encodeBase64URLSafeString(input); // unpadded
+            assertArrayEquals(input, Base64.decode(standard));
+            assertArrayEquals(input, Base64.decode(url));
+            assertArrayEquals(Base64.decodeBaseline(standard), Base64.decode(standard));
+            assertArrayEquals(Base64.decodeBaseline(url), Base64.decode(url));
+        }
+    }
+
+    @Test
+    public void DecodeLenientInputs() {
+        // mixed alphabets and a dangling character are things the JDK decoder rejects but ours has always accepted
+        assertArrayEquals(Base64.decodeBaseline("ab+_"), Base64.decode("ab+_"));
+        assertEquals(3, Base64.decode("ab+_").length);
+        assertArrayEquals(Base64.decodeBaseline("abcde"), Base64.decode("abcde"));
+        assertThrows("", IllegalArgumentException.class, () -> Base64.decode("ab!d"));
+    }
 }
@@ -0,0 +1,161 @@
+package com.gallagher.nzcovidpass;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.annotation.NonNull;
+
+import org.apache.commons.codec.binary.Base16;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+// Throws mutated and random input at the CBOR reader and the CWT parser, and checks that every input is either
+// accepted or rejected with a typed error, within a bounded amount of time and allocation.
+//
+// This runs as an ordinary unit test with a fixed seed. For longer runs set -Dnzcovidpass.fuzz.iterations=<n>
+// (and optionally -Dnzcovidpass.fuzz.seed=<n>). fuzzerTestOneInput follows the Jazzer entry point convention,
+// so the same checks can be driven by a coverage-guided fuzzer.
+public class CborFuzzTests {
+    @NonNull
+    private static final byte[] SEED = new Base16(true).decode("d2844aa204456b65792d310126a059011fa501781e6469643a7765623a6e7a63702e636f76696431392e6865616c74682e6e7a051a61819a0a041a7450400a627663a46840636f6e7465787482782668747470733a2f2f7777772e77332e6f72672f323031382f63726564656e7469616c732f7631782a68747470733a2f2f6e7a63702e636f76696431392e6865616c74682e6e7a2f636f6e74657874732f76316776657273696f6e65312e302e306474797065827456657269666961626c6543726564656e7469616c6f5075626c6963436f766964506173737163726564656e7469616c5375626a656374a369676976656e4e616d65644a61636b6a66616d696c794e616d656753706172726f7763646f626a313936302d30342d3136075060a4f54d4e304332be33ad78b1eafa4b5840d2e07b1dd7263d833166bdbb4f1a093837a905d7eca2ee836b6b2ada23c23154fba88a529f675d6686ee632b09ec581ab08f72b458904bb3396d10fa66d11477");
+
+    // generous, so the test isn't flaky on a slow CI box; a decoder that misbehaves blows through these by orders of magnitude
+    private static final long MAX_NANOS_PER_INPUT = 50_000_000L;
+    private static final long MAX_ALLOCATED_BYTES_PER_INPUT = 64 * 1024;
+    private static final long MAX_ALLOCATED_BYTES_PER_INPUT_BYTE = 64;
+
+    public static void fuzzerTestOneInput(@NonNull byte[] data) {
+        try {
+            new Cbor.Reader(data).read();
+        } catch (Cbor.ReadError expected) {
+            // fine
+        }
+        try {
+            new CwtSecurityToken(data);
+        } catch (CwtSecurityTokenError expected) {
+            // fine
+        }
+    }
+
+    @Test
+    public void testMutatedInputs() {
+        int iterations = Integer.getInteger("nzcovidpass.fuzz.iterations", 20000);
+        Random random = new Random(Long.getLong("nzcovidpass.fuzz.seed", 0x4e5a4350L));
+
+        com.sun.management.ThreadMXBean threadBean = allocationCounter();
+        long threadId = Thread.currentThread().getId();
+
+        // let the JIT settle so timings and allocation reflect steady state
+        for(int i = 0; i < 2000; i++) {
+            fuzzerTestOneInput(mutate(random, SEED));
+        }
+
+        for(int i = 0; i < iterations; i++) {
+            byte[] input = i % 10 == 0 ? randomBytes(random) : mutate(random, SEED);
+
+            long allocatedBefore = threadBean == null ? 0 : threadBean.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            try {
+                fuzzerTestOneInput(input);
+            } catch (Throwable t) {
+                fail("unexpected " + t + " for input " + new Base16(true).encodeAsString(input));
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = threadBean == null ? 0 : threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+            assertTrue("took " + elapsed + "ns for input " + new Base16(true).encodeAsString(input), elapsed < MAX_NANOS_PER_INPUT);
+            long allocationBudget = MAX_ALLOCATED_BYTES_PER_INPUT + MAX_ALLOCATED_BYTES_PER_INPUT_BYTE * input.length;
+            assertTrue("allocated " + allocated + " bytes for input " + new Base16(true).encodeAsString(input), allocated < allocationBudget);
+        }
+    }
+
+    @Test
+    public void testHostileShapes() {
+        // deeply nested arrays, maps and tags; and containers claiming huge lengths
+        byte[][] inputs = {
+                repeat((byte)0x81, 1_000_000),
+                repeat((byte)0xa1, 1_000_000),
+                repeat((byte)0xd8, 1_000_000),
+                new byte[]{ (byte)0x9b, 0x7f, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff },
+                new byte[]{ (byte)0xbb, 0x00, 0x00, 0x00, 0x00, 0x7f, (byte)0xff, (byte)0xff, (byte)0xff },
+                new byte[]{ (byte)0x5b, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff },
+                new byte[]{ (byte)0x9f, 0x01, (byte)0xff }, // indefinite length
+        };
+        for(byte[] input : inputs) {
+            try {
+                fuzzerTestOneInput(input);
+            } catch (Throwable t) {
+                fail("unexpected " + t + " for input starting " + new Base16(true).encodeAsString(Arrays.copyOf(input, Math.min(16, input.length))));
+            }
+        }
+    }
+
+    @NonNull
+    private static byte[] mutate(@NonNull Random random, @NonNull byte[] seed) {
+        byte[] result = seed.clone();
+        int mutations = 1 + random.nextInt(8);
+        for(int m = 0; m < mutations; m++) {
+            switch(random.nextInt(5)) {
+                case 0: // flip a bit
+                    result[random.nextInt(result.length)] ^= (byte)(1 << random.nextInt(8));
+                    break;
+                case 1: // interesting header byte (big counts, specials, nesting)
+                    result[random.nextInt(result.length)] = INTERESTING[random.nextInt(INTERESTING.length)];
+                    break;
+                case 2: // truncate
+                    result = Arrays.copyOf(result, random.nextInt(result.length) + 1);
+                    break;
+                case 3: { // duplicate a chunk onto the end
+                    int from = random.nextInt(result.length);
+                    int len = random.nextInt(result.length - from) + 1;
+                    byte[] grown = Arrays.copyOf(result, result.length + len);
+                    System.arraycopy(result, from, grown, result.length, len);
+                    result = grown;
+                    break;
+                }
+                default: // random byte
+                    result[random.nextInt(result.length)] = (byte)random.nextInt(256);
+                    break;
+            }
+        }
+        return result;
+    }
+
+    @NonNull
+    private static final byte[] INTERESTING = {
+            0x17, 0x18, 0x1a, 0x1b, 0x1c, 0x1f, 0x3b, 0x5a, 0x5b, 0x5f, 0x7b, 0x7f,
+            (byte)0x81, (byte)0x9a, (byte)0x9b, (byte)0x9f, (byte)0xa1, (byte)0xba, (byte)0xbb, (byte)0xbf,
+            (byte)0xd2, (byte)0xdb, (byte)0xf4, (byte)0xf6, (byte)0xfb, (byte)0xff,
+    };
+
+    @NonNull
+    private static byte[] randomBytes(@NonNull Random random) {
+        byte[] result = new byte[1 + random.nextInt(512)];
+        random.nextBytes(result);
+        return result;
+    }
+
+    @NonNull
+    private static byte[] repeat(byte b, int count) {
+        byte[] result = new byte[count];
+        Arrays.fill(result, b);
+        return result;
+    }
+
+    // null if the JVM can't tell us (e.g. not HotSpot), in which case we only check time
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+        if(!sunBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        return sunBean;
+    }
+}
@@ -1,6 +1,7 @@
 package com.gallagher.nzcovidpass;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
 import androidx.annotation.NonNull;
@@ -10,11 +11,15 @@ import org.apache.commons.codec.binary.Base32;
 import org.apache.commons.codec.binary.Base64;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 
 @SuppressWarnings("ALL")
 public class CborTests {
@@ -227,6 +232,118 @@ public class CborTests {
         }
     }
 
+    public static class CborReadErrorTests {
+        void assertReadError(@NonNull Class<? extends Cbor.ReadError> expected, @NonNull String hex, @NonNull Cbor.Limits limits) {
+            Cbor.Reader reader = new Cbor.Reader(new Base16(true).decode(hex), 0, limits);
+            assertThrows(expected, reader::read);
+        }
+
+        void assertReadError(@NonNull Class<? extends Cbor.ReadError> expected, @NonNull String hex) {
+            assertReadError(expected, hex, Cbor.Limits.DEFAULT);
+        }
+
+        @Test
+        public void testRead23() throws Cbor.ReadError {
+            // 23 is the largest value that fits directly in the initial byte
+            assertEquals(23, new Cbor.Reader(new byte[]{ 0x17 }).read().asInteger().intValue());
+            assertEquals(-24, new Cbor.Reader(new byte[]{ 0x37 }).read().asInteger().intValue());
+        }
+
+        @Test
+        public void testRead64BitInteger() throws Cbor.ReadError {
+            assertEquals(1000000, new Cbor.Reader(new Base16(true).decode("1b00000000000f4240")).read().asInteger().intValue());
+            assertReadError(Cbor.ReadError.IntegerOutOfRange.class, "1b000000e8d4a51000"); // 1000000000000
+            assertReadError(Cbor.ReadError.IntegerOutOfRange.class, "1a80000000"); // 2^31
+        }
+
+        @Test
+        public void testRejectsSpecialTypes() {
+            assertReadError(Cbor.ReadError.UnsupportedType.class, "f5"); // true
+            assertReadError(Cbor.ReadError.UnsupportedType.class, "fb3ff199999999999a"); // 1.1
+        }
+
+        @Test
+        public void testRejectsTruncatedInput() {
+            assertReadError(Cbor.ReadError.InputTooShort.class, "");
+            assertReadError(Cbor.ReadError.InputTooShort.class, "18");
+            assertReadError(Cbor.ReadError.InputTooShort.class, "19ff");
+            assertReadError(Cbor.ReadError.InputTooShort.class, "6461"); // 4 character string with 1 byte
+            assertReadError(Cbor.ReadError.InputTooShort.class, "8301"); // 3 element array with 1 element
+            assertReadError(Cbor.ReadError.InputTooShort.class, "a201"); // 2 entry map with half an entry
+            assertReadError(Cbor.ReadError.InputTooShort.class, "5a7fffffff00"); // huge byte string
+            assertReadError(Cbor.ReadError.InputTooShort.class, "9a7fffffff00"); // huge array must not be pre-allocated
+        }
+
+        @Test
+        public void testDepthLimit() throws Cbor.ReadError {
+            StringBuilder nested = new StringBuilder();
+            for(int i = 0; i < 100000; i++) {
+                nested.append("81"); // array containing one element
+            }
+            nested.append("01");
+            // this used to be a StackOverflowError
+            assertReadError(Cbor.ReadError.LimitExceeded.class, nested.toString(), new Cbor.Limits(100, Integer.MAX_VALUE, Integer.MAX_VALUE));
+
+            Cbor.Value shallow = new Cbor.Reader(new Base16(true).decode("818101"), 0, new Cbor.Limits(2, 10, 10)).read();
+            assertEquals(Cbor.value(Collections.singletonList(Cbor.value(Collections.singletonList(Cbor.value(1))))), shallow);
+            assertReadError(Cbor.ReadError.LimitExceeded.class, "818101", new Cbor.Limits(1, 10, 10));
+            assertReadError(Cbor.ReadError.LimitExceeded.class, "d820d82001", new Cbor.Limits(1, 10, 10)); // tags nest too
+        }
+
+        @Test
+        public void testItemLimit() {
+            assertReadError(Cbor.ReadError.LimitExceeded.class, "83010203", new Cbor.Limits(10, 3, 100));
+            assertReadError(Cbor.ReadError.LimitExceeded.class, "a10102", new Cbor.Limits(10, 2, 100)); // keys count as items
+        }
+
+        @Test
+        public void testStepwiseReading() throws Cbor.ReadError {
+            // [h'0102', {1: [2, 3], "a": 32("b")}, "c"]
+            Cbor.Reader reader = new Cbor.Reader(new Base16(true).decode("83420102a2018202036161d820616263626162"));
+            assertEquals(Cbor.MajorType.ARRAY, reader.peekType());
+            assertEquals(3, reader.readHeader(Cbor.MajorType.ARRAY));
+
+            byte[] dest = new byte[4];
+            assertEquals(2, reader.readByteString(dest, 1));
+            assertEquals(1, dest[1]);
+            assertEquals(2, dest[2]);
+
+            reader.skip();
+            assertThrows(Cbor.ReadError.MalformedInput.class, () -> reader.readHeader(Cbor.MajorType.BYTE_STRING));
+            assertEquals(Cbor.value("bab"), reader.read());
+        }
+
+        @Test
+        public void testBigEndianReadsAgree() throws Cbor.ReadError {
+            // ByteArraySource reads multi-byte counts through Intrinsics (VarHandles on Java 11+); check it against
+            // the generic byte-at-a-time path every other Source uses
+            Random random = new Random(1234);
+            byte[] data = new byte[64];
+            random.nextBytes(data);
+            for(int byteCount : new int[]{ 1, 2, 4, 8 }) {
+                for(int offset = 0; offset + byteCount <= data.length; offset++) {
+                    final Cbor.ByteArraySource fast = new Cbor.ByteArraySource(data, offset, data.length);
+                    final Cbor.ByteArraySource inner = new Cbor.ByteArraySource(data, offset, data.length);
+                    Cbor.Source generic = new Cbor.Source() {
+                        @Override public int remaining() { return inner.remaining(); }
+                        @Override public int peekByte() throws Cbor.ReadError { return inner.peekByte(); }
+                        @Override public int readByte() throws Cbor.ReadError { return inner.readByte(); }
+                    };
+                    assertEquals(generic.readBigEndian(byteCount), fast.readBigEndian(byteCount));
+                    assertEquals(generic.remaining(), fast.remaining());
+                }
+            }
+            Cbor.ByteArraySource tooShort = new Cbor.ByteArraySource(data, data.length - 3, data.length);
+            assertThrows(Cbor.ReadError.InputTooShort.class, () -> tooShort.readBigEndian(4));
+            assertEquals(3, tooShort.remaining());
+        }
+
+        @Test
+        public void testByteLimit() {
+            assertReadError(Cbor.ReadError.LimitExceeded.class, "83010203", new Cbor.Limits(10, 10, 3));
+        }
+    }
+
     public static class CborWriteTests {
         @NonNull
         String writeSingleBase64(@NonNull Cbor.Value value) {
@@ -362,4 +479,241 @@ public class CborTests {
 
         // writer can't do maps yet
     }
+
+    public static class CborDecoderTests {
+        static final String COVID_PASS_HEX = "d2844aa204456b65792d310126a059011fa501781e6469643a7765623a6e7a63702e636f76696431392e6865616c74682e6e7a051a61819a0a041a7450400a627663a46840636f6e7465787482782668747470733a2f2f7777772e77332e6f72672f323031382f63726564656e7469616c732f7631782a68747470733a2f2f6e7a63702e636f76696431392e6865616c74682e6e7a2f636f6e74657874732f76316776657273696f6e65312e302e306474797065827456657269666961626c6543726564656e7469616c6f5075626c6963436f766964506173737163726564656e7469616c5375626a656374a369676976656e4e616d65644a61636b6a66616d696c794e616d656753706172726f7763646f626a313936302d30342d3136075060a4f54d4e304332be33ad78b1eafa4b5840d2e07b1dd7263d833166bdbb4f1a093837a905d7eca2ee836b6b2ada23c23154fba88a529f675d6686ee632b09ec581ab08f72b458904bb3396d10fa66d11477";
+
+        // writes down every event, so runs can be compared
+        static class Recorder extends Cbor.Decoder.Handler {
+            final List<Object> events = new ArrayList<>();
+
+            @Override
+            public void onStart(@NonNull Cbor.MajorType type, int count) {
+                events.add("start " + type + " " + count);
+            }
+
+            @Override
+            public void onValue(@NonNull Cbor.Value value) {
+                events.add(value);
+            }
+
+            @Override
+            public void onEnd() {
+                events.add("end");
+            }
+        }
+
+        @NonNull
+        static List<Object> decode(@NonNull byte[] data, int chunkSize, int emitDepth, @NonNull Cbor.Limits limits) throws Cbor.ReadError {
+            Recorder recorder = new Recorder();
+            Cbor.Decoder decoder = new Cbor.Decoder(recorder, emitDepth, limits);
+            for(int offset = 0; offset < data.length; offset += chunkSize) {
+                decoder.feed(ByteBuffer.wrap(data, offset, Math.min(chunkSize, data.length - offset)));
+            }
+            decoder.finish();
+            return recorder.events;
+        }
+
+        @Test
+        public void testAnyChunkingGivesWhatReadGives() throws Cbor.ReadError {
+            byte[] pass = new Base16(true).decode(COVID_PASS_HEX);
+            Cbor.Value expected = new Cbor.Reader(pass).read();
+            for(int chunkSize = 1; chunkSize <= pass.length; chunkSize++) {
+                assertEquals(Collections.singletonList(expected), decode(pass, chunkSize, 0, Cbor.Limits.DEFAULT));
+            }
+        }
+
+        @Test
+        public void testValuesAreDeliveredAsSoonAsTheyComplete() throws Cbor.ReadError {
+            // 1, "ab", [2, 3]
+            byte[] data = new Base16(true).decode("01626162820203");
+            Recorder recorder = new Recorder();
+            Cbor.Decoder decoder = new Cbor.Decoder(recorder);
+            decoder.feed(ByteBuffer.wrap(data, 0, 3));
+            assertEquals(Collections.singletonList(Cbor.value(1)), recorder.events);
+            assertTrue(!decoder.isIdle());
+            decoder.feed(ByteBuffer.wrap(data, 3, 3));
+            assertEquals(Arrays.asList(Cbor.value(1), Cbor.value("ab")), recorder.events);
+            decoder.feed(ByteBuffer.wrap(data, 6, 1));
+            assertEquals(3, recorder.events.size());
+            assertTrue(decoder.isIdle());
+            decoder.finish();
+        }
+
+        @Test
+        public void testEmitDepthStreamsOuterContainers() throws Cbor.ReadError {
+            // [1, {"a": [2]}, [], 18([3])]
+            byte[] data = new Base16(true).decode("8401a16161810280d28103");
+            assertEquals(Arrays.asList("start ARRAY 4", Cbor.value(1), Cbor.value(Collections.singletonMap(Cbor.value("a"), Cbor.value(Collections.singletonList(Cbor.value(2))))),
+                    Cbor.value(new ArrayList<>()), Cbor.value(18, Cbor.value(Collections.singletonList(Cbor.value(3)))), "end"), decode(data, 1, 1, Cbor.Limits.DEFAULT));
+            assertEquals(Arrays.asList("start ARRAY 4", Cbor.value(1), "start MAP 1", Cbor.value("a"), Cbor.value(Collections.singletonList(Cbor.value(2))), "end",
+                    "start ARRAY 0", "end", "start SEMANTIC_TAG 18", Cbor.value(Collections.singletonList(Cbor.value(3))), "end", "end"), decode(data, 2, 2, Cbor.Limits.DEFAULT));
+        }
+
+        @Test
+        public void testLargeStreamInBoundedMemory() throws Exception {
+            // one array of 100000 entries, far bigger than the limits allow for any single value
+            final int count = 100000;
+            Cbor.Writer writer = new Cbor.Writer();
+            writer.writeArrayHeader(count);
+            for(int i = 0; i < count; i++) {
+                writer.writeArrayHeader(2);
+                writer.writeInteger(i);
+                writer.writeTextString("entry " + i);
+            }
+            byte[] data = writer.getBuffer();
+            Cbor.Limits limits = new Cbor.Limits(4, 10, 64);
+            assertThrows(Cbor.ReadError.LimitExceeded.class, () -> new Cbor.Reader(data, 0, limits).read());
+
+            final int[] seen = new int[1];
+            Cbor.Decoder decoder = new Cbor.Decoder(new Cbor.Decoder.Handler() {
+                @Override
+                public void onValue(@NonNull Cbor.Value value) {
+                    assertEquals(Arrays.asList(Cbor.value(seen[0]), Cbor.value("entry " + seen[0])), value.asList());
+                    seen[0]++;
+                }
+            }, 1, limits);
+            decoder.readFrom(new ByteArrayInputStream(data));
+            assertEquals(count, seen[0]);
+
+            seen[0] = 0;
+            decoder = new Cbor.Decoder(new Cbor.Decoder.Handler() {
+                @Override
+                public void onValue(@NonNull Cbor.Value value) {
+                    seen[0]++;
+                }
+            }, 1, limits);
+            decoder.readFrom(Channels.newChannel(new ByteArrayInputStream(data)));
+            assertEquals(count, seen[0]);
+        }
+
+        @Test
+        public void testRandomStructuresAgreeWithReader() throws Cbor.ReadError {
+            Random random = new Random(48);
+            for(int i = 0; i < 200; i++) {
+                Cbor.Writer writer = new Cbor.Writer();
+                writer.write(randomValue(random, 4));
+                byte[] data = writer.getBuffer();
+                Cbor.Value expected = new Cbor.Reader(data).read();
+                List<Object> events = decode(data, 1 + random.nextInt(16), 0, Cbor.Limits.DEFAULT);
+                assertEquals(Collections.singletonList(expected), events);
+            }
+        }
+
+        @NonNull
+        static Cbor.Value randomValue(@NonNull Random random, int depth) {
+            switch(random.nextInt(depth > 0 ? 5 : 4)) {
+                case 0: return Cbor.value(random.nextInt());
+                case 1: return Cbor.value(random.nextInt(30));
+                case 2: {
+                    byte[] bytes = new byte[random.nextInt(300)];
+                    random.nextBytes(bytes);
+                    return Cbor.value(bytes);
+                }
+                case 3: return Cbor.value("sé" + random.nextInt(1000000));
+                default: {
+                    List<Cbor.Value> list = new ArrayList<>();
+                    for(int n = random.nextInt(30); n > 0; n--) {
+                        list.add(randomValue(random, depth - 1));
+                    }
+                    return Cbor.value(list);
+                }
+            }
+        }
+
+        void assertDecodeError(@NonNull Class<? extends Cbor.ReadError> expected, @NonNull String hex, @NonNull Cbor.Limits limits) {
+            byte[] data = new Base16(true).decode(hex);
+            for(int chunkSize : new int[] { 1, 3, Math.max(1, data.length) }) {
+                assertThrows(hex, expected, () -> decode(data, chunkSize, 0, limits));
+            }
+        }
+
+        @Test
+        public void testRejectsWhatReadRejects() {
+            assertDecodeError(Cbor.ReadError.UnsupportedType.class, "f5", Cbor.Limits.DEFAULT);
+            assertDecodeError(Cbor.ReadError.MalformedInput.class, "1c", Cbor.Limits.DEFAULT);
+            assertDecodeError(Cbor.ReadError.IntegerOutOfRange.class, "1a80000000", Cbor.Limits.DEFAULT);
+            assertDecodeError(Cbor.ReadError.InputTooShort.class, "19ff", Cbor.Limits.DEFAULT);
+            assertDecodeError(Cbor.ReadError.InputTooShort.class, "6461", Cbor.Limits.DEFAULT);
+            assertDecodeError(Cbor.ReadError.InputTooShort.class, "a201", Cbor.Limits.DEFAULT);
+            // huge lengths are refused before anything is allocated for them
+            assertDecodeError(Cbor.ReadError.LimitExceeded.class, "5a7fffffff00", Cbor.Limits.DEFAULT);
+            assertDecodeError(Cbor.ReadError.LimitExceeded.class, "9a7fffffff00", Cbor.Limits.DEFAULT);
+            assertDecodeError(Cbor.ReadError.LimitExceeded.class, "818101", new Cbor.Limits(1, 10, 10));
+            assertDecodeError(Cbor.ReadError.LimitExceeded.class, "83010203", new Cbor.Limits(10, 3, 100));
+            assertDecodeError(Cbor.ReadError.LimitExceeded.class, "83010203", new Cbor.Limits(10, 10, 3));
+        }
+
+        @Test
+        public void testFailedDecoderCannotBeReused() {
+            Cbor.Decoder decoder = new Cbor.Decoder(new Recorder());
+            assertThrows(Cbor.ReadError.UnsupportedType.class, () -> decoder.feed(ByteBuffer.wrap(new byte[] { (byte)0xf5 })));
+            assertThrows(IllegalStateException.class, () -> decoder.feed(ByteBuffer.wrap(new byte[] { 1 })));
+        }
+    }
+
+    public static class CborSchemaTests {
+        static class Target {
+            String text;
+            long integer = Long.MAX_VALUE;
+            byte[] bytes;
+            List<String> strings;
+            Target nested;
+        }
+
+        @NonNull
+        static final Cbor.Schema<Target> SCHEMA = new Cbor.Schema<Target>()
+                .text(Cbor.value(1), (t, v) -> t.text = v)
+                .textArray(Cbor.value("x"), (t, v) -> t.strings = v)
+                .integer(Cbor.value("n"), (t, v) -> t.integer = v)
+                .bytes(Cbor.value("b"), (t, v) -> t.bytes = v)
+                .text(Cbor.value("k"), (t, v) -> t.text = v);
+
+        static {
+            // nested maps use the same schema, one level down
+            SCHEMA.map(Cbor.value("sub"), SCHEMA, Target::new, (t, v) -> t.nested = v);
+        }
+
+        @NonNull
+        static Target bind(@NonNull String hex) throws Cbor.ReadError {
+            Target target = new Target();
+            SCHEMA.bind(new Cbor.Reader(new Base16(true).decode(hex)), target);
+            return target;
+        }
+
+        @Test
+        public void testBindsKnownKeysAndSkipsTheRest() throws Cbor.ReadError {
+            // {1: "a", 99: [1, {2: 3}], "x": ["p", 7, "q"], "n": -5, "zz": "ignored", "b": h'0102', [1]: 2, "sub": {"k": "v", "k2": [[[1]]]}}
+            Target target = bind("a801616118638201a102036178836170076171616e24627a7a6769676e6f726564616242010281010263737562a2616b6176626b3281818101");
+            assertEquals("a", target.text);
+            assertEquals(Arrays.asList("p", "q"), target.strings);
+            assertEquals(-5, target.integer);
+            assertTrue(Arrays.equals(new byte[] { 1, 2 }, target.bytes));
+            assertEquals("v", target.nested.text);
+            assertEquals(Long.MAX_VALUE, target.nested.integer); // never set
+        }
+
+        @Test
+        public void testWrongTypesAndDuplicateKeysMatchAMapLookup() throws Cbor.ReadError {
+            // {1: 5, "x": "notarray", "n": "s", "sub": [1], 1: "first", 1: "second"}
+            Target target = bind("a601056178686e6f746172726179616e61736373756281010165666972737401667365636f6e64");
+            assertEquals("second", target.text);
+            assertEquals(null, target.strings);
+            assertEquals(Cbor.Schema.NO_INTEGER, target.integer);
+            assertEquals(null, target.nested);
+
+            // {1: "a", 1: 7}; the last one wins, even though it's the wrong type
+            assertEquals(null, bind("a20161610107").text);
+        }
+
+        @Test
+        public void testRejectsWhatReadRejects() {
+            assertThrows(Cbor.ReadError.MalformedInput.class, () -> bind("820102")); // not a map
+            assertThrows(Cbor.ReadError.InputTooShort.class, () -> bind("a2016161")); // truncated
+            assertThrows(Cbor.ReadError.UnsupportedType.class, () -> bind("a163666f6ff5")); // {"foo": true}
+            // nested beyond the depth limit, through a key we bind
+            Target target = new Target();
+            assertThrows(Cbor.ReadError.LimitExceeded.class, () -> SCHEMA.bind(new Cbor.Reader(new Base16(true).decode("a163737562a163737562a0"), 0, new Cbor.Limits(2, 100, 100)), target));
+        }
+    }
 }
@@ -1,6 +1,9 @@
 package com.gallagher.nzcovidpass;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -67,4 +70,32 @@ public class CwtSecurityTokenReaderTests {
         assertEquals("Sparrow", credential.getCredentialSubject().getFamilyName());
         assertEquals("1960-04-16", credential.getCredentialSubject().getDateOfBirth());
     }
+
+    @Test
+    public void testReadTokenFromBase32Source() throws CwtSecurityTokenError {
+        String encoded = "2KCEVIQEIVVWK6JNGEASNICZAEP2KALYDZSGSZB2O5SWEOTOPJRXALTDN53GSZBRHEXGQZLBNR2GQLTOPICRUYMBTIFAIGTUKBAAUYTWMOSGQQDDN5XHIZLYOSBHQJTIOR2HA4Z2F4XXO53XFZ3TGLTPOJTS6MRQGE4C6Y3SMVSGK3TUNFQWY4ZPOYYXQKTIOR2HA4Z2F4XW46TDOAXGG33WNFSDCOJONBSWC3DUNAXG46RPMNXW45DFPB2HGL3WGFTXMZLSONUW63TFGEXDALRQMR2HS4DFQJ2FMZLSNFTGSYLCNRSUG4TFMRSW45DJMFWG6UDVMJWGSY2DN53GSZCQMFZXG4LDOJSWIZLOORUWC3CTOVRGUZLDOSRWSZ3JOZSW4TTBNVSWISTBMNVWUZTBNVUWY6KOMFWWKZ2TOBQXE4TPO5RWI33CNIYTSNRQFUYDILJRGYDVAYFE6VGU4MCDGK7DHLLYWHVPUS2YIDJOA6Y524TD3AZRM263WTY2BE4DPKIF27WKF3UDNNVSVWRDYIYVJ65IRJJJ6Z25M2DO4YZLBHWFQGVQR5ZLIWEQJOZTS3IQ7JTNCFDX";
+        CwtSecurityToken fromBytes = new CwtSecurityToken(Base32.decode(encoded));
+        CwtSecurityToken fromSource = new CwtSecurityToken(new Base32.DecodingSource(encoded, 0, encoded.length()));
+
+        assertArrayEquals(fromBytes.getHeader().getData(), fromSource.getHeader().getData());
+        assertArrayEquals(fromBytes.getPayload().getData(), fromSource.getPayload().getData());
+        assertArrayEquals(fromBytes.getSignature(), fromSource.getSignature());
+        assertEquals(64, fromSource.getSignature().length);
+        assertEquals(fromBytes.getPayload().getCti(), fromSource.getPayload().getCti());
+
+        // header, payload and signature share one buffer that is no bigger than the decoded input
+        assertTrue(fromSource.getBuffer().length <= Base32.decode(encoded).length);
+    }
+
+    @Test
+    public void testRejectsNonCoseStructures() {
+        // a bare array rather than tag 18
+        assertThrows(CwtSecurityTokenError.NotCoseSingleSignerObject.class, () -> new CwtSecurityToken(new byte[]{ (byte)0x84, 0x40, (byte)0xa0, 0x40, 0x40 }));
+        // tag 18 around a 3 element array
+        assertThrows(CwtSecurityTokenError.CoseSingleSignerObjectInvalidPayload.class, () -> new CwtSecurityToken(new byte[]{ (byte)0xd2, (byte)0x83, 0x40, (byte)0xa0, 0x40 }));
+        // tag 18 around 4 elements where the payload isn't a byte string
+        assertThrows(CwtSecurityTokenError.CoseSingleSignerObjectInvalidPayload.class, () -> new CwtSecurityToken(new byte[]{ (byte)0xd2, (byte)0x84, 0x41, (byte)0xa0, (byte)0xa0, 0x01, 0x40 }));
+        // truncated
+        assertThrows(CwtSecurityTokenError.InvalidTokenFormat.class, () -> new CwtSecurityToken(new byte[]{ (byte)0xd2, (byte)0x84, 0x41 }));
+    }
 }
@@ -0,0 +1,124 @@
+package com.gallagher.nzcovidpass;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Random;
+
+public class CwtSecurityTokenValidatorTests {
+    @NonNull
+    private static final BigInteger P256_ORDER = new BigInteger("FFFFFFFF00000000FFFFFFFFFFFFFFFFBCE6FAADA7179E84F3B9CAC2FC632551", 16);
+
+    @NonNull
+    private static byte[] raw(@NonNull BigInteger r, @NonNull BigInteger s) {
+        byte[] result = new byte[64];
+        byte[] rBytes = r.toByteArray();
+        byte[] sBytes = s.toByteArray();
+        int rLen = Math.min(32, rBytes.length);
+        int sLen = Math.min(32, sBytes.length);
+        System.arraycopy(rBytes, rBytes.length - rLen, result, 32 - rLen, rLen);
+        System.arraycopy(sBytes, sBytes.length - sLen, result, 64 - sLen, sLen);
+        return result;
+    }
+
+    // reference encoding; BigInteger.toByteArray is already the minimal two's complement form that DER wants
+    @NonNull
+    private static byte[] referenceDer(@NonNull BigInteger r, @NonNull BigInteger s) {
+        byte[] rBytes = r.toByteArray();
+        byte[] sBytes = s.toByteArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x30);
+        out.write(4 + rBytes.length + sBytes.length);
+        out.write(0x02);
+        out.write(rBytes.length);
+        out.write(rBytes, 0, rBytes.length);
+        out.write(0x02);
+        out.write(sBytes.length);
+        out.write(sBytes, 0, sBytes.length);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testEncodeDerSignature() {
+        Random random = new Random(1234);
+        byte[] out = new byte[CwtSecurityTokenValidator.MAX_DER_SIGNATURE_LENGTH];
+        for(int i = 0; i < 2000; i++) {
+            // vary the bit length so we get leading zeros, and high bits that need padding
+            BigInteger r = new BigInteger(1 + random.nextInt(256), random).add(BigInteger.ONE);
+            BigInteger s = new BigInteger(1 + random.nextInt(256), random).add(BigInteger.ONE);
+            if(r.bitLength() > 256 || s.bitLength() > 256) {
+                continue;
+            }
+            int length = CwtSecurityTokenValidator.encodeDerSignature(raw(r, s), out);
+            assertArrayEquals(referenceDer(r, s), Arrays.copyOf(out, length));
+        }
+    }
+
+    @Test
+    public void testRejectsOutOfRangeSignature() {
+        BigInteger one = BigInteger.ONE;
+        assertTrue(CwtSecurityTokenValidator.isValidP256Signature(raw(one, one)));
+        assertTrue(CwtSecurityTokenValidator.isValidP256Signature(raw(P256_ORDER.subtract(one), P256_ORDER.subtract(one))));
+
+        assertFalse(CwtSecurityTokenValidator.isValidP256Signature(raw(BigInteger.ZERO, one)));
+        assertFalse(CwtSecurityTokenValidator.isValidP256Signature(raw(one, BigInteger.ZERO)));
+        assertFalse(CwtSecurityTokenValidator.isValidP256Signature(raw(P256_ORDER, one)));
+        assertFalse(CwtSecurityTokenValidator.isValidP256Signature(raw(one, P256_ORDER)));
+        byte[] allOnes = new byte[64];
+        Arrays.fill(allOnes, (byte)0xff);
+        assertFalse(CwtSecurityTokenValidator.isValidP256Signature(allOnes));
+        assertFalse(CwtSecurityTokenValidator.isValidP256Signature(new byte[63]));
+    }
+
+    @Test
+    public void testVerifyBothSignatureFormats() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        byte[] data = "Signature1".getBytes(StandardCharsets.UTF_8);
+
+        for(int i = 0; i < 20; i++) {
+            Signature signer = Signature.getInstance("SHA256withECDSA");
+            signer.initSign(keyPair.getPrivate());
+            signer.update(data);
+            byte[] der = signer.sign();
+
+            // pull r and s back out of the DER
+            int rLen = der[3];
+            BigInteger r = new BigInteger(Arrays.copyOfRange(der, 4, 4 + rLen));
+            BigInteger s = new BigInteger(Arrays.copyOfRange(der, 6 + rLen, der.length));
+            byte[] rawSignature = raw(r, s);
+
+            assertTrue(CwtSecurityTokenValidator.verifyECDSASignature(rawSignature, data, keyPair.getPublic(), false));
+            if(CwtSecurityTokenValidator.P1363_SUPPORTED) {
+                assertTrue(CwtSecurityTokenValidator.verifyECDSASignature(rawSignature, data, keyPair.getPublic(), true));
+            }
+
+            byte[] tampered = data.clone();
+            tampered[0] ^= 1;
+            assertFalse(CwtSecurityTokenValidator.verifyECDSASignature(rawSignature, tampered, keyPair.getPublic(), false));
+        }
+    }
+
+    @Test
+    public void testP1363DetectedOnModernJava() {
+        // P1363 arrived in Java 9; this runs on the JVM rather than Android
+        Assume.assumeFalse(System.getProperty("java.specification.version").startsWith("1."));
+        assertEquals(true, CwtSecurityTokenValidator.P1363_SUPPORTED);
+    }
+}
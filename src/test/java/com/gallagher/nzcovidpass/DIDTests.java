@@ -0,0 +1,107 @@
+package com.gallagher.nzcovidpass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThrows;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class DIDTests {
+    private static final String TEST_KEY_X = "zRR-XGsCp12Vvbgui4DD6O6cqmhfPuXMhi1OxPl8760";
+    private static final String TEST_KEY_Y = "Iv5SU6FuW-TRYh5_GOrJlcV_gpF_GpFQhCOD8LSk3T0";
+
+    @NonNull
+    private static String method(@NonNull String keyId, @NonNull String kty, @NonNull String crv) {
+        return "{\"id\": \"did:web:example.com#" + keyId + "\", \"controller\": \"did:web:example.com\", \"type\": \"JsonWebKey2020\"," +
+                " \"publicKeyJwk\": {\"kty\": \"" + kty + "\", \"crv\": \"" + crv + "\", \"x\": \"" + TEST_KEY_X + "\", \"y\": \"" + TEST_KEY_Y + "\"," +
+                " \"key_ops\": [\"verify\"], \"ext\": true, \"extra\": {\"n\": [1, -2.5e3, null, {}, []], \"s\": \"a\\\"\\u00e9\"}}}";
+    }
+
+    // a document with many keys, of which only key-400 is both EC P-256 and asserted
+    @NonNull
+    private static String largeDocument(boolean assertionsFirst) {
+        StringBuilder methods = new StringBuilder();
+        for(int i = 0; i < 500; i++) {
+            methods.append(i > 0 ? ",\n" : "").append(method("key-" + i, i % 3 == 0 ? "RSA" : "EC", i % 3 == 1 ? "P-256" : "Ed25519"));
+        }
+        String assertions = "\"assertionMethod\": [\"did:web:example.com#key-400\", \"did:web:example.com#key-3\", \"did:web:other.com#key-1\"]";
+        String verification = "\"verificationMethod\": [" + methods + "]";
+        return "{\"@context\": [\"https://w3.org/ns/did/v1\"], \"id\": \"did:web:example.com\", \"service\": [{\"id\": \"#s\", \"endpoint\": {\"uri\": \"https:\\/\\/example.com\"}}], " +
+                (assertionsFirst ? assertions + ", " + verification : verification + ", " + assertions) + "}";
+    }
+
+    @Test
+    public void testParsesTrustAnchorsLikeJSONObject() throws Exception {
+        File[] files = new File("src/main/trust-anchors").listFiles();
+        assertNotNull(files);
+        for(File file : files) {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            DID.Document expected = new DID.Document(new JSONObject(new String(bytes, StandardCharsets.UTF_8)));
+            DID.Document fromReader = DID.Document.parse(new StringReader(new String(bytes, StandardCharsets.UTF_8)));
+            DID.Document fromBytes = DID.Document.parse(ByteBuffer.wrap(bytes));
+            for(DID.Document parsed : Arrays.asList(fromReader, fromBytes)) {
+                assertEquals(expected.getId(), parsed.getId());
+                assertEquals(expected.getContexts(), parsed.getContexts());
+                assertEquals(expected.getAssertionMethods(), parsed.getAssertionMethods());
+                assertEquals(1, parsed.getVerificationMethods().size());
+                DID.JsonWebKey jwk = parsed.getVerificationMethods().get(0).getPublicKeyJwk();
+                DID.JsonWebKey expectedJwk = expected.getVerificationMethods().get(0).getPublicKeyJwk();
+                assertEquals(expectedJwk.getX(), jwk.getX());
+                assertEquals(expectedJwk.getY(), jwk.getY());
+            }
+        }
+    }
+
+    @Test
+    public void testKeepsOnlyAssertedP256Keys() throws Exception {
+        for(boolean assertionsFirst : new boolean[] { true, false }) {
+            String json = largeDocument(assertionsFirst);
+            DID.Document streamed = DID.Document.parse(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)));
+            assertEquals(1, streamed.getVerificationMethods().size());
+            assertEquals("did:web:example.com#key-400", streamed.getVerificationMethods().get(0).getId());
+            assertEquals(3, streamed.getAssertionMethods().size());
+
+            // and the TrustStore ends up the same as from the full document
+            TrustStore.Snapshot expected = TrustStore.buildSnapshot(Collections.singletonList(new DID.Document(new JSONObject(json))));
+            TrustStore.Snapshot actual = TrustStore.buildSnapshot(Collections.singletonList(streamed));
+            assertEquals(expected.getKeys().keySet(), actual.getKeys().keySet());
+            for(TrustStore.TrustedKey key : expected.getKeys().values()) {
+                TrustStore.TrustedKey other = actual.getKeys().get(key.getId());
+                assertEquals(key.getPublicKey(), other.getPublicKey());
+                assertEquals(key.isSupportedKeyType(), other.isSupportedKeyType());
+            }
+        }
+    }
+
+    @Test
+    public void testRejectsMalformedDocuments() {
+        String valid = largeDocument(false);
+        for(final String json : new String[] {
+                valid.substring(0, valid.length() - 1), // truncated
+                valid + " {}", // trailing content
+                valid.replace("\"id\": \"did:web:example.com\",", ""), // no id
+                valid.replace("\"controller\": \"did:web:example.com\",", ""), // a method without a controller
+                valid.replace("-2.5e3,", "-2.5e3,,"), // bad JSON inside a skipped value
+                valid.replace("\"#s\"", "\"#s\\q\""), // bad escape inside a skipped value
+                "{\"id\": \"did:web:example.com\", \"@context\": 5, \"verificationMethod\": [], \"assertionMethod\": []}",
+                "[]",
+                "",
+        }) {
+            assertThrows(json, JSONException.class, () -> DID.Document.parse(new StringReader(json)));
+        }
+        // invalid UTF-8
+        assertThrows(JSONException.class, () -> DID.Document.parse(ByteBuffer.wrap(new byte[] { '{', '"', (byte)0xff, '"' })));
+    }
+}
@@ -0,0 +1,101 @@
+package com.gallagher.nzcovidpass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class PassVerifierRegistryTests {
+    @NonNull
+    private static final String validPassPayload = PassVerifier.WARM_UP_PASS;
+
+    @NonNull
+    private final Date referenceTime = new Date(PassVerifier.WARM_UP_PASS_REFERENCE_TIME);
+
+    @NonNull
+    private final PassVerifierRegistry registry = new PassVerifierRegistry();
+
+    @After
+    public void tearDown() {
+        registry.shutdown();
+    }
+
+    @Test
+    public void testTenantsWithSameOptionsShareVerifier() {
+        for(int i = 0; i < 100; i++) {
+            registry.register("site-" + i, new PassVerifier.Options());
+        }
+        PassVerifier staging = registry.register("staging", new PassVerifier.Options(Arrays.asList(WellKnownIssuerNames.NZCP, WellKnownIssuerNames.NZCP_TEST)));
+
+        assertEquals(101, registry.getTenantCount());
+        assertEquals(2, registry.getProfileCount());
+        assertSame(registry.get("site-0"), registry.get("site-99"));
+        assertNotSame(registry.get("site-0"), staging);
+        assertSame(registry.getTrustStore(), staging.getOptions().getTrustStore());
+    }
+
+    @Test
+    public void testRegisterUsesRegistryTrustStore() {
+        TrustStore other = new TrustStore(Collections.<DID.Document>emptyList());
+        PassVerifier.Options options = new PassVerifier.Options(PassVerifier.DEFAULT_PREFIX, PassVerifier.DEFAULT_VERSION, PassVerifier.DEFAULT_VALID_ISSUERS, PassVerifier.DEFAULT_VALID_ALGORITHMS, other);
+        PassVerifier verifier = registry.register("pilot", options);
+        assertSame(registry.getTrustStore(), verifier.getOptions().getTrustStore());
+    }
+
+    @Test
+    public void testVerifyAsync() throws Exception {
+        registry.register("staging", new PassVerifier.Options(Collections.singletonList(WellKnownIssuerNames.NZCP_TEST)));
+        registry.register("production", new PassVerifier.Options());
+
+        CwtSecurityToken token = registry.verifyAsync("staging", validPassPayload, referenceTime).get();
+        assertEquals("key-1", token.getHeader().getKeyId());
+
+        Future<CwtSecurityToken> rejected = registry.verifyAsync("production", validPassPayload, referenceTime);
+        ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+        assertTrue(e.getCause() instanceof CwtSecurityTokenValidationError.InvalidIssuer);
+    }
+
+    @Test
+    public void testUnregister() {
+        registry.register("pilot", new PassVerifier.Options());
+        registry.unregister("pilot");
+        assertNull(registry.get("pilot"));
+        assertThrows(IllegalArgumentException.class, () -> registry.verifyAsync("pilot", validPassPayload));
+    }
+
+    @Test
+    public void testDropsProfileWithItsLastTenant() {
+        PassVerifier.Options staging = new PassVerifier.Options(Collections.singletonList(WellKnownIssuerNames.NZCP_TEST));
+        registry.register("site-1", new PassVerifier.Options());
+        PassVerifier first = registry.register("pilot-1", staging);
+        registry.register("pilot-2", staging);
+        assertEquals(2, registry.getProfileCount());
+
+        registry.unregister("pilot-1");
+        assertEquals(2, registry.getProfileCount());
+        registry.unregister("pilot-2");
+        assertEquals(1, registry.getProfileCount());
+        registry.unregister("pilot-2"); // already gone, so changes nothing
+        assertEquals(1, registry.getProfileCount());
+
+        // moving a tenant to other options releases its old profile
+        registry.register("site-1", staging);
+        assertEquals(1, registry.getProfileCount());
+        assertNotSame(first, registry.get("site-1")); // the old staging verifier wasn't kept
+        registry.unregister("site-1");
+        assertEquals(0, registry.getProfileCount());
+    }
+}
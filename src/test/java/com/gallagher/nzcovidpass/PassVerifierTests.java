@@ -8,6 +8,8 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.junit.function.ThrowingRunnable;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 
@@ -27,6 +29,105 @@ public class PassVerifierTests {
         verifier.verify(validPassPayload, referenceTime);
     }
 
+    @Test
+    public void testValidatesCharSequence() throws PassVerificationError, CwtSecurityTokenValidationError, CwtSecurityTokenError {
+        CwtSecurityToken token = verifier.verify(new StringBuilder(validPassPayload), referenceTime);
+        Assert.assertEquals("key-1", token.getHeader().getKeyId());
+    }
+
+    @Test
+    public void testValidatesRawBytes() throws PassVerificationError, CwtSecurityTokenValidationError, CwtSecurityTokenError {
+        // simulate a scanner buffer with junk either side of the payload
+        byte[] payloadBytes = validPassPayload.getBytes(StandardCharsets.US_ASCII);
+        byte[] buffer = new byte[payloadBytes.length + 8];
+        Arrays.fill(buffer, (byte)'/');
+        System.arraycopy(payloadBytes, 0, buffer, 3, payloadBytes.length);
+
+        CwtSecurityToken token = verifier.verify(buffer, 3, payloadBytes.length, referenceTime);
+        Assert.assertEquals("key-1", token.getHeader().getKeyId());
+    }
+
+    @Test
+    public void testVerifyPass() throws PassVerificationError, CwtSecurityTokenValidationError, CwtSecurityTokenError {
+        CwtSecurityToken token = verifier.verify(validPassPayload, referenceTime);
+        VerifiedPass pass = verifier.verifyPass(validPassPayload, referenceTime);
+
+        Assert.assertEquals(token.getPayload().getCti(), pass.getCti());
+        Assert.assertEquals(token.getPayload().getJti(), pass.getJti());
+        Assert.assertEquals(token.getPayload().getNotBefore(), pass.getNotBefore());
+        Assert.assertEquals(token.getPayload().getExpiry(), pass.getExpiry());
+        Assert.assertSame(WellKnownIssuerNames.NZCP_TEST, pass.getIssuer()); // interned
+        Assert.assertEquals("key-1", pass.getKeyId());
+        Assert.assertEquals("Jack", pass.getGivenName());
+        Assert.assertEquals("Sparrow", pass.getFamilyName());
+        Assert.assertEquals("1960-04-16", pass.getDateOfBirth());
+
+        Assert.assertTrue(pass.isValidAt(referenceTime.getTime()));
+        Assert.assertFalse(pass.isValidAt(pass.getExpirySeconds() * 1000 + 1000));
+        Assert.assertFalse(pass.isValidAt(pass.getNotBeforeSeconds() * 1000 - 1));
+
+        Assert.assertEquals(pass, verifier.verifyPass(new StringBuilder(validPassPayload), referenceTime));
+        Assert.assertEquals(pass.hashCode(), verifier.verifyPass(validPassPayload, referenceTime).hashCode());
+    }
+
+    @Test
+    public void testVerifyPassRejectsLikeVerify() {
+        assertThrows("", PassVerificationError.InvalidPrefix.class, () -> {
+            verifier.verifyPass("NZCV:/1/asdfghjk", referenceTime);
+        });
+        assertThrows("", CwtSecurityTokenValidationError.Expired.class, () -> {
+            verifier.verifyPass(validPassPayload, new Date(4102444800000L)); // 2100
+        });
+    }
+
+    @Test
+    public void testRejectsIncorrectPayloadBytes() {
+        byte[] bytes = "NZCP:/2/sdfdsfd".getBytes(StandardCharsets.US_ASCII);
+        assertThrows("", PassVerificationError.InvalidVersion.class, () -> {
+            verifier.verify(bytes, 0, bytes.length, referenceTime);
+        });
+        assertThrows("", PassVerificationError.InvalidPrefix.class, () -> {
+            verifier.verify(bytes, 1, bytes.length - 1, referenceTime);
+        });
+    }
+
+    @Test
+    public void testRejectsMissingComponents() {
+        assertThrows("", PassVerificationError.InvalidPassComponents.class, () -> {
+            verifier.verify("NZCP:/1", referenceTime);
+        });
+        assertThrows("", PassVerificationError.InvalidPassComponents.class, () -> {
+            verifier.verify("NZCP:/1/ABC/DEF", referenceTime);
+        });
+        // trailing slashes don't make a component, as with String.split
+        assertThrows("", PassVerificationError.InvalidPassComponents.class, () -> {
+            verifier.verify("NZCP:/1/", referenceTime);
+        });
+        assertThrows("", PassVerificationError.InvalidPassComponents.class, () -> {
+            verifier.verify("NZCP:/1//", referenceTime);
+        });
+        assertThrows("", PassVerificationError.InvalidPayloadEncoding.class, () -> {
+            verifier.verify("NZCP:/1/ABC!", referenceTime);
+        });
+    }
+
+    @Test
+    public void testRejectsOutOfRangeBytes() {
+        byte[] bytes = validPassPayload.getBytes(StandardCharsets.US_ASCII);
+        for(int[] range : new int[][] { { -1, 1 }, { 0, -1 }, { 1, bytes.length }, { 1, Integer.MAX_VALUE }, { Integer.MAX_VALUE, 1 } }) {
+            // exactly this, not an ArrayIndexOutOfBoundsException from somewhere inside
+            Assert.assertEquals(IndexOutOfBoundsException.class, assertThrows(IndexOutOfBoundsException.class, () -> verifier.verify(bytes, range[0], range[1], referenceTime)).getClass());
+        }
+    }
+
+    @Test
+    public void testIgnoresTrailingSlashes() throws PassVerificationError, CwtSecurityTokenValidationError, CwtSecurityTokenError {
+        CwtSecurityToken token = verifier.verify(validPassPayload + "/", referenceTime);
+        Assert.assertEquals("key-1", token.getHeader().getKeyId());
+        byte[] bytes = (validPassPayload + "//").getBytes(StandardCharsets.US_ASCII);
+        verifier.verify(bytes, 0, bytes.length, referenceTime);
+    }
+
     @Test
     public void testRejectsIncorrectPayload() {
         // some other thing that might be in a QR code
@@ -110,4 +211,34 @@ public class PassVerifierTests {
             verifier.verify(validPassPayload, pastTime);
         });
     }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        PassVerifier productionOnly = new PassVerifier(new PassVerifier.Options());
+        Assert.assertTrue(productionOnly.warmUp(5) >= 0);
+        Assert.assertTrue(productionOnly.warmUpInBackground(5).get() >= 0);
+
+        // warm-up doesn't change what the verifier accepts
+        assertThrows("", CwtSecurityTokenValidationError.InvalidIssuer.class, () -> {
+            productionOnly.verify(validPassPayload, referenceTime);
+        });
+    }
+
+    @Test
+    public void testWarmUpDoesNotNeedTheTestKeyInTheDefaultStore() {
+        TrustStore.Snapshot original = TrustStore.getDefault().getSnapshot();
+        try {
+            // as if the user had rotated the default store to keys of their own
+            TrustStore.getDefault().update(new TrustStore.Snapshot(Collections.<String, TrustStore.TrustedKey>emptyMap()));
+            Assert.assertTrue(new PassVerifier(new PassVerifier.Options()).warmUp(1) >= 0);
+        } finally {
+            TrustStore.getDefault().update(original);
+        }
+    }
+
+    @Test
+    public void testWarmUpWithCustomPrefix() {
+        PassVerifier pilot = new PassVerifier(new PassVerifier.Options("PILOT:", 3, PassVerifier.DEFAULT_VALID_ISSUERS, PassVerifier.DEFAULT_VALID_ALGORITHMS));
+        Assert.assertTrue(pilot.warmUp(1) >= 0);
+    }
 }
@@ -0,0 +1,153 @@
+package com.gallagher.nzcovidpass;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+public class RosterTests {
+    @NonNull
+    private static final VerifiedPass samplePass = new VerifiedPass(1, 2, 1635883530L, 1951416330L, WellKnownIssuerNames.NZCP_TEST, "key-1", "Jack", "Sparrow", "1960-04-16");
+
+    @Test
+    public void testNormalize() {
+        Assert.assertEquals("zoe obrien", Roster.normalize("  Zoë  O'Brien "));
+        Assert.assertEquals("jean luc", Roster.normalize("JEAN-LUC"));
+        Assert.assertEquals("strasse", Roster.normalize("Straße"));
+        Assert.assertEquals("ngaio", Roster.normalize("Ngāio"));
+        // the same text precomposed and decomposed
+        Assert.assertEquals(Roster.normalize("Ren\u00e9e"), Roster.normalize("Rene\u0301e"));
+        Assert.assertEquals("renee", Roster.normalize("Rene\u0301e"));
+        Assert.assertEquals("søren", Roster.normalize("Søren"));
+        Assert.assertEquals("", Roster.normalize(" - "));
+    }
+
+    @Test
+    public void testExactLookup() {
+        Roster roster = new Roster.Builder()
+                .add("t1", "Jack", "Sparrow", "1960-04-16")
+                .add("t2", "Jack", "Sparrow", "1961-04-16")
+                .add("t3", "Cher", null, "1946-05-20")
+                .add("t4", "Mary Ann", "Smith", "1980-01-01")
+                .build();
+        Assert.assertEquals(4, roster.size());
+
+        Assert.assertEquals("t1", roster.getId(roster.find(samplePass)));
+        Assert.assertEquals("t1", roster.getId(roster.find("JACK", "sparrow", "1960-04-16")));
+        Assert.assertEquals("t3", roster.getId(roster.find("cher", null, "1946-05-20")));
+        Assert.assertEquals(-1, roster.find("Cher", "Bono", "1946-05-20"));
+        Assert.assertEquals(-1, roster.find("Mary", "Ann Smith", "1980-01-01"));
+        Assert.assertEquals(-1, roster.find("Jack", "Sparrow", "16/04/1960"));
+        Assert.assertEquals(-1, new Roster.Builder().build().find(samplePass));
+    }
+
+    @Test
+    public void testFuzzyMatch() {
+        Roster roster = new Roster.Builder()
+                .add("t1", "Jack", "Sparrow", "1960-04-16")
+                .add("t2", "Jake", "Sparrow", "1960-04-16")
+                .add("t3", "Jack", "Sparow", "1970-04-16")
+                .build();
+
+        Roster.Match exact = roster.match(samplePass);
+        Assert.assertEquals("t1", exact.getId());
+        Assert.assertEquals(0, exact.getDistance());
+
+        // a swap of adjacent letters is one edit; only rows with the same date of birth are considered
+        Roster.Match swapped = roster.match("Jcak", "Sparrow", "1960-04-16", 2);
+        Assert.assertEquals("t1", swapped.getId());
+        Assert.assertEquals(1, swapped.getDistance());
+
+        Roster.Match dropped = roster.match("Jack", "Sparow", "1960-04-16", 2);
+        Assert.assertEquals("t1", dropped.getId());
+        Assert.assertNull(roster.match("Jack", "Sparow", "1960-04-16", 0));
+        Assert.assertNull(roster.match("Johnny", "Sparrow", "1960-04-16", 2));
+        Assert.assertNull(roster.match("Jack", "Sparrow", "1990-04-16", 2));
+    }
+
+    @Test
+    public void testFuzzyMatchAgreesWithBruteForce() {
+        Random random = new Random(43);
+        Roster.Builder builder = new Roster.Builder();
+        String[] names = new String[300];
+        for(int i = 0; i < names.length; i++) {
+            names[i] = randomName(random);
+            builder.add(Integer.toString(i), names[i], "Smith", "2000-01-0" + (1 + i % 3));
+        }
+        Roster roster = builder.build();
+        for(int i = 0; i < 500; i++) {
+            String query = randomName(random);
+            String dob = "2000-01-0" + (1 + i % 3);
+            int best = Integer.MAX_VALUE;
+            for(int row = 0; row < names.length; row++) {
+                if(dob.equals("2000-01-0" + (1 + row % 3))) {
+                    best = Math.min(best, osa(query + "\u0000smith", names[row] + "\u0000smith"));
+                }
+            }
+            Roster.Match match = roster.match(query, "Smith", dob, 2);
+            if(best > 2) {
+                Assert.assertNull(query, match);
+            } else {
+                Assert.assertEquals(query, best, match.getDistance());
+            }
+        }
+    }
+
+    @Test
+    public void testReadCsv() throws IOException {
+        String csv = "id,givenName,familyName,dob\r\n" +
+                "t1,Jack,Sparrow,1960-04-16\r\n" +
+                "\"t2\",\"Smith, Jr\",\"O\"\"Neil\",1970-01-01\n" +
+                "\n" +
+                "t3,Cher,,1946-05-20";
+        Roster roster = Roster.readCsv(new StringReader(csv), true);
+        Assert.assertEquals(3, roster.size());
+        Assert.assertEquals("t1", roster.getId(roster.find(samplePass)));
+        Assert.assertEquals("t2", roster.getId(roster.find("Smith Jr", "ONeil", "1970-01-01")));
+        Assert.assertEquals("t3", roster.getId(roster.find("Cher", null, "1946-05-20")));
+    }
+
+    @Test
+    public void testReadCsvRejectsBadRows() {
+        assertThrows(IOException.class, () -> Roster.readCsv(new StringReader("t1,Jack,Sparrow\n"), false));
+        assertThrows(IOException.class, () -> Roster.readCsv(new StringReader("t1,Jack,Sparrow,16/04/1960\n"), false));
+        assertThrows(IOException.class, () -> Roster.readCsv(new StringReader("t1,\"Jack,Sparrow,1960-04-16\n"), false));
+        assertThrows(IllegalArgumentException.class, () -> new Roster.Builder().add("t1", "Jack", "Sparrow", "1960-13-01"));
+    }
+
+    @NonNull
+    private static String randomName(@NonNull Random random) {
+        char[] name = new char[3 + random.nextInt(3)];
+        for(int i = 0; i < name.length; i++) {
+            name[i] = "abcde".charAt(random.nextInt(5));
+        }
+        return new String(name);
+    }
+
+    // the textbook optimal string alignment distance
+    private static int osa(@NonNull String a, @NonNull String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for(int i = 0; i <= a.length(); i++) {
+            d[i][0] = i;
+        }
+        for(int j = 0; j <= b.length(); j++) {
+            d[0][j] = j;
+        }
+        for(int i = 1; i <= a.length(); i++) {
+            for(int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+                if(i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+                }
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+}
@@ -0,0 +1,150 @@
+package com.gallagher.nzcovidpass;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SignatureVerifierCalibrationTests {
+    private static final long BUDGET_MILLIS = 5;
+
+    private CwtSecurityTokenValidator.SignatureVerifier original;
+
+    @Before
+    public void rememberVerifier() {
+        original = CwtSecurityTokenValidator.getSignatureVerifier();
+    }
+
+    @After
+    public void restoreVerifier() {
+        CwtSecurityTokenValidator.setSignatureVerifier(original);
+    }
+
+    // says yes to everything, so it must never be selected however fast it is
+    private static final CwtSecurityTokenValidator.SignatureVerifier gullible = new CwtSecurityTokenValidator.SignatureVerifier() {
+        @NonNull
+        @Override
+        public String getName() {
+            return "gullible";
+        }
+
+        @Override
+        public boolean verify(@NonNull byte[] signature, int signatureOffset, @NonNull byte[] data, int dataOffset, int dataLength, @NonNull PublicKey publicKey) {
+            return true;
+        }
+    };
+
+    private static final CwtSecurityTokenValidator.SignatureVerifier broken = new CwtSecurityTokenValidator.SignatureVerifier() {
+        @NonNull
+        @Override
+        public String getName() {
+            return "broken";
+        }
+
+        @Override
+        public boolean verify(@NonNull byte[] signature, int signatureOffset, @NonNull byte[] data, int dataOffset, int dataLength, @NonNull PublicKey publicKey) throws GeneralSecurityException {
+            throw new SignatureException("not today");
+        }
+    };
+
+    private static class RecordingInstrumentation extends Instrumentation {
+        final List<String> benchmarked = new ArrayList<>();
+        final List<String> disagreed = new ArrayList<>();
+        String selected;
+
+        @Override
+        public void signatureVerifierBenchmarked(@NonNull String name, double microsPerVerify, boolean agrees) {
+            benchmarked.add(name);
+            if(!agrees) {
+                disagreed.add(name);
+                Assert.assertTrue(Double.isNaN(microsPerVerify));
+            } else {
+                Assert.assertTrue(microsPerVerify > 0);
+            }
+        }
+
+        @Override
+        public void signatureVerifierSelected(@NonNull String name, double microsPerVerify) {
+            Assert.assertNull(selected);
+            selected = name;
+        }
+    }
+
+    @Test
+    public void testInstalledProvidersAgree() {
+        List<CwtSecurityTokenValidator.SignatureVerifier> installed = SignatureVerifierCalibration.installedProviders();
+        Assert.assertFalse(installed.isEmpty());
+        for(SignatureVerifierCalibration.Result result : SignatureVerifierCalibration.benchmark(installed, BUDGET_MILLIS)) {
+            Assert.assertTrue(result.getVerifier().getName(), result.agrees());
+        }
+    }
+
+    @Test
+    public void testSelectsFastestThatAgrees() throws Exception {
+        RecordingInstrumentation instrumentation = new RecordingInstrumentation();
+        SignatureVerifierCalibration.Result best = SignatureVerifierCalibration.calibrate(instrumentation, BUDGET_MILLIS, Arrays.asList(gullible, broken));
+
+        Assert.assertTrue(best.agrees());
+        Assert.assertSame(best.getVerifier(), CwtSecurityTokenValidator.getSignatureVerifier());
+        Assert.assertEquals(best.getVerifier().getName(), instrumentation.selected);
+        Assert.assertEquals(Arrays.asList("gullible", "broken"), instrumentation.disagreed);
+        Assert.assertEquals(SignatureVerifierCalibration.installedProviders().size() + 2, instrumentation.benchmarked.size());
+
+        // and verification still works with whatever it picked
+        new PassVerifier(Collections.singletonList(WellKnownIssuerNames.NZCP_TEST)).verify(PassVerifier.WARM_UP_PASS, new Date(PassVerifier.WARM_UP_PASS_REFERENCE_TIME));
+    }
+
+    @Test
+    public void testValidatorsUseTheInstalledVerifier() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CwtSecurityTokenValidator.SignatureVerifier inner = original;
+        CwtSecurityTokenValidator.setSignatureVerifier(new CwtSecurityTokenValidator.SignatureVerifier() {
+            @NonNull
+            @Override
+            public String getName() {
+                return "counting";
+            }
+
+            @Override
+            public boolean verify(@NonNull byte[] signature, int signatureOffset, @NonNull byte[] data, int dataOffset, int dataLength, @NonNull PublicKey publicKey) throws GeneralSecurityException {
+                calls.incrementAndGet();
+                return inner.verify(signature, signatureOffset, data, dataOffset, dataLength, publicKey);
+            }
+        });
+        new PassVerifier(Collections.singletonList(WellKnownIssuerNames.NZCP_TEST)).verifyPass(PassVerifier.WARM_UP_PASS, new Date(PassVerifier.WARM_UP_PASS_REFERENCE_TIME));
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testCalibratesWithoutTheTestKeyInTheDefaultStore() {
+        TrustStore.Snapshot snapshot = TrustStore.getDefault().getSnapshot();
+        try {
+            TrustStore.getDefault().update(new TrustStore.Snapshot(Collections.<String, TrustStore.TrustedKey>emptyMap()));
+            for(SignatureVerifierCalibration.Result result : SignatureVerifierCalibration.benchmark(SignatureVerifierCalibration.installedProviders(), BUDGET_MILLIS)) {
+                Assert.assertTrue(result.getVerifier().getName(), result.agrees());
+            }
+        } finally {
+            TrustStore.getDefault().update(snapshot);
+        }
+    }
+
+    @Test
+    public void testDefaultVerifiersAreShared() {
+        Assert.assertSame(CwtSecurityTokenValidator.defaultSignatureVerifier(false), CwtSecurityTokenValidator.defaultSignatureVerifier(false));
+        if(CwtSecurityTokenValidator.P1363_SUPPORTED) {
+            Assert.assertSame(CwtSecurityTokenValidator.defaultSignatureVerifier(true), CwtSecurityTokenValidator.defaultSignatureVerifier(true));
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.gallagher.nzcovidpass;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TrustStoreTests {
+    @NonNull
+    private static final String validPassPayload = "NZCP:/1/2KCEVIQEIVVWK6JNGEASNICZAEP2KALYDZSGSZB2O5SWEOTOPJRXALTDN53GSZBRHEXGQZLBNR2GQLTOPICRUYMBTIFAIGTUKBAAUYTWMOSGQQDDN5XHIZLYOSBHQJTIOR2HA4Z2F4XXO53XFZ3TGLTPOJTS6MRQGE4C6Y3SMVSGK3TUNFQWY4ZPOYYXQKTIOR2HA4Z2F4XW46TDOAXGG33WNFSDCOJONBSWC3DUNAXG46RPMNXW45DFPB2HGL3WGFTXMZLSONUW63TFGEXDALRQMR2HS4DFQJ2FMZLSNFTGSYLCNRSUG4TFMRSW45DJMFWG6UDVMJWGSY2DN53GSZCQMFZXG4LDOJSWIZLOORUWC3CTOVRGUZLDOSRWSZ3JOZSW4TTBNVSWISTBMNVWUZTBNVUWY6KOMFWWKZ2TOBQXE4TPO5RWI33CNIYTSNRQFUYDILJRGYDVAYFE6VGU4MCDGK7DHLLYWHVPUS2YIDJOA6Y524TD3AZRM263WTY2BE4DPKIF27WKF3UDNNVSVWRDYIYVJ65IRJJJ6Z25M2DO4YZLBHWFQGVQR5ZLIWEQJOZTS3IQ7JTNCFDX";
+
+    @NonNull
+    private final Date referenceTime = new Date(1639345844000L);
+
+    @NonNull
+    private static DID.Document testDocument(@NonNull String kty, @NonNull String x) {
+        String id = WellKnownIssuerNames.NZCP_TEST;
+        DID.JsonWebKey jwk = new DID.JsonWebKey(kty, "P-256", x, "Iv5SU6FuW-TRYh5_GOrJlcV_gpF_GpFQhCOD8LSk3T0");
+        DID.VerificationMethod vm = new DID.VerificationMethod(id + "#key-1", id, "JsonWebKey2020", jwk);
+        return new DID.Document(id, Collections.singletonList("https://w3.org/ns/did/v1"), Collections.singletonList(vm), Collections.singletonList(id + "#key-1"));
+    }
+
+    @NonNull
+    private static PassVerifier verifierFor(@NonNull TrustStore trustStore) {
+        return new PassVerifier(new PassVerifier.Options(
+                PassVerifier.DEFAULT_PREFIX,
+                PassVerifier.DEFAULT_VERSION,
+                Collections.singletonList(WellKnownIssuerNames.NZCP_TEST),
+                PassVerifier.DEFAULT_VALID_ALGORITHMS,
+                trustStore));
+    }
+
+    @Test
+    public void testDefaultContainsWellKnownIssuers() {
+        TrustStore.Snapshot snapshot = TrustStore.getDefault().getSnapshot();
+        assertEquals(2, snapshot.size());
+        assertNotNull(snapshot.find(WellKnownIssuerNames.NZCP_TEST, "key-1").getPublicKey());
+        assertNotNull(snapshot.find(WellKnownIssuerNames.NZCP, "z12Kf7UQ").getPublicKey());
+        assertNull(snapshot.find(WellKnownIssuerNames.NZCP, "key-1"));
+    }
+
+    // the build generates TrustAnchors from the DID documents; they must give the same keys as parsing the documents
+    @Test
+    public void testGeneratedTrustAnchorsMatchDocuments() throws Exception {
+        File[] files = new File("src/main/trust-anchors").listFiles();
+        assertNotNull(files);
+        List<DID.Document> documents = new ArrayList<>();
+        for(File file : files) {
+            documents.add(new DID.Document(new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8))));
+        }
+        TrustStore.Snapshot parsed = TrustStore.buildSnapshot(documents);
+        TrustStore.Snapshot generated = TrustStore.getDefault().getSnapshot();
+
+        assertEquals(parsed.getKeys().keySet(), generated.getKeys().keySet());
+        for(TrustStore.TrustedKey key : parsed.getKeys().values()) {
+            assertEquals(key.getPublicKey(), generated.getKeys().get(key.getId()).getPublicKey());
+        }
+        // and the encodings are of the coordinates in the documents
+        List<String> ids = Arrays.asList(TrustAnchors.IDS);
+        int methods = 0;
+        for(DID.Document document : documents) {
+            for(DID.VerificationMethod method : document.getVerificationMethods()) {
+                int i = ids.indexOf(method.getId());
+                assertTrue(method.getId(), i >= 0);
+                byte[] x = Base64.getUrlDecoder().decode(method.getPublicKeyJwk().getX());
+                byte[] y = Base64.getUrlDecoder().decode(method.getPublicKeyJwk().getY());
+                assertArrayEquals(CwtSecurityTokenValidator.loadP256PublicKey(x, y).getEncoded(), TrustAnchors.X509[i]);
+                methods++;
+            }
+        }
+        assertEquals(TrustAnchors.IDS.length, methods);
+    }
+
+    @Test
+    public void testRotateKeys() throws Exception {
+        TrustStore trustStore = new TrustStore(Collections.singletonList(testDocument("EC", "zRR-XGsCp12Vvbgui4DD6O6cqmhfPuXMhi1OxPl8760")));
+        PassVerifier verifier = verifierFor(trustStore);
+        verifier.verify(validPassPayload, referenceTime);
+
+        trustStore.update(Collections.<DID.Document>emptyList());
+        assertThrows("", CwtSecurityTokenValidationError.InvalidIssuer.class, () -> {
+            verifier.verify(validPassPayload, referenceTime);
+        });
+
+        trustStore.update(TrustStore.getDefault().getSnapshot());
+        verifier.verify(validPassPayload, referenceTime);
+    }
+
+    @Test
+    public void testRejectsUnsupportedKeyType() {
+        TrustStore trustStore = new TrustStore(Collections.singletonList(testDocument("RSA", "zRR-XGsCp12Vvbgui4DD6O6cqmhfPuXMhi1OxPl8760")));
+        TrustStore.TrustedKey key = trustStore.getSnapshot().find(WellKnownIssuerNames.NZCP_TEST, "key-1");
+        assertNotNull(key);
+        assertFalse(key.isSupportedKeyType());
+
+        assertThrows("", CwtSecurityTokenValidationError.UnsupportedVerificationKeyType.class, () -> {
+            verifierFor(trustStore).verify(validPassPayload, referenceTime);
+        });
+    }
+
+    @Test
+    public void testRejectsInvalidKeyParameters() {
+        TrustStore trustStore = new TrustStore(Collections.singletonList(testDocument("EC", "tooShort")));
+        TrustStore.TrustedKey key = trustStore.getSnapshot().find(WellKnownIssuerNames.NZCP_TEST, "key-1");
+        assertNotNull(key);
+        assertTrue(key.isSupportedKeyType());
+        assertNull(key.getPublicKey());
+
+        assertThrows("", CwtSecurityTokenValidationError.InvalidKeyParameters.class, () -> {
+            verifierFor(trustStore).verify(validPassPayload, referenceTime);
+        });
+    }
+
+    @Test
+    public void testIgnoresAssertionsForOtherIssuers() {
+        DID.Document doc = testDocument("EC", "zRR-XGsCp12Vvbgui4DD6O6cqmhfPuXMhi1OxPl8760");
+        DID.Document wrongId = new DID.Document("did:web:example.com", doc.getContexts(), doc.getVerificationMethods(), doc.getAssertionMethods());
+        TrustStore.Snapshot snapshot = TrustStore.buildSnapshot(Collections.singletonList(wrongId));
+        assertEquals(0, snapshot.size());
+    }
+
+    @Test
+    public void testConcurrentVerifyDuringRotation() throws Exception {
+        TrustStore trustStore = new TrustStore(TrustStore.getDefault().getSnapshot());
+        TrustStore.Snapshot good = trustStore.getSnapshot();
+        TrustStore.Snapshot empty = TrustStore.buildSnapshot(Collections.<DID.Document>emptyList());
+        PassVerifier verifier = verifierFor(trustStore);
+
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                int failures = 0;
+                for(int i = 0; i < 50; i++) {
+                    try {
+                        verifier.verify(validPassPayload, referenceTime);
+                    } catch (CwtSecurityTokenValidationError.InvalidIssuer e) {
+                        // expected while the empty snapshot is published; anything else is a bug
+                    } catch (Exception e) {
+                        failures++;
+                    }
+                }
+                return failures;
+            }));
+        }
+        start.countDown();
+        for(int i = 0; i < 100; i++) {
+            trustStore.update(i % 2 == 0 ? empty : good);
+        }
+        trustStore.update(good);
+        for(Future<Integer> f : results) {
+            assertEquals(Integer.valueOf(0), f.get());
+        }
+        executor.shutdown();
+        assertSame(good, trustStore.getSnapshot());
+    }
+}
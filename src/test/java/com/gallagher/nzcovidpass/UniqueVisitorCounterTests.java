@@ -0,0 +1,146 @@
+package com.gallagher.nzcovidpass;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class UniqueVisitorCounterTests {
+    @Test
+    public void testEmptyAndDuplicates() {
+        UniqueVisitorCounter counter = new UniqueVisitorCounter();
+        assertEquals(0, counter.estimate());
+
+        VerifiedPass pass = new VerifiedPass(0x60a4f54d4e304332L, 0xbe33ad78b1eafa4bL, 1635883530L, 1951416330L, WellKnownIssuerNames.NZCP_TEST, "key-1", "Jack", "Sparrow", "1960-04-16");
+        assertTrue(counter.add(pass));
+        assertFalse(counter.add(pass));
+        assertFalse(counter.add(pass.getCtiMostSignificantBits(), pass.getCtiLeastSignificantBits()));
+        assertEquals(1, counter.estimate());
+    }
+
+    @Test
+    public void testEstimatesWithinTheErrorBound() {
+        Random random = new Random(50);
+        for(int precision : new int[] { 10, UniqueVisitorCounter.DEFAULT_PRECISION, 16 }) {
+            UniqueVisitorCounter counter = new UniqueVisitorCounter(precision);
+            int added = 0;
+            for(int target : new int[] { 10, 100, 1000, 10000, 100000, 1000000 }) {
+                for(; added < target; added++) {
+                    // sequential ctis, which are the worst case for a weak hash
+                    counter.add(0x4000L, added);
+                    if(random.nextInt(4) == 0) {
+                        counter.add(0x4000L, random.nextInt(added + 1)); // seen before
+                    }
+                }
+                double error = Math.abs(counter.estimate() - target) / (double)target;
+                // well beyond any realistic miss at 4 standard errors, for a fixed seed
+                assertTrue(precision + "/" + target + ": " + counter.estimate(), error < 4 * counter.getStandardError());
+            }
+        }
+    }
+
+    @Test
+    public void testMergeIsTheUnion() {
+        Random random = new Random(51);
+        UniqueVisitorCounter gate1 = new UniqueVisitorCounter();
+        UniqueVisitorCounter gate2 = new UniqueVisitorCounter();
+        UniqueVisitorCounter everyone = new UniqueVisitorCounter();
+        for(int i = 0; i < 50000; i++) {
+            long high = random.nextLong();
+            long low = random.nextLong();
+            // some visitors go through both gates
+            int gates = random.nextInt(3);
+            if(gates != 1) {
+                gate1.add(high, low);
+            }
+            if(gates != 0) {
+                gate2.add(high, low);
+            }
+            everyone.add(high, low);
+        }
+        UniqueVisitorCounter merged = UniqueVisitorCounter.fromByteArray(gate1.toByteArray());
+        merged.merge(UniqueVisitorCounter.fromByteArray(gate2.toByteArray()));
+        assertArrayEquals(everyone.toByteArray(), merged.toByteArray());
+        assertEquals(everyone.estimate(), merged.estimate());
+
+        assertThrows(IllegalArgumentException.class, () -> merged.merge(new UniqueVisitorCounter(12)));
+    }
+
+    @Test
+    public void testSerialisation() {
+        UniqueVisitorCounter counter = new UniqueVisitorCounter();
+        assertEquals(3, counter.toByteArray().length);
+        Random random = new Random(52);
+        for(int count : new int[] { 1, 100, 1000, 100000 }) {
+            while(counter.estimate() < count) {
+                counter.add(random.nextLong(), random.nextLong());
+            }
+            byte[] bytes = counter.toByteArray();
+            // a few kilobytes at most, and much less while few registers are set
+            assertTrue(bytes.length <= 2 + counter.getRegisterCount() * 6 / 8);
+            if(count <= 1000) {
+                assertTrue(bytes.length < count * 4 + 8);
+            }
+            UniqueVisitorCounter copy = UniqueVisitorCounter.fromByteArray(bytes);
+            assertEquals(counter.estimate(), copy.estimate());
+            assertArrayEquals(bytes, copy.toByteArray());
+        }
+    }
+
+    @Test
+    public void testRejectsMalformedData() {
+        // the dense form of an empty counter, which toByteArray wouldn't choose
+        byte[] valid = new byte[2 + 12];
+        valid[0] = 1;
+        valid[1] = 4;
+        assertEquals(0, UniqueVisitorCounter.fromByteArray(valid).estimate());
+
+        for(byte[] data : new byte[][] {
+                {},
+                { 1 },
+                { 1, 4, 0 }, // too short
+                { 1, 3 }, // precision out of range
+                { 9, 4 }, // unknown format
+                { 2, 4, 1, 16, 1 }, // index beyond the registers
+                { 2, 4, 1, 0, 62 }, // a register larger than the hash allows
+                { 2, 4, 2, 0, 1 }, // fewer entries than it says
+                { 2, 4, 1, 0, 1, 0 }, // trailing bytes
+                { 2, 4, (byte)0x80 }, // unterminated number
+        }) {
+            assertThrows(IllegalArgumentException.class, () -> UniqueVisitorCounter.fromByteArray(data));
+        }
+    }
+
+    @Test
+    public void testConcurrentAddsLoseNothing() throws InterruptedException {
+        final UniqueVisitorCounter shared = new UniqueVisitorCounter(8); // few registers, so threads collide often
+        UniqueVisitorCounter sequential = new UniqueVisitorCounter(8);
+        final int perThread = 200000;
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 4; t++) {
+            final long high = t;
+            threads.add(new Thread(() -> {
+                for(int i = 0; i < perThread; i++) {
+                    shared.add(high, i);
+                }
+            }));
+            for(int i = 0; i < perThread; i++) {
+                sequential.add(high, i);
+            }
+        }
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertArrayEquals(sequential.toByteArray(), shared.toByteArray());
+    }
+}
@@ -0,0 +1,290 @@
+package com.gallagher.nzcovidpass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class VerificationProcessorTests {
+    @NonNull
+    private static final String validPassPayload = PassVerifier.WARM_UP_PASS;
+
+    @NonNull
+    private final PassVerifier verifier = new PassVerifier(new PassVerifier.Options(Collections.singletonList(WellKnownIssuerNames.NZCP_TEST)));
+
+    @NonNull
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    // emits payloads only as they're requested, and remembers the most that was ever outstanding
+    private static class TestPublisher implements Publisher<String> {
+        @NonNull
+        private final List<String> _items;
+        private int _next;
+        private long _outstanding;
+        private long _maxOutstanding;
+        private boolean _cancelled;
+        @Nullable
+        private Throwable _failWith;
+
+        TestPublisher(@NonNull List<String> items, @Nullable Throwable failWith) {
+            _items = items;
+            _failWith = failWith;
+        }
+
+        @Override
+        public void subscribe(@NonNull final Subscriber<? super String> subscriber) {
+            subscriber.onSubscribe(new Subscription() {
+                private boolean _emitting;
+
+                @Override
+                public void request(long n) {
+                    synchronized (TestPublisher.this) {
+                        _outstanding += n;
+                        _maxOutstanding = Math.max(_maxOutstanding, _outstanding);
+                        if(_emitting) { // reentrant request from within onNext; the outer loop picks it up
+                            return;
+                        }
+                        _emitting = true;
+                    }
+                    while(true) {
+                        String item = null;
+                        boolean done = false;
+                        synchronized (TestPublisher.this) {
+                            if(_cancelled || _next > _items.size()) {
+                                _emitting = false;
+                                return;
+                            }
+                            if(_next == _items.size()) {
+                                _next++;
+                                done = true;
+                            } else if(_outstanding > 0) {
+                                item = _items.get(_next++);
+                                _outstanding--;
+                            } else {
+                                _emitting = false;
+                                return;
+                            }
+                        }
+                        if(done) {
+                            if(_failWith != null) {
+                                subscriber.onError(_failWith);
+                            } else {
+                                subscriber.onComplete();
+                            }
+                        } else {
+                            subscriber.onNext(item);
+                        }
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    synchronized (TestPublisher.this) {
+                        _cancelled = true;
+                    }
+                }
+            });
+        }
+    }
+
+    private static class TestSubscriber implements Subscriber<VerificationResult> {
+        @NonNull
+        final List<VerificationResult> results = Collections.synchronizedList(new ArrayList<VerificationResult>());
+        @NonNull
+        final CountDownLatch done = new CountDownLatch(1);
+        private final long _initialRequest;
+        @Nullable
+        volatile Subscription subscription;
+        @Nullable
+        volatile Throwable error;
+        volatile boolean completed;
+
+        TestSubscriber(long initialRequest) {
+            _initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(@NonNull Subscription s) {
+            subscription = s;
+            if(_initialRequest > 0) {
+                s.request(_initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(@NonNull VerificationResult result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onError(@NonNull Throwable t) {
+            error = t;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+            done.countDown();
+        }
+    }
+
+    @NonNull
+    private static List<String> payloads(int count) {
+        List<String> result = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            // every third one is junk, so we get a mix of fast and slow failures
+            result.add(i % 3 == 0 ? "NOPE:/1/" + i : validPassPayload);
+        }
+        return result;
+    }
+
+    @Test
+    public void testOrderedOutput() throws Exception {
+        List<String> input = payloads(200);
+        TestPublisher publisher = new TestPublisher(input, null);
+        VerificationProcessor processor = new VerificationProcessor(verifier, executor, 4, 16, true);
+        TestSubscriber subscriber = new TestSubscriber(Long.MAX_VALUE);
+        processor.subscribe(subscriber);
+        publisher.subscribe(processor);
+
+        assertTrue(subscriber.done.await(30, TimeUnit.SECONDS));
+        assertTrue(subscriber.completed);
+        assertEquals(input.size(), subscriber.results.size());
+        for(int i = 0; i < input.size(); i++) {
+            VerificationResult result = subscriber.results.get(i);
+            assertEquals(input.get(i), result.getPassPayload());
+            if(i % 3 == 0) {
+                assertTrue(result.getError() instanceof PassVerificationError.InvalidPrefix);
+            }
+        }
+        assertTrue(publisher._maxOutstanding <= 16);
+    }
+
+    @Test
+    public void testUnorderedOutputDeliversEverything() throws Exception {
+        List<String> input = payloads(100);
+        TestPublisher publisher = new TestPublisher(input, null);
+        VerificationProcessor processor = new VerificationProcessor(verifier, executor, 3, 8, false);
+        TestSubscriber subscriber = new TestSubscriber(Long.MAX_VALUE);
+        processor.subscribe(subscriber);
+        publisher.subscribe(processor);
+
+        assertTrue(subscriber.done.await(30, TimeUnit.SECONDS));
+        assertTrue(subscriber.completed);
+        assertEquals(input.size(), subscriber.results.size());
+        int invalidPrefixes = 0;
+        for(VerificationResult result : subscriber.results) {
+            assertFalse(result.isValid() && result.getError() != null);
+            if(result.getError() instanceof PassVerificationError.InvalidPrefix) {
+                invalidPrefixes++;
+            }
+        }
+        assertEquals(34, invalidPrefixes);
+    }
+
+    @Test
+    public void testRespectsDownstreamDemand() throws Exception {
+        TestPublisher publisher = new TestPublisher(payloads(1000), null);
+        VerificationProcessor processor = new VerificationProcessor(verifier, executor, 2, 8, true);
+        TestSubscriber subscriber = new TestSubscriber(5);
+        processor.subscribe(subscriber);
+        publisher.subscribe(processor);
+
+        // a subscriber that stops asking should leave the publisher holding the rest, not us
+        long deadline = System.currentTimeMillis() + 10000;
+        while(subscriber.results.size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertEquals(5, subscriber.results.size());
+        synchronized (publisher) {
+            assertTrue(publisher._next <= 5 + 8);
+            assertTrue(publisher._maxOutstanding <= 8);
+        }
+
+        subscriber.subscription.cancel();
+        synchronized (publisher) {
+            assertTrue(publisher._cancelled);
+        }
+    }
+
+    @Test
+    public void testUpstreamErrorAfterBufferedResults() throws Exception {
+        TestPublisher publisher = new TestPublisher(payloads(10), new IllegalStateException("scanner went away"));
+        VerificationProcessor processor = new VerificationProcessor(verifier, executor, 2, true);
+        TestSubscriber subscriber = new TestSubscriber(Long.MAX_VALUE);
+        processor.subscribe(subscriber);
+        publisher.subscribe(processor);
+
+        assertTrue(subscriber.done.await(30, TimeUnit.SECONDS));
+        assertEquals(10, subscriber.results.size());
+        assertTrue(subscriber.error instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testRejectedExecutionFailsThePassNotTheProcessor() throws Exception {
+        // a shut down pool rejects every task; the processor must keep going and report each pass as failed
+        ExecutorService stopped = Executors.newSingleThreadExecutor();
+        stopped.shutdown();
+        List<String> input = payloads(10);
+        TestPublisher publisher = new TestPublisher(input, null);
+        VerificationProcessor processor = new VerificationProcessor(verifier, stopped, 2, 4, true);
+        TestSubscriber subscriber = new TestSubscriber(Long.MAX_VALUE);
+        processor.subscribe(subscriber);
+        publisher.subscribe(processor);
+
+        assertTrue(subscriber.done.await(5, TimeUnit.SECONDS));
+        assertTrue(subscriber.completed);
+        assertEquals(input.size(), subscriber.results.size());
+        for(VerificationResult result : subscriber.results) {
+            assertTrue(result.getError() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void testSecondSubscriberRejected() throws Exception {
+        VerificationProcessor processor = new VerificationProcessor(verifier, executor, 1, true);
+        processor.subscribe(new TestSubscriber(1));
+        TestSubscriber second = new TestSubscriber(1);
+        processor.subscribe(second);
+        assertTrue(second.done.await(1, TimeUnit.SECONDS));
+        assertTrue(second.error instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testNonPositiveRequestIsAnError() throws Exception {
+        TestPublisher publisher = new TestPublisher(payloads(10), null);
+        VerificationProcessor processor = new VerificationProcessor(verifier, executor, 1, true);
+        TestSubscriber subscriber = new TestSubscriber(0);
+        processor.subscribe(subscriber);
+        publisher.subscribe(processor);
+        subscriber.subscription.request(0);
+
+        assertTrue(subscriber.done.await(5, TimeUnit.SECONDS));
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertTrue(subscriber.results.isEmpty());
+    }
+}
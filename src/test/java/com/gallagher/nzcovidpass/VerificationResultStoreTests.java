@@ -0,0 +1,222 @@
+package com.gallagher.nzcovidpass;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.function.ThrowingRunnable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class VerificationResultStoreTests {
+    @NonNull
+    private static final String validPassPayload = PassVerifier.WARM_UP_PASS;
+    @NonNull
+    private final Date referenceTime = new Date(PassVerifier.WARM_UP_PASS_REFERENCE_TIME);
+
+    @NonNull
+    private static final VerifiedPass samplePass = new VerifiedPass(1, 2, 1635883530L, 1951416330L, WellKnownIssuerNames.NZCP_TEST, "key-1", "Jack", "Sparrow", "1960-04-16");
+
+    @NonNull
+    private static byte[] digest(int seed) {
+        byte[] digest = new byte[VerificationResultStore.DIGEST_LENGTH];
+        Arrays.fill(digest, (byte)seed);
+        return digest;
+    }
+
+    // counts how often the verifier had to go to the store, and how often the store had an answer
+    private static class CountingStore implements VerificationResultStore {
+        @NonNull
+        final VerificationResultStore inner;
+        @NonNull
+        final AtomicInteger hits = new AtomicInteger();
+        @NonNull
+        final AtomicInteger puts = new AtomicInteger();
+
+        CountingStore(@NonNull VerificationResultStore inner) {
+            this.inner = inner;
+        }
+
+        @Nullable
+        @Override
+        public VerifiedPass get(@NonNull byte[] digest) {
+            VerifiedPass pass = inner.get(digest);
+            if(pass != null) {
+                hits.incrementAndGet();
+            }
+            return pass;
+        }
+
+        @Override
+        public void put(@NonNull byte[] digest, @NonNull VerifiedPass pass, long expiresAtMillis) {
+            puts.incrementAndGet();
+            inner.put(digest, pass, expiresAtMillis);
+        }
+    }
+
+    @NonNull
+    private static PassVerifier verifierWith(@NonNull VerificationResultStore store, @NonNull String... issuers) {
+        return new PassVerifier(new PassVerifier.Options(Arrays.asList(issuers)), null, null, store);
+    }
+
+    @Test
+    public void testRecordRoundTrip() throws IOException {
+        VerifiedPass noFamilyName = new VerifiedPass(3, 4, VerifiedPass.NO_TIME, 1951416330L, WellKnownIssuerNames.NZCP, "z12Kf7UQ", "Cher", null, "1946-05-20");
+        for(VerifiedPass pass : new VerifiedPass[] { samplePass, noFamilyName }) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            VerificationResultStore.Records.write(new DataOutputStream(bytes), pass);
+            VerifiedPass read = VerificationResultStore.Records.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            Assert.assertEquals(pass, read);
+        }
+    }
+
+    @Test
+    public void testInMemoryExpiry() {
+        InMemoryVerificationResultStore store = new InMemoryVerificationResultStore(2, 1000);
+        store.put(digest(1), samplePass, 5000, 0);
+        Assert.assertEquals(samplePass, store.get(digest(1), 999));
+        // capped by maxTtl rather than the pass's own expiry
+        Assert.assertNull(store.get(digest(1), 1000));
+        Assert.assertEquals(0, store.size());
+
+        store.put(digest(2), samplePass, 500, 0);
+        Assert.assertEquals(samplePass, store.get(digest(2), 499));
+        Assert.assertNull(store.get(digest(2), 500));
+
+        // already expired, or not a SHA-256 digest
+        store.put(digest(3), samplePass, 100, 100);
+        store.put(new byte[4], samplePass, 5000, 0);
+        Assert.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testInMemoryIsBounded() {
+        InMemoryVerificationResultStore store = new InMemoryVerificationResultStore(2, 10000);
+        store.put(digest(1), samplePass, 100, 0);
+        store.put(digest(2), samplePass, 5000, 0);
+        store.put(digest(3), samplePass, 5000, 50); // full, and nothing has expired yet
+        Assert.assertNull(store.get(digest(3), 50));
+        store.put(digest(3), samplePass, 5000, 200); // digest 1 has expired, so makes room
+        Assert.assertEquals(samplePass, store.get(digest(3), 200));
+        Assert.assertEquals(2, store.size());
+    }
+
+    @Test
+    public void testVerifierSharesResults() throws Exception {
+        CountingStore store = new CountingStore(new InMemoryVerificationResultStore());
+        PassVerifier first = verifierWith(store, WellKnownIssuerNames.NZCP_TEST);
+        PassVerifier second = verifierWith(store, WellKnownIssuerNames.NZCP_TEST);
+
+        VerifiedPass verified = first.verifyPass(validPassPayload, referenceTime);
+        Assert.assertEquals(1, store.puts.get());
+        Assert.assertEquals(0, store.hits.get());
+
+        Assert.assertSame(verified, second.verifyPass(validPassPayload, referenceTime));
+        Assert.assertEquals(1, store.hits.get());
+        Assert.assertEquals(1, store.puts.get());
+    }
+
+    @Test
+    public void testStoredResultIsRecheckedByEachVerifier() throws Exception {
+        CountingStore store = new CountingStore(new InMemoryVerificationResultStore());
+        verifierWith(store, WellKnownIssuerNames.NZCP_TEST).verifyPass(validPassPayload, referenceTime);
+
+        // a verifier that doesn't accept the test issuer, or is asked about a later time, comes to its own conclusion
+        final PassVerifier productionOnly = verifierWith(store, WellKnownIssuerNames.NZCP);
+        assertThrows(CwtSecurityTokenValidationError.InvalidIssuer.class, new ThrowingRunnable() {
+            @Override
+            public void run() throws Throwable {
+                productionOnly.verifyPass(validPassPayload, referenceTime);
+            }
+        });
+        final PassVerifier test = verifierWith(store, WellKnownIssuerNames.NZCP_TEST);
+        assertThrows(CwtSecurityTokenValidationError.Expired.class, new ThrowingRunnable() {
+            @Override
+            public void run() throws Throwable {
+                test.verifyPass(validPassPayload, new Date(2200000000000L));
+            }
+        });
+    }
+
+    @Test
+    public void testNonAsciiPayloadIsNotAStoreHit() throws Exception {
+        CountingStore store = new CountingStore(new InMemoryVerificationResultStore());
+        final PassVerifier verifier = verifierWith(store, WellKnownIssuerNames.NZCP_TEST);
+        verifier.verifyPass(validPassPayload, referenceTime);
+
+        // the same low byte in every char as the valid pass, but one of them isn't Base32
+        int index = validPassPayload.length() - 10;
+        final String corrupted = validPassPayload.substring(0, index) + (char)(validPassPayload.charAt(index) + 0x100) + validPassPayload.substring(index + 1);
+        assertThrows(PassVerificationError.InvalidPayloadEncoding.class, new ThrowingRunnable() {
+            @Override
+            public void run() throws Throwable {
+                verifier.verifyPass(corrupted, referenceTime);
+            }
+        });
+        Assert.assertEquals(0, store.hits.get());
+        Assert.assertEquals(1, store.puts.get());
+    }
+
+    @Test
+    public void testStoredResultForUnknownKeyIsIgnored() throws Exception {
+        // a store that vouches for everything, with a key we don't have
+        final VerifiedPass bogus = new VerifiedPass(1, 2, VerifiedPass.NO_TIME, 1951416330L, WellKnownIssuerNames.NZCP_TEST, "key-404", "Not", "Real", "2000-01-01");
+        PassVerifier verifier = verifierWith(new VerificationResultStore() {
+            @Nullable
+            @Override
+            public VerifiedPass get(@NonNull byte[] digest) {
+                return bogus;
+            }
+
+            @Override
+            public void put(@NonNull byte[] digest, @NonNull VerifiedPass pass, long expiresAtMillis) {
+            }
+        }, WellKnownIssuerNames.NZCP_TEST);
+        Assert.assertEquals("key-1", verifier.verifyPass(validPassPayload, referenceTime).getKeyId());
+    }
+
+    @Test
+    public void testSharedThroughServer() throws Exception {
+        CountingStore backing = new CountingStore(new InMemoryVerificationResultStore());
+        try(VerificationResultStoreServer server = new VerificationResultStoreServer(backing, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SocketVerificationResultStore nodeA = new SocketVerificationResultStore(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()), 2000, 1000);
+            SocketVerificationResultStore nodeB = new SocketVerificationResultStore(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()), 2000, 1000)) {
+
+            VerifiedPass verified = verifierWith(nodeA, WellKnownIssuerNames.NZCP_TEST).verifyPass(validPassPayload, referenceTime);
+            Assert.assertEquals(1, backing.puts.get());
+
+            VerifiedPass shared = verifierWith(nodeB, WellKnownIssuerNames.NZCP_TEST).verifyPass(validPassPayload, referenceTime);
+            Assert.assertEquals(verified, shared);
+            Assert.assertEquals(1, backing.hits.get());
+            Assert.assertEquals(1, backing.puts.get());
+        }
+    }
+
+    @Test
+    public void testUnreachableServerIsAMiss() throws Exception {
+        int port;
+        try(ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort(); // nothing listening once this closes
+        }
+        try(SocketVerificationResultStore store = new SocketVerificationResultStore(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 200, 60000)) {
+            Assert.assertNull(store.get(digest(1)));
+            store.put(digest(1), samplePass, Long.MAX_VALUE);
+
+            // and it still verifies, without the store
+            Assert.assertEquals(samplePass.getKeyId(), verifierWith(store, WellKnownIssuerNames.NZCP_TEST).verifyPass(validPassPayload, referenceTime).getKeyId());
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.gallagher.nzcovidpass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gallagher.nzcovidpass.server.VerificationServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public class VerificationServerTests {
+    @NonNull
+    private static final String validPassPayload = PassVerifier.WARM_UP_PASS;
+    // the same pass with one character of the signature changed
+    @NonNull
+    private static final String badSignaturePayload = validPassPayload.substring(0, validPassPayload.length() - 1) + "Y";
+
+    @Nullable
+    private VerificationServer server;
+
+    private static final class Response {
+        final int status;
+        @Nullable final String contentType;
+        @NonNull final byte[] body;
+
+        Response(int status, @Nullable String contentType, @NonNull byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        @NonNull
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    @NonNull
+    private VerificationServer start(@NonNull PassVerifier verifier) throws IOException {
+        server = new VerificationServer(verifier, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4, 16);
+        server.start();
+        return server;
+    }
+
+    @After
+    public void tearDown() {
+        if(server != null) {
+            server.close();
+        }
+    }
+
+    @NonNull
+    private Response request(@NonNull String method, @NonNull String path, @Nullable String body, @Nullable String accept, @Nullable String callerId) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        if(accept != null) {
+            connection.setRequestProperty("Accept", accept);
+        }
+        if(callerId != null) {
+            connection.setRequestProperty("X-Caller-Id", callerId);
+        }
+        if(body != null) {
+            connection.setDoOutput(true);
+            try(OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if(in != null) {
+            try(InputStream stream = in) {
+                byte[] buffer = new byte[4096];
+                int read;
+                while((read = stream.read(buffer)) >= 0) {
+                    bytes.write(buffer, 0, read);
+                }
+            }
+        }
+        return new Response(status, connection.getContentType(), bytes.toByteArray());
+    }
+
+    @NonNull
+    private static PassVerifier testVerifier() {
+        return new PassVerifier(Collections.singletonList(WellKnownIssuerNames.NZCP_TEST));
+    }
+
+    @Test
+    public void testVerifySingle() throws Exception {
+        start(testVerifier());
+        Response response = request("POST", "/verify", validPassPayload, null, null);
+        assertEquals(200, response.status);
+        assertEquals("application/json", response.contentType);
+        JSONObject result = new JSONObject(response.text());
+        assertEquals("VALID", result.getString("outcome"));
+        assertEquals("urn:uuid:60a4f54d-4e30-4332-be33-ad78b1eafa4b", result.getString("jti"));
+        assertEquals(WellKnownIssuerNames.NZCP_TEST, result.getString("iss"));
+        assertEquals(1951416330L, result.getLong("exp"));
+        assertEquals("Jack", result.getString("givenName"));
+        assertEquals("Sparrow", result.getString("familyName"));
+        assertEquals("1960-04-16", result.getString("dob"));
+
+        // an invalid pass is a result, not an HTTP error
+        Response invalid = request("POST", "/verify", badSignaturePayload, null, null);
+        assertEquals(200, invalid.status);
+        assertEquals("{\"outcome\":\"INVALID_SIGNATURE\"}", invalid.text());
+    }
+
+    @Test
+    public void testVerifyBatch() throws Exception {
+        start(testVerifier());
+        Response response = request("POST", "/verify/batch", validPassPayload + "\r\n" + "not a pass\n\n" + badSignaturePayload + "\n", null, null);
+        assertEquals(200, response.status);
+        JSONArray results = new JSONArray(response.text());
+        assertEquals(3, results.length());
+        assertEquals("VALID", results.getJSONObject(0).getString("outcome"));
+        assertEquals("INVALID_PASS", results.getJSONObject(1).getString("outcome"));
+        assertEquals("INVALID_SIGNATURE", results.getJSONObject(2).getString("outcome"));
+    }
+
+    @Test
+    public void testCborResponses() throws Exception {
+        start(testVerifier());
+        Response response = request("POST", "/verify/batch", validPassPayload + "\n" + badSignaturePayload, "application/cbor", null);
+        assertEquals(200, response.status);
+        assertEquals("application/cbor", response.contentType);
+        List<Cbor.Value> results = new Cbor.Reader(response.body).read().asList();
+        assertEquals(2, results.size());
+        Map<Cbor.Value, Cbor.Value> valid = results.get(0).asMap();
+        assertEquals("VALID", valid.get(Cbor.value("outcome")).asString());
+        assertEquals(1951416330, valid.get(Cbor.value("exp")).asInteger().intValue());
+        assertEquals(1635883530, valid.get(Cbor.value("nbf")).asInteger().intValue());
+        assertEquals("Jack", valid.get(Cbor.value("givenName")).asString());
+        assertEquals("INVALID_SIGNATURE", results.get(1).asMap().get(Cbor.value("outcome")).asString());
+    }
+
+    @Test
+    public void testRejectsBadRequests() throws Exception {
+        start(testVerifier());
+        assertEquals(405, request("GET", "/verify", null, null, null).status);
+        assertEquals(404, request("POST", "/verify/other", validPassPayload, null, null).status);
+
+        StringBuilder tooMany = new StringBuilder();
+        for(int i = 0; i <= VerificationServer.MAX_BATCH_SIZE; i++) {
+            tooMany.append("x\n");
+        }
+        assertEquals(413, request("POST", "/verify/batch", tooMany.toString(), null, null).status);
+        // and the server is still fine afterwards
+        assertEquals(200, request("POST", "/verify", validPassPayload, null, null).status);
+    }
+
+    @Test
+    public void testShedSingleVerifyIs503() throws Exception {
+        // one signature check per caller, then nothing for a long time
+        AdmissionControl admissionControl = new AdmissionControl(4, 0.001, 1);
+        start(new PassVerifier(new PassVerifier.Options(Collections.singletonList(WellKnownIssuerNames.NZCP_TEST)), null, admissionControl));
+        server.setTrustCallerIdHeader(true);
+
+        assertEquals(200, request("POST", "/verify", validPassPayload, null, "gate-1").status);
+        Response shed = request("POST", "/verify", validPassPayload, null, "gate-1");
+        assertEquals(503, shed.status);
+        assertTrue(shed.text().contains("OVERLOADED"));
+        // another gate still gets in
+        assertEquals(200, request("POST", "/verify", validPassPayload, null, "gate-2").status);
+    }
+
+    @Test
+    public void testCallerIdHeaderIsIgnoredUnlessTrusted() throws Exception {
+        AdmissionControl admissionControl = new AdmissionControl(4, 0.001, 1);
+        start(new PassVerifier(new PassVerifier.Options(Collections.singletonList(WellKnownIssuerNames.NZCP_TEST)), null, admissionControl));
+
+        // both come from the same address, so they share one rate limit whatever they claim to be
+        assertEquals(200, request("POST", "/verify", validPassPayload, null, "gate-1").status);
+        assertEquals(503, request("POST", "/verify", validPassPayload, null, "gate-2").status);
+    }
+
+    @Test
+    public void testOversizeBodyClosesWithoutReading() throws Exception {
+        start(testVerifier());
+        try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            socket.setSoTimeout(10000);
+            // the headers alone; if the server waited for the body this would time out
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /verify HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + (VerificationServer.MAX_BODY_BYTES + 1) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String response = new String(readAll(socket.getInputStream()), StandardCharsets.US_ASCII);
+            assertTrue(response, response.startsWith("HTTP/1.1 413"));
+            assertTrue(response, response.toLowerCase(Locale.ROOT).contains("connection: close"));
+        }
+        assertEquals(200, request("POST", "/verify", validPassPayload, null, null).status);
+    }
+
+    // until the server closes the connection
+    @NonNull
+    private static byte[] readAll(@NonNull InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while((read = in.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+}